@@ -0,0 +1,104 @@
+package umm3601;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.http.Header;
+import io.javalin.http.ServiceUnavailableResponse;
+
+/**
+ * Sheds load when the server is overloaded, instead of letting requests
+ * pile up (e.g., behind a slow MongoDB) until they all time out together.
+ * Each route (e.g., `GET /api/todos/{id}`) gets its own `ConcurrencyLimiter`,
+ * so a route that's slow doesn't take the limit of the others down with it,
+ * and a request over its route's limit is turned away straight away with a
+ * 503 and a `Retry-After` header, rather than queueing.
+ *
+ *   new AdmissionControl(20, 100, Set.of("/api/users/events")).register(javalin);
+ *
+ * Server-Sent Events streams stay open as long as the client listens, so
+ * they'd hold on to a slot (and look very slow); their paths are passed in
+ * as `unlimited`. (They're picked out by path, not by the request's
+ * `Accept` header, so a client can't ask its way past the limits.)
+ */
+public class AdmissionControl {
+
+  // How many seconds a turned-away client should wait before trying again
+  static final String RETRY_AFTER_SECONDS = "1";
+
+  private static final String LIMITER_ATTRIBUTE = "admissionControl.limiter";
+  private static final String START_ATTRIBUTE = "admissionControl.start";
+
+  private final int initialLimit;
+  private final int maxLimit;
+  private final Set<String> unlimited;
+  private final Map<String, ConcurrencyLimiter> limiters = new ConcurrentHashMap<>();
+
+  /**
+   * @param initialLimit how many requests each route starts out allowing at once
+   * @param maxLimit the most requests each route will ever allow at once
+   * @param unlimited the paths that aren't limited (e.g., event streams)
+   */
+  public AdmissionControl(int initialLimit, int maxLimit, Set<String> unlimited) {
+    // Fail now, rather than on the first request
+    new ConcurrencyLimiter(initialLimit, 1, maxLimit);
+    this.initialLimit = initialLimit;
+    this.maxLimit = maxLimit;
+    this.unlimited = Set.copyOf(unlimited);
+  }
+
+  /**
+   * Limit the requests to every route of a server.
+   *
+   * @param server the Javalin server
+   */
+  public void register(Javalin server) {
+    server.beforeMatched(this::admit);
+    server.after(this::finish);
+  }
+
+  /**
+   * Start a request, if its route is under its limit, or turn it away if not.
+   *
+   * @param ctx a Javalin HTTP context, for a request that matched a route
+   */
+  void admit(Context ctx) {
+    if (unlimited.contains(ctx.endpointHandlerPath())) {
+      return;
+    }
+    ConcurrencyLimiter limiter = limiter(ctx.method() + " " + ctx.endpointHandlerPath());
+    if (!limiter.tryAcquire()) {
+      // Thrown rather than `skipRemainingHandlers`, so the `after` handlers
+      // (e.g., for the other limits this request got past) still run
+      ctx.header(Header.RETRY_AFTER, RETRY_AFTER_SECONDS);
+      throw new ServiceUnavailableResponse("The server is too busy; try again shortly");
+    }
+    ctx.attribute(LIMITER_ATTRIBUTE, limiter);
+    ctx.attribute(START_ATTRIBUTE, System.nanoTime());
+  }
+
+  /**
+   * Finish a request that `admit` started (whether or not it succeeded).
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  void finish(Context ctx) {
+    ConcurrencyLimiter limiter = ctx.attribute(LIMITER_ATTRIBUTE);
+    if (limiter != null) {
+      long start = ctx.attribute(START_ATTRIBUTE);
+      limiter.release(System.nanoTime() - start);
+      ctx.attribute(LIMITER_ATTRIBUTE, null);
+    }
+  }
+
+  /**
+   * @param route a route's method and path, e.g., `GET /api/todos/{id}`
+   * @return the limiter for that route
+   */
+  ConcurrencyLimiter limiter(String route) {
+    return limiters.computeIfAbsent(route, r -> new ConcurrencyLimiter(initialLimit, 1, maxLimit));
+  }
+}
@@ -0,0 +1,70 @@
+package umm3601;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Projections.include;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Sorts;
+
+/**
+ * Splits the documents matching a filter into chunks of `_id`s for the
+ * bulk updates and deletes (e.g., `PATCH /api/todos?status=incomplete`),
+ * so each `updateMany` or `deleteMany` only touches a bounded number of
+ * documents and never holds its locks for long.
+ *
+ * The chunks are found with keyset pagination: each chunk is a new query
+ * for the next `chunkSize` matching `_id`s after the last one we saw,
+ * in `_id` order. Unlike reading one long cursor, this isn't thrown off
+ * by the documents we've already updated no longer matching the filter
+ * (or being deleted), and it never revisits a document.
+ */
+public final class BulkChunks {
+
+  /**
+   * The most documents changed by a single write.
+   */
+  public static final int CHUNK_SIZE = 500;
+
+  private BulkChunks() {
+  }
+
+  /**
+   * Run an action on each chunk of the `_id`s of the documents that
+   * match a filter, in `_id` order.
+   *
+   * @param documents the collection
+   * @param filter which documents to include
+   * @param chunkSize the most `_id`s in a chunk
+   * @param action what to do with each chunk (e.g., update those documents)
+   */
+  public static void forEachChunk(
+      MongoCollection<Document> documents, Bson filter, int chunkSize, Consumer<List<ObjectId>> action) {
+    ObjectId last = null;
+    while (true) {
+      Bson next = last == null ? filter : and(filter, gt("_id", last));
+      List<ObjectId> ids = documents.find(next)
+        .projection(include("_id"))
+        .sort(Sorts.ascending("_id"))
+        .limit(chunkSize)
+        .map(document -> document.getObjectId("_id"))
+        .into(new ArrayList<>());
+      if (ids.isEmpty()) {
+        return;
+      }
+      action.accept(ids);
+      if (ids.size() < chunkSize) {
+        return;
+      }
+      last = ids.get(ids.size() - 1);
+    }
+  }
+}
@@ -0,0 +1,146 @@
+package umm3601;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.http.Header;
+import io.javalin.http.ServiceUnavailableResponse;
+
+/**
+ * Keeps expensive requests from starving cheap ones. Every route is in a
+ * class (point reads, list scans, aggregations, or writes), and each class
+ * has its own number of permits: how many of its requests can run at once.
+ * So, e.g., a burst of `/api/usersByCompany` aggregations can use up the
+ * aggregation permits, but not the threads that `/api/users/{id}` needs.
+ *
+ *   new Bulkheads(Map.of(RouteClass.POINT_READ, 64, ...), routeClasses, unlimited, Duration.ofMillis(100))
+ *       .register(javalin);
+ *
+ * A request waits up to `maxWait` for a permit, and then gets a 503 with a
+ * `Retry-After` header. By default, a `GET` of a route with an `{id}` is a
+ * point read, any other `GET` is a list scan, and everything else is a
+ * write; `routeClasses` overrides that for the `GET`s of particular paths.
+ * The paths in `unlimited` (e.g., Server-Sent Events streams, which stay
+ * open as long as the client listens) don't need a permit. They're picked
+ * out by path, not by the request's `Accept` header, so a client can't ask
+ * its way past the bulkheads.
+ */
+public class Bulkheads {
+
+  /**
+   * The classes of routes, each with its own permits.
+   */
+  public enum RouteClass {
+    // Looking up one thing, e.g., by `_id`, or from an in-memory index
+    POINT_READ,
+    // Reading (or streaming) a filtered list out of MongoDB
+    LIST_SCAN,
+    // Grouping, joining, or summarizing many documents
+    AGGREGATION,
+    // Anything that changes the data
+    WRITE
+  }
+
+  private static final String PERMIT_ATTRIBUTE = "bulkheads.permit";
+
+  private final Map<RouteClass, Semaphore> permits = new EnumMap<>(RouteClass.class);
+  private final Map<String, RouteClass> routeClasses;
+  private final Set<String> unlimited;
+  private final long maxWaitNanos;
+
+  /**
+   * @param permits how many requests of each class can run at once
+   * @param routeClasses the class of each path whose `GET` isn't in its default class
+   * @param unlimited the paths that don't need a permit
+   * @param maxWait how long a request waits for a permit before it's turned away
+   */
+  public Bulkheads(Map<RouteClass, Integer> permits, Map<String, RouteClass> routeClasses, Set<String> unlimited,
+      Duration maxWait) {
+    for (RouteClass routeClass : RouteClass.values()) {
+      Integer count = permits.get(routeClass);
+      if (count == null || count < 1) {
+        throw new IllegalArgumentException("Every class of route needs at least one permit, but "
+            + routeClass + " had " + count);
+      }
+      // Fair, so a request that's been waiting isn't overtaken by newer ones
+      this.permits.put(routeClass, new Semaphore(count, true));
+    }
+    this.routeClasses = Map.copyOf(routeClasses);
+    this.unlimited = Set.copyOf(unlimited);
+    this.maxWaitNanos = maxWait.toNanos();
+  }
+
+  /**
+   * Require a permit for every route of a server.
+   *
+   * @param server the Javalin server
+   */
+  public void register(Javalin server) {
+    server.beforeMatched(this::enter);
+    server.after(this::leave);
+  }
+
+  /**
+   * @param method the HTTP method of a route
+   * @param path the path of a route, e.g., `/api/todos/{id}`
+   * @return the class of that route, or `null` if it doesn't need a permit
+   */
+  RouteClass classify(String method, String path) {
+    if (unlimited.contains(path)) {
+      return null;
+    }
+    if (!"GET".equals(method)) {
+      return RouteClass.WRITE;
+    }
+    return routeClasses.getOrDefault(path, path.contains("{id}") ? RouteClass.POINT_READ : RouteClass.LIST_SCAN);
+  }
+
+  /**
+   * Wait for a permit for a request's route class, or turn the request away
+   * if one doesn't come free in time.
+   *
+   * @param ctx a Javalin HTTP context, for a request that matched a route
+   * @throws InterruptedException if interrupted while waiting
+   */
+  void enter(Context ctx) throws InterruptedException {
+    RouteClass routeClass = classify(ctx.method().name(), ctx.endpointHandlerPath());
+    if (routeClass == null) {
+      return;
+    }
+    Semaphore semaphore = permits.get(routeClass);
+    if (!semaphore.tryAcquire(maxWaitNanos, TimeUnit.NANOSECONDS)) {
+      // Thrown rather than `skipRemainingHandlers`, so the `after` handlers
+      // (e.g., `AdmissionControl.finish`) still run
+      ctx.header(Header.RETRY_AFTER, AdmissionControl.RETRY_AFTER_SECONDS);
+      throw new ServiceUnavailableResponse("Too many requests like this one are running; try again shortly");
+    }
+    ctx.attribute(PERMIT_ATTRIBUTE, semaphore);
+  }
+
+  /**
+   * Give back the permit `enter` got for a request (whether or not it succeeded).
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  void leave(Context ctx) {
+    Semaphore semaphore = ctx.attribute(PERMIT_ATTRIBUTE);
+    if (semaphore != null) {
+      semaphore.release();
+      ctx.attribute(PERMIT_ATTRIBUTE, null);
+    }
+  }
+
+  /**
+   * @param routeClass a class of routes
+   * @return how many more of its requests could start now
+   */
+  int available(RouteClass routeClass) {
+    return permits.get(routeClass).availablePermits();
+  }
+}
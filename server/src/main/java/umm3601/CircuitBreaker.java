@@ -0,0 +1,344 @@
+package umm3601;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+
+import io.javalin.http.Context;
+import io.javalin.http.Handler;
+import io.javalin.http.Header;
+import io.javalin.http.HttpResponseException;
+import io.javalin.http.HttpStatus;
+import io.javalin.http.ServiceUnavailableResponse;
+import umm3601.wal.DurableInserter;
+
+/**
+ * Stops sending requests to MongoDB while it's down, so they fail (or are
+ * answered from a cache) straight away, instead of each one waiting for
+ * the driver to time out:
+ *
+ *   server.get(API_TODO_BY_ID, circuitBreaker.withFallback(this::getTodo));
+ *   server.patch(API_TODO_BY_ID, circuitBreaker.protect(this::updateTodo));
+ *
+ * The breaker is "closed" (requests go through as usual) until
+ * `failureThreshold` requests in a row fail because MongoDB can't be
+ * reached (see `DurableInserter.isUnavailable`). Then it "opens" for
+ * `openDuration`, during which protected routes get an immediate 503 with a
+ * `Retry-After` header. After that, it's "half-open": the next request is
+ * let through as a probe, and if it works the breaker closes again, and if
+ * it doesn't, the breaker opens for another `openDuration`. (Requests that
+ * fail some other way, e.g., with a 400, don't count either way.)
+ *
+ * Reads protected `withFallback` also keep a copy of their last successful
+ * response to each request (by path, query string, and `Accept`), and send
+ * that instead of a 503 when MongoDB is down, with an `Age` header saying
+ * how old it is, and a `Warning: 110 - "Response is Stale"` header. Stale
+ * responses don't have an `ETag`, and aren't to be cached, so clients don't
+ * keep them once MongoDB is back.
+ *
+ * The copies take up to `maxStaleBytes` in all (the least recently saved
+ * go first), and responses bigger than a sixteenth of that aren't kept at
+ * all. Responses streamed by `RawDocuments` are still streamed: the copy
+ * is taken as they're written, and abandoned once it's too big to keep.
+ */
+public class CircuitBreaker {
+
+  public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+  public static final Duration DEFAULT_OPEN_DURATION = Duration.ofSeconds(5);
+  public static final long DEFAULT_MAX_STALE_BYTES = 32L * 1024 * 1024;
+
+  static final String STALE_WARNING = "110 - \"Response is Stale\"";
+
+  private static final long MILLIS_PER_SECOND = 1000;
+
+  // No one response takes more than this fraction of the stale responses' space
+  private static final int STALE_BYTES_PER_RESPONSE_DIVISOR = 16;
+
+  /**
+   * The states of the breaker.
+   */
+  public enum State {
+    // Requests go through
+    CLOSED,
+    // Requests fail fast
+    OPEN,
+    // One request goes through, to see if MongoDB is back
+    HALF_OPEN
+  }
+
+  // A response to replay while MongoDB is down
+  private record Response(int status, String contentType, byte[] body, long savedMillis) {
+  }
+
+  // Whether a request can go through to MongoDB, and if so, whether it's the probe
+  enum Permit { REFUSED, GRANTED, PROBE }
+
+  // How a request that went through turned out
+  private enum Outcome { SUCCEEDED, UNAVAILABLE, OTHER }
+
+  private final int failureThreshold;
+  private final long openMillis;
+  private final long maxStaleBytes;
+  private final int maxResponseBytes;
+
+  private State state = State.CLOSED;
+  private int failures;
+  private long openedMillis;
+  private boolean probing;
+
+  // Least recently saved first
+  private final LinkedHashMap<String, Response> staleResponses = new LinkedHashMap<>();
+  // The total size of their bodies
+  private long staleBytes;
+
+  /**
+   * @param failureThreshold how many requests in a row have to find MongoDB
+   *   unavailable to open the breaker
+   * @param openDuration how long the breaker stays open before letting a probe through
+   * @param maxStaleBytes the most bytes of responses to keep for `withFallback` routes
+   */
+  public CircuitBreaker(int failureThreshold, Duration openDuration, long maxStaleBytes) {
+    if (failureThreshold < 1 || openDuration.isNegative() || maxStaleBytes < 0) {
+      throw new IllegalArgumentException("A circuit breaker needs a positive threshold and a non-negative duration"
+          + " and size");
+    }
+    this.failureThreshold = failureThreshold;
+    this.openMillis = openDuration.toMillis();
+    this.maxStaleBytes = maxStaleBytes;
+    this.maxResponseBytes = (int) Math.min(Integer.MAX_VALUE, maxStaleBytes / STALE_BYTES_PER_RESPONSE_DIVISOR);
+  }
+
+  /**
+   * Fail a route fast while the breaker is open (e.g., for writes).
+   *
+   * @param handler the route's handler
+   * @return the handler, behind the breaker
+   */
+  public Handler protect(Handler handler) {
+    return ctx -> {
+      Permit permit = tryAcquire();
+      if (permit == Permit.REFUSED) {
+        turnAway(ctx);
+      }
+      run(ctx, handler, permit);
+    };
+  }
+
+  /**
+   * Answer a route from its last successful responses while the breaker is
+   * open (e.g., for reads), or fail fast if there isn't one for the request.
+   *
+   * @param handler the route's handler
+   * @return the handler, behind the breaker
+   */
+  public Handler withFallback(Handler handler) {
+    return ctx -> {
+      String key = ctx.path() + "?" + Objects.toString(ctx.queryString(), "")
+          + "\n" + Objects.toString(ctx.header(Header.ACCEPT), "");
+      Permit permit = tryAcquire();
+      if (permit == Permit.REFUSED) {
+        if (!replay(ctx, key)) {
+          turnAway(ctx);
+        }
+        return;
+      }
+      // So a streamed response is copied as it's written
+      BoundedCopy copy = new BoundedCopy(maxResponseBytes);
+      ctx.attribute(RawDocuments.COPY_ATTRIBUTE, copy);
+      try {
+        run(ctx, handler, permit);
+      } catch (ServiceUnavailableResponse e) {
+        if (!replay(ctx, key)) {
+          throw e;
+        }
+        return;
+      }
+      save(ctx, key, copy);
+    };
+  }
+
+  // Run a request that the breaker let through, and note how it went
+  private void run(Context ctx, Handler handler, Permit permit) throws Exception {
+    Outcome outcome = Outcome.OTHER;
+    try {
+      handler.handle(ctx);
+      outcome = Outcome.SUCCEEDED;
+    } catch (HttpResponseException e) {
+      throw e;
+    } catch (RuntimeException e) {
+      if (!DurableInserter.isUnavailable(e)) {
+        throw e;
+      }
+      outcome = Outcome.UNAVAILABLE;
+      throw new ServiceUnavailableResponse("The database is unavailable; try again shortly");
+    } finally {
+      finish(outcome, permit == Permit.PROBE);
+    }
+  }
+
+  private void turnAway(Context ctx) {
+    ctx.header(Header.RETRY_AFTER, String.valueOf(retryAfterSeconds()));
+    throw new ServiceUnavailableResponse("The database is unavailable; try again shortly");
+  }
+
+  /**
+   * @return whether a request can go through to MongoDB now, and if so,
+   *   whether it's the probe; `finish` has to be called once it's done
+   */
+  synchronized Permit tryAcquire() {
+    if (state == State.OPEN && System.currentTimeMillis() - openedMillis >= openMillis) {
+      state = State.HALF_OPEN;
+    }
+    if (state == State.CLOSED) {
+      return Permit.GRANTED;
+    }
+    if (state == State.HALF_OPEN && !probing) {
+      probing = true;
+      return Permit.PROBE;
+    }
+    return Permit.REFUSED;
+  }
+
+  /**
+   * Note how a request that got a permit turned out.
+   *
+   * @param outcome how it turned out
+   * @param probe whether it was the probe
+   */
+  private synchronized void finish(Outcome outcome, boolean probe) {
+    if (probe) {
+      probing = false;
+    }
+    switch (outcome) {
+      case SUCCEEDED -> {
+        failures = 0;
+        state = State.CLOSED;
+      }
+      case UNAVAILABLE -> {
+        failures++;
+        if (probe || state == State.CLOSED && failures >= failureThreshold) {
+          state = State.OPEN;
+          openedMillis = System.currentTimeMillis();
+        }
+      }
+      default -> {
+        // It didn't tell us anything about MongoDB
+      }
+    }
+  }
+
+  private synchronized long retryAfterSeconds() {
+    long remaining = openMillis - (System.currentTimeMillis() - openedMillis);
+    return Math.max(1, (remaining + MILLIS_PER_SECOND - 1) / MILLIS_PER_SECOND);
+  }
+
+  /**
+   * @return the state of the breaker
+   */
+  public synchronized State state() {
+    return state;
+  }
+
+  // Keep a copy of a successful response, either the result the handler
+  // left in place to be sent (which is already in memory), or the copy of
+  // what it streamed
+  private void save(Context ctx, String key, BoundedCopy copy) throws IOException {
+    if (ctx.statusCode() != HttpStatus.OK.getCode()) {
+      return;
+    }
+    byte[] body;
+    InputStream result = ctx.resultInputStream();
+    if (result != null) {
+      body = result.readAllBytes();
+      ctx.result(body);
+    } else if (copy.size() > 0 && !copy.overflowed()) {
+      body = copy.toByteArray();
+    } else {
+      // Nothing was copied, or it was too big
+      return;
+    }
+    if (body.length > maxResponseBytes) {
+      return;
+    }
+    Response response = new Response(ctx.statusCode(), ctx.res().getContentType(), body, System.currentTimeMillis());
+    synchronized (this) {
+      Response replaced = staleResponses.remove(key);
+      if (replaced != null) {
+        staleBytes -= replaced.body().length;
+      }
+      staleResponses.put(key, response);
+      staleBytes += body.length;
+      while (staleBytes > maxStaleBytes) {
+        Response oldest = staleResponses.remove(staleResponses.keySet().iterator().next());
+        staleBytes -= oldest.body().length;
+      }
+    }
+  }
+
+  /**
+   * @return the total size of the responses kept for `withFallback` routes
+   */
+  synchronized long staleBytes() {
+    return staleBytes;
+  }
+
+  // Copies a streamed response, up to a limit, after which it gives up
+  // (without failing the response)
+  private static final class BoundedCopy extends ByteArrayOutputStream {
+    private final int limit;
+    private boolean overflowed;
+
+    BoundedCopy(int limit) {
+      this.limit = limit;
+    }
+
+    @Override
+    public synchronized void write(int b) {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] bytes, int offset, int length) {
+      if (overflowed) {
+        return;
+      }
+      if (count + length > limit) {
+        overflowed = true;
+        // Let the copy so far be collected
+        buf = new byte[0];
+        count = 0;
+        return;
+      }
+      super.write(bytes, offset, length);
+    }
+
+    synchronized boolean overflowed() {
+      return overflowed;
+    }
+  }
+
+  // Send the last successful response to a request, if there is one
+  private boolean replay(Context ctx, String key) {
+    Response response;
+    synchronized (this) {
+      response = staleResponses.get(key);
+    }
+    if (response == null) {
+      return false;
+    }
+    // In case the handler got as far as setting these for a fresh response
+    ctx.res().setHeader(Header.ETAG, null);
+    ctx.header(Header.CACHE_CONTROL, "no-store");
+    ctx.header(Header.AGE, String.valueOf((System.currentTimeMillis() - response.savedMillis()) / MILLIS_PER_SECOND));
+    ctx.header(Header.WARNING, STALE_WARNING);
+    ctx.status(response.status());
+    if (response.contentType() != null) {
+      ctx.contentType(response.contentType());
+    }
+    ctx.result(response.body());
+    return true;
+  }
+}
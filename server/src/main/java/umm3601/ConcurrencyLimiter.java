@@ -0,0 +1,127 @@
+package umm3601;
+
+/**
+ * An adaptive limit on how many requests run at once, that shrinks when
+ * they start taking longer than usual (i.e., when whatever they're waiting
+ * on, like MongoDB, is falling behind), and grows again while they're fast.
+ *
+ *   if (limiter.tryAcquire()) {
+ *     long start = System.nanoTime();
+ *     ... run the request ...
+ *     limiter.release(System.nanoTime() - start);
+ *   } else {
+ *     ... turn the request away ...
+ *   }
+ *
+ * This is the "gradient" algorithm from Netflix's concurrency-limits
+ * library. The latency with no queueing is estimated as the smallest
+ * latency seen recently, and after each request the limit moves toward
+ *
+ *   limit * gradient + sqrt(limit)
+ *
+ * where `gradient` is (roughly) that no-load latency divided by the
+ * smoothed recent latency, so the limit falls in proportion to how much
+ * requests are queueing, and otherwise grows by about the square root of
+ * the limit. Latencies up to `TOLERANCE` times the no-load latency (or
+ * `MARGIN_NANOS` more than it, for requests that are very fast anyway)
+ * count as no queueing, so ordinary jitter doesn't shrink the limit. The
+ * limit only grows while at least half of it is being used, so an idle
+ * server doesn't drift up to `maxLimit`.
+ */
+public class ConcurrencyLimiter {
+
+  // How much slower than the no-load latency still counts as not queueing
+  static final double TOLERANCE = 2.0;
+  static final long MARGIN_NANOS = 5_000_000;
+  // The most the limit falls for one slow request
+  static final double MIN_GRADIENT = 0.5;
+  // How much each request moves the smoothed latency and the limit
+  static final double SMOOTHING = 0.2;
+  // How many requests the no-load latency is the minimum of, so that it
+  // can go back up if, say, the data grows
+  static final int MIN_LATENCY_WINDOW = 1000;
+
+  private final int minLimit;
+  private final int maxLimit;
+
+  private double limit;
+  private int inFlight;
+
+  private double smoothedLatency;
+  // The smallest latency in the last full window, and so far in this one
+  private long lastWindowMin = Long.MAX_VALUE;
+  private long windowMin = Long.MAX_VALUE;
+  private int windowSamples;
+
+  /**
+   * @param initialLimit the limit to start with
+   * @param minLimit the limit never goes below this
+   * @param maxLimit the limit never goes above this
+   */
+  public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+    if (minLimit < 1 || minLimit > initialLimit || initialLimit > maxLimit) {
+      throw new IllegalArgumentException("Concurrency limits need 1 <= min <= initial <= max, but were "
+          + minLimit + ", " + initialLimit + ", and " + maxLimit);
+    }
+    this.limit = initialLimit;
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+  }
+
+  /**
+   * Start a request, if it's within the limit.
+   *
+   * @return whether the request can run; if so, `release` must be called when it's done
+   */
+  public synchronized boolean tryAcquire() {
+    if (inFlight >= (int) limit) {
+      return false;
+    }
+    inFlight++;
+    return true;
+  }
+
+  /**
+   * Finish a request started with `tryAcquire`, and adjust the limit by how long it took.
+   *
+   * @param latencyNanos how long the request took
+   */
+  public synchronized void release(long latencyNanos) {
+    // Whether the limit was being used, counting this request
+    boolean busy = inFlight * 2 >= limit;
+    inFlight--;
+
+    windowMin = Math.min(windowMin, latencyNanos);
+    if (++windowSamples >= MIN_LATENCY_WINDOW) {
+      lastWindowMin = windowMin;
+      windowMin = Long.MAX_VALUE;
+      windowSamples = 0;
+    }
+    long noLoadLatency = Math.min(lastWindowMin, windowMin);
+    smoothedLatency = smoothedLatency == 0
+        ? latencyNanos
+        : smoothedLatency * (1 - SMOOTHING) + latencyNanos * SMOOTHING;
+
+    double tolerated = Math.max(noLoadLatency * TOLERANCE, noLoadLatency + MARGIN_NANOS);
+    double gradient = Math.max(MIN_GRADIENT, Math.min(1.0, tolerated / smoothedLatency));
+    if (gradient == 1.0 && !busy) {
+      return;
+    }
+    double target = limit * gradient + Math.sqrt(limit);
+    limit = Math.max(minLimit, Math.min(maxLimit, limit * (1 - SMOOTHING) + target * SMOOTHING));
+  }
+
+  /**
+   * @return how many requests can run at once, currently
+   */
+  public synchronized int limit() {
+    return (int) limit;
+  }
+
+  /**
+   * @return how many requests are running
+   */
+  public synchronized int inFlight() {
+    return inFlight;
+  }
+}
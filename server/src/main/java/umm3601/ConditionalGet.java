@@ -0,0 +1,124 @@
+package umm3601;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Objects;
+
+import io.javalin.http.Context;
+import io.javalin.http.Header;
+import io.javalin.http.HttpStatus;
+import umm3601.changes.ChangeLog;
+
+/**
+ * Strong `ETag`s for the `GET` endpoints, so a client that already has a
+ * response can revalidate it with `If-None-Match` and get back an empty
+ * `304 Not Modified` instead of the whole thing again:
+ *
+ *   if (ConditionalGet.notModified(ctx, todoChanges)) {
+ *     return;
+ *   }
+ *   ... query and respond as usual ...
+ *
+ * The tag is the collection's change token (see `ChangeLog`) plus a hash of
+ * the request: its path, query string, `Accept` (which decides the format
+ * of the body), and `Accept-Encoding` (which decides how it's compressed).
+ * Every write through the API moves the token, and so does restarting the
+ * server, so a matching tag means nothing the response depends on has
+ * changed, and we can answer without querying MongoDB or serializing
+ * anything.
+ *
+ * The token is read before the query, so a write that lands while we're
+ * querying can only make the tag look older than the response, which at
+ * worst costs the client one extra full response.
+ *
+ * Requests for partial results (see `PartialResults`) don't get a tag: how
+ * much of the list they get depends on how fast the database was, not just
+ * on the data, so two responses with the same tag could differ.
+ */
+public final class ConditionalGet {
+
+  // How many bytes of the hash go in the tag; 16 is plenty to tell requests apart
+  private static final int HASH_BYTES = 16;
+
+  private ConditionalGet() {
+  }
+
+  /**
+   * Set the `ETag` for this response, and check it against the request's
+   * `If-None-Match`. If it matches, the response is already a `304`, and
+   * the handler should return without doing anything else.
+   *
+   * @param ctx the context of the `GET` request
+   * @param changes the change log of the collection the response comes from
+   * @return whether the client's copy is still current
+   */
+  public static boolean notModified(Context ctx, ChangeLog changes) {
+    return notModified(ctx, changes.token());
+  }
+
+  /**
+   * Like `notModified(ctx, changes)`, for a response computed earlier (e.g.,
+   * a cached one), as of an earlier change token.
+   *
+   * @param ctx the context of the `GET` request
+   * @param token the change token of the collection when the response was computed
+   * @return whether the client's copy is still current
+   */
+  public static boolean notModified(Context ctx, String token) {
+    if (PartialResults.requested(ctx)) {
+      return false;
+    }
+    String etag = etag(token, ctx.path(), ctx.queryString(),
+        ctx.header(Header.ACCEPT), ctx.header(Header.ACCEPT_ENCODING));
+    ctx.header(Header.ETAG, etag);
+    if (matches(ctx.header(Header.IF_NONE_MATCH), etag)) {
+      ctx.status(HttpStatus.NOT_MODIFIED);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * @param token the collection's change token
+   * @param path the request path
+   * @param query the query string, or `null`
+   * @param accept the `Accept` header, or `null`
+   * @param acceptEncoding the `Accept-Encoding` header, or `null`
+   * @return the (quoted) strong `ETag`
+   */
+  static String etag(String token, String path, String query, String accept, String acceptEncoding) {
+    String request = path + "?" + Objects.toString(query, "")
+        + "\n" + Objects.toString(accept, "") + "\n" + Objects.toString(acceptEncoding, "");
+    try {
+      byte[] hash = MessageDigest.getInstance("SHA-256").digest(request.getBytes(StandardCharsets.UTF_8));
+      return "\"" + token.replace(':', '-') + "-" + HexFormat.of().formatHex(hash, 0, HASH_BYTES) + "\"";
+    } catch (NoSuchAlgorithmException e) {
+      // Every JVM has to support SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @param ifNoneMatch the `If-None-Match` header, or `null`
+   * @param etag the current `ETag`
+   * @return whether the header lists the tag (or is `*`)
+   */
+  static boolean matches(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String candidate : ifNoneMatch.split(",")) {
+      String tag = candidate.strip();
+      // `If-None-Match` uses the weak comparison, so `W/"..."` matches too
+      if (tag.startsWith("W/")) {
+        tag = tag.substring(2);
+      }
+      if (tag.equals("*") || tag.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,185 @@
+package umm3601;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.Locale;
+
+import org.msgpack.jackson.dataformat.MessagePackFactory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import io.javalin.http.Context;
+import io.javalin.http.Header;
+import io.javalin.validation.BodyValidator;
+
+/**
+ * Lets clients trade JSON for a more compact binary encoding of the same
+ * data: Smile, CBOR, or MessagePack. A client asks for one with the
+ * `Accept` header (e.g., `Accept: application/cbor`), and can send a
+ * request body in one by setting its `Content-Type`. Anything else,
+ * including no `Accept` header at all, gets JSON, just like before.
+ *
+ *   Todo newTodo = ContentNegotiation.bodyValidator(ctx, Todo.class)
+ *     .check(...)
+ *     .get();
+ *   ...
+ *   ContentNegotiation.respond(ctx, todos);
+ *
+ * The binary formats are written by Jackson with the same annotations as
+ * the JSON, so they have the same field names and values (e.g., `_id`s
+ * are still hex strings), and decode to the same JSON tree.
+ */
+public final class ContentNegotiation {
+
+  /**
+   * The formats we can send and receive.
+   */
+  public enum Format {
+    JSON(new JsonFactory(), "application/json"),
+    SMILE(new SmileFactory(), "application/x-jackson-smile", "application/smile"),
+    CBOR(new CBORFactory(), "application/cbor"),
+    MSGPACK(new MessagePackFactory(), "application/msgpack", "application/x-msgpack", "application/vnd.msgpack");
+
+    private final ObjectMapper mapper;
+    private final List<String> mimeTypes;
+
+    Format(JsonFactory factory, String... mimeTypes) {
+      this.mapper = new ObjectMapper(factory).findAndRegisterModules();
+      this.mimeTypes = List.of(mimeTypes);
+    }
+
+    /**
+     * @return the MIME type we send this format as
+     */
+    public String mimeType() {
+      return mimeTypes.get(0);
+    }
+
+    /**
+     * @return the Jackson mapper for this format (`respond` leaves JSON
+     *   to Javalin's own mapper)
+     */
+    public ObjectMapper mapper() {
+      return mapper;
+    }
+
+    /**
+     * @param mimeType a MIME type, without any parameters
+     * @return the format with that MIME type, or `null` if there isn't one
+     */
+    static Format forMimeType(String mimeType) {
+      for (Format format : values()) {
+        if (format.mimeTypes.contains(mimeType)) {
+          return format;
+        }
+      }
+      return null;
+    }
+  }
+
+  private ContentNegotiation() {
+  }
+
+  /**
+   * Pick the format for a response from an `Accept` header: the supported
+   * type with the highest `q` (the earliest one, if there's a tie), or
+   * JSON if there's no header, or it doesn't list anything we support.
+   *
+   * @param accept the `Accept` header, or `null`
+   * @return the format to respond in
+   */
+  static Format acceptedFormat(String accept) {
+    if (accept == null) {
+      return Format.JSON;
+    }
+    Format best = Format.JSON;
+    double bestQuality = 0;
+    for (String range : accept.split(",")) {
+      String[] parts = range.split(";");
+      Format format = Format.forMimeType(parts[0].strip().toLowerCase(Locale.ROOT));
+      double quality = quality(parts);
+      if (format != null && quality > bestQuality) {
+        best = format;
+        bestQuality = quality;
+      }
+    }
+    return best;
+  }
+
+  private static double quality(String[] parts) {
+    for (int i = 1; i < parts.length; i++) {
+      String parameter = parts[i].strip();
+      if (parameter.startsWith("q=")) {
+        try {
+          return Double.parseDouble(parameter.substring(2));
+        } catch (NumberFormatException e) {
+          return 0;
+        }
+      }
+    }
+    return 1;
+  }
+
+  /**
+   * @param contentType the `Content-Type` of a request body, or `null`
+   * @return the format the body is in; anything we don't recognize is JSON
+   */
+  static Format bodyFormat(String contentType) {
+    if (contentType == null) {
+      return Format.JSON;
+    }
+    Format format = Format.forMimeType(contentType.split(";")[0].strip().toLowerCase(Locale.ROOT));
+    return format == null ? Format.JSON : format;
+  }
+
+  /**
+   * Set the body of the response, in the format the client asked for.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param body what to send
+   */
+  public static void respond(Context ctx, Object body) {
+    Format format = acceptedFormat(ctx.header(Header.ACCEPT));
+    // The same URL can have a different body for a different `Accept`
+    ctx.header(Header.VARY, Header.ACCEPT);
+    if (format == Format.JSON) {
+      ctx.json(body);
+      return;
+    }
+    try {
+      ctx.contentType(format.mimeType());
+      ctx.result(format.mapper().writeValueAsBytes(body));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * A validator for the request body, decoded from whichever format its
+   * `Content-Type` says it's in. Just like `ctx.bodyValidator`, a body that
+   * can't be decoded fails validation.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param clazz the type of the body
+   * @param <T> the type of the body
+   * @return a validator for the body
+   */
+  public static <T> BodyValidator<T> bodyValidator(Context ctx, Class<T> clazz) {
+    Format format = bodyFormat(ctx.contentType());
+    if (format == Format.JSON) {
+      return ctx.bodyValidator(clazz);
+    }
+    byte[] body = ctx.bodyAsBytes();
+    return new BodyValidator<>(format.mimeType() + " body", clazz, () -> {
+      try {
+        return format.mapper().readValue(body, clazz);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    });
+  }
+}
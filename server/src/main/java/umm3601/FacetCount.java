@@ -0,0 +1,13 @@
+package umm3601;
+
+/**
+ * The number of matching documents with one value of a facet, e.g., the
+ * number of matching todos in the `School` category.
+ */
+@SuppressWarnings("checkstyle:visibilitymodifier")
+public class FacetCount {
+  // Ignore Checkstyle warning about the identifier name.
+  @SuppressWarnings("checkstyle:membername")
+  public Object _id;
+  public int count;
+}
@@ -0,0 +1,76 @@
+package umm3601;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.mongodb.client.MongoCollection;
+
+/**
+ * A list of results along with facet counts for the same filters, so a
+ * client can render a list and its filter sidebar from one request (e.g.,
+ * `GET /api/todos?category=school&facets=true`).
+ *
+ * @param <T> the type of the results
+ */
+@SuppressWarnings("checkstyle:visibilitymodifier")
+public class FacetedResults<T> {
+  public List<T> results;
+  public Map<String, List<FacetCount>> facets;
+
+  public FacetedResults(List<T> results, Map<String, List<FacetCount>> facets) {
+    this.results = results;
+    this.facets = facets;
+  }
+
+  /**
+   * Count the documents matching a filter for several facets at once, with
+   * a single `$facet` aggregation (so MongoDB only finds the matching
+   * documents once, however many facets there are).
+   *
+   * @param collection the collection to count in
+   * @param filter the filter the documents have to match
+   * @param facets for each facet, the pipeline that turns the matching
+   *   documents into `{_id: value, count: number}` documents
+   * @param budget the time the aggregation has to run in
+   * @return the counts for each facet, in the order of `facets`
+   */
+  public static Map<String, List<FacetCount>> countFacets(
+      MongoCollection<Document> collection, Bson filter, Map<String, List<Bson>> facets, TimeBudget budget) {
+    Document facetStage = new Document();
+    facets.forEach(facetStage::append);
+    Document counted = budget.limit(collection
+      .aggregate(List.of(new Document("$match", filter), new Document("$facet", facetStage))))
+      .first();
+
+    Map<String, List<FacetCount>> result = new LinkedHashMap<>();
+    for (String facet : facets.keySet()) {
+      List<FacetCount> counts = new ArrayList<>();
+      for (Document document : counted.getList(facet, Document.class)) {
+        FacetCount count = new FacetCount();
+        count._id = document.get("_id");
+        count.count = document.get("count", Number.class).intValue();
+        counts.add(count);
+      }
+      result.put(facet, counts);
+    }
+    return result;
+  }
+
+  /**
+   * The pipeline for a facet that counts the documents with each value of
+   * a field, in order of the values.
+   *
+   * @param field the field (or expression) to group by, e.g., `$category`
+   * @return the facet's pipeline
+   */
+  public static List<Bson> countBy(Object field) {
+    return List.of(
+      new Document("$group", new Document("_id", field).append("count", new Document("$sum", 1))),
+      new Document("$sort", new Document("_id", 1)));
+  }
+}
@@ -0,0 +1,143 @@
+package umm3601;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.WriteError;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.InsertManyOptions;
+
+/**
+ * Batches single-document inserts (e.g., from `POST /api/todos`) that
+ * arrive at about the same time into one `insertMany`, so under heavy
+ * write load we make one round trip to MongoDB (and wait for one
+ * acknowledgement) per batch, not per request.
+ *
+ *   GroupCommitWriter<Todo> writer = new GroupCommitWriter<>(todoCollection, 100, Duration.ofMillis(2));
+ *   writer.insert(newTodo);
+ *
+ * To each caller, `insert` behaves just like `insertOne`: it returns once
+ * its document has been written (with its generated `_id` filled in), or
+ * throws the same `MongoWriteException` `insertOne` would if that document
+ * couldn't be (e.g., a duplicate key). The batch is unordered, so one bad
+ * document doesn't stop the others in its batch from being written.
+ *
+ * A single writer thread takes the first waiting insert, then collects
+ * any more that arrive within `window` (up to `maxBatchSize` in all).
+ * With a window of zero it only takes what's already waiting, so a lone
+ * insert isn't delayed at all, and batches still form naturally whenever
+ * inserts arrive faster than MongoDB acknowledges them.
+ *
+ * @param <T> the type of the documents
+ */
+public class GroupCommitWriter<T> {
+
+  private record Pending<T>(T document, CompletableFuture<Void> done) {
+  }
+
+  private final MongoCollection<T> collection;
+  private final int maxBatchSize;
+  private final long windowNanos;
+  private final BlockingQueue<Pending<T>> queue = new LinkedBlockingQueue<>();
+
+  /**
+   * Construct a writer, and start its writer thread.
+   *
+   * @param collection the collection to insert into
+   * @param maxBatchSize the most documents in one `insertMany`
+   * @param window how long to wait for more inserts after the first one in a batch
+   */
+  public GroupCommitWriter(MongoCollection<T> collection, int maxBatchSize, Duration window) {
+    if (maxBatchSize < 1 || window.isNegative()) {
+      throw new IllegalArgumentException("Group commits need a positive batch size and a non-negative window");
+    }
+    this.collection = collection;
+    this.maxBatchSize = maxBatchSize;
+    this.windowNanos = window.toNanos();
+    Thread.ofVirtual().name("group-commit-" + collection.getNamespace().getCollectionName()).start(this::run);
+  }
+
+  /**
+   * Insert a document, as part of the next batch.
+   *
+   * @param document the document to insert
+   * @throws MongoWriteException if the document couldn't be written
+   */
+  public void insert(T document) {
+    Pending<T> pending = new Pending<>(document, new CompletableFuture<>());
+    queue.add(pending);
+    try {
+      pending.done().get();
+    } catch (ExecutionException e) {
+      // Rethrow what `insertMany` threw (or the write error for just this document)
+      if (e.getCause() instanceof RuntimeException cause) {
+        throw cause;
+      }
+      throw new IllegalStateException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted waiting for an insert", e);
+    }
+  }
+
+  private void run() {
+    try {
+      while (true) {
+        writeBatch(nextBatch());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private List<Pending<T>> nextBatch() throws InterruptedException {
+    List<Pending<T>> batch = new ArrayList<>();
+    batch.add(queue.take());
+    long deadline = System.nanoTime() + windowNanos;
+    while (batch.size() < maxBatchSize) {
+      queue.drainTo(batch, maxBatchSize - batch.size());
+      long remaining = deadline - System.nanoTime();
+      if (batch.size() >= maxBatchSize || remaining <= 0) {
+        break;
+      }
+      Pending<T> next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+      if (next == null) {
+        break;
+      }
+      batch.add(next);
+    }
+    return batch;
+  }
+
+  private void writeBatch(List<Pending<T>> batch) {
+    List<T> documents = batch.stream().map(Pending::document).toList();
+    try {
+      collection.insertMany(documents, new InsertManyOptions().ordered(false));
+    } catch (MongoBulkWriteException e) {
+      // Only the documents with write errors failed; give each of them the
+      // exception `insertOne` would have thrown for it
+      for (BulkWriteError error : e.getWriteErrors()) {
+        batch.get(error.getIndex()).done().completeExceptionally(new MongoWriteException(
+            new WriteError(error.getCode(), error.getMessage(), error.getDetails()),
+            e.getServerAddress(), e.getErrorLabels()));
+      }
+    } catch (RuntimeException e) {
+      // Nothing in the batch is known to have been written
+      for (Pending<T> pending : batch) {
+        pending.done().completeExceptionally(e);
+      }
+    }
+    for (Pending<T> pending : batch) {
+      pending.done().complete(null);
+    }
+  }
+}
@@ -0,0 +1,322 @@
+package umm3601;
+
+import static com.mongodb.client.model.Filters.eq;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Date;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Updates;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.ConflictResponse;
+import io.javalin.http.Context;
+import io.javalin.http.Handler;
+import io.javalin.http.HttpStatus;
+import io.javalin.http.UnprocessableContentResponse;
+import umm3601.wal.DurableInserter;
+
+/**
+ * Makes requests that change things (e.g., `POST /api/todos`) safe to
+ * retry. A client that sends an `Idempotency-Key` header (any unique
+ * string, e.g., a UUID) with a request, and then sends the same request
+ * with the same key again (say, because the first one timed out), gets
+ * the response to the first one again, and the request isn't run twice.
+ *
+ *   server.post(API_TODO, ctx -> idempotencyKeys.handle(ctx, this::addNewTodo));
+ *
+ * A replayed response has an `Idempotent-Replayed: true` header. Reusing a
+ * key for a different request (a different query string or body) gets a
+ * 422, and retrying while the first request is still running gets a 409.
+ * Requests without the header are run just as before.
+ *
+ * Only successful responses are kept; if the request fails (e.g., the
+ * body didn't validate), the key is released and a retry is run again.
+ * Keys are kept for `ttl`, and no more than `maxKeys` of them (the oldest
+ * are dropped first). With a MongoDB collection, they're also stored
+ * there (with a TTL index to expire them), so they survive a restart and
+ * are shared by every server using that database. While MongoDB can't be
+ * reached, the keys are just kept in memory, so keyed requests still work
+ * (e.g., a todo added to the `DurableInserter` log during an outage) but
+ * are only protected against retries to this server.
+ */
+public class IdempotencyKeys {
+
+  public static final String IDEMPOTENCY_KEY = "Idempotency-Key";
+  public static final String IDEMPOTENT_REPLAYED = "Idempotent-Replayed";
+
+  public static final int DEFAULT_MAX_KEYS = 10_000;
+  public static final Duration DEFAULT_TTL = Duration.ofHours(24);
+
+  private static final int MAX_KEY_LENGTH = 255;
+
+  private static final String FINGERPRINT_KEY = "fingerprint";
+  private static final String CREATED_KEY = "createdAt";
+  private static final String STATUS_KEY = "status";
+  private static final String CONTENT_TYPE_KEY = "contentType";
+  private static final String BODY_KEY = "body";
+
+  // The response to a request, to replay to retries
+  private record Response(int status, String contentType, byte[] body) {
+  }
+
+  // A key that's been used: `response` is `null` until its request has finished
+  private record Entry(String fingerprint, long createdMillis, Response response) {
+  }
+
+  private final int maxKeys;
+  private final long ttlMillis;
+  private final MongoCollection<Document> collection;
+
+  // Oldest first
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+
+  /**
+   * Keep keys in memory only.
+   *
+   * @param maxKeys the most keys to keep
+   * @param ttl how long to keep each key
+   */
+  public IdempotencyKeys(int maxKeys, Duration ttl) {
+    this(maxKeys, ttl, null);
+  }
+
+  /**
+   * Keep keys in memory, and in a MongoDB collection.
+   *
+   * @param maxKeys the most keys to keep in memory
+   * @param ttl how long to keep each key
+   * @param collection the collection to store the keys in, or `null` for none
+   */
+  public IdempotencyKeys(int maxKeys, Duration ttl, MongoCollection<Document> collection) {
+    if (maxKeys < 1 || ttl.isNegative() || ttl.isZero()) {
+      throw new IllegalArgumentException("Idempotency keys need a positive limit and time to live");
+    }
+    this.maxKeys = maxKeys;
+    this.ttlMillis = ttl.toMillis();
+    this.collection = collection;
+    if (collection != null) {
+      collection.createIndex(Indexes.ascending(CREATED_KEY),
+          new IndexOptions().expireAfter(ttl.toSeconds(), TimeUnit.SECONDS));
+    }
+  }
+
+  /**
+   * Run a request's handler, unless the request has an `Idempotency-Key`
+   * that's been used already, in which case respond just like the first
+   * time instead.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param handler the handler for the request
+   * @throws Exception whatever the handler throws
+   */
+  public void handle(Context ctx, Handler handler) throws Exception {
+    String idempotencyKey = ctx.header(IDEMPOTENCY_KEY);
+    if (idempotencyKey == null) {
+      handler.handle(ctx);
+      return;
+    }
+    if (idempotencyKey.isBlank() || idempotencyKey.length() > MAX_KEY_LENGTH) {
+      throw new BadRequestResponse("The " + IDEMPOTENCY_KEY + " must be 1 to " + MAX_KEY_LENGTH + " characters");
+    }
+
+    // The same key can be used for different endpoints
+    String key = ctx.method() + " " + ctx.path() + " " + idempotencyKey;
+    Response original = begin(key, fingerprint(ctx));
+    if (original != null) {
+      ctx.header(IDEMPOTENT_REPLAYED, "true");
+      ctx.status(original.status());
+      if (original.contentType() != null) {
+        ctx.contentType(original.contentType());
+      }
+      ctx.result(original.body());
+      return;
+    }
+
+    try {
+      handler.handle(ctx);
+    } catch (Exception e) {
+      release(key);
+      throw e;
+    }
+    if (ctx.statusCode() >= HttpStatus.BAD_REQUEST.getCode()) {
+      release(key);
+      return;
+    }
+    finish(key, capture(ctx));
+  }
+
+  // What makes this request the same request: its query string and body
+  private static String fingerprint(Context ctx) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      if (ctx.queryString() != null) {
+        digest.update(ctx.queryString().getBytes(StandardCharsets.UTF_8));
+      }
+      digest.update((byte) '\n');
+      digest.update(ctx.bodyAsBytes());
+      return HexFormat.of().formatHex(digest.digest());
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform has SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // The response the handler set, which is left in place to be sent
+  private static Response capture(Context ctx) throws IOException {
+    byte[] body = new byte[0];
+    InputStream result = ctx.resultInputStream();
+    if (result != null) {
+      body = result.readAllBytes();
+      ctx.result(body);
+    }
+    return new Response(ctx.statusCode(), ctx.res().getContentType(), body);
+  }
+
+  /**
+   * Claim a key for a request.
+   *
+   * @return `null` if the key is new (and is now this request's), or the
+   *   response to the request that used it before
+   */
+  private Response begin(String key, String fingerprint) {
+    synchronized (this) {
+      evict();
+      Entry existing = entries.get(key);
+      if (existing != null) {
+        return replay(existing, fingerprint);
+      }
+      entries.put(key, new Entry(fingerprint, System.currentTimeMillis(), null));
+      evict();
+    }
+    if (collection == null) {
+      return null;
+    }
+    try {
+      collection.insertOne(new Document("_id", key)
+          .append(FINGERPRINT_KEY, fingerprint)
+          .append(CREATED_KEY, new Date()));
+      return null;
+    } catch (RuntimeException e) {
+      if (DurableInserter.isUnavailable(e)) {
+        // Keep it in memory only, rather than fail a request that might work without MongoDB
+        return null;
+      }
+      synchronized (this) {
+        entries.remove(key);
+      }
+      if (!(e instanceof MongoWriteException writeException)
+          || writeException.getError().getCategory() != ErrorCategory.DUPLICATE_KEY) {
+        throw e;
+      }
+    }
+    // Another server (or this one, before a restart) has used the key
+    Document stored = collection.find(eq("_id", key)).first();
+    if (stored == null) {
+      // It expired in the meantime
+      throw new ConflictResponse("That " + IDEMPOTENCY_KEY + " is being reused; try again");
+    }
+    Entry entry = fromDocument(stored);
+    if (entry.response() != null) {
+      synchronized (this) {
+        entries.put(key, entry);
+        evict();
+      }
+    }
+    return replay(entry, fingerprint);
+  }
+
+  private static Response replay(Entry entry, String fingerprint) {
+    if (!entry.fingerprint().equals(fingerprint)) {
+      throw new UnprocessableContentResponse("That " + IDEMPOTENCY_KEY + " was already used for a different request");
+    }
+    if (entry.response() == null) {
+      throw new ConflictResponse("A request with that " + IDEMPOTENCY_KEY + " is still being processed");
+    }
+    return entry.response();
+  }
+
+  private void finish(String key, Response response) {
+    synchronized (this) {
+      Entry entry = entries.get(key);
+      if (entry != null) {
+        entries.put(key, new Entry(entry.fingerprint(), entry.createdMillis(), response));
+      }
+    }
+    if (collection != null) {
+      try {
+        collection.updateOne(eq("_id", key), Updates.combine(
+            Updates.set(STATUS_KEY, response.status()),
+            Updates.set(CONTENT_TYPE_KEY, response.contentType()),
+            Updates.set(BODY_KEY, new Binary(response.body()))));
+      } catch (RuntimeException e) {
+        // The request has already run, so the response is kept in memory either way
+        if (!DurableInserter.isUnavailable(e)) {
+          throw e;
+        }
+      }
+    }
+  }
+
+  private void release(String key) {
+    synchronized (this) {
+      entries.remove(key);
+    }
+    if (collection != null) {
+      try {
+        collection.deleteOne(eq("_id", key));
+      } catch (RuntimeException e) {
+        // Left to expire with the TTL index
+        if (!DurableInserter.isUnavailable(e)) {
+          throw e;
+        }
+      }
+    }
+  }
+
+  private static Entry fromDocument(Document document) {
+    Response response = null;
+    if (document.containsKey(STATUS_KEY)) {
+      response = new Response(document.getInteger(STATUS_KEY), document.getString(CONTENT_TYPE_KEY),
+          document.get(BODY_KEY, Binary.class).getData());
+    }
+    return new Entry(document.getString(FINGERPRINT_KEY), document.getDate(CREATED_KEY).getTime(), response);
+  }
+
+  // Drop the expired keys, and the oldest ones past `maxKeys`; must hold the lock
+  private void evict() {
+    long expired = System.currentTimeMillis() - ttlMillis;
+    Iterator<Map.Entry<String, Entry>> oldest = entries.entrySet().iterator();
+    while (oldest.hasNext()) {
+      Map.Entry<String, Entry> entry = oldest.next();
+      if (entry.getValue().createdMillis() > expired && entries.size() <= maxKeys) {
+        break;
+      }
+      oldest.remove();
+    }
+  }
+
+  /**
+   * @return how many keys are kept in memory
+   */
+  synchronized int size() {
+    return entries.size();
+  }
+}
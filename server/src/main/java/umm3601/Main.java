@@ -1,14 +1,38 @@
 package umm3601;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoDatabase;
 
+import umm3601.autocomplete.AutocompleteController;
+import umm3601.batch.BatchController;
+import umm3601.index.PrefixIndex;
+import umm3601.snapshot.Snapshot;
+import umm3601.snapshot.TodoSnapshotController;
+import umm3601.snapshot.UserSnapshotController;
 import umm3601.user.UserController;
 import umm3601.todo.TodoController;
+import umm3601.wal.WriteAheadLog;
+import umm3601.wal.WriteAheadLog.FsyncPolicy;
 
 public class Main {
 
-  public static void main(String[] args) {
+  public static void main(String[] args) throws IOException {
+    // If `SNAPSHOT_DIR` is set, serve the (read-only) snapshot files in that
+    // directory instead of connecting to MongoDB. The snapshots are built
+    // with `./gradlew buildSnapshot` (see `SnapshotWriter`).
+    String snapshotDir = System.getenv("SNAPSHOT_DIR");
+    if (snapshotDir != null) {
+      new Server(null, Main.getSnapshotControllers(Path.of(snapshotDir))).startServer();
+      return;
+    }
+
     // Get the MongoDB address and database name from environment variables and
     // if they aren't set, use the defaults of "localhost" and "dev".
     String mongoAddr = Main.getEnvOrDefault("MONGO_ADDR", "localhost");
@@ -53,18 +77,107 @@ public class Main {
    * @param database The MongoDB database object used by the controllers
    *               to access the database.
    * @return An array of implementations of `Controller` for the server.
+   * @throws IOException if there's a write-ahead log that can't be opened
    */
-  static Controller[] getControllers(MongoDatabase database) {
+  static Controller[] getControllers(MongoDatabase database) throws IOException {
+    UserController userController = new UserController(database);
+    TodoController todoController = new TodoController(database);
+
+    // If `GROUP_COMMIT_WINDOW_MS` is set, inserts that arrive within that many
+    // milliseconds of each other (up to `GROUP_COMMIT_MAX_BATCH` of them) are
+    // written with a single `insertMany` (see `GroupCommitWriter`).
+    String groupCommitWindow = System.getenv("GROUP_COMMIT_WINDOW_MS");
+    if (groupCommitWindow != null) {
+      Duration window = Duration.ofMillis(Long.parseLong(groupCommitWindow));
+      int maxBatchSize = Integer.parseInt(getEnvOrDefault("GROUP_COMMIT_MAX_BATCH", "100"));
+      userController.enableGroupCommit(maxBatchSize, window);
+      todoController.enableGroupCommit(maxBatchSize, window);
+    }
+
+    // If `WAL_DIR` is set, new todos and users that can't be inserted because
+    // MongoDB is unavailable are logged there, and inserted once it's back (see
+    // `WriteAheadLog`). `WAL_FSYNC` is `always`, `interval` (the default, every
+    // `WAL_FSYNC_INTERVAL_MS`), or `never`.
+    String walDir = System.getenv("WAL_DIR");
+    if (walDir != null) {
+      FsyncPolicy fsync = FsyncPolicy.valueOf(getEnvOrDefault("WAL_FSYNC", "interval").toUpperCase(Locale.ROOT));
+      Duration fsyncInterval = Duration.ofMillis(Long.parseLong(getEnvOrDefault("WAL_FSYNC_INTERVAL_MS", "100")));
+      Duration retryInterval = Duration.ofMillis(Long.parseLong(getEnvOrDefault("WAL_RETRY_MS", "1000")));
+      userController.enableWriteAheadLog(new WriteAheadLog(Path.of(walDir, "users"),
+          WriteAheadLog.DEFAULT_SEGMENT_BYTES, fsync, fsyncInterval), retryInterval);
+      todoController.enableWriteAheadLog(new WriteAheadLog(Path.of(walDir, "todos"),
+          WriteAheadLog.DEFAULT_SEGMENT_BYTES, fsync, fsyncInterval), retryInterval);
+    }
+
+    // Retried writes with the same `Idempotency-Key` get the original response
+    // (see `IdempotencyKeys`). The keys are kept for `IDEMPOTENCY_TTL_MINUTES`,
+    // and, if `IDEMPOTENCY_PERSIST` is `true`, in the `idempotencyKeys` collection.
+    Duration idempotencyTtl = Duration.ofMinutes(Long.parseLong(getEnvOrDefault("IDEMPOTENCY_TTL_MINUTES",
+        String.valueOf(IdempotencyKeys.DEFAULT_TTL.toMinutes()))));
+    IdempotencyKeys idempotencyKeys = new IdempotencyKeys(IdempotencyKeys.DEFAULT_MAX_KEYS, idempotencyTtl,
+        Boolean.parseBoolean(getEnvOrDefault("IDEMPOTENCY_PERSIST", "false"))
+            ? database.getCollection("idempotencyKeys") : null);
+    userController.useIdempotencyKeys(idempotencyKeys);
+    todoController.useIdempotencyKeys(idempotencyKeys);
+    BatchController batchController = new BatchController();
+    batchController.useIdempotencyKeys(idempotencyKeys);
+
+    // After `CIRCUIT_BREAKER_FAILURES` requests in a row find MongoDB down, the
+    // todo and user routes stop trying it for `CIRCUIT_BREAKER_OPEN_MS`, and the
+    // main reads are answered with their last responses, which take up to
+    // `STALE_RESPONSE_BYTES` (see `CircuitBreaker`)
+    CircuitBreaker circuitBreaker = new CircuitBreaker(
+        Integer.parseInt(getEnvOrDefault("CIRCUIT_BREAKER_FAILURES",
+            String.valueOf(CircuitBreaker.DEFAULT_FAILURE_THRESHOLD))),
+        Duration.ofMillis(Long.parseLong(getEnvOrDefault("CIRCUIT_BREAKER_OPEN_MS",
+            String.valueOf(CircuitBreaker.DEFAULT_OPEN_DURATION.toMillis())))),
+        Long.parseLong(getEnvOrDefault("STALE_RESPONSE_BYTES",
+            String.valueOf(CircuitBreaker.DEFAULT_MAX_STALE_BYTES))));
+    userController.useCircuitBreaker(circuitBreaker);
+    todoController.useCircuitBreaker(circuitBreaker);
+
+    // `/api/usersByCompany` is answered from a grouping that's recomputed in
+    // the background once it's `SUMMARY_SOFT_TTL_MS` old (0 to compute it for
+    // every request instead; see `StaleWhileRevalidate`), with the route's
+    // own query budget
+    long summarySoftTtl = Long.parseLong(getEnvOrDefault("SUMMARY_SOFT_TTL_MS", "5000"));
+    if (summarySoftTtl > 0) {
+      userController.enableStaleWhileRevalidate(Duration.ofMillis(summarySoftTtl),
+          Server.queryBudgets(getEnvOrDefault("QUERY_BUDGETS", "")).get("/api/usersByCompany"));
+    }
+
+    // `/api/autocomplete` is served from the indexes the other controllers keep up to date
+    Map<String, PrefixIndex> autocompleteIndexes = new HashMap<>();
+    autocompleteIndexes.putAll(userController.autocompleteIndexes());
+    autocompleteIndexes.putAll(todoController.autocompleteIndexes());
+
     Controller[] controllers = new Controller[] {
       // You will add additional controllers here, as you create them,
       // and you need to make sure that each of your new controllers implements
       // the `Controller` interface.
       //
       // You can also remove this UserController once you don't need it.
-      new UserController(database),
-      new TodoController(database)
+      userController,
+      todoController,
+      new AutocompleteController(autocompleteIndexes),
+      batchController
     };
     return controllers;
   }
 
+  /**
+   * Get the controllers used when serving read-only snapshots instead of MongoDB.
+   *
+   * @param snapshotDir the directory containing `todos.snap` and `users.snap`
+   * @return An array of implementations of `Controller` for the server.
+   * @throws IOException if either snapshot can't be opened
+   */
+  static Controller[] getSnapshotControllers(Path snapshotDir) throws IOException {
+    return new Controller[] {
+      new UserSnapshotController(Snapshot.open(snapshotDir.resolve("users.snap"))),
+      new TodoSnapshotController(Snapshot.open(snapshotDir.resolve("todos.snap"))),
+      new BatchController()
+    };
+  }
+
 }
@@ -0,0 +1,92 @@
+package umm3601;
+
+import static com.mongodb.client.model.Filters.in;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import org.bson.types.ObjectId;
+
+import com.mongodb.client.MongoCollection;
+
+import io.javalin.http.BadRequestResponse;
+
+/**
+ * The documents for a list of `_id`s, fetched with a single `$in` query
+ * (e.g., `GET /api/users?ids=a,b,c`), so a client showing several of them
+ * doesn't need a request, and a query, for each one.
+ *
+ * The `results` are in the order the `_id`s were asked for, and the
+ * `_id`s that weren't found are listed in `missing`.
+ *
+ * @param <T> the type of the documents
+ */
+@SuppressWarnings("checkstyle:visibilitymodifier")
+public class MultiGetResults<T> {
+
+  /**
+   * The most `_id`s we'll look up at once.
+   */
+  public static final int MAX_IDS = 1000;
+
+  public List<T> results;
+  public List<String> missing;
+
+  public MultiGetResults(List<T> results, List<String> missing) {
+    this.results = results;
+    this.missing = missing;
+  }
+
+  /**
+   * Look up some documents by `_id`.
+   *
+   * @param collection the collection to look in
+   * @param idsParam the comma-separated `_id`s, as hex strings
+   * @param idOf gets the `_id` of a document
+   * @param itemName what the documents are called in error messages, e.g., `todo`
+   * @param <T> the type of the documents
+   * @return the documents found, in the order requested, and the `_id`s not found
+   */
+  public static <T> MultiGetResults<T> fetch(
+      MongoCollection<T> collection, String idsParam, Function<T, String> idOf, String itemName) {
+    List<String> requested = new ArrayList<>();
+    for (String id : idsParam.split(",")) {
+      if (!id.isBlank()) {
+        requested.add(id.strip());
+      }
+    }
+    if (requested.isEmpty() || requested.size() > MAX_IDS) {
+      throw new BadRequestResponse("ids must be between 1 and " + MAX_IDS + " comma-separated " + itemName + " ids");
+    }
+    Set<ObjectId> objectIds = new LinkedHashSet<>();
+    for (String id : requested) {
+      if (!ObjectId.isValid(id)) {
+        throw new BadRequestResponse("The requested " + itemName + " id " + id + " wasn't a legal Mongo Object ID.");
+      }
+      objectIds.add(new ObjectId(id));
+    }
+
+    Map<String, T> found = new HashMap<>();
+    for (T document : collection.find(in("_id", objectIds))) {
+      found.put(idOf.apply(document), document);
+    }
+
+    List<T> results = new ArrayList<>();
+    List<String> missing = new ArrayList<>();
+    for (String id : requested) {
+      // The hex strings from MongoDB are lowercase
+      T document = found.get(id.toLowerCase());
+      if (document == null) {
+        missing.add(id);
+      } else {
+        results.add(document);
+      }
+    }
+    return new MultiGetResults<>(results, missing);
+  }
+}
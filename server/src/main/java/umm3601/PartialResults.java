@@ -0,0 +1,209 @@
+package umm3601;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.ne;
+import static com.mongodb.client.model.Filters.or;
+import static com.mongodb.client.model.Projections.include;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import org.bson.BsonBoolean;
+import org.bson.BsonDocument;
+import org.bson.BsonNull;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.conversions.Bson;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.mongodb.MongoExecutionTimeoutException;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Sorts;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+import io.javalin.http.Header;
+import umm3601.ContentNegotiation.Format;
+
+/**
+ * List results that stop when the request's `TimeBudget` runs out, rather
+ * than failing, for clients that would rather have the first part of a
+ * long list now than all of it (or a 503) later. With `partial=true`,
+ * e.g., `GET /api/todos?contains=anim&partial=true`, the body is
+ *
+ *   {"results": [...], "next": "..."}
+ *
+ * where `next` is `null` if `results` is everything, and otherwise a
+ * cursor for the rest: the same request with `after=<next>` picks up
+ * where this one stopped. (`limit`, if there is one, is the most results
+ * in each response.)
+ *
+ * The cursor is the sort key and `_id` of the last result, so the results
+ * are sorted by `_id` after the requested field, and the next response
+ * starts just after that key ("keyset" paging): it doesn't need anything
+ * kept on the server, and it doesn't skip or repeat results if others are
+ * added or removed in the meantime.
+ *
+ * A response that stops early isn't cacheable (it depends on how fast the
+ * database was), so it's sent with `Cache-Control: no-store`.
+ */
+public final class PartialResults {
+
+  public static final String PARTIAL_KEY = "partial";
+  public static final String AFTER_KEY = "after";
+
+  // The parts of a cursor
+  private static final String FIELD = "f";
+  private static final String DESCENDING = "d";
+  private static final String VALUE = "v";
+  private static final String ID = "i";
+
+  private PartialResults() {
+  }
+
+  /**
+   * @param ctx a Javalin HTTP context
+   * @return whether the client asked for partial results
+   */
+  public static boolean requested(Context ctx) {
+    return Boolean.parseBoolean(ctx.queryParam(PARTIAL_KEY));
+  }
+
+  /**
+   * Send as many of the documents matching a filter as can be found within
+   * the request's time budget, along with a cursor for the rest.
+   *
+   * @param ctx a Javalin HTTP context, with the `after` cursor, if any
+   * @param collection the collection to find the documents in
+   * @param filter the filter the documents have to match
+   * @param fields the fields to send (besides `_id`)
+   * @param sortField the field to sort by, which has to be `_id` or one of `fields`
+   * @param descending whether to sort by `sortField` in descending order
+   * @param limit the most documents to send, or `null` for no limit
+   */
+  public static void respond(Context ctx, MongoCollection<RawBsonDocument> collection, Bson filter,
+      List<String> fields, String sortField, boolean descending, Integer limit) {
+    if (!sortField.equals("_id") && !fields.contains(sortField)) {
+      throw new BadRequestResponse("Partial results can't be sorted by " + sortField);
+    }
+    String after = ctx.queryParam(AFTER_KEY);
+    Bson afterFilter = after == null ? filter : and(filter, after(after, sortField, descending));
+    Bson sort = descending ? Sorts.descending(sortField) : Sorts.ascending(sortField);
+    FindIterable<RawBsonDocument> find = collection.find(afterFilter)
+        .sort(sortField.equals("_id") ? sort : Sorts.orderBy(sort, Sorts.ascending("_id")))
+        .projection(include(fields));
+    if (limit != null) {
+      find = find.limit(limit);
+    }
+
+    TimeBudget budget = TimeBudget.of(ctx);
+    List<RawBsonDocument> results = new ArrayList<>();
+    boolean stoppedEarly = false;
+    try (MongoCursor<RawBsonDocument> cursor = budget.limit(find).iterator()) {
+      while (cursor.hasNext()) {
+        results.add(cursor.next());
+        if (budget.isSpent()) {
+          // Unless we happen to have just read the last one
+          stoppedEarly = cursor.available() > 0 || cursor.getServerCursor() != null;
+          break;
+        }
+      }
+    } catch (MongoExecutionTimeoutException e) {
+      // If there's nothing to send, that's a failure (so the server sends a 503)
+      if (results.isEmpty()) {
+        throw e;
+      }
+      stoppedEarly = true;
+    }
+
+    String next = stoppedEarly ? cursor(results.get(results.size() - 1), sortField, descending) : null;
+    if (stoppedEarly) {
+      ctx.header(Header.CACHE_CONTROL, "no-store");
+    }
+    write(ctx, results, next);
+  }
+
+  private static void write(Context ctx, List<RawBsonDocument> results, String next) {
+    Format format = ContentNegotiation.acceptedFormat(ctx.header(Header.ACCEPT));
+    ctx.header(Header.VARY, Header.ACCEPT);
+    ctx.contentType(format.mimeType());
+    // Leave the response stream for Javalin to close
+    try (JsonGenerator generator = format.mapper().getFactory().createGenerator(ctx.outputStream())
+        .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)) {
+      generator.writeStartObject();
+      generator.writeArrayFieldStart("results");
+      for (RawBsonDocument document : results) {
+        RawDocuments.writeDocument(document, generator);
+      }
+      generator.writeEndArray();
+      generator.writeStringField("next", next);
+      generator.writeEndObject();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * @param last the last document sent
+   * @param sortField the field the documents are sorted by
+   * @param descending whether they're in descending order
+   * @return the cursor for the documents after `last`
+   */
+  static String cursor(RawBsonDocument last, String sortField, boolean descending) {
+    BsonValue value = last.get(sortField);
+    BsonDocument cursor = new BsonDocument(FIELD, new BsonString(sortField))
+        .append(DESCENDING, BsonBoolean.valueOf(descending))
+        .append(VALUE, value == null ? BsonNull.VALUE : value)
+        .append(ID, last.get("_id"));
+    ByteBuffer bytes = new RawBsonDocument(cursor, new BsonDocumentCodec()).getByteBuffer().asNIO();
+    byte[] encoded = new byte[bytes.remaining()];
+    bytes.get(encoded);
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(encoded);
+  }
+
+  /**
+   * @param after a cursor from `cursor`
+   * @param sortField the field the documents are sorted by
+   * @param descending whether they're in descending order
+   * @return the filter for the documents after the one the cursor is for
+   */
+  static Bson after(String after, String sortField, boolean descending) {
+    RawBsonDocument cursor;
+    String field;
+    boolean cursorDescending;
+    try {
+      cursor = new RawBsonDocument(Base64.getUrlDecoder().decode(after));
+      field = cursor.getString(FIELD).getValue();
+      cursorDescending = cursor.getBoolean(DESCENDING).getValue();
+    } catch (RuntimeException e) {
+      // Not base64, not BSON, or not a cursor
+      throw new BadRequestResponse("The " + AFTER_KEY + " cursor isn't one we sent");
+    }
+    if (!field.equals(sortField) || cursorDescending != descending) {
+      throw new BadRequestResponse("The " + AFTER_KEY + " cursor is for a different sort order");
+    }
+    BsonValue value = cursor.get(VALUE);
+    BsonValue id = cursor.get(ID);
+    if (value == null || id == null) {
+      throw new BadRequestResponse("The " + AFTER_KEY + " cursor isn't one we sent");
+    }
+
+    Bson sameValueLaterId = and(eq(sortField, value), gt("_id", id));
+    if (value.isNull()) {
+      // Missing values sort before everything else
+      return descending ? sameValueLaterId : or(ne(sortField, null), sameValueLaterId);
+    }
+    return or(descending ? lt(sortField, value) : gt(sortField, value), sameValueLaterId);
+  }
+}
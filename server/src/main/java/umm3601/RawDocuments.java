@@ -0,0 +1,179 @@
+package umm3601;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+
+import org.bson.BsonBinaryReader;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.RawBsonDocument;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.mongodb.client.MongoCursor;
+
+import io.javalin.http.Context;
+import io.javalin.http.Header;
+import umm3601.ContentNegotiation.Format;
+
+/**
+ * Writes documents straight from MongoDB's BSON into the response, for
+ * the reads that just send the documents along (e.g., `GET /api/todos`).
+ *
+ * Going through the `Todo` and `User` classes means building two object
+ * graphs per document: MongoJack decodes the BSON into a `Todo`, and then
+ * Jackson walks the `Todo` to write the JSON. Here, we read the bytes of
+ * each `RawBsonDocument` (which the driver doesn't decode at all) and
+ * write each value to a Jackson `JsonGenerator` as we go, so nothing is
+ * built per document besides the strings.
+ *
+ * The output matches what Jackson writes for the classes: the same field
+ * names, `_id`s as hex strings, and numbers and booleans as themselves.
+ * (Fields are in the order they're stored in, which for documents added
+ * through the API is the order of the class's fields.) The caller should
+ * project the documents down to the fields the class has, so we don't
+ * send anything the class wouldn't have.
+ *
+ * If the client hangs up partway through, writing to it fails, and we
+ * close the cursor straight away, so MongoDB stops reading for it (rather
+ * than holding the cursor open until it times out).
+ */
+public final class RawDocuments {
+
+  /**
+   * Set this request attribute to an `OutputStream` to have `respond` write
+   * a copy of the body there as it streams it (e.g., for `CircuitBreaker`
+   * to keep).
+   */
+  public static final String COPY_ATTRIBUTE = "rawDocuments.copy";
+
+  private RawDocuments() {
+  }
+
+  /**
+   * Set the body of the response to a list of documents, in the format
+   * the client asked for (see `ContentNegotiation`).
+   *
+   * @param ctx a Javalin HTTP context
+   * @param documents the documents to send
+   */
+  public static void respond(Context ctx, Iterable<RawBsonDocument> documents) {
+    Format format = ContentNegotiation.acceptedFormat(ctx.header(Header.ACCEPT));
+    ctx.header(Header.VARY, Header.ACCEPT);
+    ctx.contentType(format.mimeType());
+    OutputStream copy = ctx.attribute(COPY_ATTRIBUTE);
+    try {
+      write(documents, copy == null ? ctx.outputStream() : new Tee(ctx.outputStream(), copy), format);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Write a list of documents to a stream.
+   *
+   * @param documents the documents to write
+   * @param out where to write them
+   * @param format the format to write them in
+   * @throws IOException if writing to the stream fails
+   */
+  static void write(Iterable<RawBsonDocument> documents, OutputStream out, Format format) throws IOException {
+    Iterator<RawBsonDocument> iterator = documents.iterator();
+    // Leave the response stream for Javalin to close
+    try (JsonGenerator generator = format.mapper().getFactory().createGenerator(out)
+        .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)) {
+      generator.writeStartArray();
+      while (iterator.hasNext()) {
+        writeDocument(iterator.next(), generator);
+      }
+      generator.writeEndArray();
+    } finally {
+      if (iterator instanceof MongoCursor<RawBsonDocument> cursor) {
+        cursor.close();
+      }
+    }
+  }
+
+  /**
+   * Write one document to a generator.
+   *
+   * @param document the document to write
+   * @param generator where to write it
+   * @throws IOException if writing fails
+   */
+  static void writeDocument(RawBsonDocument document, JsonGenerator generator) throws IOException {
+    try (BsonBinaryReader reader = new BsonBinaryReader(document.getByteBuffer().asNIO())) {
+      writeDocument(reader, generator);
+    }
+  }
+
+  private static void writeDocument(BsonReader reader, JsonGenerator generator) throws IOException {
+    reader.readStartDocument();
+    generator.writeStartObject();
+    while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+      generator.writeFieldName(reader.readName());
+      writeValue(reader, generator);
+    }
+    reader.readEndDocument();
+    generator.writeEndObject();
+  }
+
+  private static void writeValue(BsonReader reader, JsonGenerator generator) throws IOException {
+    switch (reader.getCurrentBsonType()) {
+      case OBJECT_ID -> generator.writeString(reader.readObjectId().toHexString());
+      case STRING -> generator.writeString(reader.readString());
+      case BOOLEAN -> generator.writeBoolean(reader.readBoolean());
+      case INT32 -> generator.writeNumber(reader.readInt32());
+      case INT64 -> generator.writeNumber(reader.readInt64());
+      case DOUBLE -> generator.writeNumber(reader.readDouble());
+      case DECIMAL128 -> generator.writeNumber(reader.readDecimal128().bigDecimalValue());
+      // Jackson writes dates as milliseconds since the epoch
+      case DATE_TIME -> generator.writeNumber(reader.readDateTime());
+      case NULL -> {
+        reader.readNull();
+        generator.writeNull();
+      }
+      case DOCUMENT -> writeDocument(reader, generator);
+      case ARRAY -> {
+        reader.readStartArray();
+        generator.writeStartArray();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+          writeValue(reader, generator);
+        }
+        reader.readEndArray();
+        generator.writeEndArray();
+      }
+      default -> throw new IllegalStateException(
+          "Can't write a " + reader.getCurrentBsonType() + " straight from BSON; read it into a class instead");
+    }
+  }
+
+  // Writes to the client, and then to a copy
+  private static final class Tee extends OutputStream {
+    private final OutputStream out;
+    private final OutputStream copy;
+
+    Tee(OutputStream out, OutputStream copy) {
+      this.out = out;
+      this.copy = copy;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      copy.write(b);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      out.write(bytes, offset, length);
+      copy.write(bytes, offset, length);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+  }
+}
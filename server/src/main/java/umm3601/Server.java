@@ -1,8 +1,18 @@
 package umm3601;
 
+import java.time.Duration;
 import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import com.aayushatharva.brotli4j.Brotli4jLoader;
 import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoExecutionTimeoutException;
 import com.mongodb.ServerAddress;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
@@ -10,7 +20,12 @@ import com.mongodb.client.MongoClients;
 import org.bson.UuidRepresentation;
 
 import io.javalin.Javalin;
+import io.javalin.compression.Brotli;
+import io.javalin.compression.CompressionStrategy;
+import io.javalin.compression.Gzip;
 import io.javalin.http.InternalServerErrorResponse;
+import io.javalin.http.ServiceUnavailableResponse;
+import umm3601.Bulkheads.RouteClass;
 
 /**
  * The class used to configure and start a Javalin server.
@@ -20,6 +35,61 @@ public class Server {
   // The port that the server should run on.
   private static final int SERVER_PORT = 4567;
 
+  // Responses smaller than this many bytes aren't worth compressing. This, and
+  // the compression level (from 1, fastest, to 9, smallest), can be changed
+  // with the `COMPRESSION_MIN_SIZE` and `COMPRESSION_LEVEL` environment variables.
+  static final int DEFAULT_COMPRESSION_MIN_SIZE = 1500;
+  static final int DEFAULT_COMPRESSION_LEVEL = 6;
+  static final int MAX_COMPRESSION_LEVEL = 9;
+
+  // How many requests to each route may run at once, to start with and at
+  // most (see `AdmissionControl`); set with `ADMISSION_INITIAL_LIMIT` and
+  // `ADMISSION_MAX_LIMIT`, or turn it off with `ADMISSION_CONTROL=false`
+  static final int DEFAULT_ADMISSION_INITIAL_LIMIT = 20;
+  static final int DEFAULT_ADMISSION_MAX_LIMIT = 200;
+
+  // How many requests of each class of route (see `Bulkheads`) can run at
+  // once. Together they're well under Jetty's 200 threads, so there are
+  // always threads for the point reads, however many scans and aggregations
+  // are waiting on MongoDB. Set with, e.g., `BULKHEAD_AGGREGATION=8`.
+  static final Map<RouteClass, Integer> DEFAULT_BULKHEAD_PERMITS = Map.of(
+    RouteClass.POINT_READ, 64,
+    RouteClass.LIST_SCAN, 24,
+    RouteClass.AGGREGATION, 6,
+    RouteClass.WRITE, 32);
+  // How long a request waits for a permit before it's turned away
+  static final int DEFAULT_BULKHEAD_MAX_WAIT_MILLIS = 100;
+
+  // The `GET` routes that aren't in their default class: the cheap lookups
+  // in in-memory indexes, and the aggregations
+  static final Map<String, RouteClass> ROUTE_CLASSES = Map.of(
+    "/api/autocomplete", RouteClass.POINT_READ,
+    "/api/todos/owners/similar", RouteClass.POINT_READ,
+    "/api/users/companies/similar", RouteClass.POINT_READ,
+    "/api/todos/changes", RouteClass.POINT_READ,
+    "/api/users/changes", RouteClass.POINT_READ,
+    "/api/usersByCompany", RouteClass.AGGREGATION,
+    "/api/todos/stats", RouteClass.AGGREGATION,
+    "/api/todos/withOwners", RouteClass.AGGREGATION);
+  // Every `server.sse` route: Server-Sent Events streams, which stay open as
+  // long as the client listens, so they're never limited
+  static final Set<String> STREAMING_ROUTES = Set.of("/api/users/events", "/api/todos/events");
+  // A batch just waits for its requests, which each get a permit of their own,
+  // and a stream would hold its permit for as long as the client listens
+  static final Set<String> UNLIMITED_ROUTES = Stream.concat(Stream.of("/api/batch"), STREAMING_ROUTES.stream())
+    .collect(Collectors.toUnmodifiableSet());
+
+  // How long a request's MongoDB queries can run for (see `TimeBudget`),
+  // unless it's in `ROUTE_QUERY_BUDGETS`. Set with `QUERY_BUDGET_MS`.
+  static final int DEFAULT_QUERY_BUDGET_MILLIS = 5000;
+  // The routes with budgets of their own: lookups by `_id` should be quick,
+  // and the aggregation reads every user. Add to (or change) these with,
+  // e.g., `QUERY_BUDGETS=/api/todos=2000,/api/usersByCompany=0` (0 for none).
+  static final Map<String, Duration> ROUTE_QUERY_BUDGETS = Map.of(
+    "/api/todos/{id}", Duration.ofSeconds(1),
+    "/api/users/{id}", Duration.ofSeconds(1),
+    "/api/usersByCompany", Duration.ofSeconds(10));
+
   // The `mongoClient` field is used to access the MongoDB
   private final MongoClient mongoClient;
 
@@ -31,7 +101,8 @@ public class Server {
    * Construct a `Server` object that we'll use (via `startServer()`) to configure
    * and start the server.
    *
-   * @param mongoClient The MongoDB client object used to access to the database
+   * @param mongoClient The MongoDB client object used to access to the database,
+   *   or `null` if the controllers don't use MongoDB (e.g., when serving snapshots)
    * @param controllers The implementations of `Controller` used for this server
    */
   public Server(MongoClient mongoClient, Controller[] controllers) {
@@ -63,7 +134,15 @@ public class Server {
     // Setup the MongoDB client object with the information we set earlier
     MongoClient mongoClient = MongoClients.create(MongoClientSettings
       .builder()
-      .applyToClusterSettings(builder -> builder.hosts(Arrays.asList(new ServerAddress(mongoAddr))))
+      .applyToClusterSettings(builder -> {
+        builder.hosts(Arrays.asList(new ServerAddress(mongoAddr)));
+        // How long an operation waits for MongoDB to be reachable before failing
+        // (the driver's default is 30 seconds); worth lowering with a write-ahead log
+        String timeout = System.getenv("MONGO_TIMEOUT_MS");
+        if (timeout != null) {
+          builder.serverSelectionTimeout(Long.parseLong(timeout), TimeUnit.MILLISECONDS);
+        }
+      })
       // Old versions of the mongodb-driver-sync package encoded UUID values (universally unique identifiers) in
       // a non-standard way. This option says to use the standard encoding.
       // See: https://studio3t.com/knowledge-base/articles/mongodb-best-practices-uuid-data/
@@ -91,6 +170,11 @@ public class Server {
    *
    * - Adding a route overview plugin to make it easier to see what routes
    *   are available.
+   * - Compressing responses (see `compressionStrategy`).
+   * - Turning requests away with a 503 when their route is overloaded
+   *   (see `AdmissionControl`), or when there are too many requests of
+   *   their class running (see `bulkheads`).
+   * - Giving each request's queries a time budget (see `TimeBudget`).
    * - Setting it up to shut down gracefully if it's killed or if the
    *   JVM is shut down.
    * - Setting up a handler for uncaught exceptions to return an HTTP 500
@@ -113,9 +197,27 @@ public class Server {
      * what HTTP methods they use. (Replace `localhost` and `4567` with whatever server
      * and  port you're actually using, if they are different.)
      */
-    Javalin server = Javalin.create(config ->
-      config.bundledPlugins.enableRouteOverview("/api")
-    );
+    Javalin server = Javalin.create(config -> {
+      config.bundledPlugins.enableRouteOverview("/api");
+      config.http.customCompression(compressionStrategy(
+        Integer.parseInt(Main.getEnvOrDefault("COMPRESSION_LEVEL", String.valueOf(DEFAULT_COMPRESSION_LEVEL))),
+        Integer.parseInt(Main.getEnvOrDefault("COMPRESSION_MIN_SIZE", String.valueOf(DEFAULT_COMPRESSION_MIN_SIZE))),
+        Brotli4jLoader.isAvailable()));
+    });
+
+    if (Boolean.parseBoolean(Main.getEnvOrDefault("ADMISSION_CONTROL", "true"))) {
+      new AdmissionControl(
+        Integer.parseInt(Main.getEnvOrDefault("ADMISSION_INITIAL_LIMIT",
+          String.valueOf(DEFAULT_ADMISSION_INITIAL_LIMIT))),
+        Integer.parseInt(Main.getEnvOrDefault("ADMISSION_MAX_LIMIT", String.valueOf(DEFAULT_ADMISSION_MAX_LIMIT))),
+        STREAMING_ROUTES)
+        .register(server);
+    }
+    bulkheads().register(server);
+    TimeBudget.register(server,
+      Duration.ofMillis(Long.parseLong(Main.getEnvOrDefault("QUERY_BUDGET_MS",
+        String.valueOf(DEFAULT_QUERY_BUDGET_MILLIS)))),
+      queryBudgets(Main.getEnvOrDefault("QUERY_BUDGETS", "")));
 
     // Configure the MongoDB client and the Javalin server to shut down gracefully.
     configureShutdowns(server);
@@ -132,10 +234,78 @@ public class Server {
     server.exception(Exception.class, (e, ctx) -> {
       throw new InternalServerErrorResponse(e.toString());
     });
+    // A query that ran out of time (see `TimeBudget`) isn't the server
+    // crashing, but the client should try something narrower, or later
+    server.exception(MongoExecutionTimeoutException.class, (e, ctx) -> {
+      throw new ServiceUnavailableResponse("The query took too long; try narrowing it down, or try again later");
+    });
 
     return server;
   }
 
+  /**
+   * How to compress responses. Javalin picks the best encoding the client
+   * lists in `Accept-Encoding`, and leaves responses smaller than `minSize`
+   * (and images, video, and other already compressed types) alone.
+   *
+   * Brotli needs `brotli4j`'s native library, which the build includes for
+   * Linux, macOS, and Windows on x86-64 and ARM; on any other platform it
+   * can't load, and it's just gzip.
+   *
+   * @param level the compression level, from 1 (fastest) to 9 (smallest)
+   * @param minSize the smallest response, in bytes, worth compressing
+   * @param brotli whether to offer Brotli as well as gzip
+   * @return the compression strategy for the server
+   */
+  static CompressionStrategy compressionStrategy(int level, int minSize, boolean brotli) {
+    if (level < 1 || level > MAX_COMPRESSION_LEVEL) {
+      throw new IllegalArgumentException("The compression level must be from 1 to 9, but was " + level);
+    }
+    CompressionStrategy strategy = new CompressionStrategy(brotli ? new Brotli(level) : null, new Gzip(level));
+    strategy.setDefaultMinSizeForCompression(minSize);
+    return strategy;
+  }
+
+  /**
+   * The bulkheads between the classes of routes, with the permits for each
+   * class from the environment (e.g., `BULKHEAD_LIST_SCAN`), or the defaults.
+   *
+   * @return the bulkheads for the server
+   */
+  static Bulkheads bulkheads() {
+    Map<RouteClass, Integer> permits = new EnumMap<>(RouteClass.class);
+    for (RouteClass routeClass : RouteClass.values()) {
+      permits.put(routeClass, Integer.parseInt(Main.getEnvOrDefault("BULKHEAD_" + routeClass.name(),
+        String.valueOf(DEFAULT_BULKHEAD_PERMITS.get(routeClass)))));
+    }
+    Duration maxWait = Duration.ofMillis(Long.parseLong(Main.getEnvOrDefault("BULKHEAD_MAX_WAIT_MS",
+      String.valueOf(DEFAULT_BULKHEAD_MAX_WAIT_MILLIS))));
+    return new Bulkheads(permits, ROUTE_CLASSES, UNLIMITED_ROUTES, maxWait);
+  }
+
+  /**
+   * The time budgets of the routes that don't get the default one:
+   * `ROUTE_QUERY_BUDGETS`, with any overrides.
+   *
+   * @param overrides comma-separated `path=milliseconds` pairs, e.g.,
+   *   `/api/todos=2000,/api/usersByCompany=0`, or an empty string
+   * @return the budget for each of those routes
+   */
+  static Map<String, Duration> queryBudgets(String overrides) {
+    Map<String, Duration> budgets = new HashMap<>(ROUTE_QUERY_BUDGETS);
+    for (String override : overrides.split(",")) {
+      if (override.isBlank()) {
+        continue;
+      }
+      String[] parts = override.split("=", 2);
+      if (parts.length != 2) {
+        throw new IllegalArgumentException("Query budgets look like /api/todos=2000, not " + override);
+      }
+      budgets.put(parts[0].strip(), Duration.ofMillis(Long.parseLong(parts[1].strip())));
+    }
+    return budgets;
+  }
+
   /**
    * Configure the server and the MongoDB client to shut down gracefully.
    *
@@ -155,10 +325,12 @@ public class Server {
      * life of the server, the only way to do this is to wait for
      * these events and close it then.
      */
-    server.events(event -> {
-      event.serverStartFailed(mongoClient::close);
-      event.serverStopped(mongoClient::close);
-    });
+    if (mongoClient != null) {
+      server.events(event -> {
+        event.serverStartFailed(mongoClient::close);
+        event.serverStopped(mongoClient::close);
+      });
+    }
   }
 
   /**
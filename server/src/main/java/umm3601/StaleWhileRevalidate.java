@@ -0,0 +1,105 @@
+package umm3601;
+
+import java.time.Duration;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Caches the result of an expensive query (e.g., the `/api/usersByCompany`
+ * aggregation) that can be a few seconds out of date, so it's computed at
+ * most about once per `softTtl` however many requests ask for it:
+ *
+ *   UserGroups groups = cache.get(() -> aggregateUsersByCompany(...));
+ *
+ * `get` always returns the cached value straight away. If it's older than
+ * `softTtl`, it also starts recomputing it in the background (with the
+ * `load` it was given), unless that's already happening, and the requests
+ * that arrive in the meantime keep getting the old value until the new one
+ * is ready. Only the first request, when there isn't a value yet, has to
+ * wait for it (and any others that arrive then wait for the same one).
+ *
+ * If a background refresh fails (e.g., because MongoDB is down), the old
+ * value stays, and the next request tries again.
+ *
+ * @param <V> the type of the cached value
+ */
+public class StaleWhileRevalidate<V> {
+
+  // A value, and `System.nanoTime()` when it was computed
+  private record Entry<V>(V value, long loadedNanos) {
+  }
+
+  private final long softTtlNanos;
+  private final Executor refresher;
+  private final AtomicBoolean refreshing = new AtomicBoolean();
+  private final Object firstLoad = new Object();
+
+  private volatile Entry<V> entry;
+
+  /**
+   * @param name what's cached, to name the refresh threads
+   * @param softTtl how old the value can get before it's recomputed
+   */
+  public StaleWhileRevalidate(String name, Duration softTtl) {
+    this(softTtl, task -> Thread.ofVirtual().name("refresh-" + name).start(task));
+  }
+
+  /**
+   * @param softTtl how old the value can get before it's recomputed
+   * @param refresher what runs the background refreshes
+   */
+  StaleWhileRevalidate(Duration softTtl, Executor refresher) {
+    if (softTtl.isNegative()) {
+      throw new IllegalArgumentException("The soft TTL can't be negative");
+    }
+    this.softTtlNanos = softTtl.toNanos();
+    this.refresher = refresher;
+  }
+
+  /**
+   * @param load computes the value, if there isn't one yet, or it's due to
+   *   be refreshed
+   * @return the cached value (computing it first if there isn't one yet)
+   */
+  public V get(Supplier<V> load) {
+    Entry<V> current = entry;
+    if (current == null) {
+      synchronized (firstLoad) {
+        current = entry;
+        if (current == null) {
+          current = new Entry<>(load.get(), System.nanoTime());
+          entry = current;
+        }
+      }
+      return current.value();
+    }
+    if (System.nanoTime() - current.loadedNanos() >= softTtlNanos && refreshing.compareAndSet(false, true)) {
+      try {
+        refresher.execute(() -> refresh(load));
+      } catch (RejectedExecutionException e) {
+        // Leave it for the next request
+        refreshing.set(false);
+      }
+    }
+    return current.value();
+  }
+
+  private void refresh(Supplier<V> load) {
+    try {
+      entry = new Entry<>(load.get(), System.nanoTime());
+    } catch (RuntimeException e) {
+      // Keep the old value; the next request will try again
+    } finally {
+      refreshing.set(false);
+    }
+  }
+
+  /**
+   * @return whether a background refresh is running
+   */
+  boolean isRefreshing() {
+    return refreshing.get();
+  }
+}
@@ -0,0 +1,131 @@
+package umm3601;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.model.CountOptions;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+
+/**
+ * How long a request's queries have left to run. Each route gets a budget
+ * (e.g., a second for `/api/todos/{id}`, more for `/api/usersByCompany`),
+ * starting when the request matches the route, and the queries the request
+ * makes are told how much of it is left, with MongoDB's `maxTimeMS`:
+ *
+ *   TimeBudget.of(ctx).limit(todoCollection.find(filter)).into(...)
+ *
+ * So a pathological query (say, a regex that can't use an index) is stopped
+ * by MongoDB when its request runs out of time, rather than holding on to a
+ * thread and a connection for as long as it takes. MongoDB then fails the
+ * query with a `MongoExecutionTimeoutException`, which the server turns
+ * into a 503. List queries can also ask whether the budget `isSpent`, and
+ * stop early with what they have so far (see `PartialResults`).
+ *
+ * Requests on routes without a budget (and in unit tests, which don't go
+ * through `register`) get `UNLIMITED`, which leaves the queries alone.
+ */
+public final class TimeBudget {
+
+  /**
+   * No time limit.
+   */
+  public static final TimeBudget UNLIMITED = new TimeBudget(Long.MAX_VALUE);
+
+  // The request attribute `register` keeps the budget in
+  public static final String ATTRIBUTE = "timeBudget";
+
+  // `System.nanoTime()` when the budget runs out, or `Long.MAX_VALUE` for no limit
+  private final long deadlineNanos;
+
+  private TimeBudget(long deadlineNanos) {
+    this.deadlineNanos = deadlineNanos;
+  }
+
+  /**
+   * @param budget how long from now the budget lasts
+   * @return a budget that runs out that long from now
+   */
+  public static TimeBudget startingNow(Duration budget) {
+    return new TimeBudget(System.nanoTime() + budget.toNanos());
+  }
+
+  /**
+   * Give each request a budget when it matches a route.
+   *
+   * @param server the Javalin server
+   * @param defaultBudget the budget for routes that aren't in `routeBudgets`,
+   *   or zero for none
+   * @param routeBudgets the budgets of particular routes, by path (e.g.,
+   *   `/api/todos/{id}`), with zero for none
+   */
+  public static void register(Javalin server, Duration defaultBudget, Map<String, Duration> routeBudgets) {
+    if (defaultBudget.isNegative() || routeBudgets.values().stream().anyMatch(Duration::isNegative)) {
+      throw new IllegalArgumentException("Time budgets can't be negative");
+    }
+    Map<String, Duration> budgets = Map.copyOf(routeBudgets);
+    server.beforeMatched(ctx -> {
+      Duration budget = budgets.getOrDefault(ctx.endpointHandlerPath(), defaultBudget);
+      if (!budget.isZero()) {
+        ctx.attribute(ATTRIBUTE, startingNow(budget));
+      }
+    });
+  }
+
+  /**
+   * @param ctx a Javalin HTTP context
+   * @return the budget of the request, or `UNLIMITED` if it doesn't have one
+   */
+  public static TimeBudget of(Context ctx) {
+    TimeBudget budget = ctx.attribute(ATTRIBUTE);
+    return budget == null ? UNLIMITED : budget;
+  }
+
+  /**
+   * @return the whole milliseconds left, at least 1 (so a spent budget still
+   *   limits a query, rather than meaning "no limit" to MongoDB), or 0 if
+   *   there's no limit
+   */
+  public long remainingMillis() {
+    if (deadlineNanos == Long.MAX_VALUE) {
+      return 0;
+    }
+    return Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
+  }
+
+  /**
+   * @return whether the budget has run out
+   */
+  public boolean isSpent() {
+    return deadlineNanos != Long.MAX_VALUE && System.nanoTime() - deadlineNanos >= 0;
+  }
+
+  /**
+   * @param <T> the type of the results
+   * @param find a query
+   * @return the same query, limited to the time that's left
+   */
+  public <T> FindIterable<T> limit(FindIterable<T> find) {
+    return find.maxTime(remainingMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @param <T> the type of the results
+   * @param aggregate an aggregation
+   * @return the same aggregation, limited to the time that's left
+   */
+  public <T> AggregateIterable<T> limit(AggregateIterable<T> aggregate) {
+    return aggregate.maxTime(remainingMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @return the options for a `countDocuments` limited to the time that's left
+   */
+  public CountOptions countOptions() {
+    return new CountOptions().maxTime(remainingMillis(), TimeUnit.MILLISECONDS);
+  }
+}
@@ -0,0 +1,93 @@
+package umm3601;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import org.bson.BsonInvalidOperationException;
+import org.bson.Document;
+import org.bson.json.JsonParseException;
+
+import io.javalin.http.BadRequestResponse;
+
+/**
+ * Validates the JSON body of a partial update (a `PATCH`), e.g.,
+ * `{"status": true}`, in the same style as Javalin's `BodyValidator`:
+ *
+ *   Document changes = UpdateValidator.of(ctx.body(), "Todo")
+ *     .check("owner", UpdateValidator::isNonEmptyString, "Todo must have a non-empty todo owner")
+ *     .check("status", Boolean.class::isInstance, "Todo status must be true or false")
+ *     .get();
+ *
+ * Each `check` names a field that may be updated and the rule its new value
+ * has to follow. The update doesn't have to include every field, but it has
+ * to include at least one, and it can't include fields that weren't checked
+ * (like `_id`). Breaking any of these rules is a `BadRequestResponse`.
+ */
+public final class UpdateValidator {
+
+  private final String body;
+  private final String itemName;
+  private final Document changes;
+  private final Set<String> allowedFields = new HashSet<>();
+
+  private UpdateValidator(String body, String itemName, Document changes) {
+    this.body = body;
+    this.itemName = itemName;
+    this.changes = changes;
+  }
+
+  /**
+   * Start validating the body of an update.
+   *
+   * @param body the JSON body of the request
+   * @param itemName what's being updated, for error messages, e.g., `Todo`
+   * @return a validator for the update
+   */
+  public static UpdateValidator of(String body, String itemName) {
+    try {
+      return new UpdateValidator(body, itemName, Document.parse(body));
+    } catch (JsonParseException | BsonInvalidOperationException e) {
+      throw new BadRequestResponse(itemName + " update must be a JSON object; body was " + body);
+    }
+  }
+
+  /**
+   * Allow a field to be updated, as long as its new value passes a test.
+   *
+   * @param field the name of the field
+   * @param test the test for the new value
+   * @param message the error message if the new value fails the test
+   * @return this validator
+   */
+  public UpdateValidator check(String field, Predicate<Object> test, String message) {
+    allowedFields.add(field);
+    if (changes.containsKey(field) && !test.test(changes.get(field))) {
+      throw new BadRequestResponse(message + "; body was " + body);
+    }
+    return this;
+  }
+
+  /**
+   * @return the fields to change, with their new values
+   */
+  public Document get() {
+    if (changes.isEmpty()) {
+      throw new BadRequestResponse(itemName + " update must change at least one field; body was " + body);
+    }
+    for (String field : changes.keySet()) {
+      if (!allowedFields.contains(field)) {
+        throw new BadRequestResponse(itemName + " update can't change " + field + "; body was " + body);
+      }
+    }
+    return changes;
+  }
+
+  /**
+   * @param value a new value for a field
+   * @return whether the value is a non-empty string
+   */
+  public static boolean isNonEmptyString(Object value) {
+    return value instanceof String string && !string.isEmpty();
+  }
+}
@@ -0,0 +1,76 @@
+package umm3601.autocomplete;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import io.javalin.Javalin;
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+import umm3601.Controller;
+import umm3601.index.Completion;
+import umm3601.index.PrefixIndex;
+
+/**
+ * Controller for `/api/autocomplete`, which suggests values for the
+ * client's filter boxes as the user types.
+ *
+ * The suggestions come from the in-memory `PrefixIndex`es kept by the
+ * todo and user controllers (see `TodoController#autocompleteIndexes` and
+ * `UserController#autocompleteIndexes`), so answering a keystroke never
+ * touches MongoDB.
+ */
+public class AutocompleteController implements Controller {
+
+  private static final String API_AUTOCOMPLETE = "/api/autocomplete";
+  static final String FIELD_KEY = "field";
+  static final String PREFIX_KEY = "prefix";
+  static final String LIMIT_KEY = "limit";
+
+  private static final int DEFAULT_LIMIT = 10;
+
+  private final Map<String, PrefixIndex> indexes;
+
+  /**
+   * Construct a controller for autocompletion.
+   *
+   * @param indexes the index for each field that can be autocompleted,
+   *   e.g., `owner`, `category`, `company`, and `name`
+   */
+  public AutocompleteController(Map<String, PrefixIndex> indexes) {
+    this.indexes = new TreeMap<>(indexes);
+  }
+
+  /**
+   * Set the JSON body of the response to be the (most common) values of
+   * the `field` query parameter's field that start with `prefix`, along
+   * with how many documents have each one, e.g.,
+   * `/api/autocomplete?field=company&prefix=oh` might return
+   * `[{"value": "OHMNET", "count": 2}]`.
+   *
+   * @param ctx a Javalin HTTP context, whose query parameters are `field`,
+   *   `prefix` (default empty), and `limit` (default 10)
+   */
+  public void getCompletions(Context ctx) {
+    String field = ctx.queryParam(FIELD_KEY);
+    PrefixIndex index = field == null ? null : indexes.get(field);
+    if (index == null) {
+      throw new BadRequestResponse("field must be one of " + String.join(", ", indexes.keySet()));
+    }
+    String prefix = ctx.queryParamAsClass(PREFIX_KEY, String.class).getOrDefault("");
+    int limit = ctx.queryParamAsClass(LIMIT_KEY, Integer.class)
+      .check(it -> it > 0, "The limit must be a positive integer.")
+      .getOrDefault(DEFAULT_LIMIT);
+
+    List<Completion> completions = index.complete(prefix, limit);
+
+    ctx.json(completions);
+    ctx.status(HttpStatus.OK);
+  }
+
+  @Override
+  public void addRoutes(Javalin server) {
+    server.get(API_AUTOCOMPLETE, this::getCompletions);
+  }
+}
@@ -0,0 +1,161 @@
+package umm3601.batch;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.TextNode;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.http.Header;
+import io.javalin.http.HttpStatus;
+import umm3601.Controller;
+import umm3601.IdempotencyKeys;
+
+/**
+ * Controller for `POST /api/batch`, which runs several API requests for
+ * the price of one round trip, e.g., everything a page needs when it loads:
+ *
+ *   [{"method": "GET", "path": "/api/users?company=OHMNET"},
+ *    {"method": "GET", "path": "/api/todos?owner=Blanche&limit=10"},
+ *    {"method": "GET", "path": "/api/usersByCompany"}]
+ *
+ * The response is the status and body of each request, in the same order.
+ *
+ * Each request is sent back to this server over the loopback interface,
+ * so it goes through exactly the same routes (from every controller's
+ * `addRoutes`), validation, and error handling as if the client had sent
+ * it directly. They all run at once, each on its own virtual thread, so the
+ * batch takes about as long as its slowest request.
+ */
+public class BatchController implements Controller {
+
+  private static final String API_BATCH = "/api/batch";
+
+  /**
+   * The most requests in one batch.
+   */
+  public static final int MAX_REQUESTS = 20;
+
+  private static final Set<String> METHODS = Set.of("GET", "POST", "PATCH", "DELETE");
+  private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+
+  // Failing on trailing tokens means, e.g., an NDJSON export is kept as a
+  // string rather than parsed as just its first line
+  private static final ObjectMapper JSON_MAPPER = new ObjectMapper()
+    .enable(DeserializationFeature.FAIL_ON_TRAILING_TOKENS);
+
+  // Answers retried batches with the original response
+  private IdempotencyKeys idempotencyKeys =
+      new IdempotencyKeys(IdempotencyKeys.DEFAULT_MAX_KEYS, IdempotencyKeys.DEFAULT_TTL);
+
+  private final HttpClient client = HttpClient.newBuilder()
+    .executor(Executors.newVirtualThreadPerTaskExecutor())
+    .build();
+
+  /**
+   * Run the requests in the JSON body of the request (a list of
+   * `SubRequest`s) and set the JSON body of the response to be the list
+   * of their `SubResponse`s.
+   *
+   * @param ctx a Javalin HTTP context
+   * @throws InterruptedException if we're interrupted while waiting for
+   *   the requests
+   */
+  public void runBatch(Context ctx) throws InterruptedException {
+    String body = ctx.body();
+    List<SubRequest> requests = List.of(ctx.bodyValidator(SubRequest[].class)
+      .check(batch -> batch.length > 0 && batch.length <= MAX_REQUESTS,
+        "A batch must have between 1 and " + MAX_REQUESTS + " requests; body was " + body)
+      .check(batch -> Arrays.stream(batch).allMatch(request -> request != null
+          && request.method != null && METHODS.contains(request.method.toUpperCase())),
+        "Each request's method must be one of " + METHODS + "; body was " + body)
+      .check(batch -> Arrays.stream(batch).allMatch(request -> request != null && request.path != null
+          && request.path.startsWith("/api/") && !request.path.startsWith(API_BATCH)),
+        "Each request's path must start with /api/ (and not be a batch); body was " + body)
+      .get());
+
+    String base = "http://localhost:" + ctx.req().getLocalPort();
+    List<SubResponse> responses = new ArrayList<>();
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      List<Future<SubResponse>> futures = new ArrayList<>();
+      for (SubRequest request : requests) {
+        futures.add(executor.submit(() -> send(base, request)));
+      }
+      for (Future<SubResponse> future : futures) {
+        try {
+          responses.add(future.get());
+        } catch (ExecutionException e) {
+          responses.add(new SubResponse(HttpStatus.BAD_GATEWAY.getCode(), new TextNode(e.getCause().toString())));
+        }
+      }
+    }
+
+    ctx.json(responses);
+    ctx.status(HttpStatus.OK);
+  }
+
+  private SubResponse send(String base, SubRequest request) throws IOException, InterruptedException {
+    HttpRequest.BodyPublisher body = request.body == null
+      ? HttpRequest.BodyPublishers.noBody()
+      : HttpRequest.BodyPublishers.ofString(JSON_MAPPER.writeValueAsString(request.body));
+    HttpRequest httpRequest = HttpRequest.newBuilder(URI.create(base + request.path))
+      .method(request.method.toUpperCase(), body)
+      .header(Header.ACCEPT, "application/json")
+      .header(Header.CONTENT_TYPE, "application/json")
+      .timeout(REQUEST_TIMEOUT)
+      .build();
+    HttpResponse<String> response;
+    try {
+      response = client.send(httpRequest, HttpResponse.BodyHandlers.ofString());
+    } catch (HttpTimeoutException e) {
+      return new SubResponse(HttpStatus.GATEWAY_TIMEOUT.getCode(), new TextNode(e.getMessage()));
+    }
+    return new SubResponse(response.statusCode(), parseBody(response.body()));
+  }
+
+  // Keep JSON bodies as JSON, so they aren't escaped into strings
+  private static JsonNode parseBody(String body) {
+    if (body.isEmpty()) {
+      return null;
+    }
+    try {
+      return JSON_MAPPER.readTree(body);
+    } catch (JsonProcessingException e) {
+      return new TextNode(body);
+    }
+  }
+
+  /**
+   * Use `keys` for the `Idempotency-Key`s of batches, instead of this
+   * controller's own in-memory ones.
+   *
+   * @param keys the idempotency keys to use
+   */
+  public void useIdempotencyKeys(IdempotencyKeys keys) {
+    idempotencyKeys = keys;
+  }
+
+  @Override
+  public void addRoutes(Javalin server) {
+    // A batch can have writes in it, so it can be retried with an `Idempotency-Key`
+    server.post(API_BATCH, ctx -> idempotencyKeys.handle(ctx, this::runBatch));
+  }
+}
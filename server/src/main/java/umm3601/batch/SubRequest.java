@@ -0,0 +1,16 @@
+package umm3601.batch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * One of the requests in a `POST /api/batch`, e.g.,
+ * `{"method": "GET", "path": "/api/users?company=OHMNET"}`, or
+ * `{"method": "PATCH", "path": "/api/todos/...", "body": {"status": true}}`.
+ */
+@SuppressWarnings("checkstyle:visibilitymodifier")
+public class SubRequest {
+  public String method;
+  public String path;
+  // The JSON body, if any
+  public JsonNode body;
+}
@@ -0,0 +1,18 @@
+package umm3601.batch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * The response to one of the requests in a `POST /api/batch`: its HTTP
+ * status, and its body (as JSON if it was JSON, and as a string otherwise).
+ */
+@SuppressWarnings("checkstyle:visibilitymodifier")
+public class SubResponse {
+  public int status;
+  public JsonNode body;
+
+  public SubResponse(int status, JsonNode body) {
+    this.status = status;
+    this.body = body;
+  }
+}
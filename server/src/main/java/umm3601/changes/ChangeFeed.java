@@ -0,0 +1,123 @@
+package umm3601.changes;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Predicate;
+
+import io.javalin.http.sse.SseClient;
+
+/**
+ * A live feed of the documents inserted, updated, and deleted through the
+ * API, pushed to Server-Sent Events subscribers (e.g., `GET /api/todos/events`).
+ *
+ * Publishing never blocks the request that made the change: each event is
+ * offered to a small bounded queue per subscriber, and each subscriber has
+ * its own virtual thread that takes events off its queue and writes them.
+ * An idle subscriber is just a parked virtual thread and an empty queue,
+ * so thousands of them are cheap, and a slow one can't hold up the others
+ * or use more than `QUEUE_CAPACITY` events of memory; if its queue fills
+ * up, we disconnect it, and it can reconnect and catch up from
+ * `/changes` (see `ChangeLog`).
+ *
+ * @param <T> the type of the documents
+ */
+public class ChangeFeed<T> {
+
+  /**
+   * The most events we hold for a subscriber that hasn't caught up.
+   */
+  public static final int QUEUE_CAPACITY = 256;
+
+  /**
+   * The kinds of changes, which are also the SSE event names.
+   */
+  public enum Type {
+    INSERT("insert"),
+    UPDATE("update"),
+    DELETE("delete");
+
+    private final String eventName;
+
+    Type(String eventName) {
+      this.eventName = eventName;
+    }
+  }
+
+  private record Event<T>(Type type, T document) {
+  }
+
+  private final class Subscriber {
+    private final SseClient client;
+    private final Predicate<T> filter;
+    private final BlockingQueue<Event<T>> events = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private Thread writer;
+
+    Subscriber(SseClient client, Predicate<T> filter) {
+      this.client = client;
+      this.filter = filter;
+    }
+
+    private void write() {
+      try {
+        while (!client.terminated()) {
+          Event<T> event = events.take();
+          client.sendEvent(event.type().eventName, event.document());
+        }
+      } catch (InterruptedException e) {
+        // The subscriber went away
+        Thread.currentThread().interrupt();
+      } finally {
+        unsubscribe(this);
+      }
+    }
+  }
+
+  private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+  /**
+   * Start pushing the changes that pass a filter to an SSE client, until it
+   * disconnects.
+   *
+   * @param client the client
+   * @param filter which documents the client wants to hear about
+   */
+  public void subscribe(SseClient client, Predicate<T> filter) {
+    Subscriber subscriber = new Subscriber(client, filter);
+    subscribers.add(subscriber);
+    client.onClose(() -> unsubscribe(subscriber));
+    client.keepAlive();
+    subscriber.writer = Thread.ofVirtual().name("change-feed").start(subscriber::write);
+  }
+
+  /**
+   * Push a change to every subscriber interested in it, without waiting
+   * for any of them.
+   *
+   * @param type what kind of change it was
+   * @param document the document that changed (for deletes, as it was)
+   */
+  public void publish(Type type, T document) {
+    for (Subscriber subscriber : subscribers) {
+      if (subscriber.filter.test(document) && !subscriber.events.offer(new Event<>(type, document))) {
+        // This subscriber has fallen too far behind
+        unsubscribe(subscriber);
+      }
+    }
+  }
+
+  /**
+   * @return the number of subscribers
+   */
+  public int subscriberCount() {
+    return subscribers.size();
+  }
+
+  private void unsubscribe(Subscriber subscriber) {
+    if (subscribers.remove(subscriber)) {
+      subscriber.writer.interrupt();
+      subscriber.client.close();
+    }
+  }
+}
@@ -0,0 +1,163 @@
+package umm3601.changes;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.SequencedSet;
+import java.util.TreeMap;
+
+import org.bson.types.ObjectId;
+
+import io.javalin.http.BadRequestResponse;
+
+/**
+ * A log of which documents in a collection have been inserted, updated, or
+ * deleted through the API, so clients can ask for just what changed since
+ * they last looked (`GET /api/todos/changes?since=TOKEN`).
+ *
+ * Every change gets the next sequence number, and we remember the latest
+ * sequence number for each document (so a document changed many times is
+ * only sent once). Deleted documents leave a tombstone. A change token is
+ * `EPOCH:SEQUENCE`, where the epoch is different every time the server
+ * starts; since the log only lives in memory, a token from an earlier epoch
+ * (or one so old that its tombstones have been dropped) gets a "reset", and
+ * the client starts over from the full list.
+ *
+ * Answering `since` only looks at the documents that changed after the
+ * token, so the work is proportional to the churn, not to the size of the
+ * collection.
+ */
+public class ChangeLog {
+
+  /**
+   * The most tombstones we keep; past this, the oldest are dropped, and
+   * tokens from before them get a reset.
+   */
+  public static final int DEFAULT_MAX_TOMBSTONES = 10_000;
+
+  private final String epoch = new ObjectId().toHexString();
+  private final int maxTombstones;
+
+  private long sequence;
+  // Tokens before this can't be answered (their tombstones are gone)
+  private long floor;
+  private final Map<String, Long> latest = new HashMap<>();
+  private final NavigableMap<Long, String> bySequence = new TreeMap<>();
+  // Deleted `_id`s, oldest deletion first
+  private final SequencedSet<String> tombstones = new LinkedHashSet<>();
+
+  public ChangeLog() {
+    this(DEFAULT_MAX_TOMBSTONES);
+  }
+
+  /**
+   * @param maxTombstones the most tombstones to keep
+   */
+  public ChangeLog(int maxTombstones) {
+    this.maxTombstones = maxTombstones;
+  }
+
+  /**
+   * The changes since a token.
+   *
+   * @param token the token for this point in the log
+   * @param reset whether the client has to start over from the full list
+   *   (and `changed` and `deleted` are empty)
+   * @param changed the `_id`s of the documents inserted or updated since the token
+   * @param deleted the `_id`s of the documents deleted since the token
+   */
+  public record Changes(String token, boolean reset, List<String> changed, List<String> deleted) {
+  }
+
+  /**
+   * Record that a document was inserted or updated.
+   *
+   * @param id the document's `_id`
+   */
+  public synchronized void recordChange(String id) {
+    tombstones.remove(id);
+    record(id);
+  }
+
+  /**
+   * Record that a document was deleted.
+   *
+   * @param id the document's `_id`
+   */
+  public synchronized void recordDelete(String id) {
+    tombstones.remove(id);
+    tombstones.add(id);
+    record(id);
+    while (tombstones.size() > maxTombstones) {
+      String oldest = tombstones.removeFirst();
+      long deletedAt = latest.remove(oldest);
+      bySequence.remove(deletedAt);
+      floor = Math.max(floor, deletedAt);
+    }
+  }
+
+  private void record(String id) {
+    sequence++;
+    Long previous = latest.put(id, sequence);
+    if (previous != null) {
+      bySequence.remove(previous);
+    }
+    bySequence.put(sequence, id);
+  }
+
+  /**
+   * @return a token for the current point in the log
+   */
+  public synchronized String token() {
+    return epoch + ":" + sequence;
+  }
+
+  /**
+   * @return the number of changes recorded so far; this only ever goes up
+   */
+  public synchronized long generation() {
+    return sequence;
+  }
+
+  /**
+   * Find what changed since a token.
+   *
+   * @param token a token from an earlier call, or `null` to start over
+   * @return the changes since the token
+   * @throws BadRequestResponse if the token isn't one we could have handed out
+   */
+  public synchronized Changes since(String token) {
+    if (token == null) {
+      return new Changes(token(), true, List.of(), List.of());
+    }
+    int colon = token.indexOf(':');
+    long since;
+    try {
+      since = Long.parseLong(token.substring(colon + 1));
+    } catch (NumberFormatException e) {
+      since = -1;
+    }
+    if (colon < 0 || since < 0) {
+      throw new BadRequestResponse("since must be a token from an earlier response");
+    }
+    if (!token.substring(0, colon).equals(epoch) || since < floor) {
+      return new Changes(token(), true, List.of(), List.of());
+    }
+    if (since > sequence) {
+      throw new BadRequestResponse("since must be a token from an earlier response");
+    }
+    List<String> changed = new ArrayList<>();
+    List<String> deleted = new ArrayList<>();
+    for (String id : bySequence.tailMap(since, false).values()) {
+      if (tombstones.contains(id)) {
+        deleted.add(id);
+      } else {
+        changed.add(id);
+      }
+    }
+    return new Changes(token(), false, changed, deleted);
+  }
+}
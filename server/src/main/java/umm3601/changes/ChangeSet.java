@@ -0,0 +1,26 @@
+package umm3601.changes;
+
+import java.util.List;
+
+/**
+ * The body of a `/changes` response: the documents inserted or updated
+ * since the client's token, the `_id`s of those deleted since then, and the
+ * token to use next time. When `reset` is true the client's token couldn't
+ * be used (e.g., the server restarted), and `changed` is the full list.
+ *
+ * @param <T> the type of the documents
+ */
+@SuppressWarnings("checkstyle:visibilitymodifier")
+public class ChangeSet<T> {
+  public String token;
+  public boolean reset;
+  public List<T> changed;
+  public List<String> deleted;
+
+  public ChangeSet(ChangeLog.Changes changes, List<T> changed) {
+    this.token = changes.token();
+    this.reset = changes.reset();
+    this.changed = changed;
+    this.deleted = changes.deleted();
+  }
+}
@@ -0,0 +1,300 @@
+package umm3601.export;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Projections.include;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+import org.bson.types.ObjectId;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Sorts;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+
+/**
+ * Streams (possibly filtered) collections out as newline-delimited JSON
+ * or CSV, for `/api/todos/export` and `/api/users/export`.
+ *
+ * Documents are written to the response as they come off a MongoDB cursor,
+ * so memory use doesn't depend on the size of the collection; if the client
+ * reads slowly, writing to the response blocks, and so does reading from
+ * the cursor.
+ *
+ * With `parallel=N` (N > 1) the range of `_id`s is split into N pieces,
+ * and each piece is read and formatted by its own thread. The threads hand
+ * chunks of formatted lines to the request thread through a small bounded
+ * queue, so they also block (rather than buffer) when the client can't keep
+ * up. Documents from the different pieces are interleaved, so a parallel
+ * export isn't in any particular order.
+ */
+public class Exporter {
+
+  static final String FORMAT_KEY = "format";
+  static final String PARALLEL_KEY = "parallel";
+
+  /**
+   * The most threads one export may use.
+   */
+  public static final int MAX_PARALLEL = 16;
+
+  private static final int CURSOR_BATCH_SIZE = 1000;
+  private static final int CHUNK_BYTES = 64 * 1024;
+  private static final int OUTPUT_BUFFER_BYTES = 64 * 1024;
+  private static final int ID_BYTES = 12;
+
+  // The end of a worker's chunks
+  private static final byte[] DONE = new byte[0];
+
+  // `_id`s are written as hex strings, like the rest of the API
+  private static final JsonWriterSettings JSON_SETTINGS = JsonWriterSettings.builder()
+    .outputMode(JsonMode.RELAXED)
+    .objectIdConverter((value, writer) -> writer.writeString(value.toHexString()))
+    .build();
+
+  /**
+   * The formats we can export.
+   */
+  public enum Format {
+    NDJSON("application/x-ndjson"),
+    CSV("text/csv");
+
+    private final String contentType;
+
+    Format(String contentType) {
+      this.contentType = contentType;
+    }
+  }
+
+  private final MongoCollection<Document> collection;
+  private final List<String> fields;
+
+  /**
+   * Construct an exporter for a collection.
+   *
+   * @param collection the collection to export
+   * @param fields the fields to export (besides `_id`), which are also the
+   *   columns of the CSV, in order
+   */
+  public Exporter(MongoCollection<Document> collection, List<String> fields) {
+    this.collection = collection;
+    this.fields = new ArrayList<>();
+    this.fields.add("_id");
+    this.fields.addAll(fields);
+  }
+
+  /**
+   * Stream the documents matching a filter into the response, in the
+   * format given by the `format` query parameter (`ndjson`, the default,
+   * or `csv`), using as many threads as the `parallel` query parameter
+   * says (default 1).
+   *
+   * @param ctx a Javalin HTTP context
+   * @param filter the filter the exported documents have to match
+   */
+  public void export(Context ctx, Bson filter) {
+    Format format;
+    try {
+      format = Format.valueOf(ctx.queryParamAsClass(FORMAT_KEY, String.class)
+        .getOrDefault("ndjson").toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestResponse("format must be 'ndjson' or 'csv'");
+    }
+    int parallel = ctx.queryParamAsClass(PARALLEL_KEY, Integer.class)
+      .check(it -> it > 0 && it <= MAX_PARALLEL, "parallel must be between 1 and " + MAX_PARALLEL)
+      .getOrDefault(1);
+
+    ctx.status(HttpStatus.OK);
+    ctx.contentType(format.contentType);
+    try {
+      write(ctx.outputStream(), filter, format, parallel);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Write the documents matching a filter to a stream.
+   *
+   * @param output where to write the documents
+   * @param filter the filter the documents have to match
+   * @param format the format to write them in
+   * @param parallel how many threads (and cursors) to use
+   * @throws IOException if the output can't be written to
+   */
+  public void write(OutputStream output, Bson filter, Format format, int parallel) throws IOException {
+    OutputStream out = new BufferedOutputStream(output, OUTPUT_BUFFER_BYTES);
+    if (format == Format.CSV) {
+      out.write((String.join(",", fields) + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+    if (parallel == 1) {
+      try (MongoCursor<Document> cursor = find(filter)) {
+        while (cursor.hasNext()) {
+          out.write(line(cursor.next(), format));
+        }
+      }
+    } else {
+      writeInParallel(out, partition(filter, parallel), format);
+    }
+    out.flush();
+  }
+
+  private void writeInParallel(OutputStream out, List<Bson> pieces, Format format) throws IOException {
+    BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(2 * pieces.size());
+    AtomicReference<RuntimeException> failure = new AtomicReference<>();
+    ExecutorService workers = Executors.newFixedThreadPool(pieces.size());
+    try {
+      for (Bson piece : pieces) {
+        workers.execute(() -> {
+          try {
+            readPiece(piece, format, chunks);
+          } catch (InterruptedException e) {
+            // The export was abandoned
+            return;
+          } catch (RuntimeException e) {
+            failure.compareAndSet(null, e);
+          }
+          try {
+            chunks.put(DONE);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        });
+      }
+      int finished = 0;
+      while (finished < pieces.size()) {
+        byte[] chunk = chunks.take();
+        if (chunk == DONE) {
+          finished++;
+        } else {
+          out.write(chunk);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while exporting", e);
+    } finally {
+      // If writing failed (e.g., the client went away), this also stops
+      // the workers that are blocked waiting for room in the queue
+      workers.shutdownNow();
+    }
+    if (failure.get() != null) {
+      throw failure.get();
+    }
+  }
+
+  private void readPiece(Bson piece, Format format, BlockingQueue<byte[]> chunks) throws InterruptedException {
+    ByteArrayOutputStream chunk = new ByteArrayOutputStream(CHUNK_BYTES);
+    try (MongoCursor<Document> cursor = find(piece)) {
+      while (cursor.hasNext()) {
+        chunk.writeBytes(line(cursor.next(), format));
+        if (chunk.size() >= CHUNK_BYTES) {
+          chunks.put(chunk.toByteArray());
+          chunk.reset();
+        }
+      }
+    }
+    if (chunk.size() > 0) {
+      chunks.put(chunk.toByteArray());
+    }
+  }
+
+  private MongoCursor<Document> find(Bson filter) {
+    return collection.find(filter)
+      .projection(include(fields))
+      .batchSize(CURSOR_BATCH_SIZE)
+      .iterator();
+  }
+
+  /**
+   * Split the documents matching a filter into (roughly) equal ranges of
+   * `_id`s. ObjectIds are spread fairly evenly between the smallest and
+   * largest one, so equal ranges hold similar numbers of documents. The
+   * first and last ranges are open ended, so documents added while we're
+   * working this out aren't missed.
+   *
+   * @param filter the filter the documents have to match
+   * @param parts how many ranges to make
+   * @return a filter for each range
+   */
+  List<Bson> partition(Bson filter, int parts) {
+    Document first = collection.find(filter).projection(include("_id")).sort(Sorts.ascending("_id")).first();
+    Document last = collection.find(filter).projection(include("_id")).sort(Sorts.descending("_id")).first();
+    if (first == null || !(first.get("_id") instanceof ObjectId) || !(last.get("_id") instanceof ObjectId)) {
+      return List.of(filter);
+    }
+    BigInteger low = new BigInteger(1, first.getObjectId("_id").toByteArray());
+    BigInteger high = new BigInteger(1, last.getObjectId("_id").toByteArray());
+    BigInteger step = high.subtract(low).divide(BigInteger.valueOf(parts));
+
+    List<Bson> pieces = new ArrayList<>();
+    for (int part = 0; part < parts; part++) {
+      List<Bson> range = new ArrayList<>(List.of(filter));
+      if (part > 0) {
+        range.add(gte("_id", toObjectId(low.add(step.multiply(BigInteger.valueOf(part))))));
+      }
+      if (part < parts - 1) {
+        range.add(lt("_id", toObjectId(low.add(step.multiply(BigInteger.valueOf(part + 1))))));
+      }
+      pieces.add(and(range));
+    }
+    return pieces;
+  }
+
+  private static ObjectId toObjectId(BigInteger value) {
+    byte[] bytes = value.toByteArray();
+    byte[] id = new byte[ID_BYTES];
+    int length = Math.min(bytes.length, ID_BYTES);
+    System.arraycopy(bytes, bytes.length - length, id, ID_BYTES - length, length);
+    return new ObjectId(id);
+  }
+
+  private byte[] line(Document document, Format format) {
+    if (format == Format.NDJSON) {
+      return (document.toJson(JSON_SETTINGS) + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+    String[] values = new String[fields.size()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = csvValue(document.get(fields.get(i)));
+    }
+    return (String.join(",", values) + "\n").getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Format a value for CSV, quoting it if it has commas, quotes, or new
+   * lines in it (see RFC 4180).
+   */
+  static String csvValue(Object value) {
+    if (value == null) {
+      return "";
+    }
+    String text = value instanceof ObjectId ? ((ObjectId) value).toHexString() : value.toString();
+    if (text.contains(",") || text.contains("\"") || text.contains("\n") || text.contains("\r")) {
+      return "\"" + text.replace("\"", "\"\"") + "\"";
+    }
+    return text;
+  }
+}
@@ -0,0 +1,78 @@
+package umm3601.index;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * A bitmap index for a low-cardinality field, like a todo's `status` or
+ * `category`, or a user's `role` or `company`: for each distinct value of
+ * the field, the set of ordinals of the documents with that value.
+ *
+ * A filter on one of these fields is then a lookup (or, for the
+ * case-insensitive "contains" filters, the union of the bitmaps of the few
+ * distinct values that match), several filters are the intersection of
+ * their bitmaps, and counting the matches is just the cardinality of the
+ * result.
+ *
+ * This class isn't thread safe on its own; the stores that use it do their
+ * own locking.
+ */
+public class BitmapIndex {
+
+  private final Map<String, RoaringBitmap> bitmaps = new HashMap<>();
+
+  /**
+   * Record that a document has a value.
+   *
+   * @param value the value of the field in the document
+   * @param ordinal the ordinal of the document
+   */
+  public void add(String value, int ordinal) {
+    bitmaps.computeIfAbsent(value, v -> new RoaringBitmap()).add(ordinal);
+  }
+
+  /**
+   * Forget a document, whatever its value was.
+   *
+   * @param ordinal the ordinal of the document
+   */
+  public void remove(int ordinal) {
+    bitmaps.values().removeIf(bitmap -> {
+      bitmap.remove(ordinal);
+      return bitmap.isEmpty();
+    });
+  }
+
+  /**
+   * @param value a value of the field
+   * @return the ordinals of the documents with that value
+   */
+  public RoaringBitmap get(String value) {
+    return bitmaps.getOrDefault(value, new RoaringBitmap());
+  }
+
+  /**
+   * Find the documents whose value passes a test. The test is run once
+   * for each distinct value, not once for each document.
+   *
+   * @param test the test to apply to each distinct value
+   * @return the ordinals of the documents whose values pass the test
+   */
+  public RoaringBitmap matching(Predicate<String> test) {
+    RoaringBitmap result = new RoaringBitmap();
+    for (Map.Entry<String, RoaringBitmap> entry : bitmaps.entrySet()) {
+      if (entry.getKey() != null && test.test(entry.getKey())) {
+        result = result.or(entry.getValue());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return the number of distinct values in the index
+   */
+  public int size() {
+    return bitmaps.size();
+  }
+}
@@ -0,0 +1,160 @@
+package umm3601.index;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+
+/**
+ * A BK-tree (Burkhard-Keller tree) of the distinct values of a field, for
+ * typo-tolerant lookups like "which owners are within two edits of
+ * `Chirs`?".
+ *
+ * Each child of a node is filed under its edit distance from that node.
+ * Since edit distance obeys the triangle inequality, a search for values
+ * within `d` of a query that is `k` away from a node only has to visit the
+ * children filed under `k - d` through `k + d`, which skips most of the
+ * tree.
+ *
+ * Distances ignore case, like the filters in the controllers. Values are
+ * never removed; callers pass the current count of each value to `search`,
+ * and values that no document has any more are left out of the results.
+ *
+ * This class isn't thread safe on its own; the stores that use it do their
+ * own locking.
+ */
+public class BkTree {
+
+  /**
+   * The edit distance lookups use unless asked for something else.
+   */
+  public static final int DEFAULT_DISTANCE = 2;
+
+  /**
+   * The largest edit distance we allow a lookup to ask for; names are
+   * short enough that more edits than this would match almost anything.
+   */
+  public static final int MAX_DISTANCE = 3;
+
+  private Node root;
+  private int size;
+
+  private static final class Node {
+    private final String value;
+    private final String folded;
+    private final Map<Integer, Node> children = new HashMap<>();
+
+    Node(String value) {
+      this.value = value;
+      this.folded = value.toLowerCase(Locale.ROOT);
+    }
+  }
+
+  /**
+   * Add a value to the tree, if it isn't already there.
+   *
+   * @param value the value to add
+   */
+  public void add(String value) {
+    if (value == null) {
+      return;
+    }
+    if (root == null) {
+      root = new Node(value);
+      size++;
+      return;
+    }
+    String folded = value.toLowerCase(Locale.ROOT);
+    Node node = root;
+    while (!node.value.equals(value)) {
+      int distance = distance(node.folded, folded);
+      Node child = node.children.get(distance);
+      if (child == null) {
+        node.children.put(distance, new Node(value));
+        size++;
+        return;
+      }
+      node = child;
+    }
+  }
+
+  /**
+   * @return the number of distinct values in the tree
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Find the values within `maxDistance` edits of a query, closest first;
+   * values at the same distance are ordered by count (most common first)
+   * and then alphabetically.
+   *
+   * @param query the (possibly misspelled) value to look for
+   * @param maxDistance the largest edit distance to accept
+   * @param counts the number of documents with each value
+   * @return the matching values that at least one document has
+   */
+  public List<FuzzyMatch> search(String query, int maxDistance, ToIntFunction<String> counts) {
+    List<FuzzyMatch> matches = new ArrayList<>();
+    if (root == null) {
+      return matches;
+    }
+    String folded = query.toLowerCase(Locale.ROOT);
+    Deque<Node> pending = new ArrayDeque<>();
+    pending.push(root);
+    while (!pending.isEmpty()) {
+      Node node = pending.pop();
+      int distance = distance(node.folded, folded);
+      if (distance <= maxDistance) {
+        int count = counts.applyAsInt(node.value);
+        if (count > 0) {
+          matches.add(new FuzzyMatch(node.value, distance, count));
+        }
+      }
+      for (Map.Entry<Integer, Node> child : node.children.entrySet()) {
+        if (Math.abs(child.getKey() - distance) <= maxDistance) {
+          pending.push(child.getValue());
+        }
+      }
+    }
+    matches.sort(Comparator.comparingInt(FuzzyMatch::distance)
+        .thenComparing(Comparator.comparingInt(FuzzyMatch::count).reversed())
+        .thenComparing(FuzzyMatch::value));
+    return matches;
+  }
+
+  /**
+   * The Levenshtein distance between two strings: the fewest single
+   * character insertions, deletions, and substitutions that turn one into
+   * the other. This keeps just two rows of the usual dynamic programming
+   * table.
+   *
+   * @param a one string
+   * @param b the other string
+   * @return the edit distance between them
+   */
+  static int distance(String a, String b) {
+    int[] previous = new int[b.length() + 1];
+    int[] current = new int[b.length() + 1];
+    for (int j = 0; j <= b.length(); j++) {
+      previous[j] = j;
+    }
+    for (int i = 1; i <= a.length(); i++) {
+      current[0] = i;
+      for (int j = 1; j <= b.length(); j++) {
+        int substitution = previous[j - 1] + (a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1);
+        current[j] = Math.min(substitution, Math.min(previous[j], current[j - 1]) + 1);
+      }
+      int[] swap = previous;
+      previous = current;
+      current = swap;
+    }
+    return previous[b.length()];
+  }
+}
@@ -0,0 +1,10 @@
+package umm3601.index;
+
+/**
+ * A value that starts with the prefix of an autocomplete request.
+ *
+ * @param value the value
+ * @param count the number of documents with the value
+ */
+public record Completion(String value, int count) {
+}
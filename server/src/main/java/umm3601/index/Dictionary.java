@@ -0,0 +1,64 @@
+package umm3601.index;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A dictionary that encodes string values as small `int` codes.
+ *
+ * Fields like a todo's `owner` or `category` only have a handful of distinct
+ * values, so the in-memory indexes store the code for each document's value
+ * in an `int[]` and keep the strings themselves here, once each. Codes are
+ * handed out in the order values are first seen, starting at 0, so they can
+ * be used directly as indexes into arrays of per-value counts.
+ *
+ * This class isn't thread safe on its own; the indexes that use it do their
+ * own locking.
+ */
+public class Dictionary {
+
+  private final Map<String, Integer> codes = new HashMap<>();
+  private final List<String> values = new ArrayList<>();
+
+  /**
+   * Get the code for a value, adding the value to the dictionary if it
+   * isn't there yet.
+   *
+   * @param value the value to encode
+   * @return the code for the value
+   */
+  public int encode(String value) {
+    Integer code = codes.get(value);
+    if (code == null) {
+      code = values.size();
+      values.add(value);
+      codes.put(value, code);
+    }
+    return code;
+  }
+
+  /**
+   * @param value the value to look up
+   * @return the code for the value, or -1 if the value isn't in the dictionary
+   */
+  public int code(String value) {
+    return codes.getOrDefault(value, -1);
+  }
+
+  /**
+   * @param code a code returned by `encode`
+   * @return the value with that code
+   */
+  public String value(int code) {
+    return values.get(code);
+  }
+
+  /**
+   * @return the number of distinct values in the dictionary
+   */
+  public int size() {
+    return values.size();
+  }
+}
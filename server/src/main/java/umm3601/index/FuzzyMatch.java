@@ -0,0 +1,11 @@
+package umm3601.index;
+
+/**
+ * A value that (nearly) matches a fuzzy lookup.
+ *
+ * @param value the value
+ * @param distance the (case-insensitive) edit distance from the query
+ * @param count the number of documents with the value
+ */
+public record FuzzyMatch(String value, int distance, int count) {
+}
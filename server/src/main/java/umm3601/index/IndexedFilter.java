@@ -0,0 +1,43 @@
+package umm3601.index;
+
+import org.bson.conversions.Bson;
+
+/**
+ * The filters from a request's query parameters, both as a MongoDB filter
+ * document and, when every filter is on a field with a `BitmapIndex`, as
+ * the set of ordinals of the matching documents.
+ *
+ * The indexes are loaded from MongoDB when the server starts, and then
+ * kept up to date with the writes that go through this server's API.
+ * Writes made any other way (by another server, `mongoseed.sh`, or the
+ * `mongosh` shell) aren't in them, so the controllers only build an
+ * `IndexedFilter` with `matches` when the index has as many documents as
+ * the collection; otherwise MongoDB evaluates the filter. Lookups by `_id`
+ * still apply the MongoDB filter too, so they never return a document that
+ * doesn't match. A document edited elsewhere so that it now matches is the
+ * one case this can't catch, and it's missed until the server is restarted
+ * (which rebuilds the indexes).
+ *
+ * @param filter the MongoDB filter document
+ * @param matches the ordinals of the matching documents, or `null` if some
+ *   of the filters are on fields that aren't indexed
+ */
+public record IndexedFilter(Bson filter, RoaringBitmap matches) {
+
+  /**
+   * The most documents we'll look up by `_id` (with `$in`) rather than
+   * have MongoDB evaluate the filter against the whole collection.
+   */
+  public static final int MAX_ID_LOOKUPS = 1000;
+
+  /**
+   * Decide whether it's worth looking the matches up by `_id`: only if the
+   * index could answer the filter, and it narrows things down.
+   *
+   * @param total the number of documents in the collection
+   * @return whether to look the matches up by `_id`
+   */
+  public boolean isSelective(int total) {
+    return matches != null && matches.cardinality() <= MAX_ID_LOOKUPS && matches.cardinality() < total;
+  }
+}
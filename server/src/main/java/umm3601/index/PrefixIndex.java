@@ -0,0 +1,112 @@
+package umm3601.index;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The distinct values of a field, with the number of documents that have
+ * each one, sorted so that all the values starting with a prefix can be
+ * found with a range lookup. This is what backs `/api/autocomplete`.
+ *
+ * Prefixes ignore case, like the filters in the controllers, so the values
+ * are sorted by their lower case form; values that only differ in case
+ * (e.g., `OHMNET` and `Ohmnet`) are kept, and counted, separately.
+ *
+ * Unlike the other index classes this one does its own locking, since the
+ * `AutocompleteController` reads it directly while the stores that own it
+ * keep it up to date.
+ */
+public class PrefixIndex {
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  // Lower case value -> (value -> number of documents with that value)
+  private final NavigableMap<String, Map<String, Integer>> counts = new TreeMap<>();
+
+  /**
+   * Count one more document with a value.
+   *
+   * @param value the value, ignored if it's `null`
+   */
+  public void add(String value) {
+    if (value == null) {
+      return;
+    }
+    lock.writeLock().lock();
+    try {
+      counts.computeIfAbsent(value.toLowerCase(Locale.ROOT), v -> new HashMap<>()).merge(value, 1, Integer::sum);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Count one less document with a value, dropping the value when no
+   * document has it any more.
+   *
+   * @param value the value, ignored if it's `null`
+   */
+  public void remove(String value) {
+    if (value == null) {
+      return;
+    }
+    lock.writeLock().lock();
+    try {
+      String folded = value.toLowerCase(Locale.ROOT);
+      Map<String, Integer> forms = counts.get(folded);
+      if (forms != null) {
+        forms.computeIfPresent(value, (v, count) -> count > 1 ? count - 1 : null);
+        if (forms.isEmpty()) {
+          counts.remove(folded);
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @return the number of distinct values (ignoring case)
+   */
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return counts.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Find the values that start with a prefix, most common first (and
+   * alphabetically among values with the same count).
+   *
+   * @param prefix the prefix, which can be empty
+   * @param limit the most values to return
+   * @return the matching values and their counts
+   */
+  public List<Completion> complete(String prefix, int limit) {
+    String folded = prefix.toLowerCase(Locale.ROOT);
+    List<Completion> completions = new ArrayList<>();
+    lock.readLock().lock();
+    try {
+      // Every string starting with `folded` sorts between it and `folded`
+      // followed by the largest `char`
+      for (Map<String, Integer> forms : counts.subMap(folded, true, folded + Character.MAX_VALUE, true).values()) {
+        forms.forEach((value, count) -> completions.add(new Completion(value, count)));
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    completions.sort(Comparator.comparingInt(Completion::count).reversed().thenComparing(Completion::value));
+    return completions.subList(0, Math.min(limit, completions.size()));
+  }
+}
@@ -0,0 +1,447 @@
+package umm3601.index;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A compressed bitmap of non-negative `int`s, following the design of
+ * Roaring bitmaps (https://roaringbitmap.org/).
+ *
+ * The 32 bit values are split on their high 16 bits into "chunks". Each
+ * chunk that has any values is stored in a container holding the low 16
+ * bits of its values, either:
+ *
+ *   - as a sorted array of `char`s, when the chunk has at most 4096 values
+ *     (so sparse chunks cost two bytes per value), or
+ *   - as a plain 65536 bit bitmap, when the chunk has more values than that
+ *     (so dense chunks cost at most 8KB, however many values they have).
+ *
+ * The indexes use these to map each value of a field to the ordinals of
+ * the documents that have it; intersecting two of them (`and`) answers a
+ * query with two filters, and `cardinality` counts the matches.
+ *
+ * This class isn't thread safe on its own; the indexes that use it do their
+ * own locking.
+ */
+public class RoaringBitmap {
+
+  private static final int CHUNK_BITS = 16;
+  private static final int LOW_MASK = 0xFFFF;
+  // The largest number of values we store in an array container
+  private static final int ARRAY_MAX = 4096;
+  private static final int WORD_SHIFT = 6;
+  private static final int WORDS_PER_CHUNK = (1 << CHUNK_BITS) >>> WORD_SHIFT;
+
+  // The high 16 bits of each chunk, sorted, and the matching containers
+  private char[] keys = new char[0];
+  private Container[] containers = new Container[0];
+
+  /**
+   * @param values the values to put in the bitmap
+   * @return a new bitmap containing the values
+   */
+  public static RoaringBitmap of(int... values) {
+    RoaringBitmap bitmap = new RoaringBitmap();
+    for (int value : values) {
+      bitmap.add(value);
+    }
+    return bitmap;
+  }
+
+  /**
+   * Add a value to the bitmap.
+   *
+   * @param value a non-negative value
+   */
+  public void add(int value) {
+    char high = (char) (value >>> CHUNK_BITS);
+    int index = Arrays.binarySearch(keys, high);
+    if (index < 0) {
+      index = -index - 1;
+      keys = insert(keys, index, high);
+      Container[] grown = new Container[containers.length + 1];
+      System.arraycopy(containers, 0, grown, 0, index);
+      System.arraycopy(containers, index, grown, index + 1, containers.length - index);
+      grown[index] = new ArrayContainer();
+      containers = grown;
+    }
+    containers[index] = containers[index].add((char) (value & LOW_MASK));
+  }
+
+  /**
+   * Remove a value from the bitmap, if it's there.
+   *
+   * @param value the value to remove
+   */
+  public void remove(int value) {
+    int index = Arrays.binarySearch(keys, (char) (value >>> CHUNK_BITS));
+    if (index < 0) {
+      return;
+    }
+    containers[index] = containers[index].remove((char) (value & LOW_MASK));
+    if (containers[index].cardinality() == 0) {
+      char[] fewerKeys = new char[keys.length - 1];
+      Container[] fewerContainers = new Container[containers.length - 1];
+      System.arraycopy(keys, 0, fewerKeys, 0, index);
+      System.arraycopy(keys, index + 1, fewerKeys, index, keys.length - index - 1);
+      System.arraycopy(containers, 0, fewerContainers, 0, index);
+      System.arraycopy(containers, index + 1, fewerContainers, index, containers.length - index - 1);
+      keys = fewerKeys;
+      containers = fewerContainers;
+    }
+  }
+
+  /**
+   * @param value a value to look for
+   * @return whether the value is in the bitmap
+   */
+  public boolean contains(int value) {
+    int index = Arrays.binarySearch(keys, (char) (value >>> CHUNK_BITS));
+    return index >= 0 && containers[index].contains((char) (value & LOW_MASK));
+  }
+
+  /**
+   * @return the number of values in the bitmap
+   */
+  public int cardinality() {
+    int cardinality = 0;
+    for (Container container : containers) {
+      cardinality += container.cardinality();
+    }
+    return cardinality;
+  }
+
+  /**
+   * @return whether the bitmap is empty
+   */
+  public boolean isEmpty() {
+    return keys.length == 0;
+  }
+
+  /**
+   * Intersect this bitmap with another. Only chunks present in both bitmaps
+   * are looked at.
+   *
+   * @param other the other bitmap
+   * @return a new bitmap of the values in both bitmaps
+   */
+  public RoaringBitmap and(RoaringBitmap other) {
+    RoaringBitmap result = new RoaringBitmap();
+    int i = 0;
+    int j = 0;
+    while (i < keys.length && j < other.keys.length) {
+      if (keys[i] < other.keys[j]) {
+        i++;
+      } else if (keys[i] > other.keys[j]) {
+        j++;
+      } else {
+        Container container = containers[i].and(other.containers[j]);
+        if (container.cardinality() > 0) {
+          result.append(keys[i], container);
+        }
+        i++;
+        j++;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Union this bitmap with another.
+   *
+   * @param other the other bitmap
+   * @return a new bitmap of the values in either bitmap
+   */
+  public RoaringBitmap or(RoaringBitmap other) {
+    RoaringBitmap result = new RoaringBitmap();
+    int i = 0;
+    int j = 0;
+    while (i < keys.length || j < other.keys.length) {
+      if (j == other.keys.length || i < keys.length && keys[i] < other.keys[j]) {
+        result.append(keys[i], containers[i].copy());
+        i++;
+      } else if (i == keys.length || keys[i] > other.keys[j]) {
+        result.append(other.keys[j], other.containers[j].copy());
+        j++;
+      } else {
+        result.append(keys[i], containers[i].or(other.containers[j]));
+        i++;
+        j++;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Call `action` with each value in the bitmap, in increasing order.
+   *
+   * @param action what to do with each value
+   */
+  public void forEach(IntConsumer action) {
+    for (int i = 0; i < keys.length; i++) {
+      containers[i].forEach(keys[i] << CHUNK_BITS, action);
+    }
+  }
+
+  /**
+   * @return the values in the bitmap, in increasing order
+   */
+  public int[] toArray() {
+    int[] values = new int[cardinality()];
+    int[] next = {0};
+    forEach(value -> {
+      values[next[0]++] = value;
+    });
+    return values;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof RoaringBitmap)) {
+      return false;
+    }
+    return Arrays.equals(toArray(), ((RoaringBitmap) obj).toArray());
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(toArray());
+  }
+
+  @Override
+  public String toString() {
+    return Arrays.toString(toArray());
+  }
+
+  /**
+   * Add a container after all the existing ones; only used while building
+   * the results of `and` and `or`, where the keys arrive in order.
+   */
+  private void append(char key, Container container) {
+    keys = insert(keys, keys.length, key);
+    containers = Arrays.copyOf(containers, containers.length + 1);
+    containers[containers.length - 1] = container;
+  }
+
+  private static char[] insert(char[] array, int index, char value) {
+    char[] grown = new char[array.length + 1];
+    System.arraycopy(array, 0, grown, 0, index);
+    System.arraycopy(array, index, grown, index + 1, array.length - index);
+    grown[index] = value;
+    return grown;
+  }
+
+  /**
+   * The low 16 bits of the values in one chunk. Operations that can change
+   * the number of values return the container to use from then on, which
+   * lets a container switch between the array and bitmap representations.
+   */
+  private abstract static class Container {
+    abstract Container add(char value);
+
+    abstract Container remove(char value);
+
+    abstract boolean contains(char value);
+
+    abstract int cardinality();
+
+    abstract Container and(Container other);
+
+    abstract Container or(Container other);
+
+    abstract Container copy();
+
+    abstract void forEach(int high, IntConsumer action);
+  }
+
+  /**
+   * A container for sparse chunks: a sorted array of the values.
+   */
+  private static final class ArrayContainer extends Container {
+    private char[] values;
+    private int cardinality;
+
+    ArrayContainer() {
+      this(new char[0], 0);
+    }
+
+    ArrayContainer(char[] values, int cardinality) {
+      this.values = values;
+      this.cardinality = cardinality;
+    }
+
+    @Override
+    Container add(char value) {
+      int index = Arrays.binarySearch(values, 0, cardinality, value);
+      if (index >= 0) {
+        return this;
+      }
+      if (cardinality == ARRAY_MAX) {
+        return toBitmap().add(value);
+      }
+      index = -index - 1;
+      if (cardinality == values.length) {
+        values = Arrays.copyOf(values, Math.max(1, Math.min(ARRAY_MAX, cardinality * 2)));
+      }
+      System.arraycopy(values, index, values, index + 1, cardinality - index);
+      values[index] = value;
+      cardinality++;
+      return this;
+    }
+
+    @Override
+    Container remove(char value) {
+      int index = Arrays.binarySearch(values, 0, cardinality, value);
+      if (index >= 0) {
+        System.arraycopy(values, index + 1, values, index, cardinality - index - 1);
+        cardinality--;
+      }
+      return this;
+    }
+
+    @Override
+    boolean contains(char value) {
+      return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+    }
+
+    @Override
+    int cardinality() {
+      return cardinality;
+    }
+
+    @Override
+    Container and(Container other) {
+      char[] result = new char[cardinality];
+      int count = 0;
+      for (int i = 0; i < cardinality; i++) {
+        if (other.contains(values[i])) {
+          result[count++] = values[i];
+        }
+      }
+      return new ArrayContainer(result, count);
+    }
+
+    @Override
+    Container or(Container other) {
+      Container result = other.copy();
+      for (int i = 0; i < cardinality; i++) {
+        result = result.add(values[i]);
+      }
+      return result;
+    }
+
+    @Override
+    Container copy() {
+      return new ArrayContainer(Arrays.copyOf(values, cardinality), cardinality);
+    }
+
+    @Override
+    void forEach(int high, IntConsumer action) {
+      for (int i = 0; i < cardinality; i++) {
+        action.accept(high | values[i]);
+      }
+    }
+
+    private BitmapContainer toBitmap() {
+      BitmapContainer bitmap = new BitmapContainer();
+      for (int i = 0; i < cardinality; i++) {
+        bitmap.add(values[i]);
+      }
+      return bitmap;
+    }
+  }
+
+  /**
+   * A container for dense chunks: one bit for each of the 65536 possible values.
+   */
+  private static final class BitmapContainer extends Container {
+    private final long[] words = new long[WORDS_PER_CHUNK];
+    private int cardinality;
+
+    @Override
+    Container add(char value) {
+      long before = words[value >>> WORD_SHIFT];
+      words[value >>> WORD_SHIFT] |= 1L << value;
+      if (before != words[value >>> WORD_SHIFT]) {
+        cardinality++;
+      }
+      return this;
+    }
+
+    @Override
+    Container remove(char value) {
+      long before = words[value >>> WORD_SHIFT];
+      words[value >>> WORD_SHIFT] &= ~(1L << value);
+      if (before != words[value >>> WORD_SHIFT]) {
+        cardinality--;
+      }
+      return cardinality > ARRAY_MAX ? this : toArray();
+    }
+
+    @Override
+    boolean contains(char value) {
+      return (words[value >>> WORD_SHIFT] & (1L << value)) != 0;
+    }
+
+    @Override
+    int cardinality() {
+      return cardinality;
+    }
+
+    @Override
+    Container and(Container other) {
+      if (other instanceof ArrayContainer) {
+        return other.and(this);
+      }
+      BitmapContainer result = new BitmapContainer();
+      long[] otherWords = ((BitmapContainer) other).words;
+      for (int i = 0; i < WORDS_PER_CHUNK; i++) {
+        result.words[i] = words[i] & otherWords[i];
+        result.cardinality += Long.bitCount(result.words[i]);
+      }
+      return result.cardinality > ARRAY_MAX ? result : result.toArray();
+    }
+
+    @Override
+    Container or(Container other) {
+      if (other instanceof ArrayContainer) {
+        return other.or(this);
+      }
+      BitmapContainer result = new BitmapContainer();
+      long[] otherWords = ((BitmapContainer) other).words;
+      for (int i = 0; i < WORDS_PER_CHUNK; i++) {
+        result.words[i] = words[i] | otherWords[i];
+        result.cardinality += Long.bitCount(result.words[i]);
+      }
+      return result;
+    }
+
+    @Override
+    Container copy() {
+      BitmapContainer result = new BitmapContainer();
+      System.arraycopy(words, 0, result.words, 0, WORDS_PER_CHUNK);
+      result.cardinality = cardinality;
+      return result;
+    }
+
+    @Override
+    void forEach(int high, IntConsumer action) {
+      for (int i = 0; i < WORDS_PER_CHUNK; i++) {
+        long word = words[i];
+        while (word != 0) {
+          action.accept(high | ((i << WORD_SHIFT) + Long.numberOfTrailingZeros(word)));
+          word &= word - 1;
+        }
+      }
+    }
+
+    private ArrayContainer toArray() {
+      char[] values = new char[cardinality];
+      int[] count = {0};
+      forEach(0, value -> {
+        values[count[0]++] = (char) value;
+      });
+      return new ArrayContainer(values, cardinality);
+    }
+  }
+}
@@ -0,0 +1,371 @@
+package umm3601.snapshot;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.Predicate;
+
+import org.bson.types.ObjectId;
+
+/**
+ * A read-only, memory-mapped snapshot of a collection (todos or users).
+ *
+ * This is what `Server` uses in "snapshot mode" (see `Main`) to serve
+ * `/api/todos` and `/api/users` without MongoDB. The whole file is mapped
+ * into memory with NIO, and the only things we copy onto the heap when the
+ * snapshot is opened are the field definitions and the (small) dictionaries
+ * of the dictionary encoded fields. Individual records are never turned into
+ * Java objects; a query works with record ordinals (`int`s), and the JSON
+ * for a record is copied straight from the mapped file into the response.
+ *
+ * The file (written by `SnapshotWriter`) is laid out as:
+ *
+ *   - The magic bytes `UMMSNAP1`
+ *   - The schema: the number of fields, then each field's type and name
+ *   - The number of records
+ *   - The offsets table: the position of each record, by ordinal
+ *   - The `_id` index: (12 byte ObjectId, ordinal) pairs sorted by `_id`
+ *   - A dictionary for each `DICT` field: its sorted distinct values,
+ *     each followed by the (sorted) ordinals of the records with that value
+ *   - The records themselves (see `SnapshotWriter#writeRecord`)
+ *
+ * All numbers are big-endian `int`s unless noted otherwise.
+ */
+public final class Snapshot {
+
+  static final byte[] MAGIC = "UMMSNAP1".getBytes(StandardCharsets.US_ASCII);
+
+  private static final int ID_ENTRY_BYTES = SnapshotWriter.ID_BYTES + Integer.BYTES;
+  private static final int BYTE_MASK = 0xff;
+
+  private final ByteBuffer buffer;
+  private final List<SnapshotField> fields;
+  private final int size;
+  private final int offsetsStart;
+  private final int idIndexStart;
+
+  // For each field, where it lives in a record: for fixed width fields this is
+  // the offset from the start of the record, for `TEXT` fields it is the
+  // position among the text fields.
+  private final int[] fieldPositions;
+  private final int fixedWidth;
+  private final int textFieldCount;
+
+  // For each `DICT` field (by field index), its distinct values (sorted), and
+  // where in the file the postings for each value start.
+  private final String[][] dictionaryValues;
+  private final int[][] postingStarts;
+
+  private Snapshot(ByteBuffer buffer) {
+    this.buffer = buffer;
+    byte[] magic = new byte[MAGIC.length];
+    buffer.get(0, magic);
+    if (!Arrays.equals(magic, MAGIC)) {
+      throw new IllegalArgumentException("This isn't a snapshot file");
+    }
+    int position = MAGIC.length;
+    int fieldCount = buffer.getInt(position);
+    position += Integer.BYTES;
+    fields = new ArrayList<>();
+    for (int f = 0; f < fieldCount; f++) {
+      SnapshotField.Type type = SnapshotField.Type.values()[buffer.get(position)];
+      String name = readString(position + 1);
+      position += 1 + Integer.BYTES + buffer.getInt(position + 1);
+      fields.add(new SnapshotField(name, type));
+    }
+    size = buffer.getInt(position);
+    position += Integer.BYTES;
+    offsetsStart = position;
+    idIndexStart = offsetsStart + size * Integer.BYTES;
+    position = idIndexStart + size * ID_ENTRY_BYTES;
+
+    fieldPositions = new int[fieldCount];
+    int fixed = 0;
+    int texts = 0;
+    dictionaryValues = new String[fieldCount][];
+    postingStarts = new int[fieldCount][];
+    for (int f = 0; f < fieldCount; f++) {
+      switch (fields.get(f).type()) {
+        case DICT:
+          fieldPositions[f] = fixed;
+          fixed += Integer.BYTES;
+          int valueCount = buffer.getInt(position);
+          position += Integer.BYTES;
+          dictionaryValues[f] = new String[valueCount];
+          postingStarts[f] = new int[valueCount];
+          for (int v = 0; v < valueCount; v++) {
+            dictionaryValues[f][v] = readString(position);
+            position += Integer.BYTES + buffer.getInt(position);
+            postingStarts[f][v] = position;
+            position += Integer.BYTES + buffer.getInt(position) * Integer.BYTES;
+          }
+          break;
+        case BOOL:
+          fieldPositions[f] = fixed;
+          fixed += 1;
+          break;
+        case INT:
+          fieldPositions[f] = fixed;
+          fixed += Integer.BYTES;
+          break;
+        default:
+          fieldPositions[f] = texts;
+          texts += 1;
+          break;
+      }
+    }
+    fixedWidth = fixed;
+    textFieldCount = texts;
+  }
+
+  /**
+   * Memory-map a snapshot file.
+   *
+   * The mapping stays valid after the file channel is closed, and lasts
+   * as long as the returned `Snapshot` is reachable.
+   *
+   * @param path the snapshot file
+   * @return the mapped snapshot
+   * @throws IOException if the file can't be opened or mapped
+   */
+  public static Snapshot open(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      return new Snapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  /**
+   * @return the number of records in the snapshot
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return the fields stored for each record
+   */
+  public List<SnapshotField> fields() {
+    return List.copyOf(fields);
+  }
+
+  /**
+   * Find the index of a field by name.
+   *
+   * @param name the name of the field
+   * @return the index of the field, or -1 if there is no such field
+   */
+  public int fieldIndex(String name) {
+    for (int f = 0; f < fields.size(); f++) {
+      if (fields.get(f).name().equals(name)) {
+        return f;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Find a record by its `_id` with a binary search of the `_id` index.
+   *
+   * @param id the hex string form of the ObjectId
+   * @return the ordinal of the record, or -1 if there is no such record
+   * @throws IllegalArgumentException if `id` isn't a legal ObjectId
+   */
+  public int find(String id) {
+    byte[] target = new ObjectId(id).toByteArray();
+    int low = 0;
+    int high = size - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int entry = idIndexStart + middle * ID_ENTRY_BYTES;
+      int comparison = compareId(entry, target);
+      if (comparison < 0) {
+        low = middle + 1;
+      } else if (comparison > 0) {
+        high = middle - 1;
+      } else {
+        return buffer.getInt(entry + SnapshotWriter.ID_BYTES);
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Find all the records whose value for a dictionary encoded field passes a test.
+   *
+   * The test is only run once per distinct value, and the matching records
+   * come straight from the postings stored with each value.
+   *
+   * @param field the index of a `DICT` field
+   * @param test the test to apply to the values of the field
+   * @return the set of ordinals of the matching records
+   */
+  public BitSet matchingDictValues(int field, Predicate<String> test) {
+    BitSet result = new BitSet(size);
+    String[] values = dictionaryValues[field];
+    for (int v = 0; v < values.length; v++) {
+      if (test.test(values[v])) {
+        int position = postingStarts[field][v];
+        int count = buffer.getInt(position);
+        for (int p = 0; p < count; p++) {
+          result.set(buffer.getInt(position + (p + 1) * Integer.BYTES));
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @param ordinal the ordinal of a record
+   * @param field the index of a `BOOL` field
+   * @return the value of that field in that record
+   */
+  public boolean boolValue(int ordinal, int field) {
+    return buffer.get(recordStart(ordinal) + fieldPositions[field]) != 0;
+  }
+
+  /**
+   * @param ordinal the ordinal of a record
+   * @param field the index of an `INT` field, or the index of a `DICT`
+   *   field to get the dictionary code of the value (-1 for missing values)
+   * @return the value of that field in that record
+   */
+  public int intValue(int ordinal, int field) {
+    return buffer.getInt(recordStart(ordinal) + fieldPositions[field]);
+  }
+
+  /**
+   * Check if a text field contains the given bytes. Since UTF-8 is self
+   * synchronizing, looking for the UTF-8 bytes of a string is the same as
+   * looking for the string, and this doesn't have to decode anything.
+   *
+   * @param ordinal the ordinal of a record
+   * @param field the index of a `TEXT` field
+   * @param needle the UTF-8 bytes to look for
+   * @return whether the value of the field contains `needle`
+   */
+  public boolean textContains(int ordinal, int field, byte[] needle) {
+    int position = textPosition(ordinal, field);
+    int length = buffer.getInt(position);
+    int start = position + Integer.BYTES;
+    for (int i = 0; i <= length - needle.length; i++) {
+      int j = 0;
+      while (j < needle.length && buffer.get(start + i + j) == needle[j]) {
+        j++;
+      }
+      if (j == needle.length) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Compare the values of a field in two records, using the same ordering
+   * MongoDB uses when sorting: missing values first, `false` before `true`,
+   * and strings by their UTF-8 bytes.
+   *
+   * @param a the ordinal of one record
+   * @param b the ordinal of the other record
+   * @param field the index of the field to compare
+   * @return a negative number, zero, or a positive number as the value in
+   *   `a` is less than, equal to, or greater than the value in `b`
+   */
+  public int compare(int a, int b, int field) {
+    switch (fields.get(field).type()) {
+      case DICT:
+      case INT:
+        // Dictionary values are sorted, so comparing codes compares values
+        return Integer.compare(intValue(a, field), intValue(b, field));
+      case BOOL:
+        return Boolean.compare(boolValue(a, field), boolValue(b, field));
+      default:
+        return compareText(textPosition(a, field), textPosition(b, field));
+    }
+  }
+
+  /**
+   * Write the JSON for a record, copying it directly out of the mapped file.
+   *
+   * @param ordinal the ordinal of the record
+   * @param out where to write the JSON
+   * @param scratch a buffer to use when copying; its size doesn't matter
+   * @throws IOException if `out` can't be written to
+   */
+  public void writeJson(int ordinal, OutputStream out, byte[] scratch) throws IOException {
+    // The JSON follows the text fields
+    int position = slotPosition(ordinal, textFieldCount);
+    int remaining = buffer.getInt(position);
+    position += Integer.BYTES;
+    while (remaining > 0) {
+      int chunk = Math.min(remaining, scratch.length);
+      buffer.get(position, scratch, 0, chunk);
+      out.write(scratch, 0, chunk);
+      position += chunk;
+      remaining -= chunk;
+    }
+  }
+
+  private int recordStart(int ordinal) {
+    return buffer.getInt(offsetsStart + ordinal * Integer.BYTES);
+  }
+
+  /**
+   * Find the position of the length of a text field in a record.
+   */
+  private int textPosition(int ordinal, int field) {
+    return slotPosition(ordinal, fieldPositions[field]);
+  }
+
+  /**
+   * Find the position of the length of the `slot`th of the variable-length
+   * values in a record: the text fields, in order, and then the JSON (so
+   * slot `textFieldCount` is the JSON).
+   */
+  private int slotPosition(int ordinal, int slot) {
+    int position = recordStart(ordinal) + fixedWidth;
+    for (int t = 0; t < slot; t++) {
+      position += Integer.BYTES + Math.max(0, buffer.getInt(position));
+    }
+    return position;
+  }
+
+  private int compareText(int a, int b) {
+    int lengthA = buffer.getInt(a);
+    int lengthB = buffer.getInt(b);
+    if (lengthA < 0 || lengthB < 0) {
+      return Integer.compare(lengthA, lengthB);
+    }
+    for (int i = 0; i < Math.min(lengthA, lengthB); i++) {
+      int byteA = buffer.get(a + Integer.BYTES + i) & BYTE_MASK;
+      int byteB = buffer.get(b + Integer.BYTES + i) & BYTE_MASK;
+      if (byteA != byteB) {
+        return Integer.compare(byteA, byteB);
+      }
+    }
+    return Integer.compare(lengthA, lengthB);
+  }
+
+  private int compareId(int entry, byte[] target) {
+    for (int i = 0; i < target.length; i++) {
+      int comparison = Integer.compare(buffer.get(entry + i) & BYTE_MASK, target[i] & BYTE_MASK);
+      if (comparison != 0) {
+        return comparison;
+      }
+    }
+    return 0;
+  }
+
+  private String readString(int position) {
+    byte[] bytes = new byte[buffer.getInt(position)];
+    buffer.get(position + Integer.BYTES, bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
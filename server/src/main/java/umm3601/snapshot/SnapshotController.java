@@ -0,0 +1,189 @@
+package umm3601.snapshot;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.BitSet;
+import java.util.function.IntBinaryOperator;
+
+import io.javalin.Javalin;
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.ContentType;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+import io.javalin.http.NotFoundResponse;
+import umm3601.Controller;
+
+/**
+ * The shared parts of the controllers that serve a collection out of a
+ * read-only `Snapshot` instead of MongoDB.
+ *
+ * Subclasses decide which records match the query parameters (using the
+ * same parameters, and the same error messages, as the MongoDB backed
+ * controllers) and how they should be sorted; this class takes care of
+ * looking records up by `_id`, sorting, limiting, and copying the JSON for
+ * the records into the response.
+ */
+public abstract class SnapshotController implements Controller {
+
+  private static final int COPY_BUFFER_BYTES = 8192;
+
+  private final Snapshot snapshot;
+  private final String apiPath;
+  private final String itemName;
+
+  /**
+   * Construct a controller for a snapshot.
+   *
+   * @param snapshot the snapshot to serve
+   * @param apiPath the path of the list endpoint, e.g., `/api/todos`
+   * @param itemName what the records are called in error messages, e.g., `todo`
+   */
+  protected SnapshotController(Snapshot snapshot, String apiPath, String itemName) {
+    this.snapshot = snapshot;
+    this.apiPath = apiPath;
+    this.itemName = itemName;
+  }
+
+  /**
+   * @return the snapshot this controller serves
+   */
+  protected Snapshot snapshot() {
+    return snapshot;
+  }
+
+  /**
+   * @return the set of all the records in the snapshot, which subclasses
+   *   can then narrow down with their filters
+   */
+  protected BitSet allRecords() {
+    BitSet all = new BitSet(snapshot.size());
+    all.set(0, snapshot.size());
+    return all;
+  }
+
+  /**
+   * Find the records that match the filters in the query parameters.
+   *
+   * @param ctx a Javalin HTTP context
+   * @return the ordinals of the matching records
+   */
+  protected abstract BitSet select(Context ctx);
+
+  /**
+   * @param ctx a Javalin HTTP context
+   * @return the maximum number of records to return
+   */
+  protected int limit(Context ctx) {
+    return Integer.MAX_VALUE;
+  }
+
+  /**
+   * @param ctx a Javalin HTTP context
+   * @return the index of the field to sort by, or -1 to leave the
+   *   records in the order they were stored
+   */
+  protected abstract int sortField(Context ctx);
+
+  /**
+   * @param ctx a Javalin HTTP context
+   * @return whether the records should be sorted in descending order
+   */
+  protected abstract boolean sortDescending(Context ctx);
+
+  /**
+   * Set the JSON body of the response to be the single record
+   * specified by the `id` parameter in the request.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getOne(Context ctx) {
+    String id = ctx.pathParam("id");
+    int ordinal;
+    try {
+      ordinal = snapshot.find(id);
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestResponse("The requested " + itemName + " id wasn't a legal Mongo Object ID.");
+    }
+    if (ordinal < 0) {
+      throw new NotFoundResponse("The requested " + itemName + " was not found");
+    }
+    ctx.status(HttpStatus.OK);
+    ctx.contentType(ContentType.APPLICATION_JSON);
+    try {
+      snapshot.writeJson(ordinal, ctx.outputStream(), new byte[COPY_BUFFER_BYTES]);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Set the JSON body of the response to be the list of records that match
+   * the filters in the request, sorted and limited as requested.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getAll(Context ctx) {
+    int[] ordinals = select(ctx).stream().toArray();
+    int limit = limit(ctx);
+    int field = sortField(ctx);
+    if (field >= 0) {
+      int direction = sortDescending(ctx) ? -1 : 1;
+      sort(ordinals, (a, b) -> direction * snapshot.compare(a, b, field));
+    }
+
+    ctx.status(HttpStatus.OK);
+    ctx.contentType(ContentType.APPLICATION_JSON);
+    byte[] scratch = new byte[COPY_BUFFER_BYTES];
+    try {
+      OutputStream out = ctx.outputStream();
+      out.write('[');
+      for (int i = 0; i < Math.min(limit, ordinals.length); i++) {
+        if (i > 0) {
+          out.write(',');
+        }
+        snapshot.writeJson(ordinals[i], out, scratch);
+      }
+      out.write(']');
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * A stable merge sort of record ordinals. We sort the `int`s directly
+   * (rather than boxing them to use `Arrays.sort` with a `Comparator`)
+   * so that sorting doesn't create an object per record.
+   *
+   * @param ordinals the ordinals to sort (in place)
+   * @param comparator compares two ordinals
+   */
+  static void sort(int[] ordinals, IntBinaryOperator comparator) {
+    int[] scratch = new int[ordinals.length];
+    for (int width = 1; width < ordinals.length; width *= 2) {
+      for (int low = 0; low < ordinals.length - width; low += 2 * width) {
+        int middle = low + width;
+        int high = Math.min(low + 2 * width, ordinals.length);
+        int i = low;
+        int j = middle;
+        int k = low;
+        while (i < middle && j < high) {
+          scratch[k++] = comparator.applyAsInt(ordinals[i], ordinals[j]) <= 0 ? ordinals[i++] : ordinals[j++];
+        }
+        while (i < middle) {
+          scratch[k++] = ordinals[i++];
+        }
+        while (j < high) {
+          scratch[k++] = ordinals[j++];
+        }
+        System.arraycopy(scratch, low, ordinals, low, high - low);
+      }
+    }
+  }
+
+  @Override
+  public void addRoutes(Javalin server) {
+    server.get(apiPath + "/{id}", this::getOne);
+    server.get(apiPath, this::getAll);
+  }
+}
@@ -0,0 +1,70 @@
+package umm3601.snapshot;
+
+import java.util.List;
+
+/**
+ * One field of the records stored in a snapshot file.
+ *
+ * The `type` decides how the field is laid out in the file:
+ *
+ *   - `DICT` fields (like a todo's `category` or a user's `company`) have
+ *     few distinct values, so each record only stores an `int` code into a
+ *     sorted dictionary, and the dictionary stores the list of records
+ *     (postings) that have each value. These are the fields we filter on.
+ *   - `BOOL` and `INT` fields are stored inline in a fixed number of bytes.
+ *   - `TEXT` fields (like a todo's `body`) are stored inline as
+ *     length-prefixed UTF-8, since nearly every value is distinct.
+ *
+ * The order of the fields in a schema is also the order of the fields in
+ * the JSON for each record, so the schemas below list the fields in the same
+ * order as they are declared in `Todo` and `User`.
+ *
+ * @param name the name of the field in MongoDB (and in the JSON)
+ * @param type how the field is encoded in the snapshot
+ */
+public record SnapshotField(String name, Type type) {
+
+  /**
+   * The ways a field can be encoded in a snapshot file.
+   */
+  public enum Type {
+    DICT, BOOL, INT, TEXT
+  }
+
+  /**
+   * The fields of a todo, in the order they appear in `Todo`.
+   */
+  public static final List<SnapshotField> TODOS = List.of(
+    new SnapshotField("owner", Type.DICT),
+    new SnapshotField("status", Type.BOOL),
+    new SnapshotField("body", Type.TEXT),
+    new SnapshotField("category", Type.DICT));
+
+  /**
+   * The fields of a user, in the order they appear in `User`.
+   */
+  public static final List<SnapshotField> USERS = List.of(
+    new SnapshotField("name", Type.TEXT),
+    new SnapshotField("age", Type.INT),
+    new SnapshotField("company", Type.DICT),
+    new SnapshotField("email", Type.TEXT),
+    new SnapshotField("avatar", Type.TEXT),
+    new SnapshotField("role", Type.DICT));
+
+  /**
+   * Look up the schema to use for a collection.
+   *
+   * @param collection the name of the collection (`todos` or `users`)
+   * @return the fields stored for that collection
+   */
+  public static List<SnapshotField> schemaFor(String collection) {
+    switch (collection) {
+      case "todos":
+        return TODOS;
+      case "users":
+        return USERS;
+      default:
+        throw new IllegalArgumentException("There is no snapshot schema for the collection " + collection);
+    }
+  }
+}
@@ -0,0 +1,297 @@
+package umm3601.snapshot;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.bson.Document;
+import org.bson.UuidRepresentation;
+import org.bson.types.ObjectId;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+
+/**
+ * Builds the read-only snapshot files that `Snapshot` memory-maps.
+ *
+ * A snapshot can be built from the JSON files in `database/seed` (the
+ * same files `mongoseed.sh` imports) or from a live MongoDB collection.
+ * From the `server` directory you can run, e.g.,
+ *
+ *   ./gradlew buildSnapshot --args="todos snapshots/todos.snap --seed ../database/seed/todos.json"
+ *   ./gradlew buildSnapshot --args="users snapshots/users.snap --mongo localhost dev"
+ *
+ * The file layout is described in `Snapshot`.
+ */
+public final class SnapshotWriter {
+
+  static final String USAGE =
+    "Usage: buildSnapshot <todos|users> <output file> (--seed <seed json file> | --mongo <address> <database>)";
+
+  // The number of bytes in a Mongo ObjectId
+  static final int ID_BYTES = 12;
+
+  // The smallest legal number of arguments, and the number of arguments
+  // that describe a MongoDB source (`--mongo <address> <database>`)
+  private static final int SEED_ARGS = 4;
+  private static final int MONGO_SOURCE_ARGS = 3;
+
+  private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+
+  private SnapshotWriter() {
+  }
+
+  /**
+   * Build a snapshot from the command line; see `USAGE`.
+   *
+   * @param args the command line arguments
+   * @throws IOException if the seed file can't be read or the snapshot can't be written
+   */
+  public static void main(String[] args) throws IOException {
+    try {
+      run(args);
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      System.err.println(USAGE);
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Parse the command line arguments and write the requested snapshot.
+   *
+   * @param args the command line arguments (see `USAGE`)
+   * @throws IOException if the seed file can't be read or the snapshot can't be written
+   */
+  static void run(String[] args) throws IOException {
+    if (args.length < SEED_ARGS) {
+      throw new IllegalArgumentException("Not enough arguments");
+    }
+    List<SnapshotField> schema = SnapshotField.schemaFor(args[0]);
+    Path output = Path.of(args[1]);
+    String[] source = Arrays.copyOfRange(args, 2, args.length);
+    List<Document> documents;
+    if (source[0].equals("--seed") && source.length == 2) {
+      documents = readSeed(Path.of(source[1]));
+    } else if (source[0].equals("--mongo") && source.length == MONGO_SOURCE_ARGS) {
+      try (MongoClient mongoClient = MongoClients.create(MongoClientSettings
+          .builder()
+          .applyToClusterSettings(builder -> builder.hosts(Arrays.asList(new ServerAddress(source[1]))))
+          .uuidRepresentation(UuidRepresentation.STANDARD)
+          .build())) {
+        documents = readCollection(mongoClient.getDatabase(source[2]).getCollection(args[0]));
+      }
+    } else {
+      throw new IllegalArgumentException("Expected either --seed <file> or --mongo <address> <database>");
+    }
+    if (output.getParent() != null) {
+      Files.createDirectories(output.getParent());
+    }
+    write(schema, documents, output);
+    System.out.println("Wrote " + documents.size() + " " + args[0] + " to " + output);
+  }
+
+  /**
+   * Read the documents in one of the `database/seed` JSON files.
+   *
+   * These files are arrays of MongoDB Extended JSON documents (the `_id`s
+   * are written as `{ "$oid": ... }`), so we let the BSON library parse
+   * them rather than a plain JSON parser.
+   *
+   * @param seedFile the seed file to read
+   * @return the documents in the file
+   * @throws IOException if the file can't be read
+   */
+  public static List<Document> readSeed(Path seedFile) throws IOException {
+    String json = Files.readString(seedFile, StandardCharsets.UTF_8);
+    return Document.parse("{\"documents\": " + json + "}").getList("documents", Document.class);
+  }
+
+  /**
+   * Read all the documents in a MongoDB collection, in `_id` order.
+   *
+   * @param collection the collection to read
+   * @return the documents in the collection
+   */
+  public static List<Document> readCollection(MongoCollection<Document> collection) {
+    return collection.find().sort(new Document("_id", 1)).into(new ArrayList<>());
+  }
+
+  /**
+   * Write a snapshot of the given documents.
+   *
+   * @param schema the fields to store for each document
+   * @param documents the documents to store
+   * @param output the file to write the snapshot to
+   * @throws IOException if the file can't be written
+   */
+  public static void write(List<SnapshotField> schema, List<Document> documents, Path output) throws IOException {
+    int count = documents.size();
+
+    // Collect the distinct values (and the records that have them) of each
+    // dictionary encoded field. `TreeMap` keeps the values sorted, so the
+    // dictionary codes sort in the same order as the values themselves.
+    Map<Integer, TreeMap<String, List<Integer>>> dictionaries = new LinkedHashMap<>();
+    for (int f = 0; f < schema.size(); f++) {
+      if (schema.get(f).type() == SnapshotField.Type.DICT) {
+        dictionaries.put(f, new TreeMap<>());
+      }
+    }
+    ObjectId[] ids = new ObjectId[count];
+    for (int i = 0; i < count; i++) {
+      Document document = documents.get(i);
+      ids[i] = idOf(document);
+      for (Map.Entry<Integer, TreeMap<String, List<Integer>>> dictionary : dictionaries.entrySet()) {
+        String value = document.getString(schema.get(dictionary.getKey()).name());
+        if (value != null) {
+          dictionary.getValue().computeIfAbsent(value, v -> new ArrayList<>()).add(i);
+        }
+      }
+    }
+    Map<Integer, Map<String, Integer>> codes = new HashMap<>();
+    for (Map.Entry<Integer, TreeMap<String, List<Integer>>> dictionary : dictionaries.entrySet()) {
+      Map<String, Integer> fieldCodes = new HashMap<>();
+      for (String value : dictionary.getValue().keySet()) {
+        fieldCodes.put(value, fieldCodes.size());
+      }
+      codes.put(dictionary.getKey(), fieldCodes);
+    }
+
+    ByteArrayOutputStream records = new ByteArrayOutputStream();
+    DataOutputStream recordOut = new DataOutputStream(records);
+    int[] recordStarts = new int[count];
+    for (int i = 0; i < count; i++) {
+      recordStarts[i] = recordOut.size();
+      writeRecord(recordOut, schema, codes, ids[i], documents.get(i));
+    }
+
+    ByteArrayOutputStream dictionaryBytes = new ByteArrayOutputStream();
+    DataOutputStream dictionaryOut = new DataOutputStream(dictionaryBytes);
+    for (TreeMap<String, List<Integer>> dictionary : dictionaries.values()) {
+      dictionaryOut.writeInt(dictionary.size());
+      for (Map.Entry<String, List<Integer>> value : dictionary.entrySet()) {
+        writeBytes(dictionaryOut, value.getKey().getBytes(StandardCharsets.UTF_8));
+        dictionaryOut.writeInt(value.getValue().size());
+        for (int ordinal : value.getValue()) {
+          dictionaryOut.writeInt(ordinal);
+        }
+      }
+    }
+
+    ByteArrayOutputStream header = new ByteArrayOutputStream();
+    DataOutputStream headerOut = new DataOutputStream(header);
+    headerOut.write(Snapshot.MAGIC);
+    headerOut.writeInt(schema.size());
+    for (SnapshotField field : schema) {
+      headerOut.writeByte(field.type().ordinal());
+      writeBytes(headerOut, field.name().getBytes(StandardCharsets.UTF_8));
+    }
+    headerOut.writeInt(count);
+
+    // The record offsets are absolute positions in the file, so we need to know
+    // how big everything in front of the records is going to be.
+    int recordsStart = headerOut.size()
+      + count * Integer.BYTES
+      + count * (ID_BYTES + Integer.BYTES)
+      + dictionaryOut.size();
+
+    Integer[] byId = new Integer[count];
+    for (int i = 0; i < count; i++) {
+      byId[i] = i;
+    }
+    Arrays.sort(byId, Comparator.comparing(i -> ids[i]));
+
+    try (OutputStream file = Files.newOutputStream(output);
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+      header.writeTo(out);
+      for (int i = 0; i < count; i++) {
+        out.writeInt(recordsStart + recordStarts[i]);
+      }
+      for (int ordinal : byId) {
+        out.write(ids[ordinal].toByteArray());
+        out.writeInt(ordinal);
+      }
+      dictionaryBytes.writeTo(out);
+      records.writeTo(out);
+    }
+  }
+
+  /**
+   * Write a single record: first the fixed width fields (dictionary codes,
+   * booleans, and ints), then the length-prefixed text fields, and finally
+   * the length-prefixed JSON that is sent to clients for this record.
+   */
+  private static void writeRecord(DataOutputStream out, List<SnapshotField> schema,
+      Map<Integer, Map<String, Integer>> codes, ObjectId id, Document document) throws IOException {
+    Map<String, Object> json = new LinkedHashMap<>();
+    json.put("_id", id.toHexString());
+    for (int f = 0; f < schema.size(); f++) {
+      SnapshotField field = schema.get(f);
+      switch (field.type()) {
+        case DICT:
+          String value = document.getString(field.name());
+          out.writeInt(value == null ? -1 : codes.get(f).get(value));
+          json.put(field.name(), value);
+          break;
+        case BOOL:
+          boolean bool = Boolean.TRUE.equals(document.get(field.name()));
+          out.writeByte(bool ? 1 : 0);
+          json.put(field.name(), bool);
+          break;
+        case INT:
+          Object number = document.get(field.name());
+          int integer = number instanceof Number ? ((Number) number).intValue() : 0;
+          out.writeInt(integer);
+          json.put(field.name(), integer);
+          break;
+        default:
+          json.put(field.name(), document.getString(field.name()));
+          break;
+      }
+    }
+    for (SnapshotField field : schema) {
+      if (field.type() == SnapshotField.Type.TEXT) {
+        String text = document.getString(field.name());
+        if (text == null) {
+          out.writeInt(-1);
+        } else {
+          writeBytes(out, text.getBytes(StandardCharsets.UTF_8));
+        }
+      }
+    }
+    writeBytes(out, JSON_MAPPER.writeValueAsBytes(json));
+  }
+
+  private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static ObjectId idOf(Document document) {
+    Object id = document.get("_id");
+    if (id instanceof ObjectId) {
+      return (ObjectId) id;
+    } else if (id instanceof String) {
+      return new ObjectId((String) id);
+    } else {
+      return new ObjectId();
+    }
+  }
+}
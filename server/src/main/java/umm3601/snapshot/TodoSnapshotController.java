@@ -0,0 +1,121 @@
+package umm3601.snapshot;
+
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.regex.Pattern;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+
+/**
+ * Serves `/api/todos` from a snapshot, supporting the same filters, limit,
+ * and sorting as `TodoController#getTodos`.
+ */
+public class TodoSnapshotController extends SnapshotController {
+
+  static final String OWNER_KEY = "owner";
+  static final String STATUS_KEY = "status";
+  static final String BODY_KEY = "body";
+  static final String CAT_KEY = "category";
+  static final String SORT_ORDER_KEY = "sortorder";
+
+  private final int ownerField;
+  private final int statusField;
+  private final int bodyField;
+  private final int categoryField;
+
+  /**
+   * Construct a controller that serves todos from a snapshot.
+   *
+   * @param snapshot a snapshot built with the `todos` schema
+   */
+  public TodoSnapshotController(Snapshot snapshot) {
+    super(snapshot, "/api/todos", "todo");
+    ownerField = snapshot.fieldIndex(OWNER_KEY);
+    statusField = snapshot.fieldIndex(STATUS_KEY);
+    bodyField = snapshot.fieldIndex(BODY_KEY);
+    categoryField = snapshot.fieldIndex(CAT_KEY);
+  }
+
+  @Override
+  protected BitSet select(Context ctx) {
+    BitSet selected = allRecords();
+
+    // Owner and category are dictionary encoded, so we only have to
+    // run the (case insensitive) pattern once per distinct value.
+    if (ctx.queryParamMap().containsKey(OWNER_KEY)) {
+      Pattern pattern = Pattern.compile(Pattern.quote(ctx.queryParam(OWNER_KEY)), Pattern.CASE_INSENSITIVE);
+      selected.and(snapshot().matchingDictValues(ownerField, value -> pattern.matcher(value).find()));
+    }
+    if (ctx.queryParamMap().containsKey(CAT_KEY)) {
+      Pattern pattern = Pattern.compile(Pattern.quote(ctx.queryParam(CAT_KEY)), Pattern.CASE_INSENSITIVE);
+      selected.and(snapshot().matchingDictValues(categoryField, value -> pattern.matcher(value).find()));
+    }
+
+    if (ctx.queryParamMap().containsKey(STATUS_KEY)) {
+      String statusParam = ctx.queryParam(STATUS_KEY);
+      boolean statusValue;
+      if (statusParam.equalsIgnoreCase("complete")) {
+        statusValue = true;
+      } else if (statusParam.equalsIgnoreCase("incomplete")) {
+        statusValue = false;
+      } else {
+        throw new BadRequestResponse("Status must be 'complete' or 'incomplete'.");
+      }
+      for (int i = selected.nextSetBit(0); i >= 0; i = selected.nextSetBit(i + 1)) {
+        if (snapshot().boolValue(i, statusField) != statusValue) {
+          selected.clear(i);
+        }
+      }
+    }
+
+    if (ctx.queryParamMap().containsKey("contains")) {
+      byte[] needle = ctx.queryParam("contains").getBytes(StandardCharsets.UTF_8);
+      for (int i = selected.nextSetBit(0); i >= 0; i = selected.nextSetBit(i + 1)) {
+        if (!snapshot().textContains(i, bodyField, needle)) {
+          selected.clear(i);
+        }
+      }
+    }
+    return selected;
+  }
+
+  @Override
+  protected int limit(Context ctx) {
+    if (!ctx.queryParamMap().containsKey("limit")) {
+      return Integer.MAX_VALUE;
+    }
+    try {
+      int limit = Integer.parseInt(ctx.queryParam("limit"));
+      if (limit < 1) {
+        throw new BadRequestResponse("The limit must be a positive integer.");
+      }
+      return limit;
+    } catch (NumberFormatException e) {
+      throw new BadRequestResponse("The limit must be a number.");
+    }
+  }
+
+  @Override
+  protected int sortField(Context ctx) {
+    String sortBy = Objects.requireNonNullElse(ctx.queryParam("sortby"), OWNER_KEY);
+    if (!List.of(OWNER_KEY, BODY_KEY, STATUS_KEY, CAT_KEY).contains(sortBy)) {
+      throw new BadRequestResponse("Invalid sortby field.");
+    }
+    return snapshot().fieldIndex(sortBy);
+  }
+
+  @Override
+  protected boolean sortDescending(Context ctx) {
+    String sortOrder = Objects.requireNonNullElse(ctx.queryParam(SORT_ORDER_KEY), "asc");
+    if (sortOrder.equalsIgnoreCase("desc")) {
+      return true;
+    } else if (sortOrder.equalsIgnoreCase("asc")) {
+      return false;
+    } else {
+      throw new BadRequestResponse("sortorder must be 'asc' or 'desc'");
+    }
+  }
+}
@@ -0,0 +1,78 @@
+package umm3601.snapshot;
+
+import java.util.BitSet;
+import java.util.Objects;
+import java.util.regex.Pattern;
+
+import io.javalin.http.Context;
+
+/**
+ * Serves `/api/users` from a snapshot, supporting the same filters and
+ * sorting as `UserController#getUsers`.
+ */
+public class UserSnapshotController extends SnapshotController {
+
+  static final String AGE_KEY = "age";
+  static final String COMPANY_KEY = "company";
+  static final String ROLE_KEY = "role";
+  static final String SORT_ORDER_KEY = "sortorder";
+
+  private static final int REASONABLE_AGE_LIMIT = 150;
+  private static final String ROLE_REGEX = "^(admin|editor|viewer)$";
+
+  private final int ageField;
+  private final int companyField;
+  private final int roleField;
+
+  /**
+   * Construct a controller that serves users from a snapshot.
+   *
+   * @param snapshot a snapshot built with the `users` schema
+   */
+  public UserSnapshotController(Snapshot snapshot) {
+    super(snapshot, "/api/users", "user");
+    ageField = snapshot.fieldIndex(AGE_KEY);
+    companyField = snapshot.fieldIndex(COMPANY_KEY);
+    roleField = snapshot.fieldIndex(ROLE_KEY);
+  }
+
+  @Override
+  protected BitSet select(Context ctx) {
+    BitSet selected = allRecords();
+
+    if (ctx.queryParamMap().containsKey(AGE_KEY)) {
+      int targetAge = ctx.queryParamAsClass(AGE_KEY, Integer.class)
+        .check(it -> it > 0, "User's age must be greater than zero; you provided " + ctx.queryParam(AGE_KEY))
+        .check(it -> it < REASONABLE_AGE_LIMIT,
+          "User's age must be less than " + REASONABLE_AGE_LIMIT + "; you provided " + ctx.queryParam(AGE_KEY))
+        .get();
+      for (int i = selected.nextSetBit(0); i >= 0; i = selected.nextSetBit(i + 1)) {
+        if (snapshot().intValue(i, ageField) != targetAge) {
+          selected.clear(i);
+        }
+      }
+    }
+    if (ctx.queryParamMap().containsKey(COMPANY_KEY)) {
+      Pattern pattern = Pattern.compile(Pattern.quote(ctx.queryParam(COMPANY_KEY)), Pattern.CASE_INSENSITIVE);
+      selected.and(snapshot().matchingDictValues(companyField, value -> pattern.matcher(value).find()));
+    }
+    if (ctx.queryParamMap().containsKey(ROLE_KEY)) {
+      String role = ctx.queryParamAsClass(ROLE_KEY, String.class)
+        .check(it -> it.matches(ROLE_REGEX), "User must have a legal user role")
+        .get();
+      selected.and(snapshot().matchingDictValues(roleField, role::equals));
+    }
+    return selected;
+  }
+
+  @Override
+  protected int sortField(Context ctx) {
+    // Like MongoDB, sorting by a field the users don't have leaves them unsorted.
+    return snapshot().fieldIndex(Objects.requireNonNullElse(ctx.queryParam("sortby"), "name"));
+  }
+
+  @Override
+  protected boolean sortDescending(Context ctx) {
+    return Objects.requireNonNullElse(ctx.queryParam(SORT_ORDER_KEY), "asc").equals("desc");
+  }
+}
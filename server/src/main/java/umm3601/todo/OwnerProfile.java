@@ -0,0 +1,20 @@
+package umm3601.todo;
+
+import org.bson.Document;
+
+/**
+ * The parts of a user's profile shown next to the todos they own, as
+ * returned by `TodoController#getTodosWithOwners`.
+ */
+@SuppressWarnings("checkstyle:visibilitymodifier")
+public class OwnerProfile {
+  public String name;
+  public String avatar;
+  public String company;
+
+  public OwnerProfile(Document user) {
+    this.name = user.getString("name");
+    this.avatar = user.getString("avatar");
+    this.company = user.getString("company");
+  }
+}
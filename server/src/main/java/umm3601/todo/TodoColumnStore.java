@@ -0,0 +1,355 @@
+package umm3601.todo;
+
+import static com.mongodb.client.model.Projections.include;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+
+import org.bson.types.ObjectId;
+
+import com.mongodb.client.MongoCollection;
+
+import umm3601.index.BitmapIndex;
+import umm3601.index.BkTree;
+import umm3601.index.Dictionary;
+import umm3601.index.FuzzyMatch;
+import umm3601.index.PrefixIndex;
+import umm3601.index.RoaringBitmap;
+
+/**
+ * A columnar, in-memory copy of the fields of the todo collection that we
+ * use for analytical queries, like "what fraction of the todos in each
+ * category are complete?", or "which owners have the most incomplete todos?".
+ *
+ * Rather than keeping a `Todo` object per todo, each field is its own array
+ * (a "column") indexed by row number:
+ *
+ *   - `owner` and `category` are dictionary encoded, so each row just stores
+ *     the `int` code of its value (see `Dictionary`)
+ *   - `status` is a bitset, one bit per row, packed into `long`s
+ *
+ * Aggregates are then simple loops over primitive arrays, which the JIT can
+ * unroll and vectorize, and which don't allocate anything per todo.
+ *
+ * The store also keeps a `BitmapIndex` (keyed by row number) for each of
+ * the low-cardinality fields we filter on, `owner`, `category`, and
+ * `status`, so filters on those fields are bitmap intersections and
+ * counting the matches is a popcount (see `TodoController#countTodos`),
+ * a `BkTree` of the owners' names for typo-tolerant lookups, and a
+ * `PrefixIndex` of the owners and of the categories for autocompletion.
+ *
+ * The store is loaded from MongoDB when the `TodoController` is created,
+ * `TodoController#addNewTodo` appends each new todo to it,
+ * `TodoController#updateTodo` rewrites the row of the todo it changed, and
+ * the bulk deletes remove the rows of the todos they delete.
+ */
+public class TodoColumnStore {
+
+  static final String OWNER_KEY = "owner";
+  static final String STATUS_KEY = "status";
+  static final String CAT_KEY = "category";
+
+  private static final int INITIAL_CAPACITY = 1024;
+  // Row `i`'s status is bit `i % 64` of `statusWords[i >>> WORD_SHIFT]`
+  private static final int WORD_SHIFT = 6;
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private final Dictionary owners = new Dictionary();
+  private final Dictionary categories = new Dictionary();
+
+  private final BitmapIndex ownerIndex = new BitmapIndex();
+  private final BitmapIndex categoryIndex = new BitmapIndex();
+  private final BitmapIndex statusIndex = new BitmapIndex();
+  private final RoaringBitmap rows = new RoaringBitmap();
+  private final BkTree ownerNames = new BkTree();
+  private final PrefixIndex ownerPrefixes = new PrefixIndex();
+  private final PrefixIndex categoryPrefixes = new PrefixIndex();
+
+  private final Map<String, Integer> rowsById = new HashMap<>();
+
+  private String[] ids = new String[INITIAL_CAPACITY];
+  private int[] ownerCodes = new int[INITIAL_CAPACITY];
+  private int[] categoryCodes = new int[INITIAL_CAPACITY];
+  private long[] statusWords = new long[INITIAL_CAPACITY >>> WORD_SHIFT];
+  private int size;
+
+  /**
+   * Load the columns from the todo collection. This only asks MongoDB for
+   * the fields we keep, so we never fetch the (much larger) todo bodies.
+   *
+   * @param todoCollection the collection of todos
+   * @return a column store containing every todo in the collection
+   */
+  public static TodoColumnStore load(MongoCollection<Todo> todoCollection) {
+    TodoColumnStore store = new TodoColumnStore();
+    for (Todo todo : todoCollection.find().projection(include(OWNER_KEY, STATUS_KEY, CAT_KEY))) {
+      store.add(todo);
+    }
+    return store;
+  }
+
+  /**
+   * Append a todo to the columns.
+   *
+   * @param todo the todo to add
+   */
+  public void add(Todo todo) {
+    lock.writeLock().lock();
+    try {
+      if (size == ids.length) {
+        int capacity = ids.length * 2;
+        ids = Arrays.copyOf(ids, capacity);
+        ownerCodes = Arrays.copyOf(ownerCodes, capacity);
+        categoryCodes = Arrays.copyOf(categoryCodes, capacity);
+        statusWords = Arrays.copyOf(statusWords, capacity >>> WORD_SHIFT);
+      }
+      ids[size] = todo._id;
+      if (todo._id != null) {
+        rowsById.put(todo._id, size);
+      }
+      setRow(size, todo);
+      rows.add(size);
+      size++;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Replace the values in a todo's row with its new values. Nothing
+   * happens if there's no todo with that `_id`.
+   *
+   * @param todo the todo, as it is after the update
+   */
+  public void update(Todo todo) {
+    lock.writeLock().lock();
+    try {
+      Integer row = rowsById.get(todo._id);
+      if (row != null) {
+        clearRow(row);
+        setRow(row, todo);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Remove a todo from the store. Its row isn't reused; it's just left
+   * out of the indexes and the stats from now on. Nothing happens if
+   * there's no todo with that `_id`.
+   *
+   * @param id the `_id` of the todo to remove
+   */
+  public void remove(String id) {
+    lock.writeLock().lock();
+    try {
+      Integer row = rowsById.remove(id);
+      if (row != null) {
+        clearRow(row);
+        ids[row] = null;
+        ownerCodes[row] = -1;
+        categoryCodes[row] = -1;
+        statusWords[row >>> WORD_SHIFT] &= ~(1L << row);
+        rows.remove(row);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  // Take a row out of the indexes; the caller holds the write lock
+  private void clearRow(int row) {
+    ownerPrefixes.remove(owners.value(ownerCodes[row]));
+    categoryPrefixes.remove(categories.value(categoryCodes[row]));
+    ownerIndex.remove(row);
+    categoryIndex.remove(row);
+    statusIndex.remove(row);
+  }
+
+  // Fill in the columns and indexes for a row; the caller holds the write lock
+  private void setRow(int row, Todo todo) {
+    ownerCodes[row] = owners.encode(todo.owner);
+    categoryCodes[row] = categories.encode(todo.category);
+    if (todo.status) {
+      statusWords[row >>> WORD_SHIFT] |= 1L << row;
+    } else {
+      statusWords[row >>> WORD_SHIFT] &= ~(1L << row);
+    }
+    ownerIndex.add(todo.owner, row);
+    ownerNames.add(todo.owner);
+    ownerPrefixes.add(todo.owner);
+    categoryPrefixes.add(todo.category);
+    categoryIndex.add(todo.category, row);
+    statusIndex.add(statusKey(todo.status), row);
+  }
+
+  /**
+   * @return the number of todos in the store
+   */
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return rows.cardinality();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Count the total, complete, and incomplete todos for each owner or
+   * each category.
+   *
+   * @param field the field to group by, either `owner` or `category`
+   * @return the statistics for each distinct value of `field` that
+   *   still has todos, in the order the values were first seen
+   */
+  public List<TodoStats> statsBy(String field) {
+    lock.readLock().lock();
+    try {
+      Dictionary dictionary = field.equals(OWNER_KEY) ? owners : categories;
+      int[] codes = field.equals(OWNER_KEY) ? ownerCodes : categoryCodes;
+
+      // The counts for code `c` are at `c + 1`; the removed rows (code -1)
+      // are all counted at 0 and ignored, which keeps these loops branch-free
+      int[] total = new int[dictionary.size() + 1];
+      int[] complete = new int[dictionary.size() + 1];
+      for (int i = 0; i < size; i++) {
+        total[codes[i] + 1]++;
+      }
+      for (int i = 0; i < size; i++) {
+        complete[codes[i] + 1] += (int) (statusWords[i >>> WORD_SHIFT] >>> i) & 1;
+      }
+
+      List<TodoStats> stats = new ArrayList<>();
+      for (int code = 0; code < dictionary.size(); code++) {
+        int count = total[code + 1];
+        if (count == 0) {
+          // Every todo with this value was changed or removed
+          continue;
+        }
+        TodoStats group = new TodoStats();
+        group._id = dictionary.value(code);
+        group.total = count;
+        group.complete = complete[code + 1];
+        group.incomplete = count - group.complete;
+        group.completionRate = (double) group.complete / count;
+        stats.add(group);
+      }
+      return stats;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return the rows of all the todos
+   */
+  public RoaringBitmap allRows() {
+    lock.readLock().lock();
+    try {
+      return new RoaringBitmap().or(rows);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @param test a test for owners' names
+   * @return the rows of the todos whose owners pass the test
+   */
+  public RoaringBitmap ownersMatching(Predicate<String> test) {
+    lock.readLock().lock();
+    try {
+      return ownerIndex.matching(test);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @param test a test for categories
+   * @return the rows of the todos whose categories pass the test
+   */
+  public RoaringBitmap categoriesMatching(Predicate<String> test) {
+    lock.readLock().lock();
+    try {
+      return categoryIndex.matching(test);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @param status the status to look for
+   * @return the rows of the todos with that status
+   */
+  public RoaringBitmap withStatus(boolean status) {
+    lock.readLock().lock();
+    try {
+      return new RoaringBitmap().or(statusIndex.get(statusKey(status)));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Find the owners whose names are within a few edits of `query`.
+   *
+   * @param query a (possibly misspelled) owner's name
+   * @param maxDistance the largest edit distance to accept
+   * @return the matching owners, best match first, with their todo counts
+   */
+  public List<FuzzyMatch> similarOwners(String query, int maxDistance) {
+    lock.readLock().lock();
+    try {
+      return ownerNames.search(query, maxDistance, owner -> ownerIndex.get(owner).cardinality());
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return the autocomplete index of the owners' names
+   */
+  public PrefixIndex ownerPrefixes() {
+    return ownerPrefixes;
+  }
+
+  /**
+   * @return the autocomplete index of the categories
+   */
+  public PrefixIndex categoryPrefixes() {
+    return categoryPrefixes;
+  }
+
+  /**
+   * @param matches some rows of the store
+   * @return the `_id`s of the todos in those rows
+   */
+  public List<ObjectId> ids(RoaringBitmap matches) {
+    lock.readLock().lock();
+    try {
+      List<ObjectId> matchingIds = new ArrayList<>();
+      matches.forEach(row -> {
+        if (ids[row] != null) {
+          matchingIds.add(new ObjectId(ids[row]));
+        }
+      });
+      return matchingIds;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private static String statusKey(boolean status) {
+    return status ? "complete" : "incomplete";
+  }
+}
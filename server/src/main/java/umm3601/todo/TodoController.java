@@ -2,46 +2,135 @@ package umm3601.todo;
 
 import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.in;
 // import static com.mongodb.client.model.Filters.ne;
 import static com.mongodb.client.model.Filters.regex;
+import static com.mongodb.client.model.Projections.include;
 
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.regex.Pattern;
 
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 import org.bson.UuidRepresentation;
 import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 import org.mongojack.JacksonMongoCollection;
 
 import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
 import com.mongodb.client.model.Sorts;
+import com.mongodb.client.result.UpdateResult;
 // import com.mongodb.client.result.DeleteResult;
 
 import io.javalin.Javalin;
 import io.javalin.http.BadRequestResponse;
 import io.javalin.http.Context;
+import io.javalin.http.Handler;
 import io.javalin.http.HttpStatus;
 import io.javalin.http.NotFoundResponse;
+import io.javalin.http.sse.SseClient;
+import umm3601.BulkChunks;
+import umm3601.CircuitBreaker;
+import umm3601.ConditionalGet;
+import umm3601.ContentNegotiation;
 import umm3601.Controller;
+import umm3601.FacetCount;
+import umm3601.FacetedResults;
+import umm3601.GroupCommitWriter;
+import umm3601.IdempotencyKeys;
+import umm3601.MultiGetResults;
+import umm3601.PartialResults;
+import umm3601.RawDocuments;
+import umm3601.TimeBudget;
+import umm3601.UpdateValidator;
+import umm3601.changes.ChangeFeed;
+import umm3601.changes.ChangeLog;
+import umm3601.changes.ChangeSet;
+import umm3601.export.Exporter;
+import umm3601.wal.DurableInserter;
+import umm3601.wal.WriteAheadLog;
+import umm3601.index.BkTree;
+import umm3601.index.FuzzyMatch;
+import umm3601.index.IndexedFilter;
+import umm3601.index.PrefixIndex;
+import umm3601.index.RoaringBitmap;
 
 public class TodoController implements Controller {
 
   private static final String API_TODO = "/api/todos";
   private static final String API_TODO_BY_ID = "/api/todos/{id}";
+  private static final String API_TODO_STATS = "/api/todos/stats";
+  private static final String API_TODO_COUNT = "/api/todos/count";
+  private static final String API_TODO_EXPORT = "/api/todos/export";
+  private static final String API_TODO_CHANGES = "/api/todos/changes";
+  private static final String API_TODO_EVENTS = "/api/todos/events";
+  private static final String API_TODO_WITH_OWNERS = "/api/todos/withOwners";
+  private static final String API_SIMILAR_OWNERS = "/api/todos/owners/similar";
+  private static final int DEFAULT_SIMILAR_LIMIT = 10;
   static final String OWNER_KEY = "owner";
   static final String STATUS_KEY = "status";
   static final String BODY_KEY = "body";
   static final String CAT_KEY = "category";
   static final String SORT_ORDER_KEY = "sortorder";
+  static final String FACETS_KEY = "facets";
+  static final String DRY_RUN_KEY = "dryRun";
+  static final String IDS_KEY = "ids";
+  // The query parameters `constructFilter` filters on
+  private static final List<String> FILTER_KEYS = List.of(OWNER_KEY, CAT_KEY, STATUS_KEY, "contains");
 
   private final JacksonMongoCollection<Todo> todoCollection;
 
+  // How new todos are inserted: one at a time, unless `enableGroupCommit` is called
+  private Consumer<Todo> todoInserter;
+
+  // Logs new todos while MongoDB is unavailable, if `enableWriteAheadLog` is called
+  private DurableInserter<Todo> todoLog;
+
+  // Answers retried writes with the original response (see `addRoutes`)
+  private IdempotencyKeys idempotencyKeys =
+      new IdempotencyKeys(IdempotencyKeys.DEFAULT_MAX_KEYS, IdempotencyKeys.DEFAULT_TTL);
+
+  // Fails fast (or answers reads from a cache) while MongoDB is down (see `addRoutes`)
+  private CircuitBreaker circuitBreaker = new CircuitBreaker(CircuitBreaker.DEFAULT_FAILURE_THRESHOLD,
+      CircuitBreaker.DEFAULT_OPEN_DURATION, CircuitBreaker.DEFAULT_MAX_STALE_BYTES);
+
+  // The same collection, as plain documents, for the facet counts
+  private final MongoCollection<Document> todoDocuments;
+
+  // And as undecoded BSON, to write straight into `getTodos` responses
+  private final MongoCollection<RawBsonDocument> rawTodos;
+
+  // The users, for the owners' profiles in `/api/todos/withOwners`
+  private final MongoCollection<Document> userDocuments;
+
+  // Streams todos out for `/api/todos/export`
+  private final Exporter todoExporter;
+
+  // The todos changed through the API, for `/api/todos/changes`
+  private final ChangeLog todoChanges = new ChangeLog();
+
+  // Pushes the same changes to `/api/todos/events` subscribers as they happen
+  private final ChangeFeed<Todo> todoFeed = new ChangeFeed<>();
+
+  // Columnar copy of the todos used for the `/api/todos/stats` aggregates,
+  // and the bitmap indexes on `owner`, `category`, and `status`
+  private final TodoColumnStore todoColumns;
+
   // Constructs a controller for todos
 
   public TodoController(MongoDatabase database) {
@@ -50,41 +139,108 @@ public class TodoController implements Controller {
         "todos",
         Todo.class,
         UuidRepresentation.STANDARD);
+    todoInserter = todoCollection::insertOne;
+    todoDocuments = database.getCollection("todos");
+    rawTodos = database.getCollection("todos", RawBsonDocument.class);
+    userDocuments = database.getCollection("users");
+    todoExporter = new Exporter(todoDocuments, List.of(OWNER_KEY, STATUS_KEY, BODY_KEY, CAT_KEY));
+    todoColumns = TodoColumnStore.load(todoCollection);
   }
 
   // Set the json file for a single searched `id`
 
   public void getTodo(Context ctx) {
+    if (ConditionalGet.notModified(ctx, todoChanges)) {
+      return;
+    }
     String id = ctx.pathParam("id");
     Todo todo;
 
     try {
-      todo = todoCollection.find(eq("_id", new ObjectId(id))).first();
+      todo = TimeBudget.of(ctx).limit(todoCollection.find(eq("_id", new ObjectId(id)))).first();
     } catch (IllegalArgumentException e) {
       throw new BadRequestResponse("The requested todo id wasn't a legal Mongo Object ID.");
     }
     if (todo == null) {
       throw new NotFoundResponse("The requested todo was not found");
     } else {
-      ctx.json(todo);
+      ContentNegotiation.respond(ctx, todo);
       ctx.status(HttpStatus.OK);
     }
   }
 
-  // Set the json file for seeing all todos
+  // Set the json file for seeing all todos (with `facets=true`, along
+  // with the facet counts for the filter sidebar), or, with `ids=a,b,c`,
+  // just those todos (see `MultiGetResults`). Both answer `If-None-Match`
+  // revalidation with a `304` when no todo has changed (see `ConditionalGet`)
 
   public void getTodos(Context ctx) {
+    if (ConditionalGet.notModified(ctx, todoChanges)) {
+      return;
+    }
+    if (ctx.queryParamMap().containsKey(IDS_KEY)) {
+      ContentNegotiation.respond(ctx,
+          MultiGetResults.fetch(todoCollection, ctx.queryParam(IDS_KEY), todo -> todo._id, "todo"));
+      ctx.status(HttpStatus.OK);
+      return;
+    }
+
     // Build filters (status, contains, owner, category)
-    Bson filter = constructFilter(ctx);
+    IndexedFilter filter = constructFilter(ctx);
+    Bson findFilter = findFilter(filter);
+
+    // Return JSON; with `facets=true`, the todos come with the counts of
+    // all the matching todos (not just this page) by status, category, and owner.
+    // With `partial=true`, they're cut short if the request runs out of time
+    // (see `PartialResults`). Otherwise, the todos are written straight from
+    // their BSON (see `RawDocuments`)
+    ctx.status(HttpStatus.OK);
+    if (Boolean.parseBoolean(ctx.queryParam(FACETS_KEY))) {
+      ArrayList<Todo> matchingTodos = findTodos(todoCollection, ctx, findFilter).into(new ArrayList<>());
+      Map<String, List<FacetCount>> facets = FacetedResults.countFacets(todoDocuments, findFilter, Map.of(
+          STATUS_KEY, FacetedResults.countBy(
+              new Document("$cond", List.of("$" + STATUS_KEY, "complete", "incomplete"))),
+          CAT_KEY, FacetedResults.countBy("$" + CAT_KEY),
+          OWNER_KEY, FacetedResults.countBy("$" + OWNER_KEY)), TimeBudget.of(ctx));
+      ContentNegotiation.respond(ctx, new FacetedResults<>(matchingTodos, facets));
+    } else if (PartialResults.requested(ctx)) {
+      // As many as MongoDB can find in time, and a cursor for the rest
+      PartialResults.respond(ctx, rawTodos, findFilter, List.of(OWNER_KEY, STATUS_KEY, BODY_KEY, CAT_KEY),
+          sortField(ctx), sortDescending(ctx), parseLimit(ctx));
+    } else {
+      RawDocuments.respond(ctx, findTodos(rawTodos, ctx, findFilter)
+          .projection(include(OWNER_KEY, STATUS_KEY, BODY_KEY, CAT_KEY)));
+    }
+  }
+
+/**
+ * The filter to give MongoDB: if the bitmap indexes narrowed things down
+ * to a few todos, look those up by `_id` instead of scanning. The request's
+ * own filter still applies to them, in case any have been changed some
+ * other way since the indexes were loaded (see `IndexedFilter`).
+ */
+
+  private Bson findFilter(IndexedFilter filter) {
+    return filter.isSelective(todoColumns.size())
+        ? and(in("_id", todoColumns.ids(filter.matches())), filter.filter())
+        : filter.filter();
+  }
+
+/**
+ * Find the todos matching a filter, sorted and limited by the `sortby`,
+ * `sortorder`, and `limit` query parameters, in whichever form the
+ * collection decodes them to (`Todo`s or raw BSON), within the request's
+ * time budget (see `TimeBudget`).
+ */
 
+  private <T> FindIterable<T> findTodos(MongoCollection<T> collection, Context ctx, Bson findFilter) {
     // Parse Limit
     Integer limit = parseLimit(ctx);
 
     // Parse sorting order
     Bson sortingOrder = constructSortingOrder(ctx);
 
-    // Build the MongoDB query
-    FindIterable<Todo> results = todoCollection.find(filter);
+    FindIterable<T> results = TimeBudget.of(ctx).limit(collection.find(findFilter));
 
     // Apply sorting if present
     if (sortingOrder != null) {
@@ -99,11 +255,46 @@ public class TodoController implements Controller {
       results = results.limit(limit);
     }
 
-    // Materialize results
-    ArrayList<Todo> matchingTodos = results.into(new ArrayList<>());
+    return results;
+  }
+
+  /**
+   * Set the JSON body of the response to be the same todos as `getTodos`
+   * (with the same filters, sorting, and limit), each with the profile of
+   * the user whose name matches its owner (`ownerProfile`, with the
+   * user's `name`, `avatar`, and `company`, or `null` if there's no such
+   * user), e.g., `/api/todos/withOwners?category=homework&limit=20`.
+   *
+   * This is a batched join: one query for the todos, then one `$in` query
+   * for the users named by any of them, rather than a lookup per todo.
+   *
+   * The match is on the whole name, exactly. The seed data's todo owners
+   * are single names ("Blanche", "Fry") and its users have full names
+   * ("Lynn Ferguson"), and none of them are the same, so with just the
+   * seed data every `ownerProfile` is `null`; todos only get profiles
+   * once their owners are named the same way as users.
+   */
+  public void getTodosWithOwners(Context ctx) {
+    ArrayList<Todo> todos = findTodos(todoCollection, ctx, findFilter(constructFilter(ctx)))
+        .into(new ArrayList<>());
+
+    Set<String> owners = new HashSet<>();
+    for (Todo todo : todos) {
+      owners.add(todo.owner);
+    }
+    Map<String, OwnerProfile> profiles = new HashMap<>();
+    FindIterable<Document> users = userDocuments.find(in("name", owners))
+        .projection(include("name", "avatar", "company"));
+    for (Document user : TimeBudget.of(ctx).limit(users)) {
+      // If several users have the same name, the first one wins
+      profiles.putIfAbsent(user.getString("name"), new OwnerProfile(user));
+    }
 
-    // Return JSON
-    ctx.json(matchingTodos);
+    List<TodoWithOwner> joined = new ArrayList<>();
+    for (Todo todo : todos) {
+      joined.add(new TodoWithOwner(todo, profiles.get(todo.owner)));
+    }
+    ctx.json(joined);
     ctx.status(HttpStatus.OK);
   }
 
@@ -139,21 +330,28 @@ public class TodoController implements Controller {
  * Checking for the presence of `owner`, `status`, `body`, and `category`
  * parameters and creating a filter document that will match todos with
  * the specified values for those fields.
+ *
+ * Since `owner`, `category`, and `status` have bitmap indexes, the
+ * filters on them are also applied to the indexes; the result only
+ * includes the matching rows if there wasn't a `contains` filter.
  */
 
-  private Bson constructFilter(Context ctx) {
+  private IndexedFilter constructFilter(Context ctx) {
     List<Bson> filters = new ArrayList<>(); // start with an empty list of filters
+    RoaringBitmap matches = todoColumns.allRows();
 
     // Owner Filter
     if (ctx.queryParamMap().containsKey(OWNER_KEY)) {
       Pattern pattern = Pattern.compile(Pattern.quote(ctx.queryParam(OWNER_KEY)), Pattern.CASE_INSENSITIVE);
       filters.add(regex(OWNER_KEY, pattern));
+      matches = matches.and(todoColumns.ownersMatching(owner -> pattern.matcher(owner).find()));
     }
 
     // Category Filter
     if (ctx.queryParamMap().containsKey(CAT_KEY)) {
       Pattern pattern = Pattern.compile(Pattern.quote(ctx.queryParam(CAT_KEY)), Pattern.CASE_INSENSITIVE);
       filters.add(regex(CAT_KEY, pattern));
+      matches = matches.and(todoColumns.categoriesMatching(category -> pattern.matcher(category).find()));
     }
 
     // Status Filter
@@ -168,20 +366,78 @@ public class TodoController implements Controller {
         throw new BadRequestResponse("Status must be 'complete' or 'incomplete'.");
       }
       filters.add(Filters.eq(STATUS_KEY, statusValue));
+      matches = matches.and(todoColumns.withStatus(statusValue));
     }
 
-    // Contains Filter
+    // Contains Filter (`body` isn't indexed)
     if (ctx.queryParamMap().containsKey("contains")) {
       Pattern pattern = Pattern.compile(Pattern.quote(ctx.queryParam("contains")));
       filters.add(regex(BODY_KEY, pattern));
+      matches = null;
     }
 
     Bson combinedFilter = filters.isEmpty() ? new Document() : and(filters);
 
-    return combinedFilter;
+    return new IndexedFilter(combinedFilter, matches != null && indexesAreCurrent() ? matches : null);
+  }
+
+  // The indexes only see the writes made through this server, so if the
+  // collection has a different number of todos (e.g., after a reseed) we
+  // let MongoDB answer instead (see `IndexedFilter`)
+  private boolean indexesAreCurrent() {
+    return todoDocuments.estimatedDocumentCount() == todoColumns.size();
+  }
+
+/**
+ * Constructing a test for whether a single todo matches the same query
+ * parameters as `constructFilter`, for the todos pushed to
+ * `/api/todos/events` subscribers, which never go through MongoDB.
+ */
+
+  private Predicate<Todo> constructPredicate(Context ctx) {
+    Predicate<Todo> predicate = todo -> true;
+
+    // Owner Filter
+    if (ctx.queryParamMap().containsKey(OWNER_KEY)) {
+      Pattern pattern = Pattern.compile(Pattern.quote(ctx.queryParam(OWNER_KEY)), Pattern.CASE_INSENSITIVE);
+      predicate = predicate.and(todo -> todo.owner != null && pattern.matcher(todo.owner).find());
+    }
+
+    // Category Filter
+    if (ctx.queryParamMap().containsKey(CAT_KEY)) {
+      Pattern pattern = Pattern.compile(Pattern.quote(ctx.queryParam(CAT_KEY)), Pattern.CASE_INSENSITIVE);
+      predicate = predicate.and(todo -> todo.category != null && pattern.matcher(todo.category).find());
+    }
+
+    // Status Filter
+    if (ctx.queryParamMap().containsKey(STATUS_KEY)) {
+      String statusParam = ctx.queryParam(STATUS_KEY);
+      boolean statusValue;
+      if (statusParam.equalsIgnoreCase("complete")) {
+        statusValue = true;
+      } else if (statusParam.equalsIgnoreCase("incomplete")) {
+        statusValue = false;
+      } else {
+        throw new BadRequestResponse("Status must be 'complete' or 'incomplete'.");
+      }
+      predicate = predicate.and(todo -> todo.status == statusValue);
+    }
+
+    // Contains Filter
+    if (ctx.queryParamMap().containsKey("contains")) {
+      String contains = ctx.queryParam("contains");
+      predicate = predicate.and(todo -> todo.body != null && todo.body.contains(contains));
+    }
+
+    return predicate;
   }
 
   private Bson constructSortingOrder(Context ctx) {
+    String sortBy = sortField(ctx);
+    return sortDescending(ctx) ? Sorts.descending(sortBy) : Sorts.ascending(sortBy);
+  }
+
+  private String sortField(Context ctx) {
     // Default sorting (owner)
     String sortBy = Objects.requireNonNullElse(ctx.queryParam("sortby"), OWNER_KEY);
 
@@ -189,22 +445,239 @@ public class TodoController implements Controller {
     if (!List.of(OWNER_KEY, BODY_KEY, STATUS_KEY, CAT_KEY).contains(sortBy)) {
       throw new BadRequestResponse("Invalid sortby field.");
     }
+    return sortBy;
+  }
 
+  private boolean sortDescending(Context ctx) {
     // asc or desc, default asc
     String sortOrder = Objects.requireNonNullElse(ctx.queryParam(SORT_ORDER_KEY), "asc");
 
     if (sortOrder.equalsIgnoreCase("desc")) {
-      return Sorts.descending(sortBy);
+      return true;
     } else if (sortOrder.equalsIgnoreCase("asc")) {
-      return Sorts.ascending(sortBy);
+      return false;
     } else {
       throw new BadRequestResponse("sortorder must be 'asc' or 'desc'");
     }
   }
 
+/**
+ * Set the JSON body of the response to be summary statistics (total,
+ * complete, and incomplete counts, and the completion rate) of the todos,
+ * grouped by `owner` or `category`.
+ *
+ * These come from the in-memory `TodoColumnStore` rather than MongoDB, so
+ * asking, e.g., for the owners with the most incomplete todos
+ * (`?groupby=owner&sortby=incomplete&sortorder=desc&limit=5`) doesn't have
+ * to pull every todo out of the database.
+ */
+
+  public void getTodoStats(Context ctx) {
+    String groupBy = Objects.requireNonNullElse(ctx.queryParam("groupby"), CAT_KEY);
+    if (!List.of(OWNER_KEY, CAT_KEY).contains(groupBy)) {
+      throw new BadRequestResponse("groupby must be 'owner' or 'category'");
+    }
+
+    Integer limit = parseLimit(ctx);
+
+    String sortBy = Objects.requireNonNullElse(ctx.queryParam("sortby"), "_id");
+    Comparator<TodoStats> comparator;
+    switch (sortBy) {
+      case "_id":
+        comparator = Comparator.comparing(stats -> stats._id, Comparator.nullsFirst(Comparator.naturalOrder()));
+        break;
+      case "total":
+        comparator = Comparator.comparingInt(stats -> stats.total);
+        break;
+      case "complete":
+        comparator = Comparator.comparingInt(stats -> stats.complete);
+        break;
+      case "incomplete":
+        comparator = Comparator.comparingInt(stats -> stats.incomplete);
+        break;
+      case "completionRate":
+        comparator = Comparator.comparingDouble(stats -> stats.completionRate);
+        break;
+      default:
+        throw new BadRequestResponse("Invalid sortby field.");
+    }
+    String sortOrder = Objects.requireNonNullElse(ctx.queryParam(SORT_ORDER_KEY), "asc");
+    if (sortOrder.equalsIgnoreCase("desc")) {
+      comparator = comparator.reversed();
+    } else if (!sortOrder.equalsIgnoreCase("asc")) {
+      throw new BadRequestResponse("sortorder must be 'asc' or 'desc'");
+    }
+
+    List<TodoStats> stats = todoColumns.statsBy(groupBy);
+    stats.sort(comparator);
+    if (limit != null && limit < stats.size()) {
+      stats = new ArrayList<>(stats.subList(0, limit));
+    }
+
+    ctx.json(stats);
+    ctx.status(HttpStatus.OK);
+  }
+
+/**
+ * Set the JSON body of the response to be the number of todos that match
+ * the same filters as `getTodos` (e.g., `{"count": 143}` for
+ * `?status=complete`).
+ *
+ * When all the filters are on indexed fields, the count is just the
+ * cardinality of the intersection of their bitmaps; otherwise we ask
+ * MongoDB to count the matching documents.
+ */
+
+  public void countTodos(Context ctx) {
+    ctx.json(Map.of("count", count(constructFilter(ctx), TimeBudget.of(ctx))));
+    ctx.status(HttpStatus.OK);
+  }
+
+  private long count(IndexedFilter filter, TimeBudget budget) {
+    return filter.matches() != null
+        ? filter.matches().cardinality()
+        : todoCollection.countDocuments(filter.filter(), budget.countOptions());
+  }
+
+/**
+ * Set the JSON body of the response to be the owners whose names are
+ * close to the `name` query parameter, best match first, e.g.,
+ * `/api/todos/owners/similar?name=Chirs` finds `Chris`.
+ *
+ * `distance` (default 2, at most 3) is the most edits to allow, and
+ * `limit` (default 10) is the most owners to return. The lookup uses the
+ * `BkTree` in the `TodoColumnStore`, so it never touches MongoDB.
+ */
+
+  public void getSimilarOwners(Context ctx) {
+    String name = ctx.queryParamAsClass("name", String.class).get();
+    int maxDistance = ctx.queryParamAsClass("distance", Integer.class)
+      .check(it -> it >= 0 && it <= BkTree.MAX_DISTANCE,
+        "distance must be between 0 and " + BkTree.MAX_DISTANCE)
+      .getOrDefault(BkTree.DEFAULT_DISTANCE);
+    int limit = Objects.requireNonNullElse(parseLimit(ctx), DEFAULT_SIMILAR_LIMIT);
+
+    List<FuzzyMatch> owners = todoColumns.similarOwners(name, maxDistance);
+
+    ctx.json(owners.subList(0, Math.min(limit, owners.size())));
+    ctx.status(HttpStatus.OK);
+  }
+
+/**
+ * Set the JSON body of the response to be the todos added or changed (and
+ * the `_id`s of the todos deleted) since the change token in the `since`
+ * query parameter, along with a new token (see `ChangeLog`). Without a
+ * token, or with one from before the server restarted, this is a "reset"
+ * with all the todos.
+ */
+
+  public void getTodoChanges(Context ctx) {
+    ChangeLog.Changes changes = todoChanges.since(ctx.queryParam("since"));
+    List<Todo> changed;
+    if (changes.reset()) {
+      changed = todoCollection.find().into(new ArrayList<>());
+    } else if (changes.changed().isEmpty()) {
+      changed = List.of();
+    } else {
+      changed = todoCollection.find(in("_id", changes.changed().stream().map(ObjectId::new).toList()))
+        .into(new ArrayList<>());
+    }
+
+    ctx.json(new ChangeSet<>(changes, changed));
+    ctx.status(HttpStatus.OK);
+  }
+
+/**
+ * Subscribe a Server-Sent Events client to the todos added or changed
+ * from now on (as `insert` or `update` events with the todo as the data),
+ * optionally only the ones matching the same filters as `getTodos`, e.g.,
+ * `/api/todos/events?owner=Blanche&status=incomplete`.
+ *
+ * Since the response has already started by the time we see the query
+ * parameters, bad ones are reported with an `error` event rather than a 400.
+ */
+
+  public void streamTodoEvents(SseClient client) {
+    Predicate<Todo> filter;
+    try {
+      filter = constructPredicate(client.ctx());
+    } catch (BadRequestResponse e) {
+      client.sendEvent("error", e.getMessage());
+      // Javalin closes the stream when we return without subscribing
+      return;
+    }
+    todoFeed.subscribe(client, filter);
+  }
+
+/**
+ * Stream all the todos matching the same filters as `getTodos` into the
+ * response, as NDJSON (`format=ndjson`, the default) or CSV (`format=csv`),
+ * without ever holding them all in memory. `parallel=N` reads the todos
+ * with N cursors at once (see `Exporter`).
+ */
+
+  public void exportTodos(Context ctx) {
+    todoExporter.export(ctx, constructFilter(ctx).filter());
+  }
+
+/**
+ * Batch the inserts from `addNewTodo` that arrive at about the same time
+ * into one `insertMany` (see `GroupCommitWriter`). Each request still
+ * waits for its own todo to be written, and fails if it isn't.
+ */
+
+  public void enableGroupCommit(int maxBatchSize, Duration window) {
+    todoInserter = new GroupCommitWriter<>(todoCollection, maxBatchSize, window)::insert;
+  }
+
+/**
+ * Keep accepting new todos from `addNewTodo` while MongoDB is unavailable,
+ * by logging them to `log` and inserting them once it's back (see
+ * `DurableInserter`). A logged todo gets a 202 (Accepted), with the `_id`
+ * it will have, instead of a 201; it shows up in the todo lists, stats,
+ * and change feeds once it has actually been inserted.
+ *
+ * Call this after `enableGroupCommit`, if using both.
+ */
+
+  public void enableWriteAheadLog(WriteAheadLog log, Duration retryInterval) {
+    todoLog = new DurableInserter<>(log, Todo.class, todoInserter, this::todoInserted, retryInterval);
+  }
+
+/**
+ * Use `keys` (e.g., backed by a MongoDB collection, or shared with the
+ * other controllers) for the `Idempotency-Key`s of the todo writes,
+ * instead of this controller's own in-memory ones.
+ */
+
+  public void useIdempotencyKeys(IdempotencyKeys keys) {
+    idempotencyKeys = keys;
+  }
+
+/**
+ * Use `breaker` (e.g., shared with the other controllers, since they all
+ * use the same MongoDB) for the todo routes, instead of this controller's
+ * own. This has to be called before `addRoutes`.
+ */
+
+  public void useCircuitBreaker(CircuitBreaker breaker) {
+    circuitBreaker = breaker;
+  }
+
+/**
+ * The autocomplete indexes for the todo fields, for `/api/autocomplete`
+ * (see `AutocompleteController`), keyed by the field name.
+ */
+
+  public Map<String, PrefixIndex> autocompleteIndexes() {
+    return Map.of(
+      OWNER_KEY, todoColumns.ownerPrefixes(),
+      CAT_KEY, todoColumns.categoryPrefixes());
+  }
+
   public void addNewTodo(Context ctx) {
     String body = ctx.body();
-    Todo newTodo = ctx.bodyValidator(Todo.class)
+    Todo newTodo = ContentNegotiation.bodyValidator(ctx, Todo.class)
       .check(td -> td.owner != null && td.owner.length() > 0,
         "Todo must have a non-empty todo owner; owner was " + body)
       .check(td -> td.body != null && td.body.length() > 0,
@@ -213,12 +686,173 @@ public class TodoController implements Controller {
         "Todo must have a non-empty todo category; category was " + body)
       .get();
 
-    todoCollection.insertOne(newTodo);
+    if (todoLog == null) {
+      todoInserter.accept(newTodo);
+    } else {
+      // The `_id` has to be known now, in case the todo is only logged
+      if (newTodo._id == null) {
+        newTodo._id = new ObjectId().toHexString();
+      }
+      if (!todoLog.insert(newTodo)) {
+        ContentNegotiation.respond(ctx, Map.of("id", newTodo._id));
+        ctx.status(HttpStatus.ACCEPTED);
+        return;
+      }
+    }
+    todoInserted(newTodo);
 
-    ctx.json(Map.of("id", newTodo._id));
+    ContentNegotiation.respond(ctx, Map.of("id", newTodo._id));
     ctx.status(HttpStatus.CREATED);
   }
 
+  // Bring everything that's kept up to date with the todos up to date with a new one
+  private void todoInserted(Todo newTodo) {
+    todoColumns.add(newTodo);
+    todoChanges.recordChange(newTodo._id);
+    todoFeed.publish(ChangeFeed.Type.INSERT, newTodo);
+  }
+
+/**
+ * Change some of the fields of the todo specified by the `id` parameter,
+ * e.g., `PATCH /api/todos/{id}` with `{"status": true}` to mark it
+ * complete. The new values follow the same rules as in `addNewTodo`.
+ *
+ * The response is just the `_id` and the fields that were changed,
+ * rather than the whole todo.
+ */
+
+  public void updateTodo(Context ctx) {
+    String id = ctx.pathParam("id");
+    ObjectId objectId;
+    try {
+      objectId = new ObjectId(id);
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestResponse("The requested todo id wasn't a legal Mongo Object ID.");
+    }
+    Document changes = validateUpdate(ctx.body());
+
+    Todo updatedTodo = todoCollection.findOneAndUpdate(eq("_id", objectId), new Document("$set", changes),
+      new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER));
+    if (updatedTodo == null) {
+      throw new NotFoundResponse("The requested todo was not found");
+    }
+    todoColumns.update(updatedTodo);
+    todoChanges.recordChange(id);
+    todoFeed.publish(ChangeFeed.Type.UPDATE, updatedTodo);
+
+    Document response = new Document("_id", id);
+    response.putAll(changes);
+    ctx.json(response);
+    ctx.status(HttpStatus.OK);
+  }
+
+/**
+ * Checking the JSON body of an update against the same rules as
+ * `addNewTodo`, for `updateTodo` and `updateTodos`.
+ */
+
+  private Document validateUpdate(String body) {
+    return UpdateValidator.of(body, "Todo")
+      .check(OWNER_KEY, UpdateValidator::isNonEmptyString, "Todo must have a non-empty todo owner")
+      .check(BODY_KEY, UpdateValidator::isNonEmptyString, "Todo must have a non-empty todo body")
+      .check(CAT_KEY, UpdateValidator::isNonEmptyString, "Todo must have a non-empty todo category")
+      .check(STATUS_KEY, Boolean.class::isInstance, "Todo status must be true or false")
+      .get();
+  }
+
+/**
+ * Apply the same changes to every todo matching the same filters as
+ * `getTodos`, e.g., `PATCH /api/todos?owner=Blanche&status=incomplete`
+ * with `{"status": true}` to close out all of Blanche's todos. The
+ * response is the number of todos that matched and that were modified,
+ * e.g., `{"matched": 12, "modified": 12, "dryRun": false}`.
+ *
+ * With `dryRun=true` nothing is changed, and `matched` is how many todos
+ * would have been. The todos are updated in chunks of `_id`s (see
+ * `BulkChunks`), so each write only locks a few hundred of them.
+ */
+
+  public void updateTodos(Context ctx) {
+    IndexedFilter filter = constructBulkFilter(ctx);
+    Document changes = validateUpdate(ctx.body());
+    boolean dryRun = Boolean.parseBoolean(ctx.queryParam(DRY_RUN_KEY));
+
+    long[] matched = {0};
+    long[] modified = {0};
+    if (dryRun) {
+      matched[0] = count(filter, TimeBudget.of(ctx));
+    } else {
+      BulkChunks.forEachChunk(todoDocuments, filter.filter(), BulkChunks.CHUNK_SIZE, ids -> {
+        // Still with the filter, so a todo changed since the chunk was read isn't updated if it no longer matches.
+        // The changes can stop them matching, so note which do before updating them.
+        Bson chunk = and(in("_id", ids), filter.filter());
+        List<ObjectId> matching = todoDocuments.find(chunk).projection(include("_id"))
+          .map(document -> document.getObjectId("_id"))
+          .into(new ArrayList<>());
+        UpdateResult result = todoDocuments.updateMany(and(in("_id", matching), filter.filter()),
+          new Document("$set", changes));
+        matched[0] += result.getMatchedCount();
+        modified[0] += result.getModifiedCount();
+        for (Todo todo : todoCollection.find(in("_id", matching))) {
+          todoColumns.update(todo);
+          todoChanges.recordChange(todo._id);
+          todoFeed.publish(ChangeFeed.Type.UPDATE, todo);
+        }
+      });
+    }
+
+    ctx.json(Map.of("matched", matched[0], "modified", modified[0], DRY_RUN_KEY, dryRun));
+    ctx.status(HttpStatus.OK);
+  }
+
+/**
+ * Delete every todo matching the same filters as `getTodos`, e.g.,
+ * `DELETE /api/todos?category=homework`, in chunks like `updateTodos`.
+ * The response is the number of todos that matched and that were deleted,
+ * e.g., `{"matched": 30, "deleted": 30, "dryRun": false}`; with
+ * `dryRun=true` nothing is deleted.
+ */
+
+  public void deleteTodos(Context ctx) {
+    IndexedFilter filter = constructBulkFilter(ctx);
+    boolean dryRun = Boolean.parseBoolean(ctx.queryParam(DRY_RUN_KEY));
+
+    long[] matched = {0};
+    long[] deleted = {0};
+    if (dryRun) {
+      matched[0] = count(filter, TimeBudget.of(ctx));
+    } else {
+      BulkChunks.forEachChunk(todoDocuments, filter.filter(), BulkChunks.CHUNK_SIZE, ids -> {
+        matched[0] += ids.size();
+        // Still with the filter, so a todo changed since the chunk was read isn't deleted if it no longer matches
+        Bson chunk = and(in("_id", ids), filter.filter());
+        // Read the todos before they're gone, so subscribers can tell if they care
+        List<Todo> todos = todoCollection.find(chunk).into(new ArrayList<>());
+        deleted[0] += todoDocuments.deleteMany(chunk).getDeletedCount();
+        for (Todo todo : todos) {
+          todoColumns.remove(todo._id);
+          todoChanges.recordDelete(todo._id);
+          todoFeed.publish(ChangeFeed.Type.DELETE, todo);
+        }
+      });
+    }
+
+    ctx.json(Map.of("matched", matched[0], "deleted", deleted[0], DRY_RUN_KEY, dryRun));
+    ctx.status(HttpStatus.OK);
+  }
+
+/**
+ * The same filter as `constructFilter`, for the bulk updates and deletes,
+ * which insist on at least one filter so that a mistake can't change or
+ * delete every todo.
+ */
+
+  private IndexedFilter constructBulkFilter(Context ctx) {
+    if (FILTER_KEYS.stream().noneMatch(ctx.queryParamMap()::containsKey)) {
+      throw new BadRequestResponse("Bulk updates and deletes need at least one of the filters " + FILTER_KEYS);
+    }
+    return constructFilter(ctx);
+  }
 
   // public void deleteTodo(Context ctx) {
   //   String id = ctx.pathParam("id");
@@ -237,11 +871,35 @@ public class TodoController implements Controller {
   @Override
   public void addRoutes(Javalin server) {
 
-    server.get(API_TODO_BY_ID, this::getTodo);
+    // Javalin uses the first route that matches, so these have
+    // to come before `/api/todos/{id}`
+    server.get(API_TODO_STATS, this::getTodoStats);
+    server.get(API_TODO_COUNT, this::countTodos);
+    server.get(API_TODO_EXPORT, this::exportTodos);
+    server.get(API_TODO_CHANGES, this::getTodoChanges);
+    server.sse(API_TODO_EVENTS, this::streamTodoEvents);
+    server.get(API_TODO_WITH_OWNERS, this::getTodosWithOwners);
+
+    // While MongoDB is down, these get the last response to the same
+    // request, marked as stale, and the writes fail fast (see `CircuitBreaker`)
+    server.get(API_TODO_BY_ID, circuitBreaker.withFallback(this::getTodo));
+
+    server.get(API_SIMILAR_OWNERS, this::getSimilarOwners);
+
+    server.get(API_TODO, circuitBreaker.withFallback(this::getTodos));
+
+    // The writes that aren't safe to repeat can be retried with an
+    // `Idempotency-Key` header, and the retries get the original response.
+    // New todos don't fail fast with a write-ahead log, which takes them
+    // while MongoDB is down
+    Handler addTodo = ctx -> idempotencyKeys.handle(ctx, this::addNewTodo);
+    server.post(API_TODO, todoLog == null ? circuitBreaker.protect(addTodo) : addTodo);
+
+    server.patch(API_TODO_BY_ID, circuitBreaker.protect(this::updateTodo));
 
-    server.get(API_TODO, this::getTodos);
+    server.patch(API_TODO, circuitBreaker.protect(ctx -> idempotencyKeys.handle(ctx, this::updateTodos)));
 
-    server.post(API_TODO, this::addNewTodo);
+    server.delete(API_TODO, circuitBreaker.protect(ctx -> idempotencyKeys.handle(ctx, this::deleteTodos)));
 
     // server.delete(API_TODO_BY_ID, this::deleteTodo);
   }
@@ -0,0 +1,18 @@
+package umm3601.todo;
+
+/**
+ * Summary statistics for a group of todos (all the todos with a
+ * given owner, or in a given category), as computed by
+ * `TodoColumnStore#statsBy`.
+ */
+@SuppressWarnings("checkstyle:visibilitymodifier")
+public class TodoStats {
+  // The owner or category the todos were grouped by. This is called `_id`
+  // to match the results of a MongoDB `$group`, like in `UserByCompany`.
+  @SuppressWarnings("checkstyle:membername")
+  public String _id;
+  public int total;
+  public int complete;
+  public int incomplete;
+  public double completionRate;
+}
@@ -0,0 +1,26 @@
+package umm3601.todo;
+
+/**
+ * A todo along with the profile of its owner (or `null` if there's no
+ * user with the owner's name), as returned by
+ * `TodoController#getTodosWithOwners`.
+ */
+@SuppressWarnings("checkstyle:visibilitymodifier")
+public class TodoWithOwner {
+  @SuppressWarnings("checkstyle:membername")
+  public String _id;
+  public String owner;
+  public boolean status;
+  public String body;
+  public String category;
+  public OwnerProfile ownerProfile;
+
+  public TodoWithOwner(Todo todo, OwnerProfile ownerProfile) {
+    this._id = todo._id;
+    this.owner = todo.owner;
+    this.status = todo.status;
+    this.body = todo.body;
+    this.category = todo.category;
+    this.ownerProfile = ownerProfile;
+  }
+}
@@ -2,33 +2,72 @@ package umm3601.user;
 
 import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.in;
 import static com.mongodb.client.model.Filters.regex;
+import static com.mongodb.client.model.Projections.include;
 
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.regex.Pattern;
 
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 import org.bson.UuidRepresentation;
 import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 import org.mongojack.JacksonMongoCollection;
 
+import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
 import com.mongodb.client.model.Sorts;
-import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
 
 import io.javalin.Javalin;
 import io.javalin.http.BadRequestResponse;
 import io.javalin.http.Context;
+import io.javalin.http.Handler;
 import io.javalin.http.HttpStatus;
 import io.javalin.http.NotFoundResponse;
+import io.javalin.http.sse.SseClient;
+import io.javalin.validation.ValidationException;
+import umm3601.BulkChunks;
+import umm3601.CircuitBreaker;
+import umm3601.ConditionalGet;
+import umm3601.ContentNegotiation;
 import umm3601.Controller;
+import umm3601.FacetCount;
+import umm3601.FacetedResults;
+import umm3601.GroupCommitWriter;
+import umm3601.IdempotencyKeys;
+import umm3601.MultiGetResults;
+import umm3601.PartialResults;
+import umm3601.RawDocuments;
+import umm3601.StaleWhileRevalidate;
+import umm3601.TimeBudget;
+import umm3601.UpdateValidator;
+import umm3601.changes.ChangeFeed;
+import umm3601.changes.ChangeLog;
+import umm3601.changes.ChangeSet;
+import umm3601.export.Exporter;
+import umm3601.wal.DurableInserter;
+import umm3601.wal.WriteAheadLog;
+import umm3601.index.BkTree;
+import umm3601.index.FuzzyMatch;
+import umm3601.index.IndexedFilter;
+import umm3601.index.PrefixIndex;
+import umm3601.index.RoaringBitmap;
 
 /**
  * Controller that manages requests for info about users.
@@ -37,17 +76,71 @@ public class UserController implements Controller {
 
   private static final String API_USERS = "/api/users";
   private static final String API_USER_BY_ID = "/api/users/{id}";
+  private static final String API_USER_COUNT = "/api/users/count";
+  private static final String API_USER_EXPORT = "/api/users/export";
+  private static final String API_USER_CHANGES = "/api/users/changes";
+  private static final String API_USER_EVENTS = "/api/users/events";
+  private static final String API_SIMILAR_COMPANIES = "/api/users/companies/similar";
+  private static final int DEFAULT_SIMILAR_LIMIT = 10;
   static final String AGE_KEY = "age";
   static final String COMPANY_KEY = "company";
   static final String ROLE_KEY = "role";
   static final String SORT_ORDER_KEY = "sortorder";
+  static final String FACETS_KEY = "facets";
+  static final String DRY_RUN_KEY = "dryRun";
+  static final String IDS_KEY = "ids";
+  // The query parameters `constructFilter` filters on
+  private static final List<String> FILTER_KEYS = List.of(AGE_KEY, COMPANY_KEY, ROLE_KEY);
+  // The fields of a `User`, which is all `getUsers` sends
+  private static final List<String> USER_FIELDS = List.of("name", AGE_KEY, COMPANY_KEY, "email", "avatar", ROLE_KEY);
 
   private static final int REASONABLE_AGE_LIMIT = 150;
   private static final String ROLE_REGEX = "^(admin|editor|viewer)$";
+  // The lower bounds of the age buckets in the `age` facet
+  private static final List<Integer> AGE_BUCKETS = List.of(0, 20, 30, 40, 50, 60, REASONABLE_AGE_LIMIT);
+  // The `sortBy`s `getUsersGroupedByCompany` can sort the cached groups by
+  private static final Set<String> CACHED_COMPANY_SORTS = Set.of("_id", "count");
   public static final String EMAIL_REGEX = "^[a-zA-Z0-9_!#$%&'*+/=?`{|}~^.-]+@[a-zA-Z0-9.-]+$";
 
   private final JacksonMongoCollection<User> userCollection;
 
+  // How new users are inserted: one at a time, unless `enableGroupCommit` is called
+  private Consumer<User> userInserter;
+
+  // Logs new users while MongoDB is unavailable, if `enableWriteAheadLog` is called
+  private DurableInserter<User> userLog;
+
+  // Answers retried writes with the original response (see `addRoutes`)
+  private IdempotencyKeys idempotencyKeys =
+      new IdempotencyKeys(IdempotencyKeys.DEFAULT_MAX_KEYS, IdempotencyKeys.DEFAULT_TTL);
+
+  // Fails fast (or answers reads from a cache) while MongoDB is down (see `addRoutes`)
+  private CircuitBreaker circuitBreaker = new CircuitBreaker(CircuitBreaker.DEFAULT_FAILURE_THRESHOLD,
+      CircuitBreaker.DEFAULT_OPEN_DURATION, CircuitBreaker.DEFAULT_MAX_STALE_BYTES);
+
+  // The users grouped by company, for `/api/usersByCompany`, if `enableStaleWhileRevalidate` is called
+  private StaleWhileRevalidate<CompanyGroups> usersByCompany;
+  // How long each recompute of that grouping can run for, or zero for no limit
+  private Duration usersByCompanyBudget;
+
+  // The same collection, as plain documents, for the facet counts
+  private final MongoCollection<Document> userDocuments;
+
+  // And as undecoded BSON, to write straight into `getUsers` responses
+  private final MongoCollection<RawBsonDocument> rawUsers;
+
+  // Streams users out for `/api/users/export`
+  private final Exporter userExporter;
+
+  // The users added and deleted through the API, for `/api/users/changes`
+  private final ChangeLog userChanges = new ChangeLog();
+
+  // Pushes those same changes to `/api/users/events` subscribers as they happen
+  private final ChangeFeed<User> userFeed = new ChangeFeed<>();
+
+  // Bitmap indexes on `company` and `role`
+  private final UserIndex userIndex;
+
   /**
    * Construct a controller for users.
    *
@@ -59,6 +152,11 @@ public class UserController implements Controller {
         "users",
         User.class,
         UuidRepresentation.STANDARD);
+    userInserter = userCollection::insertOne;
+    userDocuments = database.getCollection("users");
+    rawUsers = database.getCollection("users", RawBsonDocument.class);
+    userExporter = new Exporter(userDocuments, List.of("name", AGE_KEY, COMPANY_KEY, "email", "avatar", ROLE_KEY));
+    userIndex = UserIndex.load(userCollection);
   }
 
   /**
@@ -68,18 +166,21 @@ public class UserController implements Controller {
    * @param ctx a Javalin HTTP context
    */
   public void getUser(Context ctx) {
+    if (ConditionalGet.notModified(ctx, userChanges)) {
+      return;
+    }
     String id = ctx.pathParam("id");
     User user;
 
     try {
-      user = userCollection.find(eq("_id", new ObjectId(id))).first();
+      user = TimeBudget.of(ctx).limit(userCollection.find(eq("_id", new ObjectId(id)))).first();
     } catch (IllegalArgumentException e) {
       throw new BadRequestResponse("The requested user id wasn't a legal Mongo Object ID.");
     }
     if (user == null) {
       throw new NotFoundResponse("The requested user was not found");
     } else {
-      ctx.json(user);
+      ContentNegotiation.respond(ctx, user);
       ctx.status(HttpStatus.OK);
     }
   }
@@ -88,28 +189,84 @@ public class UserController implements Controller {
    * Set the JSON body of the response to be a list of all the users returned from the database
    * that match any requested filters and ordering
    *
+   * If the `facets` query parameter is `true`, the body is instead an object
+   * with the list of users as `results`, and the number of matching users
+   * by role, company, and age (in buckets of ten years or so, labeled by
+   * their lower bound) as `facets`.
+   *
+   * With the `ids` query parameter (e.g., `?ids=a,b,c`), the body is instead
+   * just those users, in that order, along with the `_id`s that weren't
+   * found (see `MultiGetResults`), and the other parameters are ignored.
+   *
+   * With `partial=true` (and no `facets`), the body is instead the users
+   * MongoDB could find within the request's time budget, as `results`, and a
+   * cursor for the rest, if there are any, as `next` (see `PartialResults`).
+   *
+   * Like `getUser` and `getUsersGroupedByCompany`, this sets an `ETag`, and
+   * answers a matching `If-None-Match` with a `304` without querying
+   * (see `ConditionalGet`).
+   *
    * @param ctx a Javalin HTTP context
    */
   public void getUsers(Context ctx) {
-    Bson combinedFilter = constructFilter(ctx);
+    if (ConditionalGet.notModified(ctx, userChanges)) {
+      return;
+    }
+    if (ctx.queryParamMap().containsKey(IDS_KEY)) {
+      ContentNegotiation.respond(ctx,
+          MultiGetResults.fetch(userCollection, ctx.queryParam(IDS_KEY), user -> user._id, "user"));
+      ctx.status(HttpStatus.OK);
+      return;
+    }
+
+    IndexedFilter filter = constructFilter(ctx);
     Bson sortingOrder = constructSortingOrder(ctx);
 
-    // All three of the find, sort, and into steps happen "in parallel" inside the
-    // database system. So MongoDB is going to find the users with the specified
-    // properties, return those sorted in the specified manner, and put the
-    // results into an initially empty ArrayList.
-    ArrayList<User> matchingUsers = userCollection
-      .find(combinedFilter)
-      .sort(sortingOrder)
-      .into(new ArrayList<>());
+    // If the bitmap indexes narrowed things down to a few users, look those
+    // up by `_id`, still with the filter, in case any have been changed some
+    // other way since the indexes were loaded (see `IndexedFilter`).
+    Bson combinedFilter = filter.isSelective(userIndex.size())
+      ? and(in("_id", userIndex.ids(filter.matches())), filter.filter())
+      : filter.filter();
+
+    // Explicitly set the context status to OK
+    ctx.status(HttpStatus.OK);
 
     // Set the JSON body of the response to be the list of users returned by the database.
     // According to the Javalin documentation (https://javalin.io/documentation#context),
     // this calls result(jsonString), and also sets content type to json
-    ctx.json(matchingUsers);
+    if (Boolean.parseBoolean(ctx.queryParam(FACETS_KEY))) {
+      // All three of the find, sort, and into steps happen "in parallel" inside the
+      // database system. So MongoDB is going to find the users with the specified
+      // properties, return those sorted in the specified manner, and put the
+      // results into an initially empty ArrayList.
+      ArrayList<User> matchingUsers = TimeBudget.of(ctx).limit(userCollection
+        .find(combinedFilter)
+        .sort(sortingOrder))
+        .into(new ArrayList<>());
 
-    // Explicitly set the context status to OK
-    ctx.status(HttpStatus.OK);
+      // All the facets are counted by a single `$facet` aggregation
+      Map<String, List<FacetCount>> facets = FacetedResults.countFacets(userDocuments, combinedFilter, Map.of(
+        ROLE_KEY, FacetedResults.countBy("$" + ROLE_KEY),
+        COMPANY_KEY, FacetedResults.countBy("$" + COMPANY_KEY),
+        AGE_KEY, List.of(new Document("$bucket", new Document("groupBy", "$" + AGE_KEY)
+          .append("boundaries", AGE_BUCKETS)
+          .append("default", "other")
+          .append("output", new Document("count", new Document("$sum", 1)))))), TimeBudget.of(ctx));
+      ContentNegotiation.respond(ctx, new FacetedResults<>(matchingUsers, facets));
+    } else if (PartialResults.requested(ctx)) {
+      // As many as MongoDB can find in time, and a cursor for the rest (see `PartialResults`)
+      PartialResults.respond(ctx, rawUsers, combinedFilter, USER_FIELDS,
+        Objects.requireNonNullElse(ctx.queryParam("sortby"), "name"), "desc".equals(ctx.queryParam("sortorder")),
+        null);
+    } else {
+      // Without the facets, we don't need `User`s at all, and the users'
+      // BSON is written straight into the response (see `RawDocuments`)
+      RawDocuments.respond(ctx, TimeBudget.of(ctx).limit(rawUsers
+        .find(combinedFilter)
+        .sort(sortingOrder)
+        .projection(include(USER_FIELDS))));
+    }
   }
 
   /**
@@ -120,13 +277,19 @@ public class UserController implements Controller {
    * parameters and constructs a filter document that will match users with
    * the specified values for those fields.
    *
+   * The `company` and `role` filters are also applied to the bitmap
+   * indexes, so if there's no `age` filter we know which users match
+   * without asking MongoDB.
+   *
    * @param ctx a Javalin HTTP context, which contains the query parameters
    *    used to construct the filter
    * @return a Bson filter document that can be used in the `find` method
-   *   to filter the database collection of users
+   *   to filter the database collection of users, along with the matching
+   *   rows of the index if it could answer the query
    */
-  private Bson constructFilter(Context ctx) {
+  private IndexedFilter constructFilter(Context ctx) {
     List<Bson> filters = new ArrayList<>(); // start with an empty list of filters
+    RoaringBitmap matches = userIndex.allRows();
 
     if (ctx.queryParamMap().containsKey(AGE_KEY)) {
       int targetAge = ctx.queryParamAsClass(AGE_KEY, Integer.class)
@@ -135,22 +298,71 @@ public class UserController implements Controller {
           "User's age must be less than " + REASONABLE_AGE_LIMIT + "; you provided " + ctx.queryParam(AGE_KEY))
         .get();
       filters.add(eq(AGE_KEY, targetAge));
+      // `age` isn't indexed
+      matches = null;
     }
     if (ctx.queryParamMap().containsKey(COMPANY_KEY)) {
       Pattern pattern = Pattern.compile(Pattern.quote(ctx.queryParam(COMPANY_KEY)), Pattern.CASE_INSENSITIVE);
       filters.add(regex(COMPANY_KEY, pattern));
+      if (matches != null) {
+        matches = matches.and(userIndex.companiesMatching(company -> pattern.matcher(company).find()));
+      }
     }
     if (ctx.queryParamMap().containsKey(ROLE_KEY)) {
       String role = ctx.queryParamAsClass(ROLE_KEY, String.class)
         .check(it -> it.matches(ROLE_REGEX), "User must have a legal user role")
         .get();
       filters.add(eq(ROLE_KEY, role));
+      if (matches != null) {
+        matches = matches.and(userIndex.withRole(role));
+      }
     }
 
     // Combine the list of filters into a single filtering document.
     Bson combinedFilter = filters.isEmpty() ? new Document() : and(filters);
 
-    return combinedFilter;
+    return new IndexedFilter(combinedFilter, matches != null && indexesAreCurrent() ? matches : null);
+  }
+
+  // The indexes only see the writes made through this server, so if the
+  // collection has a different number of users (e.g., after a reseed) we
+  // let MongoDB answer instead (see `IndexedFilter`)
+  private boolean indexesAreCurrent() {
+    return userDocuments.estimatedDocumentCount() == userIndex.size();
+  }
+
+  /**
+   * Construct a test for whether a single user matches the same query
+   * parameters (with the same validation) as `constructFilter`. This is
+   * for the users pushed to `/api/users/events` subscribers, which don't
+   * go through MongoDB.
+   *
+   * @param ctx a Javalin HTTP context, which contains the query parameters
+   * @return a predicate that is true for the users that match the filters
+   */
+  private Predicate<User> constructPredicate(Context ctx) {
+    Predicate<User> predicate = user -> true;
+
+    if (ctx.queryParamMap().containsKey(AGE_KEY)) {
+      int targetAge = ctx.queryParamAsClass(AGE_KEY, Integer.class)
+        .check(it -> it > 0, "User's age must be greater than zero; you provided " + ctx.queryParam(AGE_KEY))
+        .check(it -> it < REASONABLE_AGE_LIMIT,
+          "User's age must be less than " + REASONABLE_AGE_LIMIT + "; you provided " + ctx.queryParam(AGE_KEY))
+        .get();
+      predicate = predicate.and(user -> user.age == targetAge);
+    }
+    if (ctx.queryParamMap().containsKey(COMPANY_KEY)) {
+      Pattern pattern = Pattern.compile(Pattern.quote(ctx.queryParam(COMPANY_KEY)), Pattern.CASE_INSENSITIVE);
+      predicate = predicate.and(user -> user.company != null && pattern.matcher(user.company).find());
+    }
+    if (ctx.queryParamMap().containsKey(ROLE_KEY)) {
+      String role = ctx.queryParamAsClass(ROLE_KEY, String.class)
+        .check(it -> it.matches(ROLE_REGEX), "User must have a legal user role")
+        .get();
+      predicate = predicate.and(user -> role.equals(user.role));
+    }
+
+    return predicate;
   }
 
   /**
@@ -178,6 +390,194 @@ public class UserController implements Controller {
     return sortingOrder;
   }
 
+  /**
+   * Set the JSON body of the response to be the number of users that match
+   * the same filters as `getUsers`, e.g., `{"count": 3}`.
+   *
+   * When there are only `company` and `role` filters, the count is the
+   * cardinality of the intersection of their bitmaps; with an `age`
+   * filter we ask MongoDB to count the matching users.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void countUsers(Context ctx) {
+    ctx.json(Map.of("count", count(constructFilter(ctx), TimeBudget.of(ctx))));
+    ctx.status(HttpStatus.OK);
+  }
+
+  private long count(IndexedFilter filter, TimeBudget budget) {
+    return filter.matches() != null
+      ? filter.matches().cardinality()
+      : userCollection.countDocuments(filter.filter(), budget.countOptions());
+  }
+
+  /**
+   * Set the JSON body of the response to be the companies whose names are
+   * close to the `name` query parameter, best match first, so that, e.g.,
+   * `/api/users/companies/similar?name=OMHNET` finds `OHMNET`.
+   *
+   * @param ctx a Javalin HTTP context, whose query parameters are `name`,
+   *   `distance` (the most edits to allow; default 2, at most 3), and
+   *   `limit` (the most companies to return; default 10)
+   */
+  public void getSimilarCompanies(Context ctx) {
+    String name = ctx.queryParamAsClass("name", String.class).get();
+    int maxDistance = ctx.queryParamAsClass("distance", Integer.class)
+      .check(it -> it >= 0 && it <= BkTree.MAX_DISTANCE,
+        "distance must be between 0 and " + BkTree.MAX_DISTANCE)
+      .getOrDefault(BkTree.DEFAULT_DISTANCE);
+    int limit = ctx.queryParamAsClass("limit", Integer.class)
+      .check(it -> it > 0, "The limit must be a positive integer.")
+      .getOrDefault(DEFAULT_SIMILAR_LIMIT);
+
+    // This comes from the `BkTree` in the index, not from MongoDB
+    List<FuzzyMatch> companies = userIndex.similarCompanies(name, maxDistance);
+
+    ctx.json(companies.subList(0, Math.min(limit, companies.size())));
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * Set the JSON body of the response to be the users added or changed,
+   * and the `_id`s of the users deleted, since the change token in the
+   * `since` query parameter, along with a new token (see `ChangeLog`).
+   *
+   * Without a token, or with a token from before the server restarted,
+   * the response is a "reset" that has all the users.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getUserChanges(Context ctx) {
+    ChangeLog.Changes changes = userChanges.since(ctx.queryParam("since"));
+    List<User> changed;
+    if (changes.reset()) {
+      changed = userCollection.find().into(new ArrayList<>());
+    } else if (changes.changed().isEmpty()) {
+      changed = List.of();
+    } else {
+      changed = userCollection.find(in("_id", changes.changed().stream().map(ObjectId::new).toList()))
+        .into(new ArrayList<>());
+    }
+
+    ctx.json(new ChangeSet<>(changes, changed));
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * Subscribe a Server-Sent Events client to the users added (`insert`
+   * events), changed (`update` events), and deleted (`delete` events)
+   * from now on, with the user as the data of each event. The same filters
+   * as `getUsers` limit which users the client hears about, e.g.,
+   * `/api/users/events?role=admin`.
+   *
+   * The response has already started by the time we look at the query
+   * parameters, so bad ones are reported with an `error` event instead of
+   * a 400, and the stream is closed.
+   *
+   * @param client the SSE client, whose context has the query parameters
+   */
+  public void streamUserEvents(SseClient client) {
+    Predicate<User> filter;
+    try {
+      filter = constructPredicate(client.ctx());
+    } catch (ValidationException e) {
+      client.sendEvent("error", e.getErrors());
+      return;
+    }
+    userFeed.subscribe(client, filter);
+  }
+
+  /**
+   * Stream all the users matching the same filters as `getUsers` into the
+   * response, as NDJSON or CSV, without holding them all in memory.
+   *
+   * @param ctx a Javalin HTTP context; besides the filters, the query
+   *   parameters are `format` (`ndjson`, the default, or `csv`) and
+   *   `parallel` (how many cursors to read with, default 1; see `Exporter`)
+   */
+  public void exportUsers(Context ctx) {
+    userExporter.export(ctx, constructFilter(ctx).filter());
+  }
+
+  /**
+   * Batch the inserts from `addNewUser` that arrive at about the same time
+   * into one `insertMany` (see `GroupCommitWriter`). Each request still
+   * waits for its own user to be written, and fails if it isn't.
+   *
+   * @param maxBatchSize the most users in one `insertMany`
+   * @param window how long to wait for more users after the first one in a batch
+   */
+  public void enableGroupCommit(int maxBatchSize, Duration window) {
+    userInserter = new GroupCommitWriter<>(userCollection, maxBatchSize, window)::insert;
+  }
+
+  /**
+   * Keep accepting new users from `addNewUser` while MongoDB is unavailable,
+   * by logging them and inserting them once it's back (see `DurableInserter`).
+   * A logged user gets a 202 (Accepted), with the `_id` it will have, instead
+   * of a 201; it shows up in searches and change feeds once it has actually
+   * been inserted. Call this after `enableGroupCommit`, if using both.
+   *
+   * @param log the log for users that can't be inserted yet
+   * @param retryInterval how often to try to insert them while MongoDB is unavailable
+   */
+  public void enableWriteAheadLog(WriteAheadLog log, Duration retryInterval) {
+    userLog = new DurableInserter<>(log, User.class, userInserter, this::userInserted, retryInterval);
+  }
+
+  /**
+   * Use `keys` for the `Idempotency-Key`s of the user writes, instead of
+   * this controller's own in-memory ones (e.g., to keep them in MongoDB, or
+   * share them with the other controllers).
+   *
+   * @param keys the idempotency keys to use
+   */
+  public void useIdempotencyKeys(IdempotencyKeys keys) {
+    idempotencyKeys = keys;
+  }
+
+  /**
+   * Use `breaker` (e.g., shared with the other controllers, since they all
+   * use the same MongoDB) for the user routes, instead of this controller's
+   * own. This has to be called before `addRoutes`.
+   *
+   * @param breaker the circuit breaker to use
+   */
+  public void useCircuitBreaker(CircuitBreaker breaker) {
+    circuitBreaker = breaker;
+  }
+
+  /**
+   * Answer `/api/usersByCompany` from a cached grouping of the users, which
+   * is recomputed in the background once it's older than `softTtl`, so the
+   * aggregation runs about once per `softTtl`, however many requests there
+   * are (see `StaleWhileRevalidate`). Responses can then be up to about
+   * `softTtl` (plus however long the aggregation takes) out of date.
+   *
+   * Each recompute gets a time budget of its own, rather than what's left
+   * of the budget of the request that happened to start it.
+   *
+   * @param softTtl how old the grouping can get before it's recomputed
+   * @param refreshBudget how long each recompute can run for, or zero for
+   *   no limit
+   */
+  public void enableStaleWhileRevalidate(Duration softTtl, Duration refreshBudget) {
+    usersByCompany = new StaleWhileRevalidate<>("usersByCompany", softTtl);
+    usersByCompanyBudget = refreshBudget;
+  }
+
+  /**
+   * The autocomplete indexes for the user fields, keyed by field name. These
+   * are served by `AutocompleteController` at `/api/autocomplete`.
+   *
+   * @return the indexes for `name` and `company`
+   */
+  public Map<String, PrefixIndex> autocompleteIndexes() {
+    return Map.of(
+      "name", userIndex.namePrefixes(),
+      COMPANY_KEY, userIndex.companyPrefixes());
+  }
+
   /**
    * Set the JSON body of the response to be a list of all the user names and IDs
    * returned from the database, grouped by company
@@ -191,6 +591,9 @@ public class UserController implements Controller {
    *   used to sort the results. We support either sorting by company name
    *   (in either `asc` or `desc` order) or by the number of users in the
    *   company (`count`, also in either `asc` or `desc` order).
+   *
+   * If `enableStaleWhileRevalidate` has been called, the company and count
+   * sorts are sorted from a cached grouping, which may be a few seconds old.
    */
   public void getUsersGroupedByCompany(Context ctx) {
     // We'll support sorting the results either by company name (in either `asc` or `desc` order)
@@ -200,8 +603,44 @@ public class UserController implements Controller {
       sortBy = "_id";
     }
     String sortOrder = Objects.requireNonNullElse(ctx.queryParam("sortOrder"), "asc");
-    Bson sortingOrder = sortOrder.equals("desc") ?  Sorts.descending(sortBy) : Sorts.ascending(sortBy);
+    boolean descending = sortOrder.equals("desc");
 
+    if (usersByCompany != null && CACHED_COMPANY_SORTS.contains(sortBy)) {
+      // The aggregation sorts by company, so equal counts stay in company order
+      CompanyGroups groups = usersByCompany.get(() -> {
+        TimeBudget budget = usersByCompanyBudget.isZero()
+          ? TimeBudget.UNLIMITED
+          : TimeBudget.startingNow(usersByCompanyBudget);
+        return new CompanyGroups(userChanges.token(), groupUsersByCompany(Sorts.ascending("_id"), budget));
+      });
+      // Tagged with when the groups were computed, not now, so a client can't
+      // hang on to a stale copy once they've been recomputed
+      if (ConditionalGet.notModified(ctx, groups.token())) {
+        return;
+      }
+      Comparator<UserByCompany> comparator = sortBy.equals("count")
+        ? Comparator.comparingInt(group -> group.count)
+        : Comparator.comparing(group -> group._id, Comparator.nullsFirst(Comparator.naturalOrder()));
+      ArrayList<UserByCompany> sorted = new ArrayList<>(groups.groups());
+      sorted.sort(descending ? comparator.reversed() : comparator);
+      ctx.json(sorted);
+      ctx.status(HttpStatus.OK);
+      return;
+    }
+
+    if (ConditionalGet.notModified(ctx, userChanges)) {
+      return;
+    }
+    Bson sortingOrder = descending ?  Sorts.descending(sortBy) : Sorts.ascending(sortBy);
+    ctx.json(groupUsersByCompany(sortingOrder, TimeBudget.of(ctx)));
+    ctx.status(HttpStatus.OK);
+  }
+
+  // The change token the groups were computed at, and the groups
+  private record CompanyGroups(String token, List<UserByCompany> groups) {
+  }
+
+  private ArrayList<UserByCompany> groupUsersByCompany(Bson sortingOrder, TimeBudget budget) {
     // The `UserByCompany` class is a simple class that has fields for the company
     // name, the number of users in that company, and a list of user names and IDs
     // (using the `UserIdName` class to store the user names and IDs).
@@ -210,7 +649,7 @@ public class UserController implements Controller {
     // names and IDs for each user in each company. We'll then convert the results
     // of the aggregation pipeline to `UserByCompany` objects.
 
-    ArrayList<UserByCompany> matchingUsers = userCollection
+    return budget.limit(userCollection
       // The following aggregation pipeline groups users by company, and
       // then counts the number of users in each company. It also collects
       // the user names and IDs for each user in each company.
@@ -233,11 +672,8 @@ public class UserController implements Controller {
         // (i.e., a list of UserGroupResult objects). It is necessary to have a Java type
         // to convert the results to, and the JacksonMongoCollection will do this for us.
         UserByCompany.class
-      )
+      ))
       .into(new ArrayList<>());
-
-    ctx.json(matchingUsers);
-    ctx.status(HttpStatus.OK);
   }
 
   /**
@@ -263,7 +699,7 @@ public class UserController implements Controller {
      * `BadRequestResponse` with an appropriate error message.
      */
     String body = ctx.body();
-    User newUser = ctx.bodyValidator(User.class)
+    User newUser = ContentNegotiation.bodyValidator(ctx, User.class)
       .check(usr -> usr.name != null && usr.name.length() > 0,
         "User must have a non-empty user name; body was " + body)
       .check(usr -> usr.email.matches(EMAIL_REGEX),
@@ -281,14 +717,29 @@ public class UserController implements Controller {
     // Generate a user avatar (you won't need this part for todos)
     newUser.avatar = generateAvatar(newUser.email);
 
-    // Add the new user to the database
-    userCollection.insertOne(newUser);
+    // Add the new user to the database (or, if MongoDB is unavailable and
+    // there's a write-ahead log, log them to be added once it's back)
+    if (userLog == null) {
+      userInserter.accept(newUser);
+    } else {
+      // The `_id` has to be known now, in case the user is only logged
+      if (newUser._id == null) {
+        newUser._id = new ObjectId().toHexString();
+      }
+      if (!userLog.insert(newUser)) {
+        ContentNegotiation.respond(ctx, Map.of("id", newUser._id));
+        // 202 (`HttpStatus.ACCEPTED`): we have the user, but haven't created it yet
+        ctx.status(HttpStatus.ACCEPTED);
+        return;
+      }
+    }
+    userInserted(newUser);
 
     // Set the JSON response to be the `_id` of the newly created user.
     // This gives the client the opportunity to know the ID of the new user,
     // which it can then use to perform further operations (e.g., a GET request
     // to get and display the details of the new user).
-    ctx.json(Map.of("id", newUser._id));
+    ContentNegotiation.respond(ctx, Map.of("id", newUser._id));
     // 201 (`HttpStatus.CREATED`) is the HTTP code for when we successfully
     // create a new resource (a user in this case).
     // See, e.g., https://developer.mozilla.org/en-US/docs/Web/HTTP/Status
@@ -296,6 +747,175 @@ public class UserController implements Controller {
     ctx.status(HttpStatus.CREATED);
   }
 
+  // Bring the search index and change feeds up to date with a new user
+  private void userInserted(User newUser) {
+    userIndex.add(newUser);
+    userChanges.recordChange(newUser._id);
+    userFeed.publish(ChangeFeed.Type.INSERT, newUser);
+  }
+
+  /**
+   * Change some of the fields of the user specified by the `id` parameter
+   * in the request, e.g., `PATCH /api/users/{id}` with `{"role": "editor"}`.
+   *
+   * The new values have to follow the same rules as in `addNewUser`, and
+   * changing the email also changes the avatar. The JSON body of the
+   * response is just the `_id` and the fields that changed, not the
+   * whole user.
+   *
+   * @param ctx a Javalin HTTP context with the changes in the JSON body
+   *   of the request
+   */
+  public void updateUser(Context ctx) {
+    String id = ctx.pathParam("id");
+    ObjectId objectId;
+    try {
+      objectId = new ObjectId(id);
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestResponse("The requested user id wasn't a legal Mongo Object ID.");
+    }
+    Document changes = validateUpdate(ctx.body());
+
+    User updatedUser = userCollection.findOneAndUpdate(eq("_id", objectId), new Document("$set", changes),
+      new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER));
+    if (updatedUser == null) {
+      throw new NotFoundResponse("The requested user was not found");
+    }
+    // Re-index the user under its new values
+    userIndex.replace(updatedUser);
+    userChanges.recordChange(id);
+    userFeed.publish(ChangeFeed.Type.UPDATE, updatedUser);
+
+    Document response = new Document("_id", id);
+    response.putAll(changes);
+    ctx.json(response);
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * Check the JSON body of an update against the same rules as
+   * `addNewUser`. If the email changes, so does the avatar.
+   *
+   * @param body the JSON body of the request
+   * @return the fields to change, with their new values
+   */
+  private Document validateUpdate(String body) {
+    Document changes = UpdateValidator.of(body, "User")
+      .check("name", UpdateValidator::isNonEmptyString, "User must have a non-empty user name")
+      .check("email", email -> email instanceof String string && string.matches(EMAIL_REGEX),
+        "User must have a legal email")
+      .check(AGE_KEY, age -> age instanceof Integer number && number > 0,
+        "User's age must be greater than zero")
+      .check(AGE_KEY, age -> age instanceof Integer number && number < REASONABLE_AGE_LIMIT,
+        "User's age must be less than " + REASONABLE_AGE_LIMIT)
+      .check(ROLE_KEY, role -> role instanceof String string && string.matches(ROLE_REGEX),
+        "User must have a legal user role")
+      .check(COMPANY_KEY, UpdateValidator::isNonEmptyString, "User must have a non-empty company name")
+      .get();
+    if (changes.containsKey("email")) {
+      changes.append("avatar", generateAvatar(changes.getString("email")));
+    }
+    return changes;
+  }
+
+  /**
+   * Apply the same changes to every user matching the same filters as
+   * `getUsers`, e.g., `PATCH /api/users?company=OHMNET` with
+   * `{"company": "Frogs Inc"}`.
+   *
+   * The users are updated in chunks of `_id`s (see `BulkChunks`) so that
+   * no single write locks too many of them. With `dryRun=true` nothing is
+   * changed.
+   *
+   * @param ctx a Javalin HTTP context; the JSON body of the response is
+   *   the number of users that matched and were modified, e.g.,
+   *   `{"matched": 2, "modified": 2, "dryRun": false}`
+   */
+  public void updateUsers(Context ctx) {
+    IndexedFilter filter = constructBulkFilter(ctx);
+    Document changes = validateUpdate(ctx.body());
+    boolean dryRun = Boolean.parseBoolean(ctx.queryParam(DRY_RUN_KEY));
+
+    long[] matched = {0};
+    long[] modified = {0};
+    if (dryRun) {
+      matched[0] = count(filter, TimeBudget.of(ctx));
+    } else {
+      BulkChunks.forEachChunk(userDocuments, filter.filter(), BulkChunks.CHUNK_SIZE, ids -> {
+        // Still with the filter, so a user changed since the chunk was read isn't updated if they no longer match.
+        // The changes can stop them matching, so note which do before updating them.
+        Bson chunk = and(in("_id", ids), filter.filter());
+        List<ObjectId> matching = userDocuments.find(chunk).projection(include("_id"))
+          .map(document -> document.getObjectId("_id"))
+          .into(new ArrayList<>());
+        UpdateResult result = userDocuments.updateMany(and(in("_id", matching), filter.filter()),
+          new Document("$set", changes));
+        matched[0] += result.getMatchedCount();
+        modified[0] += result.getModifiedCount();
+        for (User user : userCollection.find(in("_id", matching))) {
+          userIndex.replace(user);
+          userChanges.recordChange(user._id);
+          userFeed.publish(ChangeFeed.Type.UPDATE, user);
+        }
+      });
+    }
+
+    ctx.json(Map.of("matched", matched[0], "modified", modified[0], DRY_RUN_KEY, dryRun));
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * Delete every user matching the same filters as `getUsers`, e.g.,
+   * `DELETE /api/users?company=OHMNET` when a company leaves, in chunks
+   * like `updateUsers`. With `dryRun=true` nothing is deleted.
+   *
+   * @param ctx a Javalin HTTP context; the JSON body of the response is
+   *   the number of users that matched and were deleted, e.g.,
+   *   `{"matched": 2, "deleted": 2, "dryRun": false}`
+   */
+  public void deleteUsers(Context ctx) {
+    IndexedFilter filter = constructBulkFilter(ctx);
+    boolean dryRun = Boolean.parseBoolean(ctx.queryParam(DRY_RUN_KEY));
+
+    long[] matched = {0};
+    long[] deleted = {0};
+    if (dryRun) {
+      matched[0] = count(filter, TimeBudget.of(ctx));
+    } else {
+      BulkChunks.forEachChunk(userDocuments, filter.filter(), BulkChunks.CHUNK_SIZE, ids -> {
+        matched[0] += ids.size();
+        // Still with the filter, so a user changed since the chunk was read isn't deleted if they no longer match
+        Bson chunk = and(in("_id", ids), filter.filter());
+        // Read the users first, so `/api/users/events` subscribers can tell if they care
+        List<User> users = userCollection.find(chunk).into(new ArrayList<>());
+        deleted[0] += userDocuments.deleteMany(chunk).getDeletedCount();
+        for (User user : users) {
+          userIndex.remove(user._id);
+          userChanges.recordDelete(user._id);
+          userFeed.publish(ChangeFeed.Type.DELETE, user);
+        }
+      });
+    }
+
+    ctx.json(Map.of("matched", matched[0], "deleted", deleted[0], DRY_RUN_KEY, dryRun));
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * The same filter as `constructFilter`, for the bulk updates and
+   * deletes. These need at least one filter, so that a forgotten query
+   * parameter can't change or delete every user.
+   *
+   * @param ctx a Javalin HTTP context, which contains the query parameters
+   * @return the filter
+   */
+  private IndexedFilter constructBulkFilter(Context ctx) {
+    if (FILTER_KEYS.stream().noneMatch(ctx.queryParamMap()::containsKey)) {
+      throw new BadRequestResponse("Bulk updates and deletes need at least one of the filters " + FILTER_KEYS);
+    }
+    return constructFilter(ctx);
+  }
+
   /**
    * Delete the user specified by the `id` parameter in the request.
    *
@@ -303,15 +923,21 @@ public class UserController implements Controller {
    */
   public void deleteUser(Context ctx) {
     String id = ctx.pathParam("id");
-    DeleteResult deleteResult = userCollection.deleteOne(eq("_id", new ObjectId(id)));
+    // Get the deleted user back, so `/api/users/events` subscribers
+    // can tell whether it matches their filters
+    User deletedUser = userCollection.findOneAndDelete(eq("_id", new ObjectId(id)));
     // We should have deleted 1 or 0 users, depending on whether `id` is a valid user ID.
-    if (deleteResult.getDeletedCount() != 1) {
+    if (deletedUser == null) {
       ctx.status(HttpStatus.NOT_FOUND);
       throw new NotFoundResponse(
         "Was unable to delete ID "
           + id
           + "; perhaps illegal ID or an ID for an item not in the system?");
     }
+    userIndex.remove(id);
+    // Leave a tombstone so clients syncing with `/api/users/changes` find out
+    userChanges.recordDelete(id);
+    userFeed.publish(ChangeFeed.Type.DELETE, deletedUser);
     ctx.status(HttpStatus.OK);
   }
 
@@ -362,15 +988,33 @@ public class UserController implements Controller {
    * and the addRoutes method adds the routes to this controller.
    *
    * These endpoints are:
+   *   - `GET /api/users/count?company=STRING&role=STRING`
+   *       - Count the users matching the same filters as `GET /api/users`
+   *   - `GET /api/users/export?format=ndjson|csv&parallel=NUMBER`
+   *       - Stream the users matching the same filters as `GET /api/users`
+   *   - `GET /api/users/changes?since=TOKEN`
+   *       - The users added, changed, or deleted since the token
+   *   - `GET /api/users/events?age=NUMBER&company=STRING&role=STRING`
+   *       - Server-Sent Events for the users added, changed, or deleted from now on
    *   - `GET /api/users/:id`
    *       - Get the specified user
    *   - `GET /api/users?age=NUMBER&company=STRING&name=STRING`
    *      - List users, filtered using query parameters
    *      - `age`, `company`, and `name` are optional query parameters
+   *   - `GET /api/users?ids=ID,ID,ID`
+   *      - Get several users at once, in the order given
+   *   - `GET /api/users/companies/similar?name=STRING`
+   *      - Companies with names close to (possibly misspelled) `name`
    *   - `GET /api/usersByCompany`
    *     - Get user names and IDs, possibly filtered, grouped by company
+   *   - `PATCH /api/users/:id`
+   *      - Change some of the fields of the specified user
+   *   - `PATCH /api/users?age=NUMBER&company=STRING&role=STRING&dryRun=BOOLEAN`
+   *      - Change some of the fields of all the matching users
    *   - `DELETE /api/users/:id`
    *      - Delete the specified user
+   *   - `DELETE /api/users?age=NUMBER&company=STRING&role=STRING&dryRun=BOOLEAN`
+   *      - Delete all the matching users
    *   - `POST /api/users`
    *      - Create a new user
    *      - The user info is in the JSON body of the HTTP request
@@ -386,20 +1030,49 @@ public class UserController implements Controller {
    */
   @Override
   public void addRoutes(Javalin server) {
-    // Get the specified user
-    server.get(API_USER_BY_ID, this::getUser);
+    // Count the users matching the filters; Javalin uses the first route
+    // that matches, so this has to come before `/api/users/{id}`
+    server.get(API_USER_COUNT, this::countUsers);
+
+    // Stream the users out as NDJSON or CSV; this also has to come before `/api/users/{id}`
+    server.get(API_USER_EXPORT, this::exportUsers);
+
+    // Changes since a change token; this also has to come before `/api/users/{id}`
+    server.get(API_USER_CHANGES, this::getUserChanges);
+
+    // Live Server-Sent Events for new and deleted users; this also has to come before `/api/users/{id}`
+    server.sse(API_USER_EVENTS, this::streamUserEvents);
+
+    // Get the specified user; while MongoDB is down, this and the grouped
+    // users get the last response to the same request, marked as stale,
+    // and the writes fail fast (see `CircuitBreaker`)
+    server.get(API_USER_BY_ID, circuitBreaker.withFallback(this::getUser));
 
     // List users, filtered using query parameters
     server.get(API_USERS, this::getUsers);
 
+    // Typo-tolerant lookup of company names
+    server.get(API_SIMILAR_COMPANIES, this::getSimilarCompanies);
+
     // Get the users, possibly filtered, grouped by company
-    server.get("/api/usersByCompany", this::getUsersGroupedByCompany);
+    server.get("/api/usersByCompany", circuitBreaker.withFallback(this::getUsersGroupedByCompany));
 
     // Add new user with the user info being in the JSON body
-    // of the HTTP request
-    server.post(API_USERS, this::addNewUser);
+    // of the HTTP request. This, and the bulk changes and deletes below,
+    // can be retried with an `Idempotency-Key` header (see `IdempotencyKeys`).
+    // New users don't fail fast with a write-ahead log, which takes them
+    // while MongoDB is down
+    Handler addUser = ctx -> idempotencyKeys.handle(ctx, this::addNewUser);
+    server.post(API_USERS, userLog == null ? circuitBreaker.protect(addUser) : addUser);
+
+    // Change some of the fields of the specified user
+    server.patch(API_USER_BY_ID, circuitBreaker.protect(this::updateUser));
+
+    // Change or delete all the users matching the filters in the query parameters
+    server.patch(API_USERS, circuitBreaker.protect(ctx -> idempotencyKeys.handle(ctx, this::updateUsers)));
+    server.delete(API_USERS, circuitBreaker.protect(ctx -> idempotencyKeys.handle(ctx, this::deleteUsers)));
 
     // Delete the specified user
-    server.delete(API_USER_BY_ID, this::deleteUser);
+    server.delete(API_USER_BY_ID, circuitBreaker.protect(this::deleteUser));
   }
 }
@@ -0,0 +1,234 @@
+package umm3601.user;
+
+import static com.mongodb.client.model.Projections.include;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+
+import org.bson.types.ObjectId;
+
+import com.mongodb.client.MongoCollection;
+
+import umm3601.index.BitmapIndex;
+import umm3601.index.BkTree;
+import umm3601.index.FuzzyMatch;
+import umm3601.index.PrefixIndex;
+import umm3601.index.RoaringBitmap;
+
+/**
+ * In-memory bitmap indexes on the low-cardinality user fields we filter
+ * on, `company` and `role`.
+ *
+ * Each user is given a row number when it's added, and the indexes map
+ * each company and role to the rows of the users that have it. Filters on
+ * those fields are then bitmap intersections, and counting the matching
+ * users is a popcount (see `UserController#countUsers`). There's also a
+ * `BkTree` of the company names for typo-tolerant lookups, and a
+ * `PrefixIndex` of the names and of the companies for autocompletion.
+ *
+ * Row numbers aren't reused: deleting a user just removes its row from
+ * the indexes (and from the set of live rows).
+ *
+ * The index is loaded from MongoDB when the `UserController` is created,
+ * and kept current by `UserController#addNewUser` and
+ * `UserController#deleteUser`.
+ */
+public class UserIndex {
+
+  static final String COMPANY_KEY = "company";
+  static final String ROLE_KEY = "role";
+  static final String NAME_KEY = "name";
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  // The (partial) user in each row; only the indexed fields are loaded
+  private final List<User> users = new ArrayList<>();
+  private final Map<String, Integer> rowsById = new HashMap<>();
+  private final RoaringBitmap rows = new RoaringBitmap();
+  private final BitmapIndex companyIndex = new BitmapIndex();
+  private final BitmapIndex roleIndex = new BitmapIndex();
+  private final BkTree companyNames = new BkTree();
+  private final PrefixIndex namePrefixes = new PrefixIndex();
+  private final PrefixIndex companyPrefixes = new PrefixIndex();
+
+  /**
+   * Load the indexes from the user collection, only asking MongoDB for
+   * the indexed fields.
+   *
+   * @param userCollection the collection of users
+   * @return an index of every user in the collection
+   */
+  public static UserIndex load(MongoCollection<User> userCollection) {
+    UserIndex index = new UserIndex();
+    for (User user : userCollection.find().projection(include(NAME_KEY, COMPANY_KEY, ROLE_KEY))) {
+      index.add(user);
+    }
+    return index;
+  }
+
+  /**
+   * Add a user to the indexes.
+   *
+   * @param user the user to add
+   */
+  public void add(User user) {
+    lock.writeLock().lock();
+    try {
+      int row = users.size();
+      users.add(user);
+      rowsById.put(user._id, row);
+      rows.add(row);
+      companyIndex.add(user.company, row);
+      companyNames.add(user.company);
+      namePrefixes.add(user.name);
+      companyPrefixes.add(user.company);
+      roleIndex.add(user.role, row);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Remove a user from the indexes. Nothing happens if there's no
+   * user with that `_id`.
+   *
+   * @param id the `_id` of the user to remove
+   */
+  public void remove(String id) {
+    lock.writeLock().lock();
+    try {
+      Integer row = rowsById.remove(id);
+      if (row != null) {
+        rows.remove(row);
+        companyIndex.remove(row);
+        roleIndex.remove(row);
+        namePrefixes.remove(users.get(row).name);
+        companyPrefixes.remove(users.get(row).company);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Replace a user in the indexes with their new values, in one step,
+   * so a concurrent lookup sees either the old user or the new one, and
+   * never neither.
+   *
+   * @param user the user's new values
+   */
+  public void replace(User user) {
+    lock.writeLock().lock();
+    try {
+      remove(user._id);
+      add(user);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @return the number of users in the index
+   */
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return rows.cardinality();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return the rows of all the users
+   */
+  public RoaringBitmap allRows() {
+    lock.readLock().lock();
+    try {
+      return new RoaringBitmap().or(rows);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @param test a test for company names
+   * @return the rows of the users whose companies pass the test
+   */
+  public RoaringBitmap companiesMatching(Predicate<String> test) {
+    lock.readLock().lock();
+    try {
+      return companyIndex.matching(test);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @param role a user role
+   * @return the rows of the users with that role
+   */
+  public RoaringBitmap withRole(String role) {
+    lock.readLock().lock();
+    try {
+      return new RoaringBitmap().or(roleIndex.get(role));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Find the companies whose names are within a few edits of `query`.
+   * Companies whose users have all been deleted are left out.
+   *
+   * @param query a (possibly misspelled) company name
+   * @param maxDistance the largest edit distance to accept
+   * @return the matching companies, best match first, with their user counts
+   */
+  public List<FuzzyMatch> similarCompanies(String query, int maxDistance) {
+    lock.readLock().lock();
+    try {
+      return companyNames.search(query, maxDistance, company -> companyIndex.get(company).cardinality());
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return the autocomplete index of the users' names
+   */
+  public PrefixIndex namePrefixes() {
+    return namePrefixes;
+  }
+
+  /**
+   * @return the autocomplete index of the companies
+   */
+  public PrefixIndex companyPrefixes() {
+    return companyPrefixes;
+  }
+
+  /**
+   * @param matches some rows of the index
+   * @return the `_id`s of the users in those rows
+   */
+  public List<ObjectId> ids(RoaringBitmap matches) {
+    lock.readLock().lock();
+    try {
+      List<ObjectId> matchingIds = new ArrayList<>();
+      matches.forEach(row -> {
+        if (users.get(row)._id != null) {
+          matchingIds.add(new ObjectId(users.get(row)._id));
+        }
+      });
+      return matchingIds;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+}
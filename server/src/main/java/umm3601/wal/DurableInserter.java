@@ -0,0 +1,211 @@
+package umm3601.wal;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoException;
+import com.mongodb.MongoNodeIsRecoveringException;
+import com.mongodb.MongoNotPrimaryException;
+import com.mongodb.MongoServerUnavailableException;
+import com.mongodb.MongoSocketException;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.MongoWriteException;
+
+/**
+ * Keeps accepting inserts while MongoDB is unavailable, by logging them to
+ * a `WriteAheadLog` and writing them, in order, once it's back.
+ *
+ *   DurableInserter<Todo> inserter = new DurableInserter<>(log, Todo.class,
+ *       todoCollection::insertOne, todo -> ..., Duration.ofSeconds(1));
+ *   if (inserter.insert(newTodo)) {
+ *     // written to MongoDB
+ *   } else {
+ *     // logged, and will be written later
+ *   }
+ *
+ * While the log is empty, `insert` just inserts. If that fails because
+ * MongoDB can't be reached (rather than, e.g., a duplicate key), the
+ * document is logged instead. From then on, until the log has been
+ * replayed, new documents go straight to the log, so they're written after
+ * the ones before them, and the client doesn't have to wait for another
+ * timeout to find out MongoDB is still down.
+ *
+ * A replay thread writes the logged documents with the same `inserter`,
+ * oldest first, trying again every `retryInterval` while MongoDB is
+ * unavailable, and calls `onReplayed` for each one it writes. A document
+ * MongoDB refuses outright can't be handed back to its client any more, so
+ * it's dropped (and counted in `dropped`), so it doesn't hold up the rest.
+ *
+ * Documents are logged as JSON, so they need their `_id` set before they're
+ * inserted, if the client is to be told what it will be.
+ *
+ * @param <T> the type of the documents
+ */
+public class DurableInserter<T> {
+
+  // The label MongoDB puts on errors after which a write is safe to retry
+  static final String RETRYABLE_WRITE_ERROR = "RetryableWriteError";
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private final WriteAheadLog log;
+  private final Class<T> type;
+  private final Consumer<T> inserter;
+  private final Consumer<T> onReplayed;
+  private final long retryMillis;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition logged = lock.newCondition();
+  private final AtomicLong dropped = new AtomicLong();
+
+  /**
+   * Construct an inserter, and start its replay thread.
+   *
+   * @param log the log for documents that can't be written yet
+   * @param type the type of the documents (to read them back from the log)
+   * @param inserter how to write a document to MongoDB
+   * @param onReplayed what to do once a logged document has been written
+   * @param retryInterval how long to wait before retrying while MongoDB is unavailable
+   */
+  public DurableInserter(WriteAheadLog log, Class<T> type, Consumer<T> inserter, Consumer<T> onReplayed,
+      Duration retryInterval) {
+    this.log = log;
+    this.type = type;
+    this.inserter = inserter;
+    this.onReplayed = onReplayed;
+    this.retryMillis = retryInterval.toMillis();
+    Thread.ofVirtual().name("wal-replay-" + type.getSimpleName()).start(this::replay);
+  }
+
+  /**
+   * Insert a document now if we can, and log it to be inserted later if we can't.
+   *
+   * @param document the document to insert
+   * @return `true` if it was written to MongoDB, `false` if it was logged
+   * @throws MongoException if MongoDB refused the document (e.g., a duplicate key)
+   */
+  public boolean insert(T document) {
+    lock.lock();
+    try {
+      if (!log.isEmpty()) {
+        append(document);
+        return false;
+      }
+    } finally {
+      lock.unlock();
+    }
+    try {
+      inserter.accept(document);
+      return true;
+    } catch (RuntimeException e) {
+      if (!isUnavailable(e)) {
+        throw e;
+      }
+    }
+    lock.lock();
+    try {
+      append(document);
+      return false;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return how many logged documents MongoDB refused when they were replayed
+   */
+  public long dropped() {
+    return dropped.get();
+  }
+
+  // Must hold `lock`
+  private void append(T document) {
+    try {
+      log.append(MAPPER.writeValueAsBytes(document));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    logged.signal();
+  }
+
+  /**
+   * @param e an exception from a MongoDB operation
+   * @return whether it means MongoDB couldn't be reached (so trying again later
+   *   might work), rather than that it refused the document
+   */
+  public static boolean isUnavailable(RuntimeException e) {
+    return e instanceof MongoTimeoutException
+        || e instanceof MongoSocketException
+        || e instanceof MongoServerUnavailableException
+        || e instanceof MongoNotPrimaryException
+        || e instanceof MongoNodeIsRecoveringException
+        || e instanceof MongoException mongoException
+            && mongoException.hasErrorLabel(RETRYABLE_WRITE_ERROR);
+  }
+
+  private void replay() {
+    try {
+      while (true) {
+        if (writeLogged(nextRecord())) {
+          log.advance();
+        } else {
+          Thread.sleep(retryMillis);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private byte[] nextRecord() throws InterruptedException {
+    lock.lock();
+    try {
+      byte[] record = log.peek();
+      while (record == null) {
+        logged.await();
+        record = log.peek();
+      }
+      return record;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Returns `false` if MongoDB is still unavailable, and `true` if the
+  // document can be advanced past, whether or not it was written
+  private boolean writeLogged(byte[] record) {
+    T document;
+    try {
+      document = MAPPER.readValue(record, type);
+    } catch (IOException e) {
+      // E.g., it was logged by a version of the server with a different `type`
+      dropped.incrementAndGet();
+      return true;
+    }
+    try {
+      inserter.accept(document);
+    } catch (MongoWriteException e) {
+      if (e.getError().getCategory() != ErrorCategory.DUPLICATE_KEY) {
+        dropped.incrementAndGet();
+      }
+      // Otherwise it was already written, by a replay that didn't get to
+      // advance past it before the server stopped
+      return true;
+    } catch (RuntimeException e) {
+      if (isUnavailable(e)) {
+        return false;
+      }
+      dropped.incrementAndGet();
+      return true;
+    }
+    onReplayed.accept(document);
+    return true;
+  }
+}
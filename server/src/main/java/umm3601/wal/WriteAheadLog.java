@@ -0,0 +1,313 @@
+package umm3601.wal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * A local, append-only log of records (e.g., new todos that couldn't be
+ * written to MongoDB yet), kept in a directory of memory-mapped segment
+ * files so that it survives the server being restarted.
+ *
+ *   WriteAheadLog log = new WriteAheadLog(dir, WriteAheadLog.DEFAULT_SEGMENT_BYTES,
+ *       FsyncPolicy.INTERVAL, Duration.ofMillis(100));
+ *   log.append(bytes);
+ *   ...
+ *   byte[] oldest = log.peek();
+ *   // ... do something with it, then
+ *   log.advance();
+ *
+ * Records are read back oldest first. Each one is stored as its length, a
+ * CRC-32 of its bytes, and the bytes, so a record that was only partly
+ * written when the server died is recognized (and dropped) when the log is
+ * opened again. A small `checkpoint` file remembers how far `advance` has
+ * got, and segments are deleted once everything in them has been read.
+ *
+ * Appending only copies the record into the mapped segment, so it's about
+ * as fast as copying memory; the `FsyncPolicy` decides when the operating
+ * system is made to write it to disk.
+ */
+public class WriteAheadLog implements Closeable {
+
+  /**
+   * When appended records (and the checkpoint) are forced to disk.
+   */
+  public enum FsyncPolicy {
+    // Before `append` (or `advance`) returns: nothing is lost, even if the machine crashes
+    ALWAYS,
+    // Every `fsyncInterval`: a machine crash can lose up to that much of the log
+    INTERVAL,
+    // Whenever the operating system gets to it (and on `close`): the log still
+    // survives the server crashing, since the mapped pages belong to the OS
+    NEVER
+  }
+
+  public static final int DEFAULT_SEGMENT_BYTES = 16 * 1024 * 1024;
+
+  // Each record starts with its length and CRC-32
+  private static final int HEADER_BYTES = 2 * Integer.BYTES;
+  // The segment and offset of the oldest record that hasn't been advanced past
+  private static final int CHECKPOINT_BYTES = Long.BYTES + Integer.BYTES;
+  private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.wal");
+
+  private final Path directory;
+  private final int segmentBytes;
+  private final FsyncPolicy fsyncPolicy;
+
+  // The mapped segments, from the one being read to the one being written
+  private final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<>();
+  private final MappedByteBuffer checkpoint;
+
+  private long readSegment;
+  private int readOffset;
+  private long writeSegment;
+  private int writeOffset;
+  // The oldest segment written to since the last `flush`
+  private long unflushedSegment;
+
+  private final Thread flusher;
+
+  /**
+   * Open the log in a directory (creating it if need be), picking up where
+   * any log already there left off.
+   *
+   * @param directory the directory for the segment and checkpoint files
+   * @param segmentBytes the size of each segment file (and so the largest record)
+   * @param fsyncPolicy when to force records to disk
+   * @param fsyncInterval how often to force them, for `FsyncPolicy.INTERVAL`
+   * @throws IOException if the files can't be opened or created
+   */
+  public WriteAheadLog(Path directory, int segmentBytes, FsyncPolicy fsyncPolicy, Duration fsyncInterval)
+      throws IOException {
+    if (segmentBytes <= HEADER_BYTES) {
+      throw new IllegalArgumentException("Segments must be bigger than " + HEADER_BYTES + " bytes");
+    }
+    this.directory = Files.createDirectories(directory);
+    this.segmentBytes = segmentBytes;
+    this.fsyncPolicy = fsyncPolicy;
+    this.checkpoint = map(directory.resolve("checkpoint"), CHECKPOINT_BYTES);
+
+    List<Long> existing = existingSegments();
+    if (existing.isEmpty()) {
+      existing = List.of(0L);
+    }
+    long first = existing.get(0);
+    long last = existing.get(existing.size() - 1);
+    for (long segment = first; segment <= last; segment++) {
+      segments.put(segment, map(segmentPath(segment), segmentBytes));
+    }
+
+    readSegment = checkpoint.getLong(0);
+    readOffset = checkpoint.getInt(Long.BYTES);
+    if (readSegment < first || readSegment > last) {
+      readSegment = first;
+      readOffset = 0;
+    }
+    writeSegment = last;
+    writeOffset = recoverEnd(segments.get(last));
+    if (readSegment == writeSegment && readOffset > writeOffset) {
+      readOffset = writeOffset;
+    }
+    unflushedSegment = writeSegment;
+    skipFinishedSegments();
+
+    if (fsyncPolicy == FsyncPolicy.INTERVAL) {
+      long intervalMillis = fsyncInterval.toMillis();
+      flusher = Thread.ofVirtual().name("wal-flush-" + directory.getFileName()).start(() -> {
+        try {
+          while (true) {
+            Thread.sleep(intervalMillis);
+            flush();
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      });
+    } else {
+      flusher = null;
+    }
+  }
+
+  private List<Long> existingSegments() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files
+          .map(file -> SEGMENT_NAME.matcher(file.getFileName().toString()))
+          .filter(Matcher::matches)
+          .map(matcher -> Long.parseLong(matcher.group(1)))
+          .sorted()
+          .toList();
+    }
+  }
+
+  private Path segmentPath(long segment) {
+    return directory.resolve(String.format("segment-%020d.wal", segment));
+  }
+
+  private static MappedByteBuffer map(Path file, int size) throws IOException {
+    try (FileChannel channel = FileChannel.open(file,
+        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      // Mapping past the end of the file grows it (with zeroes)
+      return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+  }
+
+  // Find the end of the last complete record in a segment, and zero
+  // whatever comes after it (i.e., a record that was only partly written)
+  private int recoverEnd(MappedByteBuffer segment) {
+    int offset = 0;
+    for (int length = recordAt(segment, 0); length > 0; length = recordAt(segment, offset)) {
+      offset += HEADER_BYTES + length;
+    }
+    for (int i = offset; i < segmentBytes; i++) {
+      // Only write where we have to, so the rest of the pages stay clean
+      if (segment.get(i) != 0) {
+        segment.put(i, (byte) 0);
+      }
+    }
+    return offset;
+  }
+
+  // The length of the record at an offset in a segment, or 0 if there isn't
+  // a (complete, uncorrupted) record there
+  private int recordAt(MappedByteBuffer segment, int offset) {
+    if (offset + HEADER_BYTES > segmentBytes) {
+      return 0;
+    }
+    int length = segment.getInt(offset);
+    if (length <= 0 || length > segmentBytes - offset - HEADER_BYTES) {
+      return 0;
+    }
+    byte[] payload = new byte[length];
+    segment.get(offset + HEADER_BYTES, payload);
+    return crc(payload) == segment.getInt(offset + Integer.BYTES) ? length : 0;
+  }
+
+  private static int crc(byte[] payload) {
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    return (int) crc.getValue();
+  }
+
+  /**
+   * Add a record to the end of the log.
+   *
+   * @param payload the record
+   */
+  public synchronized void append(byte[] payload) {
+    int recordBytes = HEADER_BYTES + payload.length;
+    if (payload.length == 0 || recordBytes > segmentBytes) {
+      throw new IllegalArgumentException("A record must be between 1 and "
+          + (segmentBytes - HEADER_BYTES) + " bytes; this one was " + payload.length);
+    }
+    if (writeOffset + recordBytes > segmentBytes) {
+      // Start a new segment; the zeroes left at the end of this one tell
+      // readers to move on to the next
+      try {
+        segments.put(writeSegment + 1, map(segmentPath(writeSegment + 1), segmentBytes));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      writeSegment++;
+      writeOffset = 0;
+    }
+    MappedByteBuffer segment = segments.get(writeSegment);
+    segment.put(writeOffset + HEADER_BYTES, payload);
+    segment.putInt(writeOffset + Integer.BYTES, crc(payload));
+    segment.putInt(writeOffset, payload.length);
+    if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+      segment.force(writeOffset, recordBytes);
+    }
+    writeOffset += recordBytes;
+  }
+
+  /**
+   * @return whether every record has been advanced past
+   */
+  public synchronized boolean isEmpty() {
+    return readSegment == writeSegment && readOffset == writeOffset;
+  }
+
+  /**
+   * @return the oldest record that hasn't been advanced past, or `null` if
+   *   the log is empty
+   */
+  public synchronized byte[] peek() {
+    skipFinishedSegments();
+    if (isEmpty()) {
+      return null;
+    }
+    MappedByteBuffer segment = segments.get(readSegment);
+    byte[] payload = new byte[segment.getInt(readOffset)];
+    segment.get(readOffset + HEADER_BYTES, payload);
+    return payload;
+  }
+
+  /**
+   * Move past the oldest record (the one `peek` returns), so it won't be
+   * read again, even after a restart.
+   */
+  public synchronized void advance() {
+    skipFinishedSegments();
+    if (isEmpty()) {
+      throw new IllegalStateException("There are no records to advance past");
+    }
+    readOffset += HEADER_BYTES + segments.get(readSegment).getInt(readOffset);
+    skipFinishedSegments();
+    checkpoint.putLong(0, readSegment);
+    checkpoint.putInt(Long.BYTES, readOffset);
+    if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+      checkpoint.force();
+    }
+  }
+
+  // Delete the segments older than the one being written that have been read to the end
+  private void skipFinishedSegments() {
+    while (readSegment < writeSegment && recordAt(segments.get(readSegment), readOffset) == 0) {
+      segments.remove(readSegment);
+      try {
+        Files.deleteIfExists(segmentPath(readSegment));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      readSegment++;
+      readOffset = 0;
+      checkpoint.putLong(0, readSegment);
+      checkpoint.putInt(Long.BYTES, readOffset);
+    }
+  }
+
+  /**
+   * Force everything appended (and the checkpoint) to disk now.
+   */
+  public synchronized void flush() {
+    for (Map.Entry<Long, MappedByteBuffer> segment : segments.tailMap(unflushedSegment, true).entrySet()) {
+      segment.getValue().force();
+    }
+    checkpoint.force();
+    unflushedSegment = writeSegment;
+  }
+
+  /**
+   * Stop forcing the log to disk in the background, and force it one last time.
+   */
+  @Override
+  public void close() {
+    if (flusher != null) {
+      flusher.interrupt();
+    }
+    flush();
+  }
+}
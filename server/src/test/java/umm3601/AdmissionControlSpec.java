@@ -0,0 +1,208 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.javalin.Javalin;
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.sse.SseClient;
+import umm3601.Bulkheads.RouteClass;
+
+/**
+ * Tests turning requests away with `AdmissionControl`, against a tiny
+ * Javalin server with a route that can be held open.
+ */
+@SuppressWarnings({"MagicNumber"})
+class AdmissionControlSpec {
+
+  private static HttpClient client = HttpClient.newHttpClient();
+
+  private Javalin server;
+  private AdmissionControl admissionControl;
+  private CountDownLatch started;
+  private CountDownLatch streaming;
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  @BeforeEach
+  void startServer() {
+    admissionControl = new AdmissionControl(2, 2, Set.of("/api/events"));
+    started = new CountDownLatch(2);
+    streaming = new CountDownLatch(3);
+    server = Javalin.create();
+    admissionControl.register(server);
+    server.get("/api/held", ctx -> {
+      started.countDown();
+      release.await();
+      ctx.result("done");
+    });
+    server.get("/api/events", ctx -> {
+      streaming.countDown();
+      release.await();
+      ctx.result("streamed");
+    });
+    server.get("/api/quick", ctx -> ctx.result("quick"));
+    server.get("/api/broken", ctx -> {
+      throw new BadRequestResponse("Broken");
+    });
+    server.start(0);
+  }
+
+  @AfterEach
+  void stopServer() {
+    release.countDown();
+    server.stop();
+  }
+
+  private HttpResponse<String> get(String path, String accept) throws IOException, InterruptedException {
+    HttpRequest.Builder request = HttpRequest.newBuilder(URI.create("http://localhost:" + server.port() + path));
+    if (accept != null) {
+      request.header("Accept", accept);
+    }
+    return client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+  }
+
+  @Test
+  void turnsAwayRequestsOverTheRoutesLimit() throws Exception {
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      List<Future<HttpResponse<String>>> held = new ArrayList<>();
+      for (int i = 0; i < 2; i++) {
+        held.add(executor.submit(() -> get("/api/held", null)));
+      }
+      started.await();
+
+      HttpResponse<String> turnedAway = get("/api/held", null);
+      assertEquals(503, turnedAway.statusCode());
+      assertEquals(AdmissionControl.RETRY_AFTER_SECONDS, turnedAway.headers().firstValue("Retry-After").get());
+      // Other routes have limits of their own
+      assertEquals(200, get("/api/quick", null).statusCode());
+      // Asking for an event stream doesn't get a request past the limit
+      assertEquals(503, get("/api/held", "text/event-stream").statusCode());
+      // But the event stream routes aren't limited
+      List<Future<HttpResponse<String>>> streams = new ArrayList<>();
+      for (int i = 0; i < 3; i++) {
+        streams.add(executor.submit(() -> get("/api/events", "text/event-stream")));
+      }
+      streaming.await();
+      release.countDown();
+
+      for (Future<HttpResponse<String>> response : held) {
+        assertEquals("done", response.get().body());
+      }
+      for (Future<HttpResponse<String>> response : streams) {
+        assertEquals("streamed", response.get().body());
+      }
+    }
+    assertEquals(0, admissionControl.limiter("GET /api/held").inFlight());
+    assertEquals(200, get("/api/held", null).statusCode());
+  }
+
+  @Test
+  void finishesRequestsThatFail() throws IOException, InterruptedException {
+    for (int i = 0; i < 5; i++) {
+      assertEquals(400, get("/api/broken", null).statusCode());
+    }
+
+    assertEquals(0, admissionControl.limiter("GET /api/broken").inFlight());
+  }
+
+  @Test
+  void finishesRequestsTurnedAwayByABulkhead() throws Exception {
+    Bulkheads bulkheads = new Bulkheads(
+        Map.of(RouteClass.POINT_READ, 1, RouteClass.LIST_SCAN, 1, RouteClass.AGGREGATION, 1, RouteClass.WRITE, 1),
+        Map.of(), Set.of(), Duration.ofMillis(10));
+    Javalin guarded = Javalin.create();
+    admissionControl.register(guarded);
+    bulkheads.register(guarded);
+    CountDownLatch scanning = new CountDownLatch(1);
+    guarded.get("/api/scan", ctx -> {
+      scanning.countDown();
+      release.await();
+      ctx.result("scanned");
+    });
+    guarded.start(0);
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      HttpRequest scan = HttpRequest.newBuilder(URI.create("http://localhost:" + guarded.port() + "/api/scan")).build();
+      Future<HttpResponse<String>> held =
+          executor.submit(() -> client.send(scan, HttpResponse.BodyHandlers.ofString()));
+      scanning.await();
+
+      // Admitted, but then turned away by the bulkhead, more times than the route's limit
+      for (int i = 0; i < 5; i++) {
+        assertEquals(503, client.send(scan, HttpResponse.BodyHandlers.ofString()).statusCode());
+      }
+      release.countDown();
+      assertEquals("scanned", held.get().body());
+    } finally {
+      guarded.stop();
+    }
+
+    assertEquals(0, admissionControl.limiter("GET /api/scan").inFlight());
+  }
+
+  @Test
+  void letsEveryTodoEventStreamThrough() throws Exception {
+    AdmissionControl serverAdmission = new AdmissionControl(2, 2, Server.STREAMING_ROUTES);
+    Javalin streams = Javalin.create();
+    serverAdmission.register(streams);
+    CountDownLatch subscribed = new CountDownLatch(3);
+    List<SseClient> listening = new CopyOnWriteArrayList<>();
+    streams.sse("/api/todos/events", sse -> {
+      sse.keepAlive();
+      listening.add(sse);
+      subscribed.countDown();
+    });
+    streams.start(0);
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      HttpRequest subscribe = HttpRequest
+        .newBuilder(URI.create("http://localhost:" + streams.port() + "/api/todos/events"))
+        .header("Accept", "text/event-stream")
+        .build();
+      List<Future<HttpResponse<String>>> subscribers = new ArrayList<>();
+      for (int i = 0; i < 3; i++) {
+        subscribers.add(executor.submit(() -> client.send(subscribe, HttpResponse.BodyHandlers.ofString())));
+      }
+      try {
+        // More subscribers than the limit, all listening at once
+        assertTrue(subscribed.await(10, TimeUnit.SECONDS));
+      } finally {
+        for (SseClient sse : listening) {
+          sse.sendEvent("update", "done");
+          sse.close();
+        }
+      }
+
+      for (Future<HttpResponse<String>> response : subscribers) {
+        assertEquals(200, response.get().statusCode());
+        assertTrue(response.get().body().contains("data: done"));
+      }
+    } finally {
+      streams.stop();
+    }
+  }
+
+  @Test
+  void leavesUnmatchedRequestsAlone() throws IOException, InterruptedException {
+    assertEquals(404, get("/api/nothing", null).statusCode());
+  }
+}
@@ -0,0 +1,94 @@
+package umm3601;
+
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.in;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+
+
+/**
+ * Tests splitting the documents matching a filter into chunks with `BulkChunks`.
+ */
+@SuppressWarnings({"MagicNumber"})
+class BulkChunksSpec {
+
+  private static MongoClient mongoClient;
+  private static MongoDatabase db;
+
+  private MongoCollection<Document> documents;
+
+  @BeforeAll
+  static void setupAll() {
+    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
+    mongoClient = MongoClients.create(
+        MongoClientSettings.builder()
+            .applyToClusterSettings(builder -> builder.hosts(Arrays.asList(new ServerAddress(mongoAddr))))
+            .build());
+    db = mongoClient.getDatabase("bulkTest");
+  }
+
+  @AfterAll
+  static void teardown() {
+    db.drop();
+    mongoClient.close();
+  }
+
+  @BeforeEach
+  void setupEach() {
+    documents = db.getCollection("things");
+    documents.drop();
+    List<Document> things = new ArrayList<>();
+    for (int i = 0; i < 7; i++) {
+      things.add(new Document("n", i).append("even", i % 2 == 0));
+    }
+    documents.insertMany(things);
+  }
+
+  @Test
+  void splitsMatchesIntoChunksInIdOrder() {
+    List<List<ObjectId>> chunks = new ArrayList<>();
+    BulkChunks.forEachChunk(documents, eq("even", true), 2, chunks::add);
+
+    assertEquals(List.of(2, 2), chunks.stream().map(List::size).toList());
+    List<ObjectId> ids = chunks.stream().flatMap(List::stream).toList();
+    assertEquals(ids.stream().sorted().toList(), ids);
+  }
+
+  @Test
+  void isntThrownOffByChangesToTheMatches() {
+    List<Integer> sizes = new ArrayList<>();
+    // Each chunk stops matching the filter as soon as we've seen it
+    BulkChunks.forEachChunk(documents, eq("even", true), 2, ids -> {
+      sizes.add(ids.size());
+      documents.updateMany(in("_id", ids), new Document("$set", new Document("even", false)));
+    });
+
+    assertEquals(List.of(2, 2), sizes);
+    assertEquals(0, documents.countDocuments(eq("even", true)));
+  }
+
+  @Test
+  void skipsTheActionWhenNothingMatches() {
+    List<List<ObjectId>> chunks = new ArrayList<>();
+    BulkChunks.forEachChunk(documents, eq("n", 100), 2, chunks::add);
+
+    assertEquals(List.of(), chunks);
+  }
+}
@@ -0,0 +1,144 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.javalin.Javalin;
+import io.javalin.http.BadRequestResponse;
+import umm3601.Bulkheads.RouteClass;
+
+/**
+ * Tests keeping the classes of routes apart with `Bulkheads`, against a
+ * tiny Javalin server with an aggregation that can be held open.
+ */
+@SuppressWarnings({"MagicNumber"})
+class BulkheadsSpec {
+
+  private static HttpClient client = HttpClient.newHttpClient();
+
+  private Javalin server;
+  private Bulkheads bulkheads;
+  private CountDownLatch started;
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  private static Bulkheads bulkheads(int aggregations) {
+    return new Bulkheads(
+        Map.of(RouteClass.POINT_READ, 4, RouteClass.LIST_SCAN, 2, RouteClass.AGGREGATION, aggregations,
+            RouteClass.WRITE, 2),
+        Map.of("/api/things/grouped", RouteClass.AGGREGATION),
+        Set.of("/api/batch"),
+        Duration.ofMillis(50));
+  }
+
+  @BeforeEach
+  void startServer() {
+    bulkheads = bulkheads(2);
+    started = new CountDownLatch(2);
+    server = Javalin.create();
+    bulkheads.register(server);
+    server.get("/api/things/grouped", ctx -> {
+      started.countDown();
+      release.await();
+      ctx.result("grouped");
+    });
+    server.get("/api/things/{id}", ctx -> ctx.result(ctx.pathParam("id")));
+    server.post("/api/things", ctx -> {
+      throw new BadRequestResponse("Broken");
+    });
+    server.start(0);
+  }
+
+  @AfterEach
+  void stopServer() {
+    release.countDown();
+    server.stop();
+  }
+
+  private HttpResponse<String> get(String path) throws IOException, InterruptedException {
+    HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + server.port() + path)).build();
+    return client.send(request, HttpResponse.BodyHandlers.ofString());
+  }
+
+  @Test
+  void classifiesRoutes() {
+    assertEquals(RouteClass.POINT_READ, bulkheads.classify("GET", "/api/things/{id}"));
+    assertEquals(RouteClass.LIST_SCAN, bulkheads.classify("GET", "/api/things"));
+    assertEquals(RouteClass.AGGREGATION, bulkheads.classify("GET", "/api/things/grouped"));
+    assertEquals(RouteClass.WRITE, bulkheads.classify("PATCH", "/api/things/{id}"));
+    assertEquals(RouteClass.WRITE, bulkheads.classify("DELETE", "/api/things"));
+    assertNull(bulkheads.classify("POST", "/api/batch"));
+  }
+
+  @Test
+  void keepsPointReadsGoingWhileAggregationsAreFull() throws Exception {
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      List<Future<HttpResponse<String>>> held = new ArrayList<>();
+      for (int i = 0; i < 2; i++) {
+        held.add(executor.submit(() -> get("/api/things/grouped")));
+      }
+      started.await();
+      assertEquals(0, bulkheads.available(RouteClass.AGGREGATION));
+
+      HttpResponse<String> turnedAway = get("/api/things/grouped");
+      assertEquals(503, turnedAway.statusCode());
+      assertEquals(AdmissionControl.RETRY_AFTER_SECONDS, turnedAway.headers().firstValue("Retry-After").get());
+      // Asking for an event stream doesn't get a request past the bulkhead
+      HttpRequest eventStream = HttpRequest.newBuilder(
+          URI.create("http://localhost:" + server.port() + "/api/things/grouped"))
+          .header("Accept", "text/event-stream")
+          .build();
+      assertEquals(503, client.send(eventStream, HttpResponse.BodyHandlers.ofString()).statusCode());
+      // Point reads have permits of their own
+      HttpResponse<String> pointRead = get("/api/things/42");
+      assertEquals(200, pointRead.statusCode());
+      assertEquals("42", pointRead.body());
+
+      release.countDown();
+      for (Future<HttpResponse<String>> response : held) {
+        assertEquals("grouped", response.get().body());
+      }
+    }
+    assertEquals(2, bulkheads.available(RouteClass.AGGREGATION));
+    assertEquals(4, bulkheads.available(RouteClass.POINT_READ));
+    assertEquals(200, get("/api/things/grouped").statusCode());
+  }
+
+  @Test
+  void givesBackPermitsForRequestsThatFail() throws IOException, InterruptedException {
+    HttpRequest post = HttpRequest.newBuilder(URI.create("http://localhost:" + server.port() + "/api/things"))
+        .POST(HttpRequest.BodyPublishers.noBody())
+        .build();
+    for (int i = 0; i < 5; i++) {
+      assertEquals(400, client.send(post, HttpResponse.BodyHandlers.ofString()).statusCode());
+    }
+
+    assertEquals(2, bulkheads.available(RouteClass.WRITE));
+  }
+
+  @Test
+  void needsPermitsForEveryClass() {
+    assertThrows(IllegalArgumentException.class, () -> bulkheads(0));
+    assertThrows(IllegalArgumentException.class, () -> new Bulkheads(
+        Map.of(RouteClass.POINT_READ, 4), Map.of(), Set.of(), Duration.ZERO));
+  }
+}
@@ -0,0 +1,44 @@
+package umm3601;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+
+/**
+ * A `ServletOutputStream` that just collects what is written to it, so
+ * tests can return it from a mocked `Context#outputStream()` and then
+ * check what a handler streamed into the response.
+ */
+public class ByteServletOutputStream extends ServletOutputStream {
+
+  private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+  @Override
+  public void write(int b) {
+    bytes.write(b);
+  }
+
+  @Override
+  public boolean isReady() {
+    return true;
+  }
+
+  @Override
+  public void setWriteListener(WriteListener writeListener) {
+    // Nothing is ever asynchronous here, so there's nothing to listen for
+  }
+
+  /**
+   * @return everything written to this stream so far
+   */
+  public byte[] toByteArray() {
+    return bytes.toByteArray();
+  }
+
+  @Override
+  public String toString() {
+    return bytes.toString(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,235 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.RawBsonDocument;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.mongodb.MongoTimeoutException;
+
+import io.javalin.Javalin;
+import io.javalin.http.BadRequestResponse;
+
+/**
+ * Tests failing fast and serving stale responses with `CircuitBreaker`,
+ * against a tiny Javalin server whose "database" can be taken down.
+ */
+@SuppressWarnings({"MagicNumber"})
+class CircuitBreakerSpec {
+
+  private static HttpClient client = HttpClient.newHttpClient();
+
+  private Javalin server;
+  private CircuitBreaker breaker;
+  private final AtomicBoolean down = new AtomicBoolean();
+  // How many requests reached the "database"
+  private final AtomicInteger queries = new AtomicInteger();
+
+  @BeforeEach
+  void startServer() {
+    // So each response can be up to 1KiB
+    breaker = new CircuitBreaker(2, Duration.ofMillis(200), 16 * 1024);
+    server = Javalin.create();
+    server.get("/api/things/{id}", breaker.withFallback(ctx -> {
+      queries.incrementAndGet();
+      if (down.get()) {
+        throw new MongoTimeoutException("MongoDB is down");
+      }
+      ctx.json(Map.of("id", ctx.pathParam("id"), "query", queries.get()));
+    }));
+    // Streamed, like the todo and user lists
+    server.get("/api/things", breaker.withFallback(ctx -> {
+      queries.incrementAndGet();
+      if (down.get()) {
+        throw new MongoTimeoutException("MongoDB is down");
+      }
+      int count = Integer.parseInt(ctx.queryParam("count"));
+      List<RawBsonDocument> things = new ArrayList<>();
+      for (int i = 0; i < count; i++) {
+        things.add(RawBsonDocument.parse("{\"name\": \"thing " + i + "\"}"));
+      }
+      RawDocuments.respond(ctx, things);
+    }));
+    server.post("/api/things", breaker.protect(ctx -> {
+      queries.incrementAndGet();
+      if (down.get()) {
+        throw new MongoTimeoutException("MongoDB is down");
+      }
+      ctx.status(201);
+    }));
+    server.get("/api/broken", breaker.protect(ctx -> {
+      throw new BadRequestResponse("Broken");
+    }));
+    server.start(0);
+  }
+
+  @AfterEach
+  void stopServer() {
+    server.stop();
+  }
+
+  private HttpResponse<String> send(String method, String path) throws IOException, InterruptedException {
+    HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + server.port() + path))
+        .method(method, HttpRequest.BodyPublishers.noBody())
+        .build();
+    return client.send(request, HttpResponse.BodyHandlers.ofString());
+  }
+
+  // Take the "database" down, and fail enough requests to open the breaker
+  private void breakTheCircuit() throws IOException, InterruptedException {
+    down.set(true);
+    assertEquals(503, send("POST", "/api/things").statusCode());
+    assertEquals(503, send("POST", "/api/things").statusCode());
+    assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+  }
+
+  @Test
+  void servesTheLastResponseWhileTheDatabaseIsDown() throws IOException, InterruptedException {
+    HttpResponse<String> fresh = send("GET", "/api/things/1");
+    assertEquals(200, fresh.statusCode());
+    assertFalse(fresh.headers().firstValue("Warning").isPresent());
+
+    breakTheCircuit();
+    int queriesSoFar = queries.get();
+
+    HttpResponse<String> stale = send("GET", "/api/things/1");
+    assertEquals(200, stale.statusCode());
+    assertEquals(fresh.body(), stale.body());
+    assertEquals(CircuitBreaker.STALE_WARNING, stale.headers().firstValue("Warning").get());
+    assertTrue(stale.headers().firstValue("Age").isPresent());
+    assertEquals("no-store", stale.headers().firstValue("Cache-Control").get());
+
+    // Nothing to fall back on, so it fails fast, like the writes
+    HttpResponse<String> missing = send("GET", "/api/things/2");
+    assertEquals(503, missing.statusCode());
+    assertTrue(missing.headers().firstValue("Retry-After").isPresent());
+    assertEquals(503, send("POST", "/api/things").statusCode());
+
+    // None of which tried the database
+    assertEquals(queriesSoFar, queries.get());
+  }
+
+  @Test
+  void servesTheLastResponseWhenARequestFindsTheDatabaseDown() throws IOException, InterruptedException {
+    HttpResponse<String> fresh = send("GET", "/api/things/1");
+    down.set(true);
+
+    HttpResponse<String> stale = send("GET", "/api/things/1");
+    assertEquals(200, stale.statusCode());
+    assertEquals(fresh.body(), stale.body());
+    assertEquals(CircuitBreaker.STALE_WARNING, stale.headers().firstValue("Warning").get());
+    // One failure isn't enough to open the breaker
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+  }
+
+  @Test
+  void copiesStreamedResponsesAsTheyreSent() throws IOException, InterruptedException {
+    HttpResponse<String> fresh = send("GET", "/api/things?count=3");
+    assertEquals(200, fresh.statusCode());
+    assertTrue(fresh.body().contains("thing 2"));
+
+    breakTheCircuit();
+
+    HttpResponse<String> stale = send("GET", "/api/things?count=3");
+    assertEquals(200, stale.statusCode());
+    assertEquals(fresh.body(), stale.body());
+    assertEquals(CircuitBreaker.STALE_WARNING, stale.headers().firstValue("Warning").get());
+  }
+
+  @Test
+  void doesntKeepResponsesThatAreTooBig() throws IOException, InterruptedException {
+    // Well over 1KiB
+    HttpResponse<String> fresh = send("GET", "/api/things?count=200");
+    assertEquals(200, fresh.statusCode());
+    assertTrue(fresh.body().contains("thing 199"));
+    assertEquals(0, breaker.staleBytes());
+
+    breakTheCircuit();
+
+    assertEquals(503, send("GET", "/api/things?count=200").statusCode());
+  }
+
+  @Test
+  void keepsTheStaleResponsesUnderTheirSize() throws IOException, InterruptedException {
+    // Each just under 1KiB, so well over 16KiB in all
+    for (int i = 0; i < 40; i++) {
+      assertEquals(200, send("GET", "/api/things?count=45&page=" + i).statusCode());
+      assertTrue(breaker.staleBytes() <= 16 * 1024);
+    }
+    assertTrue(breaker.staleBytes() > 8 * 1024);
+
+    breakTheCircuit();
+
+    // The least recently saved were dropped to make room
+    assertEquals(503, send("GET", "/api/things?count=45&page=0").statusCode());
+    assertEquals(200, send("GET", "/api/things?count=45&page=39").statusCode());
+  }
+
+  @Test
+  void closesAgainOnceAProbeSucceeds() throws IOException, InterruptedException {
+    breakTheCircuit();
+    down.set(false);
+    Thread.sleep(300);
+
+    HttpResponse<String> probe = send("GET", "/api/things/1");
+    assertEquals(200, probe.statusCode());
+    assertFalse(probe.headers().firstValue("Warning").isPresent());
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+    assertEquals(201, send("POST", "/api/things").statusCode());
+  }
+
+  @Test
+  void opensAgainIfTheProbeFails() throws IOException, InterruptedException {
+    breakTheCircuit();
+    Thread.sleep(300);
+    int queriesSoFar = queries.get();
+
+    assertEquals(503, send("POST", "/api/things").statusCode());
+    assertEquals(queriesSoFar + 1, queries.get());
+    assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+    assertEquals(503, send("POST", "/api/things").statusCode());
+    assertEquals(queriesSoFar + 1, queries.get());
+  }
+
+  @Test
+  void onlyCountsTheDatabaseBeingDown() throws IOException, InterruptedException {
+    for (int i = 0; i < 5; i++) {
+      assertEquals(400, send("GET", "/api/broken").statusCode());
+    }
+
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+  }
+
+  @Test
+  void onlyLetsOneProbeThrough() throws IOException, InterruptedException {
+    breakTheCircuit();
+    Thread.sleep(300);
+
+    assertEquals(CircuitBreaker.Permit.PROBE, breaker.tryAcquire());
+    assertEquals(CircuitBreaker.Permit.REFUSED, breaker.tryAcquire());
+  }
+
+  @Test
+  void refusesIllegalSettings() {
+    assertThrows(IllegalArgumentException.class, () -> new CircuitBreaker(0, Duration.ofSeconds(1), 1024));
+    assertThrows(IllegalArgumentException.class, () -> new CircuitBreaker(1, Duration.ofSeconds(-1), 1024));
+    assertThrows(IllegalArgumentException.class, () -> new CircuitBreaker(1, Duration.ofSeconds(1), -1));
+  }
+}
@@ -0,0 +1,103 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests how a `ConcurrencyLimiter` admits requests, and how its limit
+ * follows their latency.
+ */
+@SuppressWarnings({"MagicNumber"})
+class ConcurrencyLimiterSpec {
+
+  private static final long FAST = 1_000_000;
+  private static final long SLOW = 200_000_000;
+
+  // Run `limiter.limit()` requests at once, all taking `latency`
+  private static void runFullLoad(ConcurrencyLimiter limiter, long latency) {
+    int running = 0;
+    while (limiter.tryAcquire()) {
+      running++;
+    }
+    for (int i = 0; i < running; i++) {
+      limiter.release(latency);
+    }
+  }
+
+  @Test
+  void turnsAwayRequestsOverTheLimit() {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 1, 2);
+
+    assertTrue(limiter.tryAcquire());
+    assertTrue(limiter.tryAcquire());
+    assertFalse(limiter.tryAcquire());
+    assertEquals(2, limiter.inFlight());
+
+    limiter.release(FAST);
+    assertTrue(limiter.tryAcquire());
+  }
+
+  @Test
+  void growsWhileRequestsAreFastAndTheLimitIsUsed() {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 1, 50);
+
+    for (int i = 0; i < 20; i++) {
+      runFullLoad(limiter, FAST);
+    }
+
+    assertEquals(50, limiter.limit());
+  }
+
+  @Test
+  void doesntGrowWhileMostOfTheLimitIsUnused() {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 1, 50);
+
+    for (int i = 0; i < 100; i++) {
+      limiter.tryAcquire();
+      limiter.release(FAST);
+    }
+
+    assertEquals(10, limiter.limit());
+  }
+
+  @Test
+  void shrinksWhenRequestsSlowDown() {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(40, 2, 50);
+    runFullLoad(limiter, FAST);
+    int before = limiter.limit();
+
+    runFullLoad(limiter, SLOW);
+    int after = limiter.limit();
+    assertTrue(after < before, "The limit went from " + before + " to " + after);
+
+    for (int i = 0; i < 50; i++) {
+      runFullLoad(limiter, SLOW);
+    }
+    // It settles where `limit / 2 + sqrt(limit) == limit`, i.e., at 4
+    assertEquals(4, limiter.limit());
+  }
+
+  @Test
+  void toleratesJitterInFastRequests() {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 1, 10);
+    runFullLoad(limiter, FAST);
+
+    // Three times slower, but still only a couple of milliseconds
+    for (int i = 0; i < 20; i++) {
+      runFullLoad(limiter, 3 * FAST);
+    }
+
+    assertEquals(10, limiter.limit());
+  }
+
+  @Test
+  void rejectsIllegalLimits() {
+    assertThrows(IllegalArgumentException.class, () -> new ConcurrencyLimiter(1, 0, 1));
+    assertThrows(IllegalArgumentException.class, () -> new ConcurrencyLimiter(1, 2, 3));
+    assertThrows(IllegalArgumentException.class, () -> new ConcurrencyLimiter(4, 1, 3));
+  }
+}
@@ -0,0 +1,111 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import io.javalin.http.Context;
+import io.javalin.http.Header;
+import io.javalin.http.HttpStatus;
+import umm3601.changes.ChangeLog;
+
+/**
+ * Tests the `ETag`s and `If-None-Match` checks in `ConditionalGet`.
+ */
+class ConditionalGetSpec {
+
+  private ChangeLog changes;
+  private Context ctx;
+
+  @BeforeEach
+  void setupEach() {
+    changes = new ChangeLog();
+    ctx = mock(Context.class);
+    when(ctx.path()).thenReturn("/api/todos");
+    when(ctx.queryString()).thenReturn("owner=sam");
+  }
+
+  private String currentEtag() {
+    ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+    ConditionalGet.notModified(ctx, changes);
+    verify(ctx).header(eq(Header.ETAG), etag.capture());
+    return etag.getValue();
+  }
+
+  @Test
+  void etagsAreStrongAndDependOnTheRequest() {
+    String etag = ConditionalGet.etag("abc:1", "/api/todos", "owner=sam", null, "gzip");
+
+    assertTrue(etag.startsWith("\"abc-1-"));
+    assertTrue(etag.endsWith("\""));
+    assertEquals(etag, ConditionalGet.etag("abc:1", "/api/todos", "owner=sam", null, "gzip"));
+    assertNotEquals(etag, ConditionalGet.etag("abc:2", "/api/todos", "owner=sam", null, "gzip"));
+    assertNotEquals(etag, ConditionalGet.etag("abc:1", "/api/todos", "owner=pat", null, "gzip"));
+    assertNotEquals(etag, ConditionalGet.etag("abc:1", "/api/todos", null, null, "gzip"));
+    assertNotEquals(etag, ConditionalGet.etag("abc:1", "/api/todos", "owner=sam", "application/cbor", "gzip"));
+    assertNotEquals(etag, ConditionalGet.etag("abc:1", "/api/todos", "owner=sam", null, null));
+  }
+
+  @Test
+  void matchesListsWildcardsAndWeakTags() {
+    assertFalse(ConditionalGet.matches(null, "\"a\""));
+    assertFalse(ConditionalGet.matches("\"b\"", "\"a\""));
+    assertTrue(ConditionalGet.matches("\"a\"", "\"a\""));
+    assertTrue(ConditionalGet.matches("\"b\", \"a\"", "\"a\""));
+    assertTrue(ConditionalGet.matches("W/\"a\"", "\"a\""));
+    assertTrue(ConditionalGet.matches("*", "\"a\""));
+  }
+
+  @Test
+  void answersMatchingRevalidationWithNotModified() {
+    String etag = currentEtag();
+    verify(ctx, never()).status(any(HttpStatus.class));
+
+    when(ctx.header(Header.IF_NONE_MATCH)).thenReturn(etag);
+
+    assertTrue(ConditionalGet.notModified(ctx, changes));
+    verify(ctx).status(HttpStatus.NOT_MODIFIED);
+  }
+
+  @Test
+  void writesChangeTheEtag() {
+    String etag = currentEtag();
+    when(ctx.header(Header.IF_NONE_MATCH)).thenReturn(etag);
+
+    changes.recordChange("588935f57546a2daea44de7c");
+
+    assertFalse(ConditionalGet.notModified(ctx, changes));
+    verify(ctx, never()).status(HttpStatus.NOT_MODIFIED);
+  }
+
+  @Test
+  void cachedResponsesAreTaggedWithTheirOwnToken() {
+    String earlier = changes.token();
+    String etag = currentEtag();
+    changes.recordDelete("588935f5c668650dc77df581");
+
+    when(ctx.header(Header.IF_NONE_MATCH)).thenReturn(etag);
+    assertTrue(ConditionalGet.notModified(ctx, earlier));
+    assertFalse(ConditionalGet.notModified(ctx, changes));
+  }
+
+  @Test
+  void partialResultsArentTagged() {
+    when(ctx.queryParam(PartialResults.PARTIAL_KEY)).thenReturn("true");
+    when(ctx.header(Header.IF_NONE_MATCH)).thenReturn("*");
+
+    assertFalse(ConditionalGet.notModified(ctx, changes));
+    verify(ctx, never()).header(eq(Header.ETAG), any());
+  }
+}
@@ -0,0 +1,127 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.javalin.http.Context;
+import io.javalin.http.Header;
+import io.javalin.json.JavalinJackson;
+import io.javalin.validation.ValidationException;
+import umm3601.ContentNegotiation.Format;
+import umm3601.todo.Todo;
+
+/**
+ * Tests picking, writing, and reading the response and request formats
+ * with `ContentNegotiation`.
+ */
+@SuppressWarnings({"MagicNumber"})
+class ContentNegotiationSpec {
+
+  // What Javalin uses for `ctx.json`
+  private static final ObjectMapper JSON_MAPPER = JavalinJackson.defaultMapper();
+
+  private Context ctx;
+  private Todo todo;
+
+  @BeforeEach
+  void setupEach() {
+    ctx = mock(Context.class);
+    todo = new Todo();
+    todo._id = new ObjectId().toHexString();
+    todo.owner = "Sam";
+    todo.status = true;
+    todo.body = "Ut cillum dolore";
+    todo.category = "homework";
+  }
+
+  @Test
+  void picksTheFormatFromAccept() {
+    assertEquals(Format.JSON, ContentNegotiation.acceptedFormat(null));
+    assertEquals(Format.JSON, ContentNegotiation.acceptedFormat("*/*"));
+    assertEquals(Format.JSON, ContentNegotiation.acceptedFormat("text/html, application/json"));
+    assertEquals(Format.CBOR, ContentNegotiation.acceptedFormat("application/cbor"));
+    assertEquals(Format.SMILE, ContentNegotiation.acceptedFormat("Application/X-Jackson-Smile"));
+    assertEquals(Format.MSGPACK, ContentNegotiation.acceptedFormat("application/x-msgpack, */*;q=0.1"));
+    // The highest `q` wins, and the earliest one breaks ties
+    assertEquals(Format.CBOR, ContentNegotiation.acceptedFormat("application/json;q=0.5, application/cbor"));
+    assertEquals(Format.SMILE, ContentNegotiation.acceptedFormat("application/smile, application/cbor"));
+    assertEquals(Format.JSON, ContentNegotiation.acceptedFormat("application/cbor;q=0, application/json;q=0.1"));
+    assertEquals(Format.JSON, ContentNegotiation.acceptedFormat("application/cbor;q=high"));
+  }
+
+  @Test
+  void picksTheFormatFromContentType() {
+    assertEquals(Format.JSON, ContentNegotiation.bodyFormat(null));
+    assertEquals(Format.JSON, ContentNegotiation.bodyFormat("application/json; charset=utf-8"));
+    assertEquals(Format.JSON, ContentNegotiation.bodyFormat("text/plain"));
+    assertEquals(Format.MSGPACK, ContentNegotiation.bodyFormat("application/vnd.msgpack"));
+  }
+
+  @Test
+  void respondsWithJsonByDefault() {
+    ContentNegotiation.respond(ctx, List.of(todo));
+
+    verify(ctx).json(List.of(todo));
+    verify(ctx).header(Header.VARY, Header.ACCEPT);
+    verify(ctx, never()).result(any(byte[].class));
+  }
+
+  @Test
+  void binaryFormatsDecodeToTheSameJson() throws IOException {
+    Object body = Map.of("results", List.of(todo), "missing", List.of("x"));
+    JsonNode json = JSON_MAPPER.valueToTree(body);
+
+    for (Format format : List.of(Format.SMILE, Format.CBOR, Format.MSGPACK)) {
+      Context binaryCtx = mock(Context.class);
+      when(binaryCtx.header(Header.ACCEPT)).thenReturn(format.mimeType());
+
+      ContentNegotiation.respond(binaryCtx, body);
+
+      ArgumentCaptor<byte[]> bytes = ArgumentCaptor.forClass(byte[].class);
+      verify(binaryCtx).contentType(format.mimeType());
+      verify(binaryCtx).result(bytes.capture());
+      verify(binaryCtx, never()).json(body);
+      assertEquals(json, format.mapper().readTree(bytes.getValue()), format.name());
+    }
+  }
+
+  @Test
+  void readsBinaryBodies() throws IOException {
+    when(ctx.contentType()).thenReturn(Format.CBOR.mimeType());
+    when(ctx.bodyAsBytes()).thenReturn(Format.CBOR.mapper().writeValueAsBytes(todo));
+
+    Todo decoded = ContentNegotiation.bodyValidator(ctx, Todo.class)
+        .check(td -> td.owner != null, "Todo must have an owner")
+        .get();
+
+    assertEquals(todo._id, decoded._id);
+    assertEquals("Sam", decoded.owner);
+    assertEquals(true, decoded.status);
+    verify(ctx, never()).bodyValidator(Todo.class);
+  }
+
+  @Test
+  void rejectsBinaryBodiesThatDontDecode() {
+    when(ctx.contentType()).thenReturn(Format.SMILE.mimeType());
+    when(ctx.bodyAsBytes()).thenReturn(new byte[] {1, 2, 3});
+
+    assertThrows(ValidationException.class, () -> ContentNegotiation.bodyValidator(ctx, Todo.class).get());
+  }
+}
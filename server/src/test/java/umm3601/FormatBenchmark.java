@@ -0,0 +1,111 @@
+package umm3601;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.Document;
+
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.javalin.json.JavalinJackson;
+import umm3601.ContentNegotiation.Format;
+import umm3601.snapshot.SnapshotWriter;
+import umm3601.todo.Todo;
+import umm3601.user.User;
+
+/**
+ * A rough benchmark of the response formats in `ContentNegotiation`: how
+ * big the todos and users from `database/seed` are in each format, and
+ * how long they take to encode and decode. Run it with
+ *
+ *   ./gradlew benchmarkFormats
+ *
+ * The seed data is repeated to make lists of a realistic size, and each
+ * measurement is the best of several runs, after a warmup, so the numbers
+ * aren't dominated by the JIT or the garbage collector. It's not a
+ * substitute for a proper harness like JMH, but it's plenty to compare
+ * the formats with each other.
+ */
+@SuppressWarnings({"MagicNumber", "UncommentedMain"})
+public final class FormatBenchmark {
+
+  private static final int COPIES = 50;
+  private static final int WARMUP_RUNS = 20;
+  private static final int RUNS = 30;
+
+  private FormatBenchmark() {
+  }
+
+  public static void main(String[] args) throws IOException {
+    Path seedDir = Path.of(args.length > 0 ? args[0] : "../database/seed");
+
+    List<Todo> todos = new ArrayList<>();
+    List<User> users = new ArrayList<>();
+    List<Document> todoSeed = SnapshotWriter.readSeed(seedDir.resolve("todos.json"));
+    List<Document> userSeed = SnapshotWriter.readSeed(seedDir.resolve("users.json"));
+    for (int copy = 0; copy < COPIES; copy++) {
+      for (Document document : todoSeed) {
+        todos.add(todo(document));
+      }
+      for (Document document : userSeed) {
+        users.add(user(document));
+      }
+    }
+
+    System.out.printf("%-8s %-8s %12s %12s %12s%n", "data", "format", "bytes", "encode ms", "decode ms");
+    benchmark("todos", todos, Todo.class);
+    benchmark("users", users, User.class);
+  }
+
+  private static <T> void benchmark(String name, List<T> items, Class<T> itemClass) throws IOException {
+    for (Format format : Format.values()) {
+      ObjectMapper mapper = format == Format.JSON ? JavalinJackson.defaultMapper() : format.mapper();
+      JavaType type = mapper.getTypeFactory().constructCollectionType(List.class, itemClass);
+
+      byte[] encoded = mapper.writeValueAsBytes(items);
+      long bestEncode = Long.MAX_VALUE;
+      long bestDecode = Long.MAX_VALUE;
+      for (int run = 0; run < WARMUP_RUNS + RUNS; run++) {
+        long start = System.nanoTime();
+        encoded = mapper.writeValueAsBytes(items);
+        long encodedAt = System.nanoTime();
+        List<T> decoded = mapper.readValue(encoded, type);
+        long decodedAt = System.nanoTime();
+        if (decoded.size() != items.size()) {
+          throw new IllegalStateException(format + " lost some " + name);
+        }
+        if (run >= WARMUP_RUNS) {
+          bestEncode = Math.min(bestEncode, encodedAt - start);
+          bestDecode = Math.min(bestDecode, decodedAt - encodedAt);
+        }
+      }
+      System.out.printf("%-8s %-8s %12d %12.2f %12.2f%n",
+          name, format.name().toLowerCase(), encoded.length, bestEncode / 1e6, bestDecode / 1e6);
+    }
+  }
+
+  private static Todo todo(Document document) {
+    Todo todo = new Todo();
+    todo._id = document.getObjectId("_id").toHexString();
+    todo.owner = document.getString("owner");
+    todo.status = document.getBoolean("status");
+    todo.body = document.getString("body");
+    todo.category = document.getString("category");
+    return todo;
+  }
+
+  private static User user(Document document) {
+    User user = new User();
+    user._id = document.getObjectId("_id").toHexString();
+    user.name = document.getString("name");
+    user.age = document.getInteger("age");
+    user.company = document.getString("company");
+    user.email = document.getString("email");
+    user.avatar = document.getString("avatar");
+    user.role = document.getString("role");
+    return user;
+  }
+}
@@ -0,0 +1,165 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockingDetails;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.mongodb.MongoNamespace;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.InsertManyOptions;
+
+/**
+ * Tests batching inserts with `GroupCommitWriter`.
+ */
+@SuppressWarnings({"MagicNumber"})
+class GroupCommitWriterSpec {
+
+  private static MongoClient mongoClient;
+  private static MongoDatabase db;
+
+  private MongoCollection<Document> documents;
+
+  @BeforeAll
+  static void setupAll() {
+    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
+    mongoClient = MongoClients.create(
+        MongoClientSettings.builder()
+            .applyToClusterSettings(builder -> builder.hosts(Arrays.asList(new ServerAddress(mongoAddr))))
+            .build());
+    db = mongoClient.getDatabase("groupCommitTest");
+  }
+
+  @AfterAll
+  static void teardown() {
+    db.drop();
+    mongoClient.close();
+  }
+
+  @BeforeEach
+  void setupEach() {
+    documents = db.getCollection("documents");
+    documents.drop();
+  }
+
+  private long insertManyCalls(MongoCollection<Document> collection) {
+    return mockingDetails(collection).getInvocations().stream()
+        .filter(invocation -> invocation.getMethod().getName().equals("insertMany"))
+        .count();
+  }
+
+  @Test
+  void batchesConcurrentInserts() throws Exception {
+    MongoCollection<Document> collection = spy(documents);
+    GroupCommitWriter<Document> writer = new GroupCommitWriter<>(collection, 100, Duration.ofMillis(200));
+
+    int inserts = 20;
+    CountDownLatch start = new CountDownLatch(1);
+    List<Document> inserted = new ArrayList<>();
+    List<Future<?>> results = new ArrayList<>();
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (int i = 0; i < inserts; i++) {
+        Document document = new Document("n", i);
+        inserted.add(document);
+        results.add(executor.submit(() -> {
+          start.await();
+          writer.insert(document);
+          return null;
+        }));
+      }
+      start.countDown();
+      for (Future<?> result : results) {
+        result.get();
+      }
+    }
+
+    assertEquals(inserts, documents.countDocuments());
+    for (Document document : inserted) {
+      // Just like `insertOne`, the `_id` is filled in by the time `insert` returns
+      assertNotNull(document.getObjectId("_id"));
+    }
+    assertTrue(insertManyCalls(collection) < inserts, "The inserts should have been batched");
+  }
+
+  @Test
+  void writesLoneInsertsWithoutWaitingWithNoWindow() {
+    GroupCommitWriter<Document> writer = new GroupCommitWriter<>(documents, 100, Duration.ZERO);
+
+    writer.insert(new Document("n", 1));
+    writer.insert(new Document("n", 2));
+
+    assertEquals(2, documents.countDocuments());
+  }
+
+  @Test
+  void failsJustTheDocumentsWithWriteErrors() throws Exception {
+    ObjectId taken = new ObjectId();
+    documents.insertOne(new Document("_id", taken));
+    MongoCollection<Document> collection = spy(documents);
+    GroupCommitWriter<Document> writer = new GroupCommitWriter<>(collection, 2, Duration.ofSeconds(5));
+
+    Future<?> duplicate;
+    Future<?> fine;
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      duplicate = executor.submit(() -> writer.insert(new Document("_id", taken)));
+      fine = executor.submit(() -> writer.insert(new Document("n", 1)));
+    }
+
+    Exception exception = assertThrows(Exception.class, duplicate::get);
+    MongoWriteException writeException = (MongoWriteException) exception.getCause();
+    // 11000 is MongoDB's duplicate key error
+    assertEquals(11000, writeException.getCode());
+    fine.get();
+    assertEquals(2, documents.countDocuments());
+    assertEquals(1, insertManyCalls(collection));
+  }
+
+  @Test
+  void failsTheWholeBatchIfInsertManyFails() {
+    @SuppressWarnings("unchecked")
+    MongoCollection<Document> collection = mock(MongoCollection.class);
+    when(collection.getNamespace()).thenReturn(new MongoNamespace("test.documents"));
+    MongoTimeoutException timeout = new MongoTimeoutException("No server");
+    doThrow(timeout).when(collection).insertMany(anyList(), any(InsertManyOptions.class));
+    GroupCommitWriter<Document> writer = new GroupCommitWriter<>(collection, 10, Duration.ZERO);
+
+    assertSame(timeout, assertThrows(MongoTimeoutException.class, () -> writer.insert(new Document())));
+  }
+
+  @Test
+  void rejectsIllegalSettings() {
+    assertThrows(IllegalArgumentException.class, () -> new GroupCommitWriter<>(documents, 0, Duration.ZERO));
+    assertThrows(IllegalArgumentException.class, () -> new GroupCommitWriter<>(documents, 1, Duration.ofMillis(-1)));
+  }
+}
@@ -0,0 +1,243 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+
+import io.javalin.Javalin;
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.HttpStatus;
+
+/**
+ * Tests replaying responses to retried requests with `IdempotencyKeys`,
+ * against a tiny Javalin server whose `POST /api/things` counts how many
+ * times it has really run.
+ */
+@SuppressWarnings({"MagicNumber"})
+class IdempotencyKeysSpec {
+
+  private static MongoClient mongoClient;
+  private static MongoDatabase db;
+
+  private static HttpClient client = HttpClient.newHttpClient();
+
+  private Javalin server;
+  private final AtomicInteger runs = new AtomicInteger();
+  // Lets a test hold `/api/slow` open while it retries
+  private final CountDownLatch started = new CountDownLatch(1);
+  private CountDownLatch release = new CountDownLatch(0);
+
+  @BeforeAll
+  static void setupAll() {
+    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
+    mongoClient = MongoClients.create(
+        MongoClientSettings.builder()
+            .applyToClusterSettings(builder -> builder.hosts(Arrays.asList(new ServerAddress(mongoAddr))))
+            .build());
+    db = mongoClient.getDatabase("idempotencyTest");
+  }
+
+  @AfterAll
+  static void teardown() {
+    db.drop();
+    mongoClient.close();
+  }
+
+  @BeforeEach
+  void setupEach() {
+    db.getCollection("idempotencyKeys").drop();
+  }
+
+  @AfterEach
+  void stopServer() {
+    if (server != null) {
+      server.stop();
+    }
+  }
+
+  private void startServer(IdempotencyKeys keys) {
+    server = Javalin.create();
+    server.post("/api/things", ctx -> keys.handle(ctx, c -> {
+      if (c.body().contains("bad")) {
+        throw new BadRequestResponse("That's a bad thing");
+      }
+      c.json(Map.of("run", runs.incrementAndGet()));
+      c.status(HttpStatus.CREATED);
+    }));
+    server.post("/api/slow", ctx -> keys.handle(ctx, c -> {
+      started.countDown();
+      release.await();
+      c.result("done");
+    }));
+    server.start(0);
+  }
+
+  private HttpResponse<String> post(String path, String key, String body) throws IOException, InterruptedException {
+    HttpRequest.Builder request = HttpRequest.newBuilder(URI.create("http://localhost:" + server.port() + path))
+        .POST(HttpRequest.BodyPublishers.ofString(body));
+    if (key != null) {
+      request.header(IdempotencyKeys.IDEMPOTENCY_KEY, key);
+    }
+    return client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+  }
+
+  @Test
+  void replaysTheOriginalResponseToRetries() throws IOException, InterruptedException {
+    startServer(new IdempotencyKeys(10, Duration.ofMinutes(1)));
+
+    HttpResponse<String> first = post("/api/things", "key-1", "{}");
+    HttpResponse<String> retry = post("/api/things", "key-1", "{}");
+
+    assertEquals(201, first.statusCode());
+    assertEquals(201, retry.statusCode());
+    assertEquals("{\"run\":1}", retry.body());
+    assertEquals(first.headers().firstValue("Content-Type"), retry.headers().firstValue("Content-Type"));
+    assertEquals("true", retry.headers().firstValue(IdempotencyKeys.IDEMPOTENT_REPLAYED).orElse(null));
+    assertNull(first.headers().firstValue(IdempotencyKeys.IDEMPOTENT_REPLAYED).orElse(null));
+    assertEquals(1, runs.get());
+  }
+
+  @Test
+  void runsRequestsWithoutOrWithNewKeys() throws IOException, InterruptedException {
+    startServer(new IdempotencyKeys(10, Duration.ofMinutes(1)));
+
+    post("/api/things", null, "{}");
+    post("/api/things", null, "{}");
+    post("/api/things", "key-1", "{}");
+    post("/api/things", "key-2", "{}");
+
+    assertEquals(4, runs.get());
+  }
+
+  @Test
+  void refusesAKeyReusedForADifferentRequest() throws IOException, InterruptedException {
+    startServer(new IdempotencyKeys(10, Duration.ofMinutes(1)));
+
+    post("/api/things", "key-1", "{\"a\": 1}");
+
+    assertEquals(422, post("/api/things", "key-1", "{\"a\": 2}").statusCode());
+    assertEquals(400, post("/api/things", " ", "{}").statusCode());
+    assertEquals(400, post("/api/things", "k".repeat(256), "{}").statusCode());
+    assertEquals(1, runs.get());
+  }
+
+  @Test
+  void runsAFailedRequestAgain() throws IOException, InterruptedException {
+    startServer(new IdempotencyKeys(10, Duration.ofMinutes(1)));
+
+    assertEquals(400, post("/api/things", "key-1", "bad").statusCode());
+    assertEquals(400, post("/api/things", "key-1", "bad").statusCode());
+    assertEquals(0, runs.get());
+  }
+
+  @Test
+  void refusesRetriesWhileTheOriginalIsRunning() throws Exception {
+    startServer(new IdempotencyKeys(10, Duration.ofMinutes(1)));
+    release = new CountDownLatch(1);
+
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      Future<HttpResponse<String>> original = executor.submit(() -> post("/api/slow", "key-1", ""));
+      started.await();
+
+      assertEquals(409, post("/api/slow", "key-1", "").statusCode());
+      release.countDown();
+      assertEquals("done", original.get().body());
+    }
+    assertEquals("done", post("/api/slow", "key-1", "").body());
+  }
+
+  @Test
+  void forgetsKeysPastTheirTimeToLiveOrTheLimit() throws IOException, InterruptedException {
+    IdempotencyKeys keys = new IdempotencyKeys(2, Duration.ofMillis(200));
+    startServer(keys);
+
+    post("/api/things", "key-1", "{}");
+    post("/api/things", "key-2", "{}");
+    post("/api/things", "key-3", "{}");
+    assertEquals(2, keys.size());
+    // `key-1` was the oldest, so it was dropped
+    post("/api/things", "key-1", "{}");
+    assertEquals(4, runs.get());
+
+    Thread.sleep(300);
+    post("/api/things", "key-1", "{}");
+    assertEquals(5, runs.get());
+    assertEquals(1, keys.size());
+  }
+
+  @Test
+  void sharesKeysThroughMongo() throws IOException, InterruptedException {
+    MongoCollection<Document> collection = db.getCollection("idempotencyKeys");
+    startServer(new IdempotencyKeys(10, Duration.ofMinutes(1), collection));
+    post("/api/things", "key-1", "{}");
+    post("/api/things", "bad-key", "bad");
+    server.stop();
+
+    // Another server, or the same one after a restart, with nothing in memory
+    startServer(new IdempotencyKeys(10, Duration.ofMinutes(1), collection));
+    HttpResponse<String> retry = post("/api/things", "key-1", "{}");
+
+    assertEquals(201, retry.statusCode());
+    assertEquals("{\"run\":1}", retry.body());
+    assertEquals(1, runs.get());
+    // The failed request's key wasn't kept
+    assertEquals(1, collection.countDocuments());
+    assertEquals(422, post("/api/things", "key-1", "{\"other\": true}").statusCode());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void keepsKeysInMemoryWhileMongoIsDown() throws IOException, InterruptedException {
+    MongoCollection<Document> down = mock(MongoCollection.class);
+    when(down.insertOne(any())).thenThrow(new MongoTimeoutException("MongoDB is down"));
+    when(down.updateOne(any(Bson.class), any(Bson.class))).thenThrow(new MongoTimeoutException("MongoDB is down"));
+    startServer(new IdempotencyKeys(10, Duration.ofMinutes(1), down));
+
+    HttpResponse<String> first = post("/api/things", "key-1", "{}");
+    HttpResponse<String> retry = post("/api/things", "key-1", "{}");
+
+    assertEquals(201, first.statusCode());
+    assertEquals("{\"run\":1}", retry.body());
+    assertEquals("true", retry.headers().firstValue(IdempotencyKeys.IDEMPOTENT_REPLAYED).get());
+    assertEquals(1, runs.get());
+  }
+
+  @Test
+  void rejectsIllegalSettings() {
+    assertThrows(IllegalArgumentException.class, () -> new IdempotencyKeys(0, Duration.ofMinutes(1)));
+    assertThrows(IllegalArgumentException.class, () -> new IdempotencyKeys(1, Duration.ZERO));
+  }
+}
@@ -0,0 +1,184 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.UuidRepresentation;
+import org.bson.types.Decimal128;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mongojack.JacksonMongoCollection;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Sorts;
+
+import io.javalin.http.Context;
+import io.javalin.http.Header;
+import io.javalin.json.JavalinJackson;
+import umm3601.ContentNegotiation.Format;
+import umm3601.todo.Todo;
+
+/**
+ * Tests writing documents straight from BSON with `RawDocuments`, mostly
+ * by checking that it writes exactly what Jackson writes for the same
+ * documents read as `Todo`s.
+ */
+@SuppressWarnings({"MagicNumber"})
+class RawDocumentsSpec {
+
+  // What Javalin uses for `ctx.json`
+  private static final ObjectMapper JSON_MAPPER = JavalinJackson.defaultMapper();
+
+  private static MongoClient mongoClient;
+  private static MongoDatabase db;
+
+  private MongoCollection<Document> documents;
+  private MongoCollection<RawBsonDocument> rawDocuments;
+
+  @BeforeAll
+  static void setupAll() {
+    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
+    mongoClient = MongoClients.create(
+        MongoClientSettings.builder()
+            .applyToClusterSettings(builder -> builder.hosts(Arrays.asList(new ServerAddress(mongoAddr))))
+            .build());
+    db = mongoClient.getDatabase("rawTest");
+  }
+
+  @AfterAll
+  static void teardown() {
+    db.drop();
+    mongoClient.close();
+  }
+
+  @BeforeEach
+  void setupEach() {
+    documents = db.getCollection("todos");
+    documents.drop();
+    rawDocuments = db.getCollection("todos", RawBsonDocument.class);
+  }
+
+  private String rawJson() throws IOException {
+    ByteServletOutputStream out = new ByteServletOutputStream();
+    RawDocuments.write(rawDocuments.find().sort(Sorts.ascending("_id")), out, Format.JSON);
+    return out.toString();
+  }
+
+  @Test
+  void writesTheSameJsonAsTheTodos() throws IOException {
+    documents.insertMany(List.of(
+        new Document("owner", "Sam").append("status", true)
+            .append("body", "Ut \"cillum\" dolore\nnon").append("category", "homework"),
+        new Document("owner", "Étienne").append("status", false)
+            .append("body", "tab\there, and a \\ too").append("category", "video games")));
+    JacksonMongoCollection<Todo> todos = JacksonMongoCollection.builder()
+        .build(db, "todos", Todo.class, UuidRepresentation.STANDARD);
+
+    String expected = JSON_MAPPER.writeValueAsString(
+        todos.find().sort(Sorts.ascending("_id")).into(new ArrayList<>()));
+
+    assertEquals(expected, rawJson());
+  }
+
+  @Test
+  void writesOtherBsonTypes() throws IOException {
+    ObjectId id = new ObjectId();
+    documents.insertOne(new Document("_id", id)
+        .append("count", 3L)
+        .append("ratio", 0.5)
+        .append("price", new Decimal128(new BigDecimal("1.25")))
+        .append("at", new Date(1000))
+        .append("missing", null)
+        .append("tags", List.of("a", 1, List.of(true)))
+        .append("owner", new Document("name", "Sam").append("ids", List.of(id))));
+
+    assertEquals("[{\"_id\":\"" + id.toHexString() + "\",\"count\":3,\"ratio\":0.5,\"price\":1.25,"
+        + "\"at\":1000,\"missing\":null,\"tags\":[\"a\",1,[true]],"
+        + "\"owner\":{\"name\":\"Sam\",\"ids\":[\"" + id.toHexString() + "\"]}}]", rawJson());
+  }
+
+  @Test
+  void writesNothingButAnEmptyListForNoDocuments() throws IOException {
+    assertEquals("[]", rawJson());
+  }
+
+  @Test
+  void refusesTypesItCantWrite() {
+    documents.insertOne(new Document("at", new BsonTimestamp(1, 2)));
+
+    assertThrows(IllegalStateException.class, this::rawJson);
+  }
+
+  @Test
+  void respondsInTheAcceptedFormat() throws IOException {
+    documents.insertOne(new Document("owner", "Sam").append("status", true));
+    Context ctx = mock(Context.class);
+    ByteServletOutputStream out = new ByteServletOutputStream();
+    when(ctx.outputStream()).thenReturn(out);
+    when(ctx.header(Header.ACCEPT)).thenReturn("application/cbor");
+
+    RawDocuments.respond(ctx, rawDocuments.find());
+
+    verify(ctx).contentType("application/cbor");
+    verify(ctx).header(Header.VARY, Header.ACCEPT);
+    assertEquals(JSON_MAPPER.readTree(rawJson()), Format.CBOR.mapper().readTree(out.toByteArray()));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void closesTheCursorWhenTheClientHangsUp() {
+    MongoCursor<RawBsonDocument> cursor = mock(MongoCursor.class);
+    when(cursor.hasNext()).thenReturn(true, false);
+    when(cursor.next()).thenReturn(RawBsonDocument.parse("{\"owner\": \"Sam\"}"));
+    OutputStream hungUp = new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        throw new IOException("Broken pipe");
+      }
+    };
+
+    assertThrows(IOException.class, () -> RawDocuments.write(() -> cursor, hungUp, Format.JSON));
+    verify(cursor).close();
+  }
+
+  @Test
+  void copiesTheResponseWhenAsked() throws IOException {
+    documents.insertOne(new Document("owner", "Sam").append("status", true));
+    Context ctx = mock(Context.class);
+    ByteServletOutputStream out = new ByteServletOutputStream();
+    ByteArrayOutputStream copy = new ByteArrayOutputStream();
+    when(ctx.outputStream()).thenReturn(out);
+    when(ctx.<OutputStream>attribute(RawDocuments.COPY_ATTRIBUTE)).thenReturn(copy);
+
+    RawDocuments.respond(ctx, rawDocuments.find());
+
+    assertEquals(JSON_MAPPER.readTree(rawJson()), JSON_MAPPER.readTree(out.toByteArray()));
+    assertEquals(out.toString(), copy.toString(StandardCharsets.UTF_8));
+  }
+}
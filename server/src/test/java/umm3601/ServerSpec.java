@@ -0,0 +1,74 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import com.aayushatharva.brotli4j.Brotli4jLoader;
+
+import io.javalin.compression.CompressionStrategy;
+import umm3601.Bulkheads.RouteClass;
+
+/**
+ * Tests the compression, bulkhead, and time budget settings for the server.
+ */
+@SuppressWarnings({"MagicNumber"})
+class ServerSpec {
+
+  @Test
+  void compressesWithGzipAboveTheMinimumSize() {
+    CompressionStrategy strategy = Server.compressionStrategy(4, 2048, false);
+
+    assertEquals(1, strategy.getCompressors().size());
+    assertEquals("gzip", strategy.getCompressors().get(0).encoding());
+    assertEquals(2048, strategy.getDefaultMinSizeForCompression());
+  }
+
+  @Test
+  void prefersBrotliWhenItsAvailable() {
+    // The build includes the native library for the platforms we build on
+    assertTrue(Brotli4jLoader.isAvailable());
+    CompressionStrategy strategy = Server.compressionStrategy(6, 1500, Brotli4jLoader.isAvailable());
+
+    assertEquals("br", strategy.getCompressors().get(0).encoding());
+    assertEquals("gzip", strategy.getCompressors().get(1).encoding());
+  }
+
+  @Test
+  void rejectsIllegalCompressionLevels() {
+    assertThrows(IllegalArgumentException.class, () -> Server.compressionStrategy(0, 1500, false));
+    assertThrows(IllegalArgumentException.class, () -> Server.compressionStrategy(10, 1500, false));
+  }
+
+  @Test
+  void keepsAggregationsAndCheapLookupsInTheirOwnBulkheads() {
+    Bulkheads bulkheads = Server.bulkheads();
+
+    assertEquals(RouteClass.AGGREGATION, bulkheads.classify("GET", "/api/usersByCompany"));
+    assertEquals(RouteClass.POINT_READ, bulkheads.classify("GET", "/api/autocomplete"));
+    assertEquals(RouteClass.POINT_READ, bulkheads.classify("GET", "/api/users/{id}"));
+    assertEquals(RouteClass.LIST_SCAN, bulkheads.classify("GET", "/api/todos"));
+    assertEquals(RouteClass.WRITE, bulkheads.classify("POST", "/api/todos"));
+    assertNull(bulkheads.classify("GET", "/api/users/events"));
+    assertNull(bulkheads.classify("GET", "/api/todos/events"));
+    assertEquals(Server.DEFAULT_BULKHEAD_PERMITS.get(RouteClass.AGGREGATION),
+        bulkheads.available(RouteClass.AGGREGATION));
+  }
+
+  @Test
+  void overridesTheQueryBudgetsOfRoutes() {
+    Map<String, Duration> budgets = Server.queryBudgets("/api/todos=2000, /api/usersByCompany=0");
+
+    assertEquals(Duration.ofSeconds(2), budgets.get("/api/todos"));
+    assertEquals(Duration.ZERO, budgets.get("/api/usersByCompany"));
+    assertEquals(Server.ROUTE_QUERY_BUDGETS.get("/api/users/{id}"), budgets.get("/api/users/{id}"));
+    assertEquals(Server.ROUTE_QUERY_BUDGETS, Server.queryBudgets(""));
+    assertThrows(IllegalArgumentException.class, () -> Server.queryBudgets("/api/todos"));
+  }
+}
@@ -0,0 +1,136 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests serving cached values while they're recomputed with
+ * `StaleWhileRevalidate`, with the background refreshes queued up to be
+ * run by the test when it's ready.
+ */
+@SuppressWarnings({"MagicNumber"})
+class StaleWhileRevalidateSpec {
+
+  private final List<Runnable> refreshes = new ArrayList<>();
+  private final AtomicInteger loads = new AtomicInteger();
+
+  @BeforeEach
+  void setupEach() {
+    refreshes.clear();
+    loads.set(0);
+  }
+
+  private Integer load() {
+    return loads.incrementAndGet();
+  }
+
+  private void runRefreshes() {
+    List<Runnable> queued = new ArrayList<>(refreshes);
+    refreshes.clear();
+    queued.forEach(Runnable::run);
+  }
+
+  @Test
+  void loadsTheFirstValueStraightAway() {
+    StaleWhileRevalidate<Integer> cache = new StaleWhileRevalidate<>(Duration.ofHours(1), refreshes::add);
+
+    assertEquals(1, cache.get(this::load));
+    assertEquals(1, cache.get(this::load));
+    assertEquals(1, loads.get());
+    assertTrue(refreshes.isEmpty());
+  }
+
+  @Test
+  void servesTheOldValueWhileOneRefreshRuns() {
+    StaleWhileRevalidate<Integer> cache = new StaleWhileRevalidate<>(Duration.ZERO, refreshes::add);
+    assertEquals(1, cache.get(this::load));
+
+    // Due for a refresh, but the callers don't wait for it, and only one starts
+    assertEquals(1, cache.get(this::load));
+    assertEquals(1, cache.get(this::load));
+    assertEquals(1, refreshes.size());
+    assertTrue(cache.isRefreshing());
+
+    runRefreshes();
+    assertFalse(cache.isRefreshing());
+    assertEquals(2, cache.get(this::load));
+    assertEquals(1, refreshes.size());
+  }
+
+  @Test
+  void keepsTheOldValueIfARefreshFails() {
+    StaleWhileRevalidate<Integer> cache = new StaleWhileRevalidate<>(Duration.ZERO, refreshes::add);
+    cache.get(this::load);
+
+    cache.get(() -> {
+      throw new IllegalStateException("MongoDB is down");
+    });
+    runRefreshes();
+
+    assertFalse(cache.isRefreshing());
+    assertEquals(1, cache.get(this::load));
+    runRefreshes();
+    assertEquals(2, cache.get(this::load));
+  }
+
+  @Test
+  void failsIfTheFirstLoadFails() {
+    StaleWhileRevalidate<Integer> cache = new StaleWhileRevalidate<>(Duration.ZERO, refreshes::add);
+
+    assertThrows(IllegalStateException.class, () -> cache.get(() -> {
+      throw new IllegalStateException("MongoDB is down");
+    }));
+    assertEquals(1, cache.get(this::load));
+  }
+
+  @Test
+  void firstCallersShareOneLoad() throws Exception {
+    StaleWhileRevalidate<Integer> cache = new StaleWhileRevalidate<>(Duration.ofHours(1), refreshes::add);
+    CountDownLatch loading = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+
+    try (ExecutorService callers = Executors.newVirtualThreadPerTaskExecutor()) {
+      Future<Integer> first = callers.submit(() -> cache.get(() -> {
+        loading.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return load();
+      }));
+      loading.await();
+      List<Future<Integer>> others = new ArrayList<>();
+      for (int i = 0; i < 5; i++) {
+        others.add(callers.submit(() -> cache.get(this::load)));
+      }
+      release.countDown();
+
+      assertEquals(1, first.get());
+      for (Future<Integer> other : others) {
+        assertEquals(1, other.get());
+      }
+    }
+    assertEquals(1, loads.get());
+  }
+
+  @Test
+  void refusesANegativeTtl() {
+    assertThrows(IllegalArgumentException.class,
+        () -> new StaleWhileRevalidate<Integer>("things", Duration.ofSeconds(-1)));
+  }
+}
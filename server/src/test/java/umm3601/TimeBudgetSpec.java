@@ -0,0 +1,79 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import io.javalin.Javalin;
+
+/**
+ * Tests giving requests a `TimeBudget`, against a tiny Javalin server whose
+ * routes report how much of their budget is left.
+ */
+@SuppressWarnings({"MagicNumber"})
+class TimeBudgetSpec {
+
+  private static HttpClient client = HttpClient.newHttpClient();
+
+  @Test
+  void givesEachRouteItsBudget() throws IOException, InterruptedException {
+    Javalin server = Javalin.create();
+    TimeBudget.register(server, Duration.ofSeconds(5),
+        Map.of("/api/quick/{id}", Duration.ofMillis(500), "/api/unlimited", Duration.ZERO));
+    for (String path : new String[] {"/api/quick/{id}", "/api/unlimited", "/api/other"}) {
+      server.get(path, ctx -> ctx.result(String.valueOf(TimeBudget.of(ctx).remainingMillis())));
+    }
+    server.start(0);
+    try {
+      long quick = Long.parseLong(get(server, "/api/quick/42"));
+      assertTrue(quick > 0 && quick <= 500, "The quick route had " + quick + " ms");
+      long other = Long.parseLong(get(server, "/api/other"));
+      assertTrue(other > 500 && other <= 5000, "The other route had " + other + " ms");
+      assertEquals("0", get(server, "/api/unlimited"));
+    } finally {
+      server.stop();
+    }
+  }
+
+  private static String get(Javalin server, String path) throws IOException, InterruptedException {
+    HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + server.port() + path)).build();
+    return client.send(request, HttpResponse.BodyHandlers.ofString()).body();
+  }
+
+  @Test
+  void stillLimitsQueriesOnceItsSpent() {
+    TimeBudget spent = TimeBudget.startingNow(Duration.ZERO);
+
+    assertTrue(spent.isSpent());
+    // Zero would mean no limit at all to MongoDB
+    assertEquals(1, spent.remainingMillis());
+  }
+
+  @Test
+  void unlimitedNeverRunsOut() {
+    assertFalse(TimeBudget.UNLIMITED.isSpent());
+    assertEquals(0, TimeBudget.UNLIMITED.remainingMillis());
+    assertEquals(0, TimeBudget.UNLIMITED.countOptions().getMaxTime(TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  void refusesNegativeBudgets() {
+    Javalin server = Javalin.create();
+    assertThrows(IllegalArgumentException.class,
+        () -> TimeBudget.register(server, Duration.ofSeconds(-1), Map.of()));
+    assertThrows(IllegalArgumentException.class,
+        () -> TimeBudget.register(server, Duration.ofSeconds(1), Map.of("/api/todos", Duration.ofSeconds(-1))));
+  }
+}
@@ -0,0 +1,101 @@
+package umm3601.autocomplete;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import io.javalin.Javalin;
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+import io.javalin.validation.Validation;
+import io.javalin.validation.ValidationException;
+import umm3601.index.Completion;
+import umm3601.index.PrefixIndex;
+
+/**
+ * Tests the logic of the AutocompleteController.
+ */
+@SuppressWarnings({"MagicNumber"})
+class AutocompleteControllerSpec {
+
+  private AutocompleteController autocompleteController;
+
+  @Mock
+  private Context ctx;
+
+  @BeforeEach
+  void setupEach() {
+    MockitoAnnotations.openMocks(this);
+
+    PrefixIndex owners = new PrefixIndex();
+    for (String owner : List.of("Chris", "Lynn", "Jack", "Sam", "Chris")) {
+      owners.add(owner);
+    }
+    PrefixIndex categories = new PrefixIndex();
+    categories.add("School");
+    autocompleteController = new AutocompleteController(Map.of("owner", owners, "category", categories));
+  }
+
+  private void queryParams(String field, String prefix, String limit) {
+    Validation validation = new Validation();
+    when(ctx.queryParam("field")).thenReturn(field);
+    when(ctx.queryParamAsClass("prefix", String.class))
+        .thenReturn(validation.validator("prefix", String.class, prefix));
+    when(ctx.queryParamAsClass("limit", Integer.class))
+        .thenReturn(validation.validator("limit", Integer.class, limit));
+  }
+
+  @Test
+  void addsRoutes() {
+    Javalin mockServer = mock(Javalin.class);
+    autocompleteController.addRoutes(mockServer);
+    verify(mockServer).get(any(), any());
+  }
+
+  @Test
+  void completesPrefixes() {
+    queryParams("owner", "c", null);
+
+    autocompleteController.getCompletions(ctx);
+
+    verify(ctx).json(List.of(new Completion("Chris", 2)));
+    verify(ctx).status(HttpStatus.OK);
+  }
+
+  @Test
+  void completesTheEmptyPrefixWithTheMostCommonValues() {
+    queryParams("owner", null, "2");
+
+    autocompleteController.getCompletions(ctx);
+
+    verify(ctx).json(List.of(new Completion("Chris", 2), new Completion("Jack", 1)));
+  }
+
+  @Test
+  void rejectsUnknownFields() {
+    queryParams("color", "b", null);
+    Throwable exception = assertThrows(BadRequestResponse.class, () -> autocompleteController.getCompletions(ctx));
+    assertEquals("field must be one of category, owner", exception.getMessage());
+
+    queryParams(null, "b", null);
+    assertThrows(BadRequestResponse.class, () -> autocompleteController.getCompletions(ctx));
+  }
+
+  @Test
+  void rejectsBadLimits() {
+    queryParams("owner", "c", "0");
+    assertThrows(ValidationException.class, () -> autocompleteController.getCompletions(ctx));
+  }
+}
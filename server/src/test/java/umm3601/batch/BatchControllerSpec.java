@@ -0,0 +1,117 @@
+package umm3601.batch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.javalin.Javalin;
+import io.javalin.http.HttpStatus;
+import io.javalin.http.NotFoundResponse;
+
+/**
+ * Tests `POST /api/batch` against a real (but tiny) Javalin server, since
+ * the batch sends its requests back to the server over HTTP.
+ */
+@SuppressWarnings({"MagicNumber"})
+class BatchControllerSpec {
+
+  private static final long SLOW_MILLIS = 500;
+
+  private static Javalin server;
+  private static HttpClient client = HttpClient.newHttpClient();
+  private static ObjectMapper objectMapper = new ObjectMapper();
+
+  @BeforeAll
+  static void startServer() {
+    server = Javalin.create();
+    server.get("/api/things", ctx -> ctx.json(Map.of("things", 2)));
+    server.get("/api/slow", ctx -> {
+      Thread.sleep(SLOW_MILLIS);
+      ctx.json(Map.of("slow", true));
+    });
+    server.post("/api/echo", ctx -> ctx.contentType("application/json").result(ctx.body()));
+    server.get("/api/text", ctx -> ctx.result("a,b\nc,d"));
+    server.get("/api/empty", ctx -> ctx.status(HttpStatus.NO_CONTENT));
+    server.get("/api/missing", ctx -> {
+      throw new NotFoundResponse("The requested thing was not found");
+    });
+    new BatchController().addRoutes(server);
+    server.start(0);
+  }
+
+  @AfterAll
+  static void stopServer() {
+    server.stop();
+  }
+
+  private HttpResponse<String> batch(String body) throws IOException, InterruptedException {
+    return client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + server.port() + "/api/batch"))
+        .POST(HttpRequest.BodyPublishers.ofString(body))
+        .build(), HttpResponse.BodyHandlers.ofString());
+  }
+
+  @Test
+  void runsRequestsAndKeepsTheirOrder() throws IOException, InterruptedException {
+    HttpResponse<String> response = batch("""
+        [{"method": "GET", "path": "/api/things"},
+         {"method": "post", "path": "/api/echo", "body": {"status": true}},
+         {"method": "GET", "path": "/api/text"},
+         {"method": "GET", "path": "/api/empty"},
+         {"method": "GET", "path": "/api/missing"}]
+        """);
+
+    assertEquals(200, response.statusCode());
+    JsonNode responses = objectMapper.readTree(response.body());
+    assertEquals(5, responses.size());
+    assertEquals(200, responses.get(0).get("status").asInt());
+    assertEquals(2, responses.get(0).get("body").get("things").asInt());
+    assertTrue(responses.get(1).get("body").get("status").asBoolean());
+    // Bodies that aren't JSON come back as strings
+    assertEquals("a,b\nc,d", responses.get(2).get("body").asText());
+    assertEquals(204, responses.get(3).get("status").asInt());
+    assertTrue(responses.get(3).get("body").isNull());
+    assertEquals(404, responses.get(4).get("status").asInt());
+    assertEquals("The requested thing was not found", responses.get(4).get("body").get("title").asText());
+  }
+
+  @Test
+  void runsRequestsConcurrently() throws IOException, InterruptedException {
+    long start = System.nanoTime();
+    HttpResponse<String> response = batch("""
+        [{"method": "GET", "path": "/api/slow"},
+         {"method": "GET", "path": "/api/slow"},
+         {"method": "GET", "path": "/api/slow"}]
+        """);
+    long millis = (System.nanoTime() - start) / 1_000_000;
+
+    assertEquals(200, response.statusCode());
+    for (JsonNode sub : objectMapper.readTree(response.body())) {
+      assertTrue(sub.get("body").get("slow").asBoolean());
+    }
+    assertTrue(millis < 2 * SLOW_MILLIS, "The batch took " + millis + "ms");
+  }
+
+  @Test
+  void rejectsBadBatches() throws IOException, InterruptedException {
+    assertEquals(400, batch("[]").statusCode());
+    assertEquals(400, batch("[{\"method\": \"PUT\", \"path\": \"/api/things\"}]").statusCode());
+    assertEquals(400, batch("[{\"method\": \"GET\", \"path\": \"/things\"}]").statusCode());
+    assertEquals(400, batch("[{\"method\": \"POST\", \"path\": \"/api/batch\"}]").statusCode());
+    assertEquals(400, batch("[null]").statusCode());
+    assertEquals(400, batch("[" + "{\"method\": \"GET\", \"path\": \"/api/things\"},".repeat(20)
+        + "{\"method\": \"GET\", \"path\": \"/api/things\"}]").statusCode());
+  }
+}
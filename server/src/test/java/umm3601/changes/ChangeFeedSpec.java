@@ -0,0 +1,88 @@
+package umm3601.changes;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import io.javalin.http.sse.SseClient;
+
+/**
+ * Tests pushing changes to SSE clients with `ChangeFeed`.
+ */
+@SuppressWarnings({"MagicNumber"})
+class ChangeFeedSpec {
+
+  @Test
+  void pushesMatchingChangesToSubscribers() {
+    ChangeFeed<String> feed = new ChangeFeed<>();
+    SseClient everything = mock(SseClient.class);
+    SseClient onlyA = mock(SseClient.class);
+    feed.subscribe(everything, value -> true);
+    feed.subscribe(onlyA, value -> value.startsWith("a"));
+    assertEquals(2, feed.subscriberCount());
+
+    feed.publish(ChangeFeed.Type.INSERT, "apple");
+    feed.publish(ChangeFeed.Type.DELETE, "banana");
+
+    verify(everything).keepAlive();
+    verify(everything, timeout(1000)).sendEvent("insert", "apple");
+    verify(everything, timeout(1000)).sendEvent("delete", "banana");
+    verify(onlyA, timeout(1000)).sendEvent("insert", "apple");
+    verify(onlyA, never()).sendEvent("delete", "banana");
+  }
+
+  @Test
+  void forgetsSubscribersThatDisconnect() {
+    ChangeFeed<String> feed = new ChangeFeed<>();
+    SseClient client = mock(SseClient.class);
+    feed.subscribe(client, value -> true);
+
+    ArgumentCaptor<Runnable> onClose = ArgumentCaptor.forClass(Runnable.class);
+    verify(client).onClose(onClose.capture());
+    onClose.getValue().run();
+
+    assertEquals(0, feed.subscriberCount());
+    feed.publish(ChangeFeed.Type.INSERT, "apple");
+    verify(client, never()).sendEvent(anyString(), any());
+  }
+
+  @Test
+  void dropsSubscribersThatFallBehind() throws InterruptedException {
+    ChangeFeed<String> feed = new ChangeFeed<>();
+    SseClient slow = mock(SseClient.class);
+    SseClient other = mock(SseClient.class);
+    CountDownLatch sending = new CountDownLatch(1);
+    CountDownLatch never = new CountDownLatch(1);
+    // The slow client gets stuck writing the first event
+    doAnswer(invocation -> {
+      sending.countDown();
+      never.await();
+      return null;
+    }).when(slow).sendEvent(anyString(), any());
+    feed.subscribe(slow, value -> true);
+    feed.subscribe(other, "last"::equals);
+
+    feed.publish(ChangeFeed.Type.INSERT, "first");
+    sending.await();
+    for (int i = 0; i <= ChangeFeed.QUEUE_CAPACITY; i++) {
+      feed.publish(ChangeFeed.Type.INSERT, "event " + i);
+    }
+
+    // Publishing never waited for the slow client; it was just dropped,
+    // and the other subscriber still gets its events
+    verify(slow).close();
+    assertEquals(1, feed.subscriberCount());
+    feed.publish(ChangeFeed.Type.INSERT, "last");
+    verify(other, timeout(1000)).sendEvent("insert", "last");
+  }
+}
@@ -0,0 +1,98 @@
+package umm3601.changes;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import io.javalin.http.BadRequestResponse;
+
+/**
+ * Tests tracking changes (and tombstones) with `ChangeLog`.
+ */
+@SuppressWarnings({"MagicNumber"})
+class ChangeLogSpec {
+
+  @Test
+  void startsWithAReset() {
+    ChangeLog log = new ChangeLog();
+    ChangeLog.Changes changes = log.since(null);
+
+    assertTrue(changes.reset());
+    assertEquals(log.token(), changes.token());
+    assertEquals(0, log.generation());
+  }
+
+  @Test
+  void reportsEachChangedDocumentOnce() {
+    ChangeLog log = new ChangeLog();
+    log.recordChange("a");
+    String token = log.token();
+    log.recordChange("b");
+    log.recordChange("c");
+    log.recordChange("b");
+    log.recordDelete("c");
+
+    ChangeLog.Changes changes = log.since(token);
+    assertFalse(changes.reset());
+    assertEquals(List.of("b"), changes.changed());
+    assertEquals(List.of("c"), changes.deleted());
+    assertEquals(5, log.generation());
+
+    // Nothing has changed since the new token
+    ChangeLog.Changes none = log.since(changes.token());
+    assertTrue(none.changed().isEmpty());
+    assertTrue(none.deleted().isEmpty());
+  }
+
+  @Test
+  void reinsertedDocumentsAreChangedNotDeleted() {
+    ChangeLog log = new ChangeLog();
+    String token = log.token();
+    log.recordDelete("a");
+    log.recordChange("a");
+
+    assertEquals(List.of("a"), log.since(token).changed());
+    assertTrue(log.since(token).deleted().isEmpty());
+  }
+
+  @Test
+  void resetsTokensFromOtherEpochs() {
+    ChangeLog log = new ChangeLog();
+    log.recordChange("a");
+    String token = log.token();
+
+    assertTrue(new ChangeLog().since(token.replaceFirst("^[^:]*", "other")).reset());
+  }
+
+  @Test
+  void resetsTokensOlderThanTheOldestTombstone() {
+    ChangeLog log = new ChangeLog(2);
+    String start = log.token();
+    log.recordDelete("a");
+    String afterA = log.token();
+    log.recordDelete("b");
+    log.recordDelete("c");
+
+    // "a"'s tombstone is gone, so we can't answer for tokens before it
+    assertTrue(log.since(start).reset());
+    ChangeLog.Changes changes = log.since(afterA);
+    assertFalse(changes.reset());
+    assertEquals(List.of("b", "c"), changes.deleted());
+  }
+
+  @Test
+  void rejectsMalformedTokens() {
+    ChangeLog log = new ChangeLog();
+    String epoch = log.token().split(":")[0];
+
+    assertThrows(BadRequestResponse.class, () -> log.since("nonsense"));
+    assertThrows(BadRequestResponse.class, () -> log.since(epoch + ":abc"));
+    assertThrows(BadRequestResponse.class, () -> log.since(epoch + ":-3"));
+    assertThrows(BadRequestResponse.class, () -> log.since(epoch + ":12"));
+  }
+}
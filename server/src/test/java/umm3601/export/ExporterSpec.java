@@ -0,0 +1,198 @@
+package umm3601.export;
+
+import static com.mongodb.client.model.Filters.eq;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+import io.javalin.validation.Validation;
+import io.javalin.validation.ValidationException;
+import umm3601.ByteServletOutputStream;
+
+/**
+ * Tests streaming exports with `Exporter`, sequentially and in parallel.
+ */
+@SuppressWarnings({"MagicNumber"})
+class ExporterSpec {
+
+  private static MongoClient mongoClient;
+  private static MongoDatabase db;
+
+  private MongoCollection<Document> todos;
+  private Exporter exporter;
+  private ObjectId samsId;
+
+  @Mock
+  private Context ctx;
+
+  @BeforeAll
+  static void setupAll() {
+    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
+    mongoClient = MongoClients.create(
+        MongoClientSettings.builder()
+            .applyToClusterSettings(builder -> builder.hosts(Arrays.asList(new ServerAddress(mongoAddr))))
+            .build());
+    db = mongoClient.getDatabase("exportTest");
+  }
+
+  @AfterAll
+  static void teardown() {
+    db.drop();
+    mongoClient.close();
+  }
+
+  @BeforeEach
+  void setupEach() {
+    MockitoAnnotations.openMocks(this);
+    todos = db.getCollection("todos");
+    todos.drop();
+    samsId = new ObjectId();
+    todos.insertMany(List.of(
+        new Document().append("owner", "Chris").append("status", true)
+            .append("body", "Buy eggs, milk").append("category", "Food"),
+        new Document().append("owner", "Lynn").append("status", false)
+            .append("body", "Say \"hi\"").append("category", "School"),
+        new Document("_id", samsId).append("owner", "Sam").append("status", true).append("category", "School")));
+    exporter = new Exporter(todos, List.of("owner", "status", "body", "category"));
+  }
+
+  private String export(Document filter, Exporter.Format format, int parallel) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    exporter.write(out, filter, format, parallel);
+    return out.toString(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  void exportsNdjson() throws IOException {
+    String ndjson = export(new Document("category", "School"), Exporter.Format.NDJSON, 1);
+
+    String[] lines = ndjson.split("\n");
+    assertEquals(2, lines.length);
+    assertEquals("{\"_id\": \"" + samsId.toHexString() + "\", \"owner\": \"Sam\", \"status\": true, "
+        + "\"category\": \"School\"}", lines[1]);
+  }
+
+  @Test
+  void exportsCsv() throws IOException {
+    String csv = export(new Document(), Exporter.Format.CSV, 1);
+
+    String[] lines = csv.split("\n");
+    assertEquals(List.of(
+        "_id,owner,status,body,category",
+        "Chris,true,\"Buy eggs, milk\",Food",
+        "Lynn,false,\"Say \"\"hi\"\"\",School",
+        "Sam,true,,School"),
+        Arrays.stream(lines).map(line -> line.startsWith("_id") ? line : line.substring(25)).toList());
+    assertTrue(lines[3].startsWith(samsId.toHexString() + ","));
+  }
+
+  @Test
+  void exportsInParallel() throws IOException {
+    List<Document> many = new ArrayList<>();
+    for (int i = 0; i < 2000; i++) {
+      many.add(new Document().append("owner", "Owner " + i).append("status", i % 2 == 0)
+          .append("body", "Todo number " + i).append("category", "Category " + i % 5));
+    }
+    todos.insertMany(many);
+
+    String sequential = export(new Document("status", true), Exporter.Format.NDJSON, 1);
+    String parallel = export(new Document("status", true), Exporter.Format.NDJSON, 4);
+
+    // The same lines, but not necessarily in the same order
+    Set<String> lines = new HashSet<>(Arrays.asList(parallel.split("\n")));
+    assertEquals(1002, parallel.split("\n").length);
+    assertEquals(new HashSet<>(Arrays.asList(sequential.split("\n"))), lines);
+  }
+
+  @Test
+  void partitionsTheIdRange() throws IOException {
+    assertEquals(4, exporter.partition(new Document(), 4).size());
+    // With nothing to export there's nothing to split
+    assertEquals(1, exporter.partition(eq("owner", "Nobody"), 4).size());
+    assertEquals("", export(new Document("owner", "Nobody"), Exporter.Format.NDJSON, 4));
+  }
+
+  @Test
+  void stopsWhenTheClientGoesAway() {
+    List<Document> many = new ArrayList<>();
+    for (int i = 0; i < 5000; i++) {
+      many.add(new Document().append("owner", "Owner " + i).append("body", "x".repeat(100)));
+    }
+    todos.insertMany(many);
+    OutputStream broken = new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        throw new IOException("Connection reset");
+      }
+    };
+
+    assertThrows(IOException.class, () -> exporter.write(broken, new Document(), Exporter.Format.NDJSON, 4));
+  }
+
+  @Test
+  void exportsIntoTheResponse() {
+    ByteServletOutputStream output = new ByteServletOutputStream();
+    when(ctx.outputStream()).thenReturn(output);
+    Validation validation = new Validation();
+    when(ctx.queryParamAsClass("format", String.class)).thenReturn(validation.validator("format", String.class, "CSV"));
+    when(ctx.queryParamAsClass("parallel", Integer.class))
+        .thenReturn(validation.validator("parallel", Integer.class, "2"));
+
+    exporter.export(ctx, new Document());
+
+    verify(ctx).status(HttpStatus.OK);
+    verify(ctx).contentType("text/csv");
+    assertEquals(4, output.toString().split("\n").length);
+  }
+
+  @Test
+  void rejectsBadParameters() {
+    Validation validation = new Validation();
+    when(ctx.queryParamAsClass("format", String.class)).thenReturn(validation.validator("format", String.class, "xml"));
+    assertThrows(BadRequestResponse.class, () -> exporter.export(ctx, new Document()));
+
+    when(ctx.queryParamAsClass("format", String.class)).thenReturn(validation.validator("format", String.class, null));
+    when(ctx.queryParamAsClass("parallel", Integer.class))
+        .thenReturn(validation.validator("parallel", Integer.class, "17"));
+    assertThrows(ValidationException.class, () -> exporter.export(ctx, new Document()));
+  }
+
+  @Test
+  void formatsCsvValues() {
+    assertEquals("", Exporter.csvValue(null));
+    assertEquals("37", Exporter.csvValue(37));
+    assertEquals("\"a\nb\"", Exporter.csvValue("a\nb"));
+    assertEquals("\"a\rb\"", Exporter.csvValue("a\rb"));
+  }
+}
@@ -0,0 +1,50 @@
+package umm3601.index;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests `BitmapIndex`, using the categories of a few todos.
+ */
+@SuppressWarnings({"MagicNumber"})
+class BitmapIndexSpec {
+
+  private BitmapIndex index;
+
+  @BeforeEach
+  void setupEach() {
+    index = new BitmapIndex();
+    index.add("Food", 0);
+    index.add("School", 1);
+    index.add("Work", 2);
+    index.add("School", 3);
+    index.add(null, 4);
+  }
+
+  @Test
+  void looksUpValues() {
+    assertEquals(4, index.size());
+    assertEquals(RoaringBitmap.of(1, 3), index.get("School"));
+    assertTrue(index.get("Homework").isEmpty());
+  }
+
+  @Test
+  void unionsMatchingValues() {
+    assertEquals(RoaringBitmap.of(1, 2, 3), index.matching(value -> value.contains("o") && !value.equals("Food")));
+    // Documents without a value never match
+    assertEquals(RoaringBitmap.of(0, 1, 2, 3), index.matching(value -> true));
+  }
+
+  @Test
+  void removesDocuments() {
+    index.remove(3);
+    assertEquals(RoaringBitmap.of(1), index.get("School"));
+
+    // Removing the last document with a value drops the value
+    index.remove(0);
+    assertEquals(3, index.size());
+  }
+}
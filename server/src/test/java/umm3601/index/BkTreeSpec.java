@@ -0,0 +1,65 @@
+package umm3601.index;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests fuzzy lookups with `BkTree`.
+ */
+@SuppressWarnings({"MagicNumber"})
+class BkTreeSpec {
+
+  private BkTree tree;
+  private Map<String, Integer> counts;
+
+  @BeforeEach
+  void setupEach() {
+    tree = new BkTree();
+    counts = Map.of("Chris", 3, "Christa", 1, "Kris", 5, "Lynn", 2, "Sam", 1, "Pat", 0);
+    for (String name : List.of("Chris", "Christa", "Kris", "Lynn", "Sam", "Pat", "Chris")) {
+      tree.add(name);
+    }
+    tree.add(null);
+  }
+
+  private List<FuzzyMatch> search(String query, int maxDistance) {
+    return tree.search(query, maxDistance, value -> counts.getOrDefault(value, 0));
+  }
+
+  @Test
+  void findsCloseValuesInOrder() {
+    assertEquals(6, tree.size());
+    assertEquals(List.of(new FuzzyMatch("Chris", 2, 3)), search("chirs", 2));
+    // Ties on distance go to the more common value
+    assertEquals(List.of(
+        new FuzzyMatch("Kris", 1, 5),
+        new FuzzyMatch("Chris", 1, 3),
+        new FuzzyMatch("Christa", 3, 1)),
+        search("Cris", 3));
+  }
+
+  @Test
+  void ignoresCase() {
+    assertEquals(List.of(new FuzzyMatch("Lynn", 0, 2)), search("LYNN", 0));
+  }
+
+  @Test
+  void leavesOutValuesNoDocumentHas() {
+    assertEquals(List.of(new FuzzyMatch("Sam", 1, 1)), search("Pam", 1));
+    assertTrue(new BkTree().search("Sam", 2, value -> 1).isEmpty());
+  }
+
+  @Test
+  void computesEditDistances() {
+    assertEquals(0, BkTree.distance("", ""));
+    assertEquals(3, BkTree.distance("", "abc"));
+    assertEquals(3, BkTree.distance("kitten", "sitting"));
+    assertEquals(2, BkTree.distance("ohmnet", "omhnet"));
+  }
+}
@@ -0,0 +1,63 @@
+package umm3601.index;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests autocompletion with `PrefixIndex`.
+ */
+@SuppressWarnings({"MagicNumber"})
+class PrefixIndexSpec {
+
+  private PrefixIndex index;
+
+  @BeforeEach
+  void setupEach() {
+    index = new PrefixIndex();
+    for (String company : List.of("OHMNET", "OHMNET", "Ohmnet", "IBM", "UMM", "Oracle")) {
+      index.add(company);
+    }
+    index.add(null);
+  }
+
+  @Test
+  void completesPrefixesIgnoringCase() {
+    assertEquals(List.of(
+        new Completion("OHMNET", 2),
+        new Completion("Ohmnet", 1)),
+        index.complete("oHm", 10));
+    assertEquals(List.of(
+        new Completion("OHMNET", 2),
+        new Completion("Ohmnet", 1),
+        new Completion("Oracle", 1)),
+        index.complete("o", 10));
+    assertTrue(index.complete("xyz", 10).isEmpty());
+  }
+
+  @Test
+  void limitsCompletions() {
+    assertEquals(4, index.size());
+    assertEquals(List.of(new Completion("OHMNET", 2), new Completion("IBM", 1)), index.complete("", 2));
+  }
+
+  @Test
+  void removesValues() {
+    index.remove("OHMNET");
+    index.remove("Oracle");
+    index.remove("Nobody");
+    index.remove(null);
+
+    assertEquals(List.of(new Completion("OHMNET", 1), new Completion("Ohmnet", 1)), index.complete("o", 10));
+    assertEquals(3, index.size());
+
+    index.remove("OHMNET");
+    index.remove("Ohmnet");
+    assertTrue(index.complete("o", 10).isEmpty());
+    assertEquals(2, index.size());
+  }
+}
@@ -0,0 +1,112 @@
+package umm3601.index;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests `RoaringBitmap`, including chunks that are dense enough to switch
+ * from array containers to bitmap containers (and back).
+ */
+@SuppressWarnings({"MagicNumber"})
+class RoaringBitmapSpec {
+
+  // Every value in the chunk starting at `start` that is a multiple of `step`
+  private static RoaringBitmap range(int start, int step) {
+    RoaringBitmap bitmap = new RoaringBitmap();
+    for (int value = start; value < start + 65536; value += step) {
+      bitmap.add(value);
+    }
+    return bitmap;
+  }
+
+  @Test
+  void addsAndRemovesValues() {
+    RoaringBitmap bitmap = RoaringBitmap.of(3, 1, 70000, 3);
+
+    assertEquals(3, bitmap.cardinality());
+    assertTrue(bitmap.contains(1));
+    assertTrue(bitmap.contains(70000));
+    assertFalse(bitmap.contains(2));
+    assertFalse(bitmap.contains(200000));
+    assertArrayEquals(new int[] {1, 3, 70000}, bitmap.toArray());
+
+    bitmap.remove(70000);
+    bitmap.remove(2);
+    bitmap.remove(200000);
+    assertArrayEquals(new int[] {1, 3}, bitmap.toArray());
+
+    bitmap.remove(1);
+    bitmap.remove(3);
+    assertTrue(bitmap.isEmpty());
+  }
+
+  @Test
+  void switchesToBitmapContainersForDenseChunks() {
+    // 8192 values in one chunk is more than an array container holds
+    RoaringBitmap evens = range(0, 2);
+    assertEquals(32768, evens.cardinality());
+    assertTrue(evens.contains(4096));
+    assertFalse(evens.contains(4097));
+
+    // Adding a value that's already there doesn't change anything
+    evens.add(4096);
+    assertEquals(32768, evens.cardinality());
+
+    // Remove all but a few values, which switches back to an array
+    for (int value = 8; value < 65536; value += 2) {
+      evens.remove(value);
+    }
+    evens.remove(1);
+    assertArrayEquals(new int[] {0, 2, 4, 6}, evens.toArray());
+  }
+
+  @Test
+  void intersectsBitmaps() {
+    RoaringBitmap evens = range(0, 2);
+    RoaringBitmap threes = range(0, 3);
+    RoaringBitmap sparse = RoaringBitmap.of(2, 3, 6, 65536, 131072);
+
+    // Bitmap and bitmap
+    RoaringBitmap sixes = evens.and(threes);
+    assertEquals(range(0, 6), sixes);
+    // Bitmap and array, in both orders
+    assertArrayEquals(new int[] {2, 6}, evens.and(sparse).toArray());
+    assertArrayEquals(new int[] {2, 6}, sparse.and(evens).toArray());
+    // A sparse intersection of dense bitmaps ends up as an array
+    RoaringBitmap few = range(0, 2).and(RoaringBitmap.of(10, 11, 12));
+    assertArrayEquals(new int[] {10, 12}, few.toArray());
+    // Chunks in only one of the bitmaps are skipped
+    assertArrayEquals(new int[] {65536}, sparse.and(RoaringBitmap.of(65536, 200000)).toArray());
+    assertTrue(sparse.and(new RoaringBitmap()).isEmpty());
+  }
+
+  @Test
+  void unionsBitmaps() {
+    RoaringBitmap evens = range(0, 2);
+    RoaringBitmap odds = range(1, 2);
+    RoaringBitmap sparse = RoaringBitmap.of(1, 65536, 131072);
+
+    assertEquals(65536, evens.or(odds).cardinality());
+    assertEquals(32771, evens.or(sparse).cardinality());
+    assertEquals(evens.or(sparse), sparse.or(evens));
+    assertArrayEquals(new int[] {1, 5, 65536, 131072}, sparse.or(RoaringBitmap.of(5)).toArray());
+
+    // The operands aren't changed
+    assertEquals(32768, evens.cardinality());
+    assertEquals(3, sparse.cardinality());
+  }
+
+  @Test
+  void comparesByValues() {
+    assertEquals(RoaringBitmap.of(1, 2), RoaringBitmap.of(2, 1));
+    assertEquals(RoaringBitmap.of(1, 2).hashCode(), RoaringBitmap.of(2, 1).hashCode());
+    assertNotEquals(RoaringBitmap.of(1, 2), RoaringBitmap.of(1));
+    assertNotEquals(RoaringBitmap.of(1), "[1]");
+    assertEquals("[1, 2]", RoaringBitmap.of(2, 1).toString());
+  }
+}
@@ -0,0 +1,241 @@
+package umm3601.snapshot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.javalin.Javalin;
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+import io.javalin.http.NotFoundResponse;
+import io.javalin.validation.Validation;
+import io.javalin.validation.ValidationException;
+import io.javalin.validation.Validator;
+import umm3601.ByteServletOutputStream;
+
+/**
+ * Tests serving todos and users out of snapshots, using the same
+ * test data (and many of the same checks) as the controller specs.
+ */
+@SuppressWarnings({"MagicNumber"})
+class SnapshotControllerSpec {
+
+  private Path tempDir;
+
+  private ObjectId samsId;
+  private TodoSnapshotController todoController;
+  private UserSnapshotController userController;
+  private ByteServletOutputStream output;
+
+  private static ObjectMapper objectMapper = new ObjectMapper();
+
+  @Mock
+  private Context ctx;
+
+  @BeforeEach
+  void setupEach(@TempDir Path dir) throws IOException {
+    tempDir = dir;
+    MockitoAnnotations.openMocks(this);
+    output = new ByteServletOutputStream();
+    when(ctx.outputStream()).thenReturn(output);
+
+    samsId = new ObjectId();
+    Path todos = tempDir.resolve("todos.snap");
+    SnapshotWriter.write(SnapshotField.TODOS, List.of(
+        new Document().append("owner", "Chris").append("status", true)
+            .append("body", "amet incididunt anim qui").append("category", "Food"),
+        new Document().append("owner", "Lynn").append("status", false)
+            .append("body", "incididunt anim qui").append("category", "School"),
+        new Document().append("owner", "Jack").append("status", true)
+            .append("body", "cillum commodo amet incididunt anim qui").append("category", "Work"),
+        new Document().append("_id", samsId).append("owner", "Sam").append("status", true)
+            .append("body", "commodo cillum amet incididunt anim qui").append("category", "School")),
+        todos);
+    todoController = new TodoSnapshotController(Snapshot.open(todos));
+
+    Path users = tempDir.resolve("users.snap");
+    SnapshotWriter.write(SnapshotField.USERS, List.of(
+        new Document().append("name", "Chris").append("age", 25).append("company", "UMM")
+            .append("email", "chris@this.that").append("role", "admin"),
+        new Document().append("name", "Pat").append("age", 37).append("company", "IBM")
+            .append("email", "pat@something.com").append("role", "editor"),
+        new Document().append("name", "Jamie").append("age", 37).append("company", "OHMNET")
+            .append("email", "jamie@frogs.com").append("role", "viewer"),
+        new Document().append("_id", samsId).append("name", "Sam").append("age", 45).append("company", "OHMNET")
+            .append("email", "sam@frogs.com").append("role", "viewer")),
+        users);
+    userController = new UserSnapshotController(Snapshot.open(users));
+  }
+
+  private JsonNode response() throws IOException {
+    verify(ctx).status(HttpStatus.OK);
+    return objectMapper.readTree(output.toByteArray());
+  }
+
+  private List<String> values(JsonNode array, String field) {
+    List<String> result = new ArrayList<>();
+    for (JsonNode node : array) {
+      result.add(node.get(field).asText());
+    }
+    return result;
+  }
+
+  private void queryParams(Map<String, String> params) {
+    when(ctx.queryParamMap()).thenReturn(params.entrySet().stream()
+        .collect(Collectors.toMap(Map.Entry::getKey, entry -> List.of(entry.getValue()))));
+    params.forEach((key, value) -> when(ctx.queryParam(key)).thenReturn(value));
+  }
+
+  @Test
+  void addsRoutes() {
+    Javalin mockServer = mock(Javalin.class);
+    todoController.addRoutes(mockServer);
+    verify(mockServer, Mockito.times(2)).get(any(), any());
+  }
+
+  @Test
+  void canGetAllTodosSortedByOwner() throws IOException {
+    todoController.getAll(ctx);
+
+    assertEquals(List.of("Chris", "Jack", "Lynn", "Sam"), values(response(), "owner"));
+  }
+
+  @Test
+  void canGetTodoById() throws IOException {
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+
+    todoController.getOne(ctx);
+
+    JsonNode sam = response();
+    assertEquals(samsId.toHexString(), sam.get("_id").asText());
+    assertEquals("Sam", sam.get("owner").asText());
+  }
+
+  @Test
+  void getTodoWithBadIdOrNonexistentId() {
+    when(ctx.pathParam("id")).thenReturn("bad");
+    Throwable exception = assertThrows(BadRequestResponse.class, () -> todoController.getOne(ctx));
+    assertEquals("The requested todo id wasn't a legal Mongo Object ID.", exception.getMessage());
+
+    when(ctx.pathParam("id")).thenReturn("588935f5c668650dc77df581");
+    exception = assertThrows(NotFoundResponse.class, () -> todoController.getOne(ctx));
+    assertEquals("The requested todo was not found", exception.getMessage());
+  }
+
+  @Test
+  void canFilterTodos() throws IOException {
+    queryParams(Map.of("category", "school", "status", "complete", "contains", "cillum"));
+
+    todoController.getAll(ctx);
+
+    assertEquals(List.of("Sam"), values(response(), "owner"));
+  }
+
+  @Test
+  void canFilterTodosByOwnerAndIncompleteStatus() throws IOException {
+    queryParams(Map.of("owner", "LY", "status", "incomplete"));
+
+    todoController.getAll(ctx);
+
+    assertEquals(List.of("Lynn"), values(response(), "owner"));
+  }
+
+  @Test
+  void canSortAndLimitTodos() throws IOException {
+    queryParams(Map.of("sortby", "body", "sortorder", "desc", "limit", "2"));
+
+    todoController.getAll(ctx);
+
+    assertEquals(List.of("Lynn", "Sam"), values(response(), "owner"));
+  }
+
+  @Test
+  void rejectsBadTodoParameters() {
+    queryParams(Map.of("status", "done"));
+    assertThrows(BadRequestResponse.class, () -> todoController.getAll(ctx));
+
+    queryParams(Map.of("limit", "0"));
+    assertThrows(BadRequestResponse.class, () -> todoController.getAll(ctx));
+
+    queryParams(Map.of("limit", "abc"));
+    assertThrows(BadRequestResponse.class, () -> todoController.getAll(ctx));
+
+    queryParams(Map.of("sortby", "color"));
+    assertThrows(BadRequestResponse.class, () -> todoController.getAll(ctx));
+
+    queryParams(Map.of("sortorder", "sideways"));
+    assertThrows(BadRequestResponse.class, () -> todoController.getAll(ctx));
+  }
+
+  @Test
+  void canGetAllUsersSortedByName() throws IOException {
+    userController.getAll(ctx);
+
+    assertEquals(List.of("Chris", "Jamie", "Pat", "Sam"), values(response(), "name"));
+  }
+
+  @Test
+  void canFilterUsers() throws IOException {
+    queryParams(Map.of("age", "37", "company", "ohm", "role", "viewer", "sortorder", "desc"));
+    Validation validation = new Validation();
+    Validator<Integer> ageValidator = validation.validator("age", Integer.class, "37");
+    when(ctx.queryParamAsClass("age", Integer.class)).thenReturn(ageValidator);
+    Validator<String> roleValidator = validation.validator("role", String.class, "viewer");
+    when(ctx.queryParamAsClass("role", String.class)).thenReturn(roleValidator);
+
+    userController.getAll(ctx);
+
+    assertEquals(List.of("Jamie"), values(response(), "name"));
+  }
+
+  @Test
+  void leavesUsersUnsortedForUnknownFields() throws IOException {
+    queryParams(Map.of("sortby", "color"));
+
+    userController.getAll(ctx);
+
+    assertEquals(List.of("Chris", "Pat", "Jamie", "Sam"), values(response(), "name"));
+  }
+
+  @Test
+  void rejectsIllegalUserAge() {
+    queryParams(Map.of("age", "151"));
+    Validator<Integer> validator = new Validation().validator("age", Integer.class, "151");
+    when(ctx.queryParamAsClass("age", Integer.class)).thenReturn(validator);
+
+    assertThrows(ValidationException.class, () -> userController.getAll(ctx));
+  }
+
+  @Test
+  void sortsAreStable() {
+    int[] ordinals = {5, 3, 1, 4, 2, 0};
+    // Only compare whether the ordinals are even or odd
+    SnapshotController.sort(ordinals, (a, b) -> Integer.compare(a % 2, b % 2));
+    assertEquals(List.of(4, 2, 0, 5, 3, 1),
+        Arrays.stream(ordinals).boxed().collect(Collectors.toList()));
+  }
+}
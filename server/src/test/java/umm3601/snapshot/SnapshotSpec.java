@@ -0,0 +1,233 @@
+package umm3601.snapshot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoDatabase;
+
+/**
+ * Tests writing snapshots with `SnapshotWriter` and reading them
+ * back with `Snapshot`.
+ */
+@SuppressWarnings({"MagicNumber"})
+class SnapshotSpec {
+
+  private Path tempDir;
+
+  private ObjectId samsId;
+  private Snapshot snapshot;
+
+  @BeforeEach
+  void setupEach(@TempDir Path dir) throws IOException {
+    tempDir = dir;
+    samsId = new ObjectId();
+    List<Document> todos = new ArrayList<>();
+    todos.add(new Document()
+        .append("owner", "Chris")
+        .append("status", true)
+        .append("body", "amet incididunt anim qui")
+        .append("category", "Food"));
+    todos.add(new Document()
+        .append("owner", "Lynn")
+        .append("status", false)
+        .append("body", "incididunt anim qui")
+        .append("category", "School"));
+    todos.add(new Document()
+        .append("_id", samsId)
+        .append("owner", "Sam")
+        .append("status", true)
+        .append("body", "commodo cillum amet incididunt anim qui")
+        .append("category", "School"));
+    // A todo with missing fields
+    todos.add(new Document()
+        .append("_id", "000000000000000000000001")
+        .append("status", false));
+
+    Path file = tempDir.resolve("todos.snap");
+    SnapshotWriter.write(SnapshotField.TODOS, todos, file);
+    snapshot = Snapshot.open(file);
+  }
+
+  @Test
+  void readsTheSchemaBack() {
+    assertEquals(4, snapshot.size());
+    assertEquals(SnapshotField.TODOS, snapshot.fields());
+    assertEquals(0, snapshot.fieldIndex("owner"));
+    assertEquals(3, snapshot.fieldIndex("category"));
+    assertEquals(-1, snapshot.fieldIndex("color"));
+  }
+
+  @Test
+  void findsRecordsById() {
+    assertEquals(2, snapshot.find(samsId.toHexString()));
+    assertEquals(-1, snapshot.find(new ObjectId().toHexString()));
+    assertThrows(IllegalArgumentException.class, () -> snapshot.find("bad"));
+  }
+
+  @Test
+  void findsDictionaryValues() {
+    BitSet school = snapshot.matchingDictValues(3, "School"::equals);
+    assertEquals(BitSet.valueOf(new long[] {0b110}), school);
+
+    BitSet none = snapshot.matchingDictValues(0, "Nobody"::equals);
+    assertTrue(none.isEmpty());
+  }
+
+  @Test
+  void readsFixedWidthValues() {
+    assertTrue(snapshot.boolValue(0, 1));
+    assertFalse(snapshot.boolValue(1, 1));
+    // Codes follow the sorted order of the values, and missing values are -1
+    assertEquals(0, snapshot.intValue(0, 0));
+    assertEquals(2, snapshot.intValue(2, 0));
+    assertEquals(-1, snapshot.intValue(3, 0));
+  }
+
+  @Test
+  void searchesTextFields() {
+    byte[] cillum = "cillum".getBytes(StandardCharsets.UTF_8);
+    assertTrue(snapshot.textContains(2, 2, cillum));
+    assertFalse(snapshot.textContains(0, 2, cillum));
+    assertFalse(snapshot.textContains(3, 2, cillum));
+  }
+
+  @Test
+  void comparesLikeMongo() {
+    // Dictionary values
+    assertTrue(snapshot.compare(0, 1, 0) < 0);
+    assertTrue(snapshot.compare(3, 0, 0) < 0);
+    // Booleans
+    assertTrue(snapshot.compare(1, 0, 1) < 0);
+    assertEquals(0, snapshot.compare(0, 2, 1));
+    // Text, including missing text and prefixes
+    assertTrue(snapshot.compare(0, 2, 2) < 0);
+    assertTrue(snapshot.compare(1, 0, 2) > 0);
+    assertTrue(snapshot.compare(3, 0, 2) < 0);
+    assertEquals(0, snapshot.compare(0, 0, 2));
+  }
+
+  @Test
+  void copiesJsonOutOfTheSnapshot() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    // A tiny scratch buffer makes sure we copy in several chunks
+    snapshot.writeJson(2, out, new byte[5]);
+    assertEquals(
+        "{\"_id\":\"" + samsId.toHexString() + "\",\"owner\":\"Sam\",\"status\":true,"
+            + "\"body\":\"commodo cillum amet incididunt anim qui\",\"category\":\"School\"}",
+        out.toString(StandardCharsets.UTF_8));
+
+    out.reset();
+    snapshot.writeJson(3, out, new byte[5]);
+    assertTrue(out.toString(StandardCharsets.UTF_8).contains("\"owner\":null"));
+  }
+
+  @Test
+  void writesUsersWithIntegerFields() throws IOException {
+    Path file = tempDir.resolve("users.snap");
+    SnapshotWriter.write(SnapshotField.USERS, List.of(
+        new Document().append("name", "Pat").append("age", 37).append("company", "IBM"),
+        new Document().append("name", "Kim")), file);
+    Snapshot users = Snapshot.open(file);
+
+    assertEquals(37, users.intValue(0, users.fieldIndex("age")));
+    assertEquals(0, users.intValue(1, users.fieldIndex("age")));
+  }
+
+  @Test
+  void sortsUsersByEmail() throws IOException {
+    // `email` is field 3, and there are 3 text fields, so it mustn't be mistaken for the JSON
+    Path file = tempDir.resolve("users.snap");
+    SnapshotWriter.write(SnapshotField.USERS, List.of(
+        new Document().append("_id", new ObjectId()).append("name", "Pat").append("email", "pat@ibm.com"),
+        new Document().append("_id", new ObjectId()).append("name", "Kim").append("email", "kim@umm.edu"),
+        new Document().append("_id", new ObjectId()).append("name", "Ash").append("email", "ash@umm.edu")), file);
+    Snapshot users = Snapshot.open(file);
+    int email = users.fieldIndex("email");
+
+    assertTrue(users.compare(0, 1, email) > 0);
+    assertTrue(users.compare(1, 2, email) > 0);
+    List<Integer> ordinals = new ArrayList<>(List.of(0, 1, 2));
+    ordinals.sort((a, b) -> users.compare(a, b, email));
+    assertEquals(List.of(2, 1, 0), ordinals);
+    assertTrue(users.textContains(1, email, "umm.edu".getBytes(StandardCharsets.UTF_8)));
+    assertFalse(users.textContains(0, email, "umm.edu".getBytes(StandardCharsets.UTF_8)));
+  }
+
+  @Test
+  void buildsSnapshotsFromTheSeedFiles() throws IOException {
+    Path file = tempDir.resolve("seed/todos.snap");
+    SnapshotWriter.run(new String[] {"todos", file.toString(), "--seed", "../database/seed/todos.json"});
+    Snapshot seeded = Snapshot.open(file);
+
+    assertEquals(300, seeded.size());
+    assertEquals(0, seeded.find("58af3a600343927e48e8720f"));
+    assertEquals(300, seeded.matchingDictValues(3, value -> true).cardinality());
+    int complete = 0;
+    for (int i = 0; i < seeded.size(); i++) {
+      complete += seeded.boolValue(i, 1) ? 1 : 0;
+    }
+    assertEquals(143, complete);
+  }
+
+  @Test
+  void buildsSnapshotsFromMongo() throws IOException {
+    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
+    try (MongoClient mongoClient = MongoClients.create(
+        MongoClientSettings.builder()
+            .applyToClusterSettings(builder -> builder.hosts(Arrays.asList(new ServerAddress(mongoAddr))))
+            .build())) {
+      MongoDatabase db = mongoClient.getDatabase("snapshotTest");
+      db.getCollection("users").drop();
+      db.getCollection("users").insertMany(List.of(
+          new Document().append("name", "Pat").append("age", 37).append("company", "IBM").append("role", "editor"),
+          new Document().append("name", "Kim").append("age", 21).append("company", "UMM").append("role", "admin")));
+
+      Path file = tempDir.resolve("users.snap");
+      SnapshotWriter.run(new String[] {"users", file.toString(), "--mongo", mongoAddr, "snapshotTest"});
+      db.drop();
+    }
+    Snapshot users = Snapshot.open(tempDir.resolve("users.snap"));
+    assertEquals(2, users.size());
+    assertEquals(1, users.matchingDictValues(users.fieldIndex("role"), "admin"::equals).cardinality());
+  }
+
+  @Test
+  void rejectsBadArguments() {
+    assertThrows(IllegalArgumentException.class, () -> SnapshotWriter.run(new String[] {"todos"}));
+    assertThrows(IllegalArgumentException.class,
+        () -> SnapshotWriter.run(new String[] {"todos", "out.snap", "--seed", "a.json", "extra"}));
+    assertThrows(IllegalArgumentException.class,
+        () -> SnapshotWriter.run(new String[] {"todos", "out.snap", "--mongo", "localhost"}));
+    assertThrows(IllegalArgumentException.class,
+        () -> SnapshotWriter.run(new String[] {"things", "out.snap", "--seed", "a.json"}));
+  }
+
+  @Test
+  void rejectsFilesThatArentSnapshots() throws IOException {
+    Path file = tempDir.resolve("not.snap");
+    Files.writeString(file, "This is just some text");
+    assertThrows(IllegalArgumentException.class, () -> Snapshot.open(file));
+  }
+}
@@ -0,0 +1,160 @@
+package umm3601.todos;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import umm3601.index.RoaringBitmap;
+import umm3601.todo.Todo;
+import umm3601.todo.TodoColumnStore;
+import umm3601.todo.TodoStats;
+
+@SuppressWarnings({ "MagicNumber" })
+public class TodoColumnStoreSpec {
+
+  private TodoColumnStore store;
+
+  private static Todo todo(String owner, boolean status, String category) {
+    Todo todo = new Todo();
+    todo.owner = owner;
+    todo.status = status;
+    todo.category = category;
+    return todo;
+  }
+
+  @BeforeEach
+  void setupEach() {
+    store = new TodoColumnStore();
+    store.add(todo("Chris", true, "Food"));
+    store.add(todo("Lynn", false, "School"));
+    store.add(todo("Jack", true, "Work"));
+    store.add(todo("Sam", true, "School"));
+    store.add(todo("Lynn", false, "Work"));
+  }
+
+  @Test
+  void countsByCategory() {
+    List<TodoStats> stats = store.statsBy("category");
+
+    assertEquals(3, stats.size());
+    TodoStats school = stats.get(1);
+    assertEquals("School", school._id);
+    assertEquals(2, school.total);
+    assertEquals(1, school.complete);
+    assertEquals(1, school.incomplete);
+    assertEquals(0.5, school.completionRate);
+  }
+
+  @Test
+  void countsByOwner() {
+    List<TodoStats> stats = store.statsBy("owner");
+
+    assertEquals(4, stats.size());
+    TodoStats lynn = stats.get(1);
+    assertEquals("Lynn", lynn._id);
+    assertEquals(2, lynn.incomplete);
+    assertEquals(0.0, lynn.completionRate);
+  }
+
+  @Test
+  void growsPastItsInitialCapacity() {
+    // Every third todo is complete
+    for (int i = 0; i < 3000; i++) {
+      store.add(todo("Owner " + (i % 7), i % 3 == 0, "Category " + (i % 5)));
+    }
+
+    assertEquals(3005, store.size());
+    int total = 0;
+    int complete = 0;
+    for (TodoStats stats : store.statsBy("category")) {
+      total += stats.total;
+      complete += stats.complete;
+    }
+    assertEquals(3005, total);
+    assertEquals(1000 + 3, complete);
+  }
+
+  @Test
+  void indexesOwnersCategoriesAndStatus() {
+    assertEquals(RoaringBitmap.of(0, 1, 2, 3, 4), store.allRows());
+    assertEquals(RoaringBitmap.of(1, 4), store.ownersMatching("Lynn"::equals));
+    assertEquals(RoaringBitmap.of(2, 4), store.categoriesMatching(category -> category.startsWith("W")));
+    assertEquals(RoaringBitmap.of(0, 2, 3), store.withStatus(true));
+    // Multiple filters are intersections of the bitmaps
+    assertEquals(RoaringBitmap.of(2),
+        store.categoriesMatching("Work"::equals).and(store.withStatus(true)));
+  }
+
+  @Test
+  void findsIdsOfRows() {
+    Todo withId = todo("Kim", false, "Food");
+    withId._id = new ObjectId().toHexString();
+    store.add(withId);
+
+    // Rows without ids (these test todos were never inserted) are skipped
+    assertEquals(List.of(new ObjectId(withId._id)), store.ids(store.ownersMatching(owner -> true)));
+  }
+
+  @Test
+  void updatesRowsInPlace() {
+    Todo chris = todo("Chris", false, "School");
+    chris._id = new ObjectId().toHexString();
+    store.add(chris);
+
+    Todo updated = todo("Chris", true, "Work");
+    updated._id = chris._id;
+    store.update(updated);
+    // Todos that aren't in the store are ignored
+    Todo missing = todo("Nobody", true, "Food");
+    missing._id = new ObjectId().toHexString();
+    store.update(missing);
+
+    assertEquals(6, store.size());
+    assertEquals(RoaringBitmap.of(2, 4, 5), store.categoriesMatching("Work"::equals));
+    assertEquals(RoaringBitmap.of(0, 2, 3, 5), store.withStatus(true));
+    assertEquals(List.of(), store.ownerPrefixes().complete("nob", 10));
+    List<TodoStats> stats = store.statsBy("category");
+    assertEquals(List.of("Food", "School", "Work"), stats.stream().map(group -> group._id).toList());
+    assertEquals(3, stats.get(2).total);
+
+    // Once nobody's todo is in the category, it isn't in the stats
+    Todo sam = todo("Sam", false, "Snacks");
+    sam._id = new ObjectId().toHexString();
+    store.add(sam);
+    Todo moved = todo("Sam", false, "Food");
+    moved._id = sam._id;
+    store.update(moved);
+    assertEquals(List.of("Food", "School", "Work"),
+        store.statsBy("category").stream().map(group -> group._id).toList());
+  }
+
+  @Test
+  void removesRows() {
+    Todo kim = todo("Kim", true, "Work");
+    kim._id = new ObjectId().toHexString();
+    store.add(kim);
+    store.remove(kim._id);
+    // Removing it again, or removing a todo that was never added, does nothing
+    store.remove(kim._id);
+    store.remove(new ObjectId().toHexString());
+
+    assertEquals(5, store.size());
+    assertEquals(RoaringBitmap.of(0, 1, 2, 3, 4), store.allRows());
+    assertEquals(RoaringBitmap.of(0, 2, 3), store.withStatus(true));
+    assertEquals(List.of(), store.ownerPrefixes().complete("ki", 10));
+    assertEquals(List.of(), store.ids(store.allRows()));
+    List<TodoStats> owners = store.statsBy("owner");
+    assertEquals(List.of("Chris", "Lynn", "Jack", "Sam"), owners.stream().map(group -> group._id).toList());
+    TodoStats work = store.statsBy("category").get(2);
+    assertEquals(2, work.total);
+    assertEquals(1, work.complete);
+
+    // Updates to a removed todo are ignored
+    store.update(kim);
+    assertEquals(5, store.size());
+  }
+}
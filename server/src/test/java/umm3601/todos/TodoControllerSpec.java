@@ -6,20 +6,25 @@ import static org.junit.jupiter.api.Assertions.assertNotEquals;
 // import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
-// import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.any;
 // import static org.mockito.ArgumentMatchers.argThat;
-// import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
 // import java.security.NoSuchAlgorithmException;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-// import java.util.HashMap;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 // import java.util.stream.Collectors;
 
 import org.bson.Document;
@@ -28,15 +33,18 @@ import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.ArgumentCaptor;
 // import org.mockito.ArgumentMatcher;
 import org.mockito.Captor;
 import org.mockito.Mock;
-// import org.mockito.Mockito;
+import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 
 // import com.fasterxml.jackson.core.JsonProcessingException;
 // import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.mongodb.MongoClientSettings;
 import com.mongodb.ServerAddress;
 import com.mongodb.client.MongoClient;
@@ -44,20 +52,36 @@ import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
 
-// import io.javalin.Javalin;
+import io.javalin.Javalin;
 import io.javalin.http.BadRequestResponse;
 import io.javalin.http.Context;
+import io.javalin.http.Header;
 import io.javalin.http.HttpStatus;
 import io.javalin.http.NotFoundResponse;
+import io.javalin.http.sse.SseClient;
 import io.javalin.json.JavalinJackson;
 import io.javalin.validation.BodyValidator;
-// import io.javalin.validation.Validation;
+import io.javalin.validation.Validation;
 import io.javalin.validation.ValidationError;
 import io.javalin.validation.ValidationException;
 // import io.javalin.validation.Validator;
 
+import umm3601.ByteServletOutputStream;
+import umm3601.ContentNegotiation;
+import umm3601.FacetCount;
+import umm3601.FacetedResults;
+import umm3601.MultiGetResults;
+import umm3601.PartialResults;
+import umm3601.TimeBudget;
+import umm3601.changes.ChangeSet;
+import umm3601.index.Completion;
+import umm3601.index.FuzzyMatch;
 import umm3601.todo.Todo;
 import umm3601.todo.TodoController;
+import umm3601.todo.TodoStats;
+import umm3601.todo.TodoWithOwner;
+import umm3601.wal.WriteAheadLog;
+import umm3601.wal.WriteAheadLog.FsyncPolicy;
 
 @SuppressWarnings({ "MagicNumber" })
 public class TodoControllerSpec {
@@ -74,8 +98,8 @@ public class TodoControllerSpec {
   @Mock
   private Context ctx;
 
-  @Captor
-  private ArgumentCaptor<ArrayList<Todo>> todoArrayListCaptor;
+  // What `getTodos` writes straight into the response (see `RawDocuments`)
+  private ByteServletOutputStream output;
 
   @Captor
   private ArgumentCaptor<Todo> todoCaptor;
@@ -83,6 +107,27 @@ public class TodoControllerSpec {
   @Captor
   private ArgumentCaptor<Map<String, String>> mapCaptor;
 
+  @Captor
+  private ArgumentCaptor<List<TodoStats>> statsCaptor;
+
+  @Captor
+  private ArgumentCaptor<Map<String, Long>> countCaptor;
+
+  @Captor
+  private ArgumentCaptor<FacetedResults<Todo>> facetedCaptor;
+
+  @Captor
+  private ArgumentCaptor<ChangeSet<Todo>> changesCaptor;
+
+  @Captor
+  private ArgumentCaptor<Document> documentCaptor;
+
+  @Captor
+  private ArgumentCaptor<MultiGetResults<Todo>> multiGetCaptor;
+
+  @Captor
+  private ArgumentCaptor<List<TodoWithOwner>> joinedCaptor;
+
   @BeforeAll
   static void setupAll() {
     String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
@@ -103,6 +148,8 @@ public class TodoControllerSpec {
   @BeforeEach
   void setupEach() throws IOException {
     MockitoAnnotations.openMocks(this);
+    output = new ByteServletOutputStream();
+    when(ctx.outputStream()).thenReturn(output);
 
     // Setup database
     MongoCollection<Document> todoDocuments = db.getCollection("todos");
@@ -141,18 +188,121 @@ public class TodoControllerSpec {
     todoController = new TodoController(db);
   }
 
+  // The todos `getTodos` wrote into the response
+  private ArrayList<Todo> todosWritten() throws IOException {
+    return javalinJackson.getMapper().readValue(output.toByteArray(), new TypeReference<ArrayList<Todo>>() { });
+  }
+
   @Test
   void canGetAllTodos() throws IOException {
     when(ctx.queryParamMap()).thenReturn(Collections.emptyMap());
 
     todoController.getTodos(ctx);
 
-    verify(ctx).json(todoArrayListCaptor.capture());
     verify(ctx).status(HttpStatus.OK);
 
     assertEquals(
         db.getCollection("todos").countDocuments(),
-        todoArrayListCaptor.getValue().size());
+        todosWritten().size());
+  }
+
+  // The owners of the todos on each page of `getTodos` with `partial=true`,
+  // following the `next` cursors to the end
+  private List<List<String>> ownersOnEachPage() throws IOException {
+    when(ctx.queryParam(PartialResults.PARTIAL_KEY)).thenReturn("true");
+    List<List<String>> pages = new ArrayList<>();
+    String next = null;
+    do {
+      output = new ByteServletOutputStream();
+      when(ctx.outputStream()).thenReturn(output);
+      when(ctx.queryParam(PartialResults.AFTER_KEY)).thenReturn(next);
+      todoController.getTodos(ctx);
+
+      JsonNode page = javalinJackson.getMapper().readTree(output.toByteArray());
+      List<String> owners = new ArrayList<>();
+      page.get("results").forEach(todo -> owners.add(todo.get("owner").asText()));
+      pages.add(owners);
+      next = page.get("next").isNull() ? null : page.get("next").asText();
+    } while (next != null && pages.size() < 10);
+    return pages;
+  }
+
+  @Test
+  void getsAllTheTodosInOnePartialResponseWhenThereIsTime() throws IOException {
+    when(ctx.queryParamMap()).thenReturn(Collections.emptyMap());
+
+    assertEquals(List.of(List.of("Chris", "Jack", "Lynn", "Sam")), ownersOnEachPage());
+    verify(ctx, never()).header(Header.CACHE_CONTROL, "no-store");
+  }
+
+  @Test
+  void pagesThroughTodosWhenTheTimeBudgetRunsOut() throws IOException {
+    when(ctx.queryParamMap()).thenReturn(Collections.emptyMap());
+    when(ctx.queryParam("sortby")).thenReturn("category");
+    when(ctx.queryParam("sortorder")).thenReturn("desc");
+    // Already spent, so each response only has time for one todo
+    when(ctx.<TimeBudget>attribute(TimeBudget.ATTRIBUTE)).thenReturn(TimeBudget.startingNow(Duration.ZERO));
+
+    List<String> owners = new ArrayList<>();
+    for (List<String> page : ownersOnEachPage()) {
+      assertTrue(page.size() <= 1);
+      owners.addAll(page);
+    }
+
+    // Lynn and Sam are both in School, so they're in order of `_id`, and Sam's was made first
+    assertEquals(List.of("Jack", "Sam", "Lynn", "Chris"), owners);
+    verify(ctx, Mockito.atLeastOnce()).header(Header.CACHE_CONTROL, "no-store");
+    // What's on each page depends on the time, not just the todos, so it can't be tagged
+    verify(ctx, never()).header(Mockito.eq(Header.ETAG), Mockito.anyString());
+  }
+
+  @Test
+  void rejectsCursorsItDidNotSend() {
+    when(ctx.queryParamMap()).thenReturn(Collections.emptyMap());
+    when(ctx.queryParam(PartialResults.PARTIAL_KEY)).thenReturn("true");
+
+    when(ctx.queryParam(PartialResults.AFTER_KEY)).thenReturn("not a cursor");
+    assertThrows(BadRequestResponse.class, () -> todoController.getTodos(ctx));
+    when(ctx.queryParam(PartialResults.AFTER_KEY)).thenReturn("AAAA");
+    assertThrows(BadRequestResponse.class, () -> todoController.getTodos(ctx));
+  }
+
+  @Test
+  void canGetTodoAsCbor() throws IOException {
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+    when(ctx.header(Header.ACCEPT)).thenReturn("application/cbor");
+
+    todoController.getTodo(ctx);
+
+    ArgumentCaptor<byte[]> bytes = ArgumentCaptor.forClass(byte[].class);
+    verify(ctx).contentType("application/cbor");
+    verify(ctx).result(bytes.capture());
+    verify(ctx).status(HttpStatus.OK);
+    Todo sam = ContentNegotiation.Format.CBOR.mapper().readValue(bytes.getValue(), Todo.class);
+    assertEquals(samsId.toHexString(), sam._id);
+    assertEquals("Sam", sam.owner);
+  }
+
+  @Test
+  void revalidatesTodosWithEtags() throws IOException {
+    when(ctx.path()).thenReturn("/api/todos");
+    when(ctx.queryParamMap()).thenReturn(Collections.emptyMap());
+    todoController.getTodos(ctx);
+
+    ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+    verify(ctx).header(Mockito.eq(Header.ETAG), etag.capture());
+    verify(ctx).status(HttpStatus.OK);
+
+    Mockito.clearInvocations(ctx);
+    when(ctx.header(Header.IF_NONE_MATCH)).thenReturn(etag.getValue());
+    todoController.getTodos(ctx);
+    todoController.getTodo(ctx);
+
+    // Neither one even looks at the parameters, let alone queries
+    verify(ctx, Mockito.times(2)).status(HttpStatus.NOT_MODIFIED);
+    verify(ctx, never()).queryParamMap();
+    verify(ctx, never()).pathParam("id");
+    verify(ctx, never()).json(any());
   }
 
     @Test
@@ -199,10 +349,9 @@ public class TodoControllerSpec {
 
     todoController.getTodos(ctx);
 
-    verify(ctx).json(todoArrayListCaptor.capture());
     verify(ctx).status(HttpStatus.OK);
 
-    assertEquals(2, todoArrayListCaptor.getValue().size());
+    assertEquals(2, todosWritten().size());
   }
 
   @Test
@@ -212,10 +361,9 @@ public class TodoControllerSpec {
 
     todoController.getTodos(ctx);
 
-    verify(ctx).json(todoArrayListCaptor.capture());
     verify(ctx).status(HttpStatus.OK);
 
-    assertEquals(4, todoArrayListCaptor.getValue().size());
+    assertEquals(4, todosWritten().size());
   }
 
   @Test
@@ -260,10 +408,9 @@ public class TodoControllerSpec {
 
     todoController.getTodos(ctx);
 
-    verify(ctx).json(todoArrayListCaptor.capture());
     verify(ctx).status(HttpStatus.OK);
 
-    assertEquals(3, todoArrayListCaptor.getValue().size());
+    assertEquals(3, todosWritten().size());
   }
 
   @Test
@@ -273,10 +420,21 @@ public class TodoControllerSpec {
 
     todoController.getTodos(ctx);
 
-    verify(ctx).json(todoArrayListCaptor.capture());
     verify(ctx).status(HttpStatus.OK);
 
-    assertEquals(1, todoArrayListCaptor.getValue().size());
+    assertEquals(1, todosWritten().size());
+  }
+
+  @Test
+  void doesntTrustTheIndexesWithTodosChangedElsewhere() throws IOException {
+    // Changed behind the controller's back, so its indexes still have this todo as incomplete
+    db.getCollection("todos").updateMany(eq("status", false), new Document("$set", new Document("status", true)));
+    when(ctx.queryParamMap()).thenReturn(Map.of("status", List.of("incomplete")));
+    when(ctx.queryParam("status")).thenReturn("incomplete");
+
+    todoController.getTodos(ctx);
+
+    assertEquals(0, todosWritten().size());
   }
 
   @Test
@@ -298,10 +456,9 @@ public class TodoControllerSpec {
 
     todoController.getTodos(ctx);
 
-    verify(ctx).json(todoArrayListCaptor.capture());
     verify(ctx).status(HttpStatus.OK);
 
-    assertEquals(1, todoArrayListCaptor.getValue().size());
+    assertEquals(1, todosWritten().size());
   }
 
   @Test
@@ -311,10 +468,9 @@ public class TodoControllerSpec {
 
     todoController.getTodos(ctx);
 
-    verify(ctx).json(todoArrayListCaptor.capture());
     verify(ctx).status(HttpStatus.OK);
 
-    assertEquals(2, todoArrayListCaptor.getValue().size());
+    assertEquals(2, todosWritten().size());
   }
 
   @Test
@@ -324,10 +480,9 @@ public class TodoControllerSpec {
 
     todoController.getTodos(ctx);
 
-    verify(ctx).json(todoArrayListCaptor.capture());
     verify(ctx).status(HttpStatus.OK);
 
-    ArrayList<Todo> result = todoArrayListCaptor.getValue();
+    ArrayList<Todo> result = todosWritten();
 
     assertEquals(4, result.size());
 
@@ -352,10 +507,9 @@ public class TodoControllerSpec {
 
     todoController.getTodos(ctx);
 
-    verify(ctx).json(todoArrayListCaptor.capture());
     verify(ctx).status(HttpStatus.OK);
 
-    ArrayList<Todo> result = todoArrayListCaptor.getValue();
+    ArrayList<Todo> result = todosWritten();
 
     assertEquals(4, result.size());
 
@@ -401,6 +555,57 @@ void addTodo() throws IOException {
     assertEquals(newTodo.body, addedTodo.get("body"));
   }
 
+  @Test
+  void addTodoWithGroupCommit() throws IOException {
+    todoController.enableGroupCommit(10, Duration.ZERO);
+    String newTodoJson = """
+        {
+          "owner": "Alice",
+          "category": "General",
+          "status": true,
+          "body": "This is a grouped todo."
+        }
+        """;
+    when(ctx.bodyValidator(Todo.class))
+        .then(value -> new BodyValidator<Todo>(newTodoJson, Todo.class,
+                        () -> javalinJackson.fromJsonString(newTodoJson, Todo.class)));
+
+    todoController.addNewTodo(ctx);
+
+    verify(ctx).json(mapCaptor.capture());
+    verify(ctx).status(HttpStatus.CREATED);
+    Document addedTodo = db.getCollection("todos")
+        .find(eq("_id", new ObjectId(mapCaptor.getValue().get("id")))).first();
+    assertEquals("This is a grouped todo.", addedTodo.get("body"));
+  }
+
+  @Test
+  void addTodoWithWriteAheadLog(@TempDir Path walDir) throws IOException {
+    todoController.enableWriteAheadLog(
+        new WriteAheadLog(walDir, WriteAheadLog.DEFAULT_SEGMENT_BYTES, FsyncPolicy.NEVER, Duration.ZERO),
+        Duration.ofSeconds(1));
+    String newTodoJson = """
+        {
+          "owner": "Alice",
+          "category": "General",
+          "status": true,
+          "body": "This is a logged todo."
+        }
+        """;
+    when(ctx.bodyValidator(Todo.class))
+        .then(value -> new BodyValidator<Todo>(newTodoJson, Todo.class,
+                        () -> javalinJackson.fromJsonString(newTodoJson, Todo.class)));
+
+    todoController.addNewTodo(ctx);
+
+    // MongoDB is up, so the todo is inserted right away, with the `_id` it was given
+    verify(ctx).json(mapCaptor.capture());
+    verify(ctx).status(HttpStatus.CREATED);
+    Document addedTodo = db.getCollection("todos")
+        .find(eq("_id", new ObjectId(mapCaptor.getValue().get("id")))).first();
+    assertEquals("This is a logged todo.", addedTodo.get("body"));
+  }
+
   @Test
   void addTodoWithoutOwner() throws IOException {
     String newTodoJson = """
@@ -570,5 +775,554 @@ void addTodo() throws IOException {
     String categoryExceptionMessage = errors.get(1).toString();
     assertTrue(categoryExceptionMessage.contains("non-empty todo category"));
   }
-}
 
+  @Test
+  void getTodoStatsByCategory() throws IOException {
+    todoController.getTodoStats(ctx);
+
+    verify(ctx).json(statsCaptor.capture());
+    verify(ctx).status(HttpStatus.OK);
+
+    List<TodoStats> stats = statsCaptor.getValue();
+    assertEquals(3, stats.size());
+    assertEquals("Food", stats.get(0)._id);
+    assertEquals("School", stats.get(1)._id);
+    assertEquals(2, stats.get(1).total);
+    assertEquals(0.5, stats.get(1).completionRate);
+    assertEquals("Work", stats.get(2)._id);
+  }
+
+  @Test
+  void getOwnersWithMostIncompleteTodos() throws IOException {
+    when(ctx.queryParamMap()).thenReturn(Map.of("limit", List.of("2")));
+    when(ctx.queryParam("limit")).thenReturn("2");
+    when(ctx.queryParam("groupby")).thenReturn("owner");
+    when(ctx.queryParam("sortby")).thenReturn("incomplete");
+    when(ctx.queryParam("sortorder")).thenReturn("desc");
+
+    todoController.getTodoStats(ctx);
+
+    verify(ctx).json(statsCaptor.capture());
+    List<TodoStats> stats = statsCaptor.getValue();
+    assertEquals(2, stats.size());
+    assertEquals("Lynn", stats.get(0)._id);
+    assertEquals(1, stats.get(0).incomplete);
+    assertEquals(0, stats.get(1).incomplete);
+  }
+
+  @Test
+  void getTodoStatsSortedByEachField() throws IOException {
+    for (String sortBy : List.of("total", "complete", "completionRate")) {
+      when(ctx.queryParam("sortby")).thenReturn(sortBy);
+      when(ctx.queryParam("sortorder")).thenReturn("asc");
+
+      todoController.getTodoStats(ctx);
+    }
+
+    verify(ctx, Mockito.times(3)).json(statsCaptor.capture());
+    // Sorted by completion rate, School (50%) comes before Food and Work (100%)
+    assertEquals("School", statsCaptor.getValue().get(0)._id);
+  }
+
+  @Test
+  void getTodoStatsWithBadParametersThrowsError() throws IOException {
+    when(ctx.queryParam("groupby")).thenReturn("body");
+    assertThrows(BadRequestResponse.class, () -> todoController.getTodoStats(ctx));
+
+    when(ctx.queryParam("groupby")).thenReturn("category");
+    when(ctx.queryParam("sortby")).thenReturn("color");
+    assertThrows(BadRequestResponse.class, () -> todoController.getTodoStats(ctx));
+
+    when(ctx.queryParam("sortby")).thenReturn("total");
+    when(ctx.queryParam("sortorder")).thenReturn("sideways");
+    assertThrows(BadRequestResponse.class, () -> todoController.getTodoStats(ctx));
+  }
+
+  @Test
+  void addedTodosShowUpInStats() throws IOException {
+    Todo newTodo = new Todo();
+    newTodo.owner = "Alice";
+    newTodo.status = false;
+    newTodo.body = "This is a new todo.";
+    newTodo.category = "Food";
+    String newTodoJson = javalinJackson.toJsonString(newTodo, Todo.class);
+    when(ctx.bodyValidator(Todo.class))
+        .thenReturn(new BodyValidator<Todo>(newTodoJson, Todo.class,
+            () -> javalinJackson.fromJsonString(newTodoJson, Todo.class)));
+    todoController.addNewTodo(ctx);
+
+    todoController.getTodoStats(ctx);
+
+    verify(ctx).json(statsCaptor.capture());
+    TodoStats food = statsCaptor.getValue().get(0);
+    assertEquals("Food", food._id);
+    assertEquals(2, food.total);
+    assertEquals(1, food.incomplete);
+  }
+
+  @Test
+  void countTodosWithIndexedFilters() throws IOException {
+    when(ctx.queryParamMap()).thenReturn(Map.of("category", List.of("school"), "status", List.of("complete")));
+    when(ctx.queryParam("category")).thenReturn("school");
+    when(ctx.queryParam("status")).thenReturn("complete");
+
+    todoController.countTodos(ctx);
+
+    verify(ctx).json(countCaptor.capture());
+    verify(ctx).status(HttpStatus.OK);
+    assertEquals(1L, countCaptor.getValue().get("count"));
+  }
+
+  @Test
+  void countTodosWithContainsFilter() throws IOException {
+    // `body` isn't indexed, so this is counted by MongoDB
+    when(ctx.queryParamMap()).thenReturn(Map.of("owner", List.of("a"), "contains", List.of("cillum")));
+    when(ctx.queryParam("owner")).thenReturn("a");
+    when(ctx.queryParam("contains")).thenReturn("cillum");
+
+    todoController.countTodos(ctx);
+
+    verify(ctx).json(countCaptor.capture());
+    assertEquals(2L, countCaptor.getValue().get("count"));
+  }
+
+  @Test
+  void addedTodosAreCounted() throws IOException {
+    Todo newTodo = new Todo();
+    newTodo.owner = "Alice";
+    newTodo.status = false;
+    newTodo.body = "This is a new todo.";
+    newTodo.category = "School";
+    String newTodoJson = javalinJackson.toJsonString(newTodo, Todo.class);
+    when(ctx.bodyValidator(Todo.class))
+        .thenReturn(new BodyValidator<Todo>(newTodoJson, Todo.class,
+            () -> javalinJackson.fromJsonString(newTodoJson, Todo.class)));
+    todoController.addNewTodo(ctx);
+    Mockito.clearInvocations(ctx);
+
+    when(ctx.queryParamMap()).thenReturn(Map.of("category", List.of("School")));
+    when(ctx.queryParam("category")).thenReturn("School");
+    todoController.countTodos(ctx);
+    todoController.getTodos(ctx);
+
+    verify(ctx).json(countCaptor.capture());
+    assertEquals(3L, countCaptor.getValue().get("count"));
+    // The index narrows this down enough to look the todos up by `_id`
+    assertEquals(List.of("Alice", "Lynn", "Sam"),
+        todosWritten().stream().map(todo -> todo.owner).toList());
+  }
+
+  @Test
+  void findsTodosAddedElsewhere() throws IOException {
+    // Added behind the controller's back (e.g., by another server), so its indexes don't have it
+    db.getCollection("todos").insertOne(new Document()
+        .append("owner", "Alice")
+        .append("status", false)
+        .append("body", "Added in mongosh.")
+        .append("category", "School"));
+
+    when(ctx.queryParamMap()).thenReturn(Map.of("category", List.of("School")));
+    when(ctx.queryParam("category")).thenReturn("School");
+    todoController.countTodos(ctx);
+    todoController.getTodos(ctx);
+
+    verify(ctx).json(countCaptor.capture());
+    assertEquals(3L, countCaptor.getValue().get("count"));
+    assertEquals(List.of("Alice", "Lynn", "Sam"),
+        todosWritten().stream().map(todo -> todo.owner).sorted().toList());
+  }
+
+  @Test
+  void getSimilarOwners() throws IOException {
+    Validation validation = new Validation();
+    when(ctx.queryParamAsClass("name", String.class)).thenReturn(validation.validator("name", String.class, "lin"));
+    when(ctx.queryParamAsClass("distance", Integer.class))
+        .thenReturn(validation.validator("distance", Integer.class, null));
+
+    todoController.getSimilarOwners(ctx);
+
+    verify(ctx).json(List.of(new FuzzyMatch("Lynn", 2, 1)));
+    verify(ctx).status(HttpStatus.OK);
+  }
+
+  @Test
+  void getSimilarOwnersWithDistanceAndLimit() throws IOException {
+    Validation validation = new Validation();
+    when(ctx.queryParamMap()).thenReturn(Map.of("limit", List.of("2")));
+    when(ctx.queryParam("limit")).thenReturn("2");
+    when(ctx.queryParamAsClass("name", String.class)).thenReturn(validation.validator("name", String.class, "Jam"));
+    when(ctx.queryParamAsClass("distance", Integer.class))
+        .thenReturn(validation.validator("distance", Integer.class, "3"));
+
+    todoController.getSimilarOwners(ctx);
+
+    verify(ctx).json(List.of(new FuzzyMatch("Sam", 1, 1), new FuzzyMatch("Jack", 2, 1)));
+  }
+
+  @Test
+  void getSimilarOwnersRejectsLargeDistances() throws IOException {
+    Validation validation = new Validation();
+    when(ctx.queryParamAsClass("name", String.class)).thenReturn(validation.validator("name", String.class, "Jam"));
+    when(ctx.queryParamAsClass("distance", Integer.class))
+        .thenReturn(validation.validator("distance", Integer.class, "4"));
+
+    assertThrows(ValidationException.class, () -> todoController.getSimilarOwners(ctx));
+  }
+
+  @Test
+  void autocompleteIndexesIncludeAddedTodos() throws IOException {
+    Todo newTodo = new Todo();
+    newTodo.owner = "Lynne";
+    newTodo.status = false;
+    newTodo.body = "This is a new todo.";
+    newTodo.category = "Food";
+    String newTodoJson = javalinJackson.toJsonString(newTodo, Todo.class);
+    when(ctx.bodyValidator(Todo.class))
+        .thenReturn(new BodyValidator<Todo>(newTodoJson, Todo.class,
+            () -> javalinJackson.fromJsonString(newTodoJson, Todo.class)));
+    todoController.addNewTodo(ctx);
+
+    assertEquals(List.of(new Completion("Lynn", 1), new Completion("Lynne", 1)),
+        todoController.autocompleteIndexes().get("owner").complete("ly", 10));
+    assertEquals(List.of(new Completion("Food", 2)),
+        todoController.autocompleteIndexes().get("category").complete("F", 10));
+  }
+
+  private static Map<Object, Integer> facet(FacetedResults<?> faceted, String name) {
+    Map<Object, Integer> counts = new HashMap<>();
+    for (FacetCount count : faceted.facets.get(name)) {
+      counts.put(count._id, count.count);
+    }
+    return counts;
+  }
+
+  @Test
+  void getTodosWithFacets() throws IOException {
+    when(ctx.queryParamMap()).thenReturn(Map.of("contains", List.of("amet"), "limit", List.of("1")));
+    when(ctx.queryParam("contains")).thenReturn("amet");
+    when(ctx.queryParam("limit")).thenReturn("1");
+    when(ctx.queryParam("facets")).thenReturn("true");
+
+    todoController.getTodos(ctx);
+
+    verify(ctx).json(facetedCaptor.capture());
+    verify(ctx).status(HttpStatus.OK);
+    FacetedResults<Todo> faceted = facetedCaptor.getValue();
+    // The results are limited, but the facets count all the matching todos
+    assertEquals(1, faceted.results.size());
+    assertEquals(Map.of("complete", 3), facet(faceted, "status"));
+    assertEquals(Map.of("Food", 1, "School", 1, "Work", 1), facet(faceted, "category"));
+    assertEquals(Map.of("Chris", 1, "Jack", 1, "Sam", 1), facet(faceted, "owner"));
+  }
+
+  @Test
+  void getTodosWithFacetsAndIndexedFilter() throws IOException {
+    when(ctx.queryParamMap()).thenReturn(Map.of("category", List.of("school")));
+    when(ctx.queryParam("category")).thenReturn("school");
+    when(ctx.queryParam("facets")).thenReturn("true");
+
+    todoController.getTodos(ctx);
+
+    verify(ctx).json(facetedCaptor.capture());
+    FacetedResults<Todo> faceted = facetedCaptor.getValue();
+    assertEquals(2, faceted.results.size());
+    assertEquals(Map.of("complete", 1, "incomplete", 1), facet(faceted, "status"));
+  }
+
+  @Test
+  void exportTodosWithFilter() throws IOException {
+    when(ctx.queryParamMap()).thenReturn(Map.of("status", List.of("complete")));
+    when(ctx.queryParam("status")).thenReturn("complete");
+    Validation validation = new Validation();
+    when(ctx.queryParamAsClass("format", String.class)).thenReturn(validation.validator("format", String.class, null));
+    when(ctx.queryParamAsClass("parallel", Integer.class))
+        .thenReturn(validation.validator("parallel", Integer.class, null));
+
+    todoController.exportTodos(ctx);
+
+    verify(ctx).status(HttpStatus.OK);
+    String[] lines = output.toString().split("\n");
+    assertEquals(3, lines.length);
+    assertTrue(lines[2].contains("\"owner\": \"Sam\""));
+  }
+
+  @Test
+  void getTodoChangesSinceAToken() throws IOException {
+    // Without a token we get everything
+    todoController.getTodoChanges(ctx);
+    verify(ctx).json(changesCaptor.capture());
+    ChangeSet<Todo> reset = changesCaptor.getValue();
+    assertTrue(reset.reset);
+    assertEquals(4, reset.changed.size());
+
+    Todo newTodo = new Todo();
+    newTodo.owner = "Alice";
+    newTodo.body = "This is a new todo.";
+    newTodo.category = "Food";
+    String newTodoJson = javalinJackson.toJsonString(newTodo, Todo.class);
+    when(ctx.bodyValidator(Todo.class))
+        .thenReturn(new BodyValidator<Todo>(newTodoJson, Todo.class,
+            () -> javalinJackson.fromJsonString(newTodoJson, Todo.class)));
+    todoController.addNewTodo(ctx);
+
+    // With the token we only get the new todo, and then nothing
+    Mockito.clearInvocations(ctx);
+    when(ctx.queryParam("since")).thenReturn(reset.token);
+    todoController.getTodoChanges(ctx);
+    verify(ctx).json(changesCaptor.capture());
+    ChangeSet<Todo> changes = changesCaptor.getValue();
+    assertEquals(List.of("Alice"), changes.changed.stream().map(todo -> todo.owner).toList());
+    assertTrue(changes.deleted.isEmpty());
+
+    Mockito.clearInvocations(ctx);
+    when(ctx.queryParam("since")).thenReturn(changes.token);
+    todoController.getTodoChanges(ctx);
+    verify(ctx).json(changesCaptor.capture());
+    assertTrue(changesCaptor.getValue().changed.isEmpty());
+  }
+
+  @Test
+  void streamTodoEventsPushesMatchingTodos() throws IOException {
+    SseClient client = mock(SseClient.class);
+    Context eventsCtx = mock(Context.class);
+    when(client.ctx()).thenReturn(eventsCtx);
+    when(eventsCtx.queryParamMap()).thenReturn(Map.of(
+        "owner", List.of("ali"), "category", List.of("food"),
+        "status", List.of("incomplete"), "contains", List.of("new")));
+    when(eventsCtx.queryParam("owner")).thenReturn("ali");
+    when(eventsCtx.queryParam("category")).thenReturn("food");
+    when(eventsCtx.queryParam("status")).thenReturn("incomplete");
+    when(eventsCtx.queryParam("contains")).thenReturn("new");
+    todoController.streamTodoEvents(client);
+
+    for (String owner : List.of("Bob", "Alice")) {
+      Todo newTodo = new Todo();
+      newTodo.owner = owner;
+      newTodo.body = "This is a new todo.";
+      newTodo.category = "Food";
+      String newTodoJson = javalinJackson.toJsonString(newTodo, Todo.class);
+      when(ctx.bodyValidator(Todo.class))
+          .thenReturn(new BodyValidator<Todo>(newTodoJson, Todo.class,
+              () -> javalinJackson.fromJsonString(newTodoJson, Todo.class)));
+      todoController.addNewTodo(ctx);
+    }
+
+    verify(client, timeout(1000)).sendEvent(Mockito.eq("insert"), todoCaptor.capture());
+    assertEquals("Alice", todoCaptor.getValue().owner);
+  }
+
+  @Test
+  void streamTodoEventsReportsBadFilters() {
+    SseClient client = mock(SseClient.class);
+    Context eventsCtx = mock(Context.class);
+    when(client.ctx()).thenReturn(eventsCtx);
+    when(eventsCtx.queryParamMap()).thenReturn(Map.of("status", List.of("done")));
+    when(eventsCtx.queryParam("status")).thenReturn("done");
+
+    todoController.streamTodoEvents(client);
+
+    verify(client).sendEvent("error", "Status must be 'complete' or 'incomplete'.");
+    verify(client, never()).keepAlive();
+  }
+
+  @Test
+  void updateTodoChangesOnlyTheGivenFields() throws IOException {
+    todoController.getTodoChanges(ctx);
+    verify(ctx).json(changesCaptor.capture());
+    String token = changesCaptor.getValue().token;
+
+    Mockito.clearInvocations(ctx);
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+    when(ctx.body()).thenReturn("{\"status\": false, \"category\": \"Work\"}");
+    todoController.updateTodo(ctx);
+
+    verify(ctx).status(HttpStatus.OK);
+    verify(ctx).json(documentCaptor.capture());
+    assertEquals(new Document("_id", samsId.toHexString()).append("status", false).append("category", "Work"),
+        documentCaptor.getValue());
+    Document sam = db.getCollection("todos").find(eq("_id", samsId)).first();
+    assertEquals(false, sam.get("status"));
+    assertEquals("Work", sam.get("category"));
+    assertEquals("Sam", sam.get("owner"));
+
+    // The indexes and the change log know about the update
+    Mockito.clearInvocations(ctx);
+    when(ctx.queryParamMap()).thenReturn(Map.of("status", List.of("incomplete")));
+    when(ctx.queryParam("status")).thenReturn("incomplete");
+    when(ctx.queryParam("since")).thenReturn(token);
+    todoController.countTodos(ctx);
+    todoController.getTodoChanges(ctx);
+    verify(ctx).json(countCaptor.capture());
+    assertEquals(2L, countCaptor.getValue().get("count"));
+    verify(ctx).json(changesCaptor.capture());
+    assertEquals(List.of("Sam"), changesCaptor.getValue().changed.stream().map(todo -> todo.owner).toList());
+  }
+
+  @Test
+  void updateTodoRejectsBadUpdates() {
+    when(ctx.pathParam("id")).thenReturn("bad");
+    when(ctx.body()).thenReturn("{\"status\": true}");
+    Throwable exception = assertThrows(BadRequestResponse.class, () -> todoController.updateTodo(ctx));
+    assertEquals("The requested todo id wasn't a legal Mongo Object ID.", exception.getMessage());
+
+    when(ctx.pathParam("id")).thenReturn(new ObjectId().toHexString());
+    assertThrows(NotFoundResponse.class, () -> todoController.updateTodo(ctx));
+
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+    for (String body : List.of("not json", "[true]", "{}", "{\"_id\": \"abc\"}",
+        "{\"owner\": \"\"}", "{\"body\": 3}", "{\"status\": \"yes\"}")) {
+      when(ctx.body()).thenReturn(body);
+      assertThrows(BadRequestResponse.class, () -> todoController.updateTodo(ctx), body);
+    }
+    assertEquals(true, db.getCollection("todos").find(eq("_id", samsId)).first().get("status"));
+  }
+
+  @Test
+  void updateTodosChangesEveryMatchingTodo() throws IOException {
+    when(ctx.queryParamMap()).thenReturn(Map.of("category", List.of("school")));
+    when(ctx.queryParam("category")).thenReturn("school");
+    when(ctx.body()).thenReturn("{\"status\": true}");
+
+    // A dry run just counts
+    when(ctx.queryParam("dryRun")).thenReturn("true");
+    todoController.updateTodos(ctx);
+    verify(ctx).json(Map.of("matched", 2L, "modified", 0L, "dryRun", true));
+    assertEquals(1, db.getCollection("todos").countDocuments(eq("status", false)));
+
+    // Sam's was already complete, so only Lynn's is modified
+    when(ctx.queryParam("dryRun")).thenReturn(null);
+    todoController.updateTodos(ctx);
+    verify(ctx).json(Map.of("matched", 2L, "modified", 1L, "dryRun", false));
+    assertEquals(0, db.getCollection("todos").countDocuments(eq("status", false)));
+
+    Mockito.clearInvocations(ctx);
+    when(ctx.queryParamMap()).thenReturn(Map.of("status", List.of("incomplete")));
+    when(ctx.queryParam("status")).thenReturn("incomplete");
+    todoController.countTodos(ctx);
+    verify(ctx).json(countCaptor.capture());
+    assertEquals(0L, countCaptor.getValue().get("count"));
+  }
+
+  @Test
+  void updateTodosRecordsTodosTheUpdateTakesOutOfTheFilter() throws IOException {
+    todoController.getTodoChanges(ctx);
+    verify(ctx).json(changesCaptor.capture());
+    String token = changesCaptor.getValue().token;
+
+    // Lynn's is the only incomplete todo, and won't be once it's updated
+    Mockito.clearInvocations(ctx);
+    when(ctx.queryParamMap()).thenReturn(Map.of("status", List.of("incomplete")));
+    when(ctx.queryParam("status")).thenReturn("incomplete");
+    when(ctx.body()).thenReturn("{\"status\": true}");
+    todoController.updateTodos(ctx);
+    verify(ctx).json(Map.of("matched", 1L, "modified", 1L, "dryRun", false));
+
+    Mockito.clearInvocations(ctx);
+    when(ctx.queryParam("since")).thenReturn(token);
+    todoController.getTodoChanges(ctx);
+    verify(ctx).json(changesCaptor.capture());
+    assertEquals(List.of("Lynn"), changesCaptor.getValue().changed.stream().map(todo -> todo.owner).toList());
+  }
+
+  @Test
+  void deleteTodosDeletesEveryMatchingTodo() throws IOException {
+    when(ctx.queryParamMap()).thenReturn(Map.of("contains", List.of("cillum")));
+    when(ctx.queryParam("contains")).thenReturn("cillum");
+
+    when(ctx.queryParam("dryRun")).thenReturn("true");
+    todoController.deleteTodos(ctx);
+    verify(ctx).json(Map.of("matched", 2L, "deleted", 0L, "dryRun", true));
+    assertEquals(4, db.getCollection("todos").countDocuments());
+
+    when(ctx.queryParam("dryRun")).thenReturn("false");
+    todoController.deleteTodos(ctx);
+    verify(ctx).json(Map.of("matched", 2L, "deleted", 2L, "dryRun", false));
+    assertEquals(2, db.getCollection("todos").countDocuments());
+
+    // The stats and the indexes no longer include Jack's and Sam's todos
+    Mockito.clearInvocations(ctx);
+    when(ctx.queryParamMap()).thenReturn(Map.of());
+    todoController.getTodoStats(ctx);
+    verify(ctx).json(statsCaptor.capture());
+    assertEquals(List.of("Food", "School"), statsCaptor.getValue().stream().map(stats -> stats._id).toList());
+    assertTrue(todoController.autocompleteIndexes().get("owner").complete("sa", 10).isEmpty());
+  }
+
+  @Test
+  void bulkUpdatesAndDeletesNeedAFilter() {
+    when(ctx.queryParamMap()).thenReturn(Map.of("sortby", List.of("owner")));
+    when(ctx.body()).thenReturn("{\"status\": true}");
+
+    assertThrows(BadRequestResponse.class, () -> todoController.updateTodos(ctx));
+    assertThrows(BadRequestResponse.class, () -> todoController.deleteTodos(ctx));
+    assertEquals(4, db.getCollection("todos").countDocuments());
+  }
+
+  @Test
+  void getTodosByIdsKeepsTheRequestedOrder() throws IOException {
+    String chrisId = db.getCollection("todos").find(eq("owner", "Chris")).first().getObjectId("_id").toHexString();
+    String missingId = new ObjectId().toHexString();
+    when(ctx.queryParamMap()).thenReturn(Map.of("ids", List.of("")));
+    when(ctx.queryParam("ids")).thenReturn(samsId.toHexString() + "," + missingId + ", " + chrisId);
+
+    todoController.getTodos(ctx);
+
+    verify(ctx).json(multiGetCaptor.capture());
+    verify(ctx).status(HttpStatus.OK);
+    MultiGetResults<Todo> found = multiGetCaptor.getValue();
+    assertEquals(List.of("Sam", "Chris"), found.results.stream().map(todo -> todo.owner).toList());
+    assertEquals(List.of(missingId), found.missing);
+  }
+
+  @Test
+  void getTodosByIdsRejectsBadIds() {
+    when(ctx.queryParamMap()).thenReturn(Map.of("ids", List.of("")));
+    when(ctx.queryParam("ids")).thenReturn(samsId.toHexString() + ",bad");
+    Throwable exception = assertThrows(BadRequestResponse.class, () -> todoController.getTodos(ctx));
+    assertEquals("The requested todo id bad wasn't a legal Mongo Object ID.", exception.getMessage());
+
+    when(ctx.queryParam("ids")).thenReturn(" , ");
+    assertThrows(BadRequestResponse.class, () -> todoController.getTodos(ctx));
+
+    when(ctx.queryParam("ids")).thenReturn(String.join(",", Collections.nCopies(1001, samsId.toHexString())));
+    assertThrows(BadRequestResponse.class, () -> todoController.getTodos(ctx));
+  }
+
+  @Test
+  void getTodosWithOwnersJoinsTheOwnersProfiles() throws IOException {
+    MongoCollection<Document> userDocuments = db.getCollection("users");
+    userDocuments.drop();
+    userDocuments.insertMany(List.of(
+        new Document("name", "Sam").append("company", "OHMNET").append("avatar", "sam.png")
+            .append("email", "sam@frogs.com"),
+        new Document("name", "Chris").append("company", "UMM").append("avatar", "chris.png")));
+    when(ctx.queryParamMap()).thenReturn(Map.of("category", List.of("school"), "limit", List.of("5")));
+    when(ctx.queryParam("category")).thenReturn("school");
+    when(ctx.queryParam("limit")).thenReturn("5");
+    when(ctx.queryParam("sortorder")).thenReturn("desc");
+
+    todoController.getTodosWithOwners(ctx);
+
+    verify(ctx).json(joinedCaptor.capture());
+    verify(ctx).status(HttpStatus.OK);
+    List<TodoWithOwner> joined = joinedCaptor.getValue();
+    assertEquals(List.of("Sam", "Lynn"), joined.stream().map(todo -> todo.owner).toList());
+    assertEquals(samsId.toHexString(), joined.get(0)._id);
+    assertEquals("OHMNET", joined.get(0).ownerProfile.company);
+    assertEquals("sam.png", joined.get(0).ownerProfile.avatar);
+    // Lynn isn't a user
+    assertEquals(null, joined.get(1).ownerProfile);
+    userDocuments.drop();
+  }
+
+  @Test
+  void addsRoutes() {
+    Javalin mockServer = mock(Javalin.class);
+    todoController.addRoutes(mockServer);
+    verify(mockServer, Mockito.atLeast(3)).get(any(), any());
+    verify(mockServer, Mockito.atLeastOnce()).post(any(), any());
+    verify(mockServer, Mockito.times(1)).sse(any(), Mockito.<Consumer<SseClient>>any());
+    verify(mockServer, Mockito.times(2)).patch(any(), any());
+    verify(mockServer, Mockito.times(1)).delete(any(), any());
+  }
+}
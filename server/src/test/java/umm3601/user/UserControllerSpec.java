@@ -9,17 +9,21 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import org.bson.Document;
@@ -37,6 +41,8 @@ import org.mockito.MockitoAnnotations;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.mongodb.MongoClientSettings;
 import com.mongodb.ServerAddress;
 import com.mongodb.client.MongoClient;
@@ -47,14 +53,25 @@ import com.mongodb.client.MongoDatabase;
 import io.javalin.Javalin;
 import io.javalin.http.BadRequestResponse;
 import io.javalin.http.Context;
+import io.javalin.http.Header;
 import io.javalin.http.HttpStatus;
 import io.javalin.http.NotFoundResponse;
+import io.javalin.http.sse.SseClient;
 import io.javalin.json.JavalinJackson;
 import io.javalin.validation.BodyValidator;
 import io.javalin.validation.Validation;
 import io.javalin.validation.ValidationError;
 import io.javalin.validation.ValidationException;
 import io.javalin.validation.Validator;
+import umm3601.ByteServletOutputStream;
+import umm3601.FacetCount;
+import umm3601.FacetedResults;
+import umm3601.MultiGetResults;
+import umm3601.PartialResults;
+import umm3601.TimeBudget;
+import umm3601.changes.ChangeSet;
+import umm3601.index.Completion;
+import umm3601.index.FuzzyMatch;
 
 /**
  * Tests the logic of the UserController
@@ -92,8 +109,8 @@ class UserControllerSpec {
   @Mock
   private Context ctx;
 
-  @Captor
-  private ArgumentCaptor<ArrayList<User>> userArrayListCaptor;
+  // What `getUsers` writes straight into the response (see `RawDocuments`)
+  private ByteServletOutputStream output;
 
   @Captor
   private ArgumentCaptor<User> userCaptor;
@@ -101,6 +118,21 @@ class UserControllerSpec {
   @Captor
   private ArgumentCaptor<Map<String, String>> mapCaptor;
 
+  @Captor
+  private ArgumentCaptor<Map<String, Long>> countCaptor;
+
+  @Captor
+  private ArgumentCaptor<FacetedResults<User>> facetedCaptor;
+
+  @Captor
+  private ArgumentCaptor<ChangeSet<User>> changesCaptor;
+
+  @Captor
+  private ArgumentCaptor<Document> documentCaptor;
+
+  @Captor
+  private ArgumentCaptor<MultiGetResults<User>> multiGetCaptor;
+
   /**
    * Sets up (the connection to the) DB once; that connection and DB will
    * then be (re)used for all the tests, and closed in the `teardown()`
@@ -133,6 +165,8 @@ class UserControllerSpec {
     // Reset our mock context and argument captor (declared with Mockito
     // annotations @Mock and @Captor)
     MockitoAnnotations.openMocks(this);
+    output = new ByteServletOutputStream();
+    when(ctx.outputStream()).thenReturn(output);
 
     // Setup database
     MongoCollection<Document> userDocuments = db.getCollection("users");
@@ -179,6 +213,46 @@ class UserControllerSpec {
     userController = new UserController(db);
   }
 
+  // The users `getUsers` wrote into the response
+  private ArrayList<User> usersWritten() throws IOException {
+    return javalinJackson.getMapper().readValue(output.toByteArray(), new TypeReference<ArrayList<User>>() { });
+  }
+  @Test
+  void pagesThroughUsersWhenTheTimeBudgetRunsOut() throws IOException {
+    when(ctx.queryParamMap()).thenReturn(Collections.emptyMap());
+    when(ctx.queryParam(PartialResults.PARTIAL_KEY)).thenReturn("true");
+    when(ctx.queryParam("sortby")).thenReturn("age");
+    when(ctx.queryParam("sortorder")).thenReturn("desc");
+    // Already spent, so each response only has time for one user
+    when(ctx.<TimeBudget>attribute(TimeBudget.ATTRIBUTE)).thenReturn(TimeBudget.startingNow(Duration.ZERO));
+
+    List<String> names = new ArrayList<>();
+    String next = null;
+    do {
+      output = new ByteServletOutputStream();
+      when(ctx.outputStream()).thenReturn(output);
+      when(ctx.queryParam(PartialResults.AFTER_KEY)).thenReturn(next);
+      userController.getUsers(ctx);
+
+      JsonNode page = javalinJackson.getMapper().readTree(output.toByteArray());
+      page.get("results").forEach(user -> names.add(user.get("name").asText()));
+      next = page.get("next").isNull() ? null : page.get("next").asText();
+    } while (next != null && names.size() < 10);
+
+    // Pat and Jamie are both 37, so they're in order of `_id`
+    assertEquals(List.of("Sam", "Pat", "Jamie", "Chris"), names);
+  }
+
+  @Test
+  void onlyPagesThroughUsersByTheirFields() {
+    when(ctx.queryParamMap()).thenReturn(Collections.emptyMap());
+    when(ctx.queryParam(PartialResults.PARTIAL_KEY)).thenReturn("true");
+    when(ctx.queryParam("sortby")).thenReturn("password");
+
+    assertThrows(BadRequestResponse.class, () -> userController.getUsers(ctx));
+  }
+
+
   @Test
   void addsRoutes() {
     Javalin mockServer = mock(Javalin.class);
@@ -186,6 +260,8 @@ class UserControllerSpec {
     verify(mockServer, Mockito.atLeast(3)).get(any(), any());
     verify(mockServer, Mockito.atLeastOnce()).post(any(), any());
     verify(mockServer, Mockito.atLeastOnce()).delete(any(), any());
+    verify(mockServer, Mockito.times(1)).sse(any(), Mockito.<Consumer<SseClient>>any());
+    verify(mockServer, Mockito.times(2)).patch(any(), any());
   }
 
   @Test
@@ -199,27 +275,19 @@ class UserControllerSpec {
     // (which will, indeed, ask the context for its queryParamMap)
     userController.getUsers(ctx);
 
-    // We are going to capture an argument to a function, and the type of
-    // that argument will be of type ArrayList<User> (we said so earlier
-    // using a Mockito annotation like this):
-    // @Captor
-    // private ArgumentCaptor<ArrayList<User>> userArrayListCaptor;
-    // We only want to declare that captor once and let the annotation
-    // help us accomplish reassignment of the value for the captor
-    // We reset the values of our annotated declarations using the command
-    // `MockitoAnnotations.openMocks(this);` in our @BeforeEach
-
-    // Specifically, we want to pay attention to the ArrayList<User> that
-    // is passed as input when ctx.json is called --- what is the argument
-    // that was passed? We capture it and can refer to it later.
-    verify(ctx).json(userArrayListCaptor.capture());
+    // `getUsers` doesn't hand a list of users to `ctx.json`; it writes the
+    // users' JSON straight into the response's output stream (see
+    // `RawDocuments`). Our mocked context returns a `ByteServletOutputStream`
+    // (we set that up in `setupEach()`) when it's asked for the output
+    // stream, so `usersWritten()` can read back what was written
+    // and turn it into a list of users for us to check.
     verify(ctx).status(HttpStatus.OK);
 
     // Check that the database collection holds the same number of documents
-    // as the size of the captured List<User>
+    // as the size of the List<User> that was written
     assertEquals(
         db.getCollection("users").countDocuments(),
-        userArrayListCaptor.getValue().size());
+        usersWritten().size());
   }
 
   /**
@@ -288,20 +356,18 @@ class UserControllerSpec {
 
     userController.getUsers(ctx);
 
-    // Confirm that the code being tested calls `ctx.json(…)`, and capture whatever
-    // is passed in as the argument when `ctx.json()` is called.
-    verify(ctx).json(userArrayListCaptor.capture());
-    // Confirm that the code under test calls `ctx.status(HttpStatus.OK)` is called.
+    // Confirm that the code under test calls `ctx.status(HttpStatus.OK)`.
     verify(ctx).status(HttpStatus.OK);
 
-    // Confirm that we get back two users.
-    assertEquals(2, userArrayListCaptor.getValue().size());
+    // Confirm that we get back two users (read back from the response's
+    // output stream by `usersWritten()`, as in `canGetAllUsers`).
+    assertEquals(2, usersWritten().size());
     // Confirm that both users have age 37.
-    for (User user : userArrayListCaptor.getValue()) {
+    for (User user : usersWritten()) {
       assertEquals(targetAge, user.age);
     }
     // Generate a list of the names of the returned users.
-    List<String> names = userArrayListCaptor.getValue().stream().map(user -> user.name).collect(Collectors.toList());
+    List<String> names = usersWritten().stream().map(user -> user.name).collect(Collectors.toList());
     // Confirm that the returned `names` contain the two names of the
     // 37-year-olds.
     assertTrue(names.contains("Jamie"));
@@ -318,7 +384,9 @@ class UserControllerSpec {
    * another way to test the same thing.
    *
    * An `ArgumentMatcher` has a method `matches` that returns `true`
-   * if the argument passed to `ctx.json(…)` (a `List<User>` in this case)
+   * if the argument passed to `ctx.json(…)` (a `FacetedResults<User>` in
+   * this case, since we ask for the facets; without them, `getUsers` writes
+   * the users straight into the response instead of calling `ctx.json`)
    * has the desired properties.
    *
    * This is probably overkill here, but it does illustrate a different
@@ -340,6 +408,7 @@ class UserControllerSpec {
     // When the code being tested calls `ctx.queryParam(AGE_KEY)` return the
     // `targetAgeString`.
     when(ctx.queryParam(UserController.AGE_KEY)).thenReturn(targetAgeString);
+    when(ctx.queryParam(UserController.FACETS_KEY)).thenReturn("true");
 
     // Create a validator that confirms that when we ask for the value associated with
     // `AGE_KEY` _as an integer_, we get back the integer value 37.
@@ -357,11 +426,12 @@ class UserControllerSpec {
     // point.
     verify(ctx).status(HttpStatus.OK);
 
-    // Verify that `ctx.json()` is called with a `List` of `User`s.
-    // Each of those `User`s should have age 37.
-    verify(ctx).json(argThat(new ArgumentMatcher<List<User>>() {
+    // Verify that `ctx.json()` is called with `FacetedResults` whose
+    // `results` are a `List` of `User`s. Each of those `User`s should have age 37.
+    verify(ctx).json(argThat(new ArgumentMatcher<FacetedResults<User>>() {
       @Override
-      public boolean matches(List<User> users) {
+      public boolean matches(FacetedResults<User> faceted) {
+        List<User> users = faceted.results;
         for (User user : users) {
           assertEquals(targetAge, user.age);
         }
@@ -504,11 +574,10 @@ class UserControllerSpec {
 
     userController.getUsers(ctx);
 
-    verify(ctx).json(userArrayListCaptor.capture());
     verify(ctx).status(HttpStatus.OK);
 
     // Confirm that all the users passed to `json` work for OHMNET.
-    for (User user : userArrayListCaptor.getValue()) {
+    for (User user : usersWritten()) {
       assertEquals("OHMNET", user.company);
     }
   }
@@ -522,11 +591,10 @@ class UserControllerSpec {
 
     userController.getUsers(ctx);
 
-    verify(ctx).json(userArrayListCaptor.capture());
     verify(ctx).status(HttpStatus.OK);
 
     // Confirm that all the users passed to `json` work for OHMNET.
-    for (User user : userArrayListCaptor.getValue()) {
+    for (User user : usersWritten()) {
       assertEquals("OHMNET", user.company);
     }
   }
@@ -546,9 +614,8 @@ class UserControllerSpec {
 
     userController.getUsers(ctx);
 
-    verify(ctx).json(userArrayListCaptor.capture());
     verify(ctx).status(HttpStatus.OK);
-    assertEquals(2, userArrayListCaptor.getValue().size());
+    assertEquals(2, usersWritten().size());
   }
 
   @Test
@@ -572,15 +639,34 @@ class UserControllerSpec {
 
     userController.getUsers(ctx);
 
-    verify(ctx).json(userArrayListCaptor.capture());
     verify(ctx).status(HttpStatus.OK);
-    assertEquals(1, userArrayListCaptor.getValue().size());
-    for (User user : userArrayListCaptor.getValue()) {
+    assertEquals(1, usersWritten().size());
+    for (User user : usersWritten()) {
       assertEquals(targetCompanyString, user.company);
       assertEquals(targetAge, user.age);
     }
   }
 
+  @Test
+  void revalidatesUsersWithEtags() throws IOException {
+    when(ctx.path()).thenReturn("/api/users");
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+    userController.getUser(ctx);
+
+    ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+    verify(ctx).header(Mockito.eq(Header.ETAG), etag.capture());
+    verify(ctx).status(HttpStatus.OK);
+
+    Mockito.clearInvocations(ctx);
+    when(ctx.header(Header.IF_NONE_MATCH)).thenReturn(etag.getValue());
+    userController.getUser(ctx);
+    userController.getUsers(ctx);
+    userController.getUsersGroupedByCompany(ctx);
+
+    verify(ctx, Mockito.times(3)).status(HttpStatus.NOT_MODIFIED);
+    verify(ctx, never()).json(any());
+  }
+
   @Test
   void getUserWithExistentId() throws IOException {
     String id = samsId.toHexString();
@@ -723,6 +809,48 @@ class UserControllerSpec {
     assertEquals(2, ohmnet.count);
   }
 
+  @Test
+  void groupsUsersByCompanyFromACache() {
+    userController.enableStaleWhileRevalidate(Duration.ofHours(1), Duration.ZERO);
+    when(ctx.queryParam("sortBy")).thenReturn("count");
+    when(ctx.queryParam("sortOrder")).thenReturn("desc");
+    userController.getUsersGroupedByCompany(ctx);
+
+    // Not seen until the cached grouping is an hour old
+    db.getCollection("users").insertOne(new Document("name", "Lee").append("company", "ACME"));
+    when(ctx.queryParam("sortBy")).thenReturn("company");
+    userController.getUsersGroupedByCompany(ctx);
+
+    verify(ctx, Mockito.times(2)).json(userByCompanyListCaptor.capture());
+    List<ArrayList<UserByCompany>> results = userByCompanyListCaptor.getAllValues();
+    assertEquals("OHMNET", results.get(0).get(0)._id);
+    assertEquals(2, results.get(0).get(0).count);
+    assertEquals(List.of("UMM", "OHMNET", "IBM"), results.get(1).stream().map(group -> group._id).toList());
+  }
+
+  @Test
+  void refreshesTheCachedGroupsInTheBackground() throws InterruptedException {
+    userController.enableStaleWhileRevalidate(Duration.ZERO, Duration.ofSeconds(10));
+    userController.getUsersGroupedByCompany(ctx);
+    db.getCollection("users").insertOne(new Document("name", "Lee").append("company", "ACME"));
+    // The requests that start the refreshes have spent their budgets, which the refreshes don't inherit
+    when(ctx.<TimeBudget>attribute(TimeBudget.ATTRIBUTE)).thenReturn(TimeBudget.startingNow(Duration.ZERO));
+
+    // Each of these gets what's cached, and they eventually see the refresh
+    int companies = 0;
+    for (int i = 0; i < 100 && companies < 4; i++) {
+      Mockito.clearInvocations(ctx);
+      userController.getUsersGroupedByCompany(ctx);
+      verify(ctx).json(userByCompanyListCaptor.capture());
+      companies = userByCompanyListCaptor.getValue().size();
+      Thread.sleep(20);
+    }
+
+    assertEquals(4, companies);
+    assertEquals("ACME", userByCompanyListCaptor.getValue().get(0)._id);
+    verify(ctx, never()).attribute(TimeBudget.ATTRIBUTE);
+  }
+
   @Test
   void addUser() throws IOException {
     // Create a new user to add
@@ -1122,6 +1250,390 @@ class UserControllerSpec {
     assertEquals(0, db.getCollection("users").countDocuments(eq("_id", new ObjectId(testID))));
   }
 
+  @Test
+  void countUsersWithIndexedFilters() {
+    when(ctx.queryParamMap()).thenReturn(Map.of(
+        UserController.COMPANY_KEY, List.of("ohm"),
+        UserController.ROLE_KEY, List.of("viewer")));
+    when(ctx.queryParam(UserController.COMPANY_KEY)).thenReturn("ohm");
+    Validator<String> roleValidator = new Validation().validator(UserController.ROLE_KEY, String.class, "viewer");
+    when(ctx.queryParamAsClass(UserController.ROLE_KEY, String.class)).thenReturn(roleValidator);
+
+    userController.countUsers(ctx);
+
+    verify(ctx).json(countCaptor.capture());
+    verify(ctx).status(HttpStatus.OK);
+    assertEquals(2L, countCaptor.getValue().get("count"));
+  }
+
+  @Test
+  void countUsersWithAge() {
+    // `age` isn't indexed, so MongoDB counts these
+    when(ctx.queryParamMap()).thenReturn(Map.of(
+        UserController.AGE_KEY, List.of("37"),
+        UserController.COMPANY_KEY, List.of("i")));
+    when(ctx.queryParam(UserController.COMPANY_KEY)).thenReturn("i");
+    Validator<Integer> ageValidator = new Validation().validator(UserController.AGE_KEY, Integer.class, "37");
+    when(ctx.queryParamAsClass(UserController.AGE_KEY, Integer.class)).thenReturn(ageValidator);
+
+    userController.countUsers(ctx);
+
+    verify(ctx).json(countCaptor.capture());
+    assertEquals(1L, countCaptor.getValue().get("count"));
+  }
+
+  @Test
+  void deletedUsersAreNotCounted() throws IOException {
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+    userController.deleteUser(ctx);
+
+    when(ctx.queryParamMap()).thenReturn(Map.of(UserController.COMPANY_KEY, List.of("OHMNET")));
+    when(ctx.queryParam(UserController.COMPANY_KEY)).thenReturn("OHMNET");
+    userController.countUsers(ctx);
+    userController.getUsers(ctx);
+
+    verify(ctx).json(countCaptor.capture());
+    assertEquals(1L, countCaptor.getValue().get("count"));
+    // The index narrows this down enough to look the users up by `_id`
+    assertEquals(List.of("Jamie"), usersWritten().stream().map(user -> user.name).toList());
+  }
+
+  @Test
+  void findsUsersAddedElsewhere() throws IOException {
+    // Added behind the controller's back (e.g., by another server), so its index doesn't have them
+    db.getCollection("users").insertOne(new Document()
+        .append("name", "Robin")
+        .append("age", 29)
+        .append("company", "OHMNET")
+        .append("email", "robin@ohmnet.com")
+        .append("role", "viewer"));
+
+    when(ctx.queryParamMap()).thenReturn(Map.of(UserController.COMPANY_KEY, List.of("OHMNET")));
+    when(ctx.queryParam(UserController.COMPANY_KEY)).thenReturn("OHMNET");
+    userController.countUsers(ctx);
+    userController.getUsers(ctx);
+
+    verify(ctx).json(countCaptor.capture());
+    assertEquals(3L, countCaptor.getValue().get("count"));
+    assertEquals(List.of("Jamie", "Robin", "Sam"), usersWritten().stream().map(user -> user.name).sorted().toList());
+  }
+
+  @Test
+  void getSimilarCompanies() {
+    Validation validation = new Validation();
+    when(ctx.queryParamAsClass("name", String.class))
+        .thenReturn(validation.validator("name", String.class, "omhnet"));
+    when(ctx.queryParamAsClass("distance", Integer.class))
+        .thenReturn(validation.validator("distance", Integer.class, null));
+    when(ctx.queryParamAsClass("limit", Integer.class))
+        .thenReturn(validation.validator("limit", Integer.class, null));
+
+    userController.getSimilarCompanies(ctx);
+
+    verify(ctx).json(List.of(new FuzzyMatch("OHMNET", 2, 2)));
+    verify(ctx).status(HttpStatus.OK);
+  }
+
+  @Test
+  void getSimilarCompaniesSkipsCompaniesWithNoUsers() throws IOException {
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+    userController.deleteUser(ctx);
+
+    Validation validation = new Validation();
+    when(ctx.queryParamAsClass("name", String.class))
+        .thenReturn(validation.validator("name", String.class, "UM"));
+    when(ctx.queryParamAsClass("distance", Integer.class))
+        .thenReturn(validation.validator("distance", Integer.class, "3"));
+    when(ctx.queryParamAsClass("limit", Integer.class))
+        .thenReturn(validation.validator("limit", Integer.class, "1"));
+
+    userController.getSimilarCompanies(ctx);
+
+    // UMM is closest; IBM is also within 3 edits but past the limit
+    verify(ctx).json(List.of(new FuzzyMatch("UMM", 1, 1)));
+  }
+
+  @Test
+  void autocompleteIndexesFollowDeletes() throws IOException {
+    assertEquals(List.of(new Completion("Sam", 1)), userController.autocompleteIndexes().get("name").complete("s", 10));
+
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+    userController.deleteUser(ctx);
+
+    assertTrue(userController.autocompleteIndexes().get("name").complete("s", 10).isEmpty());
+    assertEquals(List.of(new Completion("OHMNET", 1)),
+        userController.autocompleteIndexes().get(UserController.COMPANY_KEY).complete("oh", 10));
+  }
+
+  @Test
+  void getUsersWithFacets() {
+    when(ctx.queryParamMap()).thenReturn(Map.of(UserController.COMPANY_KEY, List.of("u")));
+    when(ctx.queryParam(UserController.COMPANY_KEY)).thenReturn("u");
+    when(ctx.queryParam(UserController.FACETS_KEY)).thenReturn("true");
+
+    userController.getUsers(ctx);
+
+    verify(ctx).json(facetedCaptor.capture());
+    verify(ctx).status(HttpStatus.OK);
+    FacetedResults<User> faceted = facetedCaptor.getValue();
+    assertEquals(List.of("Chris"), faceted.results.stream().map(user -> user.name).toList());
+    Map<Object, Integer> roles = new HashMap<>();
+    for (FacetCount count : faceted.facets.get(UserController.ROLE_KEY)) {
+      roles.put(count._id, count.count);
+    }
+    assertEquals(Map.of("admin", 1), roles);
+    Map<Object, Integer> ages = new HashMap<>();
+    for (FacetCount count : faceted.facets.get(UserController.AGE_KEY)) {
+      ages.put(count._id, count.count);
+    }
+    assertEquals(Map.of(20, 1), ages);
+    assertEquals(1, faceted.facets.get(UserController.COMPANY_KEY).size());
+  }
+
+  @Test
+  void exportUsersAsCsv() {
+    Validation validation = new Validation();
+    when(ctx.queryParamAsClass("format", String.class)).thenReturn(validation.validator("format", String.class, "csv"));
+    when(ctx.queryParamAsClass("parallel", Integer.class))
+        .thenReturn(validation.validator("parallel", Integer.class, null));
+
+    userController.exportUsers(ctx);
+
+    verify(ctx).contentType("text/csv");
+    String[] lines = output.toString().split("\n");
+    assertEquals("_id,name,age,company,email,avatar,role", lines[0]);
+    assertEquals(5, lines.length);
+  }
+
+  @Test
+  void getUserChangesIncludesTombstones() throws IOException {
+    userController.getUserChanges(ctx);
+    verify(ctx).json(changesCaptor.capture());
+    String token = changesCaptor.getValue().token;
+    assertEquals(4, changesCaptor.getValue().changed.size());
+
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+    userController.deleteUser(ctx);
+
+    Mockito.clearInvocations(ctx);
+    when(ctx.queryParam("since")).thenReturn(token);
+    userController.getUserChanges(ctx);
+    verify(ctx).json(changesCaptor.capture());
+    ChangeSet<User> changes = changesCaptor.getValue();
+    assertEquals(false, changes.reset);
+    assertTrue(changes.changed.isEmpty());
+    assertEquals(List.of(samsId.toHexString()), changes.deleted);
+  }
+
+  @Test
+  void streamUserEventsPushesMatchingChanges() throws IOException {
+    SseClient client = mock(SseClient.class);
+    Context eventsCtx = mock(Context.class);
+    when(client.ctx()).thenReturn(eventsCtx);
+    when(eventsCtx.queryParamMap()).thenReturn(Map.of(
+        UserController.ROLE_KEY, List.of("viewer"),
+        UserController.COMPANY_KEY, List.of("ohm"),
+        UserController.AGE_KEY, List.of("45")));
+    when(eventsCtx.queryParam(UserController.COMPANY_KEY)).thenReturn("ohm");
+    Validation validation = new Validation();
+    when(eventsCtx.queryParamAsClass(UserController.ROLE_KEY, String.class))
+        .thenReturn(validation.validator(UserController.ROLE_KEY, String.class, "viewer"));
+    when(eventsCtx.queryParamAsClass(UserController.AGE_KEY, Integer.class))
+        .thenReturn(validation.validator(UserController.AGE_KEY, Integer.class, "45"));
+    userController.streamUserEvents(client);
+
+    String newUserJson = """
+        {
+          "name": "Test User",
+          "age": 25,
+          "company": "testers",
+          "email": "test@example.com",
+          "role": "admin"
+        }
+        """;
+    when(ctx.bodyValidator(User.class))
+        .thenReturn(new BodyValidator<User>(newUserJson, User.class,
+            () -> javalinJackson.fromJsonString(newUserJson, User.class)));
+    userController.addNewUser(ctx);
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+    userController.deleteUser(ctx);
+
+    // Sam was a 45 year old viewer at OHMNET, but the new user is an admin
+    ArgumentCaptor<User> deleted = ArgumentCaptor.forClass(User.class);
+    verify(client, timeout(1000)).sendEvent(Mockito.eq("delete"), deleted.capture());
+    assertEquals("Sam", deleted.getValue().name);
+    verify(client, never()).sendEvent(Mockito.eq("insert"), any());
+  }
+
+  @Test
+  void streamUserEventsReportsBadFilters() {
+    SseClient client = mock(SseClient.class);
+    Context eventsCtx = mock(Context.class);
+    when(client.ctx()).thenReturn(eventsCtx);
+    when(eventsCtx.queryParamMap()).thenReturn(Map.of(UserController.AGE_KEY, List.of("abc")));
+    when(eventsCtx.queryParamAsClass(UserController.AGE_KEY, Integer.class))
+        .thenReturn(new Validation().validator(UserController.AGE_KEY, Integer.class, "abc"));
+
+    userController.streamUserEvents(client);
+
+    verify(client).sendEvent(Mockito.eq("error"), any());
+    verify(client, never()).keepAlive();
+  }
+
+  @Test
+  void updateUserChangesOnlyTheGivenFields() throws IOException {
+    SseClient client = mock(SseClient.class);
+    Context eventsCtx = mock(Context.class);
+    when(client.ctx()).thenReturn(eventsCtx);
+    userController.streamUserEvents(client);
+
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+    when(ctx.body()).thenReturn("{\"role\": \"admin\", \"email\": \"sam@toads.com\", \"age\": 46}");
+    userController.updateUser(ctx);
+
+    verify(ctx).status(HttpStatus.OK);
+    verify(ctx).json(documentCaptor.capture());
+    Document response = documentCaptor.getValue();
+    assertEquals(List.of("_id", "role", "email", "age", "avatar"), List.copyOf(response.keySet()));
+    assertEquals(userController.generateAvatar("sam@toads.com"), response.get("avatar"));
+    Document sam = db.getCollection("users").find(eq("_id", samsId)).first();
+    assertEquals("admin", sam.get("role"));
+    assertEquals(46, sam.get("age"));
+    assertEquals("Sam", sam.get("name"));
+
+    // The index has the new role, and subscribers get the whole user
+    Mockito.clearInvocations(ctx);
+    when(ctx.queryParamMap()).thenReturn(Map.of(UserController.ROLE_KEY, List.of("admin")));
+    when(ctx.queryParamAsClass(UserController.ROLE_KEY, String.class))
+        .thenReturn(new Validation().validator(UserController.ROLE_KEY, String.class, "admin"));
+    userController.countUsers(ctx);
+    verify(ctx).json(countCaptor.capture());
+    assertEquals(2L, countCaptor.getValue().get("count"));
+    ArgumentCaptor<User> updated = ArgumentCaptor.forClass(User.class);
+    verify(client, timeout(1000)).sendEvent(Mockito.eq("update"), updated.capture());
+    assertEquals("OHMNET", updated.getValue().company);
+  }
+
+  @Test
+  void updateUserRejectsBadUpdates() {
+    when(ctx.pathParam("id")).thenReturn("bad");
+    when(ctx.body()).thenReturn("{\"role\": \"admin\"}");
+    assertThrows(BadRequestResponse.class, () -> userController.updateUser(ctx));
+
+    when(ctx.pathParam("id")).thenReturn(new ObjectId().toHexString());
+    Throwable exception = assertThrows(NotFoundResponse.class, () -> userController.updateUser(ctx));
+    assertEquals("The requested user was not found", exception.getMessage());
+
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+    for (String body : List.of("{\"age\": 0}", "{\"age\": 150}", "{\"age\": \"old\"}",
+        "{\"role\": \"boss\"}", "{\"email\": \"nope\"}", "{\"name\": \"\"}",
+        "{\"company\": null}", "{\"avatar\": \"x\"}")) {
+      when(ctx.body()).thenReturn(body);
+      assertThrows(BadRequestResponse.class, () -> userController.updateUser(ctx), body);
+    }
+    when(ctx.body()).thenReturn("{\"age\": 200}");
+    exception = assertThrows(BadRequestResponse.class, () -> userController.updateUser(ctx));
+    assertEquals("User's age must be less than 150; body was {\"age\": 200}", exception.getMessage());
+  }
+
+  @Test
+  void updateUsersChangesEveryMatchingUser() throws IOException {
+    when(ctx.queryParamMap()).thenReturn(Map.of(UserController.COMPANY_KEY, List.of("OHMNET")));
+    when(ctx.queryParam(UserController.COMPANY_KEY)).thenReturn("OHMNET");
+    when(ctx.body()).thenReturn("{\"company\": \"Frogs Inc\", \"role\": \"editor\"}");
+
+    when(ctx.queryParam(UserController.DRY_RUN_KEY)).thenReturn("true");
+    userController.updateUsers(ctx);
+    verify(ctx).json(Map.of("matched", 2L, "modified", 0L, "dryRun", true));
+
+    when(ctx.queryParam(UserController.DRY_RUN_KEY)).thenReturn(null);
+    userController.updateUsers(ctx);
+    verify(ctx).json(Map.of("matched", 2L, "modified", 2L, "dryRun", false));
+    assertEquals(2, db.getCollection("users").countDocuments(eq("company", "Frogs Inc")));
+
+    Mockito.clearInvocations(ctx);
+    when(ctx.queryParam(UserController.COMPANY_KEY)).thenReturn("frogs");
+    when(ctx.queryParamMap()).thenReturn(Map.of(
+        UserController.COMPANY_KEY, List.of("frogs"), UserController.ROLE_KEY, List.of("editor")));
+    when(ctx.queryParamAsClass(UserController.ROLE_KEY, String.class))
+        .thenReturn(new Validation().validator(UserController.ROLE_KEY, String.class, "editor"));
+    userController.countUsers(ctx);
+    verify(ctx).json(countCaptor.capture());
+    assertEquals(2L, countCaptor.getValue().get("count"));
+  }
+
+  @Test
+  void deleteUsersDeletesEveryMatchingUser() throws IOException {
+    when(ctx.queryParamMap()).thenReturn(Map.of(UserController.AGE_KEY, List.of("37")));
+    when(ctx.queryParam(UserController.AGE_KEY)).thenReturn("37");
+    when(ctx.queryParamAsClass(UserController.AGE_KEY, Integer.class))
+        .thenReturn(new Validation().validator(UserController.AGE_KEY, Integer.class, "37"));
+
+    when(ctx.queryParam(UserController.DRY_RUN_KEY)).thenReturn("true");
+    userController.deleteUsers(ctx);
+    verify(ctx).json(Map.of("matched", 2L, "deleted", 0L, "dryRun", true));
+
+    when(ctx.queryParam(UserController.DRY_RUN_KEY)).thenReturn("false");
+    userController.deleteUsers(ctx);
+    verify(ctx).json(Map.of("matched", 2L, "deleted", 2L, "dryRun", false));
+    assertEquals(2, db.getCollection("users").countDocuments());
+    assertTrue(userController.autocompleteIndexes().get("name").complete("pa", 10).isEmpty());
+  }
+
+  @Test
+  void bulkUpdatesAndDeletesNeedAFilter() {
+    when(ctx.queryParamMap()).thenReturn(Map.of());
+    when(ctx.body()).thenReturn("{\"role\": \"viewer\"}");
+
+    assertThrows(BadRequestResponse.class, () -> userController.updateUsers(ctx));
+    assertThrows(BadRequestResponse.class, () -> userController.deleteUsers(ctx));
+    assertEquals(4, db.getCollection("users").countDocuments());
+  }
+
+  @Test
+  void getUsersByIds() throws IOException {
+    String patsId = db.getCollection("users").find(eq("name", "Pat")).first().getObjectId("_id").toHexString();
+    String missingId = new ObjectId().toHexString();
+    when(ctx.queryParamMap()).thenReturn(Map.of(UserController.IDS_KEY, List.of("")));
+    // Ids can be repeated, and are case-insensitive like ObjectIds
+    when(ctx.queryParam(UserController.IDS_KEY))
+        .thenReturn(String.join(",", patsId, missingId, samsId.toHexString().toUpperCase(), patsId));
+
+    userController.getUsers(ctx);
+
+    verify(ctx).json(multiGetCaptor.capture());
+    MultiGetResults<User> found = multiGetCaptor.getValue();
+    assertEquals(List.of("Pat", "Sam", "Pat"), found.results.stream().map(user -> user.name).toList());
+    assertEquals(List.of(missingId), found.missing);
+  }
+
+  @Test
+  void getUserChangesIncludesNewUsers() throws IOException {
+    userController.getUserChanges(ctx);
+    verify(ctx).json(changesCaptor.capture());
+    String token = changesCaptor.getValue().token;
+
+    String newUserJson = """
+        {
+          "name": "Test User",
+          "age": 25,
+          "company": "testers",
+          "email": "test@example.com",
+          "role": "viewer"
+        }
+        """;
+    when(ctx.bodyValidator(User.class))
+        .thenReturn(new BodyValidator<User>(newUserJson, User.class,
+            () -> javalinJackson.fromJsonString(newUserJson, User.class)));
+    userController.addNewUser(ctx);
+
+    Mockito.clearInvocations(ctx);
+    when(ctx.queryParam("since")).thenReturn(token);
+    userController.getUserChanges(ctx);
+    verify(ctx).json(changesCaptor.capture());
+    assertEquals(List.of("Test User"), changesCaptor.getValue().changed.stream().map(user -> user.name).toList());
+  }
+
   /**
    * Test that the `generateAvatar` method works as expected.
    *
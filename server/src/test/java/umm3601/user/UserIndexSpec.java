@@ -0,0 +1,71 @@
+package umm3601.user;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests replacing users in a `UserIndex`.
+ */
+@SuppressWarnings({"MagicNumber"})
+class UserIndexSpec {
+
+  private UserIndex index;
+  private User chris;
+
+  @BeforeEach
+  void setupEach() {
+    index = new UserIndex();
+    chris = user("Chris", "UMM", "admin");
+    index.add(chris);
+    index.add(user("Pat", "IBM", "editor"));
+  }
+
+  private static User user(String name, String company, String role) {
+    User user = new User();
+    user._id = new ObjectId().toHexString();
+    user.name = name;
+    user.company = company;
+    user.role = role;
+    return user;
+  }
+
+  @Test
+  void replacesAUser() {
+    User updated = user("Chris", "OHMNET", "viewer");
+    updated._id = chris._id;
+    index.replace(updated);
+
+    assertEquals(2, index.size());
+    assertTrue(index.withRole("admin").isEmpty());
+    assertEquals(1, index.withRole("viewer").cardinality());
+    assertTrue(index.companiesMatching("UMM"::equals).isEmpty());
+  }
+
+  @Test
+  void neverLosesAUserBeingReplaced() throws InterruptedException {
+    AtomicBoolean lost = new AtomicBoolean();
+    AtomicBoolean done = new AtomicBoolean();
+    Thread reader = Thread.ofVirtual().start(() -> {
+      while (!done.get()) {
+        if (index.size() != 2) {
+          lost.set(true);
+        }
+      }
+    });
+    for (int i = 0; i < 10_000; i++) {
+      index.replace(chris);
+    }
+    done.set(true);
+    reader.join();
+
+    assertEquals(2, index.size());
+    assertFalse(lost.get(), "A reader saw the index without the user being replaced");
+  }
+}
@@ -0,0 +1,170 @@
+package umm3601.wal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+import org.bson.BsonDocument;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.mongodb.MongoException;
+import com.mongodb.MongoSocketOpenException;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.ServerAddress;
+import com.mongodb.WriteError;
+
+import umm3601.todo.Todo;
+import umm3601.wal.WriteAheadLog.FsyncPolicy;
+
+/**
+ * Tests logging inserts with `DurableInserter` while "MongoDB" (here, just
+ * a list that can be made to fail) is unavailable, and replaying them.
+ */
+@SuppressWarnings({"MagicNumber"})
+class DurableInserterSpec {
+
+  private WriteAheadLog log;
+
+  // What has been "inserted", and whether inserting currently fails
+  private final List<String> inserted = new CopyOnWriteArrayList<>();
+  private final List<String> replayed = new CopyOnWriteArrayList<>();
+  private volatile RuntimeException failure;
+  // What inserting particular todos (by body) fails with, while MongoDB is up
+  private final Map<String, RuntimeException> refusals = new ConcurrentHashMap<>();
+
+  @BeforeEach
+  void setupEach(@TempDir Path dir) throws IOException {
+    log = new WriteAheadLog(dir, WriteAheadLog.DEFAULT_SEGMENT_BYTES, FsyncPolicy.NEVER, Duration.ZERO);
+  }
+
+  private DurableInserter<Todo> inserter() {
+    return new DurableInserter<>(log, Todo.class,
+        todo -> {
+          if (failure != null) {
+            throw failure;
+          }
+          if (refusals.containsKey(todo.body)) {
+            throw refusals.get(todo.body);
+          }
+          inserted.add(todo.body);
+        },
+        todo -> replayed.add(todo.body),
+        Duration.ofMillis(5));
+  }
+
+  private static Todo todo(String body) {
+    Todo todo = new Todo();
+    todo._id = "58895985a22c04e761776d54";
+    todo.owner = "Sam";
+    todo.category = "homework";
+    todo.body = body;
+    return todo;
+  }
+
+  private static void await(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+    while (!condition.getAsBoolean()) {
+      if (System.nanoTime() > deadline) {
+        throw new AssertionError("Timed out waiting for the log to be replayed");
+      }
+      Thread.sleep(5);
+    }
+  }
+
+  @Test
+  void insertsDirectlyWhileMongoIsUp() {
+    DurableInserter<Todo> inserter = inserter();
+
+    assertTrue(inserter.insert(todo("one")));
+
+    assertEquals(List.of("one"), inserted);
+    assertTrue(log.isEmpty());
+  }
+
+  @Test
+  void logsInsertsWhileMongoIsDownAndReplaysThemInOrder() throws InterruptedException {
+    DurableInserter<Todo> inserter = inserter();
+    failure = new MongoTimeoutException("No server");
+
+    assertFalse(inserter.insert(todo("one")));
+    assertFalse(inserter.insert(todo("two")));
+    failure = null;
+    // Still logged, so it's written after the ones before it
+    assertFalse(inserter.insert(todo("three")));
+
+    await(log::isEmpty);
+    assertEquals(List.of("one", "two", "three"), inserted);
+    assertEquals(List.of("one", "two", "three"), replayed);
+    assertTrue(inserter.insert(todo("four")));
+    assertEquals(List.of("one", "two", "three", "four"), inserted);
+  }
+
+  @Test
+  void replaysWhatAnEarlierServerLogged() throws InterruptedException {
+    failure = new MongoSocketOpenException("Connection refused", new ServerAddress());
+    inserter().insert(todo("before the restart"));
+    failure = null;
+
+    // Another inserter on the same log, as if the server had restarted
+    inserter();
+
+    await(log::isEmpty);
+    assertEquals(List.of("before the restart"), inserted);
+  }
+
+  @Test
+  void rethrowsErrorsThatArentAnOutage() {
+    DurableInserter<Todo> inserter = inserter();
+    failure = new MongoWriteException(new WriteError(11000, "duplicate key", new BsonDocument()),
+        new ServerAddress(), List.of());
+
+    assertSame(failure, assertThrows(MongoWriteException.class, () -> inserter.insert(todo("one"))));
+    assertTrue(log.isEmpty());
+  }
+
+  @Test
+  void dropsLoggedDocumentsMongoRefuses() throws InterruptedException {
+    DurableInserter<Todo> inserter = inserter();
+    failure = new MongoTimeoutException("No server");
+    inserter.insert(todo("refused"));
+    inserter.insert(todo("duplicate"));
+    inserter.insert(todo("broken"));
+
+    refusals.put("refused", new MongoWriteException(
+        new WriteError(121, "Document failed validation", new BsonDocument()), new ServerAddress(), List.of()));
+    // A duplicate key means an earlier replay already wrote it, so it isn't counted
+    refusals.put("duplicate", new MongoWriteException(
+        new WriteError(11000, "duplicate key", new BsonDocument()), new ServerAddress(), List.of()));
+    refusals.put("broken", new IllegalStateException("Something else"));
+    failure = null;
+
+    await(log::isEmpty);
+    assertEquals(2, inserter.dropped());
+    assertTrue(inserted.isEmpty());
+    assertTrue(replayed.isEmpty());
+  }
+
+  @Test
+  void recognizesOutages() {
+    assertTrue(DurableInserter.isUnavailable(new MongoTimeoutException("No server")));
+    MongoException retryable = new MongoException("Interrupted");
+    retryable.addLabel(DurableInserter.RETRYABLE_WRITE_ERROR);
+    assertTrue(DurableInserter.isUnavailable(retryable));
+    assertFalse(DurableInserter.isUnavailable(new MongoException("Something else")));
+    assertFalse(DurableInserter.isUnavailable(new IllegalArgumentException()));
+  }
+}
@@ -0,0 +1,142 @@
+package umm3601.wal;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import umm3601.wal.WriteAheadLog.FsyncPolicy;
+
+/**
+ * Tests appending to, reading back, and reopening a `WriteAheadLog`.
+ */
+@SuppressWarnings({"MagicNumber"})
+class WriteAheadLogSpec {
+
+  // Small enough that a few records fill a segment
+  private static final int SEGMENT_BYTES = 64;
+
+  private Path dir;
+
+  @BeforeEach
+  void setupEach(@TempDir Path tempDir) {
+    dir = tempDir.resolve("wal");
+  }
+
+  private WriteAheadLog open(FsyncPolicy fsync) throws IOException {
+    return new WriteAheadLog(dir, SEGMENT_BYTES, fsync, Duration.ofMillis(10));
+  }
+
+  private static byte[] bytes(String record) {
+    return record.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static String next(WriteAheadLog log) {
+    byte[] record = log.peek();
+    log.advance();
+    return new String(record, StandardCharsets.UTF_8);
+  }
+
+  private long segmentFiles() throws IOException {
+    try (Stream<Path> files = Files.list(dir)) {
+      return files.filter(file -> file.toString().endsWith(".wal")).count();
+    }
+  }
+
+  @Test
+  void readsRecordsBackInOrder() throws IOException {
+    WriteAheadLog log = open(FsyncPolicy.ALWAYS);
+    assertTrue(log.isEmpty());
+    assertNull(log.peek());
+
+    log.append(bytes("one"));
+    log.append(bytes("two"));
+
+    assertFalse(log.isEmpty());
+    assertArrayEquals(bytes("one"), log.peek());
+    assertEquals("one", next(log));
+    assertEquals("two", next(log));
+    assertTrue(log.isEmpty());
+    assertThrows(IllegalStateException.class, log::advance);
+    log.close();
+  }
+
+  @Test
+  void rollsOverToNewSegmentsAndDeletesReadOnes() throws IOException {
+    WriteAheadLog log = open(FsyncPolicy.INTERVAL);
+    // 8 bytes of header + 20 bytes, so only two fit in a segment
+    for (int i = 0; i < 5; i++) {
+      log.append(bytes("record number " + i + "....."));
+    }
+    assertEquals(3, segmentFiles());
+
+    for (int i = 0; i < 5; i++) {
+      assertEquals("record number " + i + ".....", next(log));
+    }
+    assertTrue(log.isEmpty());
+    assertEquals(1, segmentFiles());
+    log.close();
+  }
+
+  @Test
+  void picksUpWhereItLeftOffWhenReopened() throws IOException {
+    WriteAheadLog log = open(FsyncPolicy.NEVER);
+    for (int i = 0; i < 5; i++) {
+      log.append(bytes("record number " + i + "....."));
+    }
+    next(log);
+    next(log);
+    next(log);
+    log.close();
+
+    WriteAheadLog reopened = open(FsyncPolicy.NEVER);
+    assertEquals("record number 3.....", next(reopened));
+    reopened.append(bytes("after"));
+    assertEquals("record number 4.....", next(reopened));
+    assertEquals("after", next(reopened));
+    assertTrue(reopened.isEmpty());
+  }
+
+  @Test
+  void dropsAPartlyWrittenRecord() throws IOException {
+    WriteAheadLog log = open(FsyncPolicy.ALWAYS);
+    log.append(bytes("whole"));
+    log.close();
+    // A header for a record whose bytes never made it to the file
+    try (FileChannel segment = FileChannel.open(dir.resolve(String.format("segment-%020d.wal", 0)),
+        StandardOpenOption.WRITE)) {
+      segment.write(ByteBuffer.allocate(8).putInt(10).putInt(12345).flip(), 13);
+    }
+
+    WriteAheadLog reopened = open(FsyncPolicy.ALWAYS);
+    assertEquals("whole", next(reopened));
+    assertTrue(reopened.isEmpty());
+    reopened.append(bytes("next"));
+    assertEquals("next", next(reopened));
+  }
+
+  @Test
+  void refusesRecordsThatDontFit() throws IOException {
+    WriteAheadLog log = open(FsyncPolicy.ALWAYS);
+
+    assertThrows(IllegalArgumentException.class, () -> log.append(new byte[0]));
+    assertThrows(IllegalArgumentException.class, () -> log.append(new byte[SEGMENT_BYTES]));
+    assertThrows(IllegalArgumentException.class, () -> new WriteAheadLog(dir, 8, FsyncPolicy.NEVER, Duration.ZERO));
+  }
+}